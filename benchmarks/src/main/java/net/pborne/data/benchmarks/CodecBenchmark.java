@@ -0,0 +1,151 @@
+package net.pborne.data.benchmarks;
+
+import net.pborne.data.BitManipulationHelper;
+import net.pborne.data.CompressedDoubleArray;
+import net.pborne.data.Compression;
+import net.pborne.data.DatasetGenerators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of every codec of {@link Compression}, for every array size and data distribution.
+ * The integer codecs are fed with the long version of the dataset (see {@link DatasetGenerators.Dataset#generateLongs(int, long)}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+  private static final long SEED = 42L;
+
+  public enum Codec {
+    DELTA_XOR_32,
+    DELTA_XOR_64,
+    FPC_64,
+    DELTA_VAL_32,
+    DELTA_VAL_64,
+    DELTA_OF_DELTA,
+    RLE
+  }
+
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  @Param({"UNIFORM_NOISE", "RANDOM_WALK", "SINE_SENSOR", "TICK_PRICES", "MONOTONIC_COUNTER", "MOSTLY_CONSTANT"})
+  public DatasetGenerators.Dataset dataset;
+
+  @Param({"DELTA_XOR_32", "DELTA_XOR_64", "FPC_64", "DELTA_VAL_32", "DELTA_VAL_64", "DELTA_OF_DELTA", "RLE"})
+  public Codec codec;
+
+  private float[] floats;
+  private double[] doubles;
+  private int[] ints;
+  private long[] longs;
+  private byte[] bytes;
+
+  private CompressedDoubleArray encodedFloats;
+  private CompressedDoubleArray encodedDoubles;
+  private int[] encodedInts;
+  private long[] encodedLongs;
+  private long[] encodedDeltaOfDeltas;
+  private long[] encodedFpc;
+  private byte[] encodedBytes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    doubles = dataset.generateDoubles(size, SEED);
+    longs = dataset.generateLongs(size, SEED);
+    floats = new float[size];
+    ints = new int[size];
+    for (int i = 0; i < size; i++) {
+      floats[i] = (float) doubles[i];
+      ints[i] = (int) longs[i];
+    }
+    bytes = BitManipulationHelper.intsToBytes(ints, 0, ints.length);
+
+    switch (codec) {
+      case DELTA_XOR_32:
+        encodedFloats = Compression.deltaXorEncode32(floats);
+        break;
+      case DELTA_XOR_64:
+        encodedDoubles = Compression.deltaXorEncode64(doubles);
+        break;
+      case FPC_64:
+        encodedFpc = Compression.fpcEncode(doubles);
+        break;
+      case DELTA_VAL_32:
+        encodedInts = Compression.deltaValEncode(ints);
+        break;
+      case DELTA_VAL_64:
+        encodedLongs = Compression.deltaValEncode(longs);
+        break;
+      case DELTA_OF_DELTA:
+        encodedDeltaOfDeltas = Compression.deltaOfDeltaEncode(longs);
+        break;
+      case RLE:
+        encodedBytes = Compression.rleEncode(bytes);
+        break;
+      default:
+        throw new IllegalStateException("Unknown codec: " + codec);
+    }
+  }
+
+  @Benchmark
+  public Object encode() {
+    switch (codec) {
+      case DELTA_XOR_32:
+        return Compression.deltaXorEncode32(floats);
+      case DELTA_XOR_64:
+        return Compression.deltaXorEncode64(doubles);
+      case FPC_64:
+        return Compression.fpcEncode(doubles);
+      case DELTA_VAL_32:
+        return Compression.deltaValEncode(ints);
+      case DELTA_VAL_64:
+        return Compression.deltaValEncode(longs);
+      case DELTA_OF_DELTA:
+        return Compression.deltaOfDeltaEncode(longs);
+      case RLE:
+        return Compression.rleEncode(bytes);
+      default:
+        throw new IllegalStateException("Unknown codec: " + codec);
+    }
+  }
+
+  @Benchmark
+  public Object decode() throws Exception {
+    switch (codec) {
+      case DELTA_XOR_32:
+        return Compression.deltaXorDecode32(encodedFloats);
+      case DELTA_XOR_64:
+        return Compression.deltaXorDecode64(encodedDoubles);
+      case FPC_64:
+        return Compression.fpcDecode(encodedFpc);
+      case DELTA_VAL_32:
+        return Compression.deltaValDecode(encodedInts);
+      case DELTA_VAL_64:
+        return Compression.deltaValDecode(encodedLongs);
+      case DELTA_OF_DELTA:
+        return Compression.deltaOfDeltaDecode(encodedDeltaOfDeltas);
+      case RLE:
+        return Compression.rleDecode(encodedBytes);
+      default:
+        throw new IllegalStateException("Unknown codec: " + codec);
+    }
+  }
+}
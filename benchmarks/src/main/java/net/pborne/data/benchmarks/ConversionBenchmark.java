@@ -0,0 +1,121 @@
+package net.pborne.data.benchmarks;
+
+import net.pborne.data.BitManipulationHelper;
+import net.pborne.data.Compression;
+import net.pborne.data.DatasetGenerators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the conversions of {@link BitManipulationHelper} and of {@link Compression#transpose32b(int[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+  private static final long SEED = 42L;
+
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  @Param({"UNIFORM_NOISE", "RANDOM_WALK"})
+  public DatasetGenerators.Dataset dataset;
+
+  private float[] floats;
+  private double[] doubles;
+  private int[] ints;
+  private long[] longs;
+  private byte[] intBytes;
+  private byte[] longBytes;
+  private byte[] floatBytes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    doubles = dataset.generateDoubles(size, SEED);
+    floats = new float[size];
+    for (int i = 0; i < size; i++)
+      floats[i] = (float) doubles[i];
+    ints = BitManipulationHelper.floatsToInts(floats, 0, floats.length);
+    longs = BitManipulationHelper.doublesToLongs(doubles, 0, doubles.length);
+    intBytes = BitManipulationHelper.intsToBytes(ints, 0, ints.length);
+    longBytes = BitManipulationHelper.longsToBytes(longs);
+    floatBytes = BitManipulationHelper.floatsToBytes(floats, 0, floats.length);
+  }
+
+  @Benchmark
+  public int[] floatsToInts() {
+    return BitManipulationHelper.floatsToInts(floats, 0, floats.length);
+  }
+
+  @Benchmark
+  public float[] intsToFloats() {
+    return BitManipulationHelper.intsToFloats(ints);
+  }
+
+  @Benchmark
+  public long[] doublesToLongs() {
+    return BitManipulationHelper.doublesToLongs(doubles, 0, doubles.length);
+  }
+
+  @Benchmark
+  public double[] longsToDoubles() {
+    return BitManipulationHelper.longsToDoubles(longs);
+  }
+
+  @Benchmark
+  public byte[] intsToBytes() {
+    return BitManipulationHelper.intsToBytes(ints, 0, ints.length);
+  }
+
+  @Benchmark
+  public int[] bytesToInts() {
+    return BitManipulationHelper.bytesToInts(intBytes);
+  }
+
+  @Benchmark
+  public byte[] longsToBytes() {
+    return BitManipulationHelper.longsToBytes(longs);
+  }
+
+  @Benchmark
+  public long[] bytesToLongs() {
+    return BitManipulationHelper.bytesToLongs(longBytes);
+  }
+
+  @Benchmark
+  public byte[] floatsToBytes() {
+    return BitManipulationHelper.floatsToBytes(floats, 0, floats.length);
+  }
+
+  @Benchmark
+  public float[] bytesToFloats() {
+    return BitManipulationHelper.bytesToFloats(floatBytes);
+  }
+
+  @Benchmark
+  public void transpose32b(Blackhole blackhole) {
+    // transpose32b() works in place on 32x32 bit matrices: transpose the whole array block by block
+    int[] matrix = new int[32];
+    for (int i = 0; i + 32 <= ints.length; i += 32) {
+      System.arraycopy(ints, i, matrix, 0, 32);
+      blackhole.consume(Compression.transpose32b(matrix));
+    }
+  }
+}
@@ -441,6 +441,128 @@ public class BitManipulationHelper {
     return doubles;
   }
 
+  /**
+   * @return the IEEE 754 half precision bits of the value, rounded to the nearest even
+   */
+  public static short floatToHalf(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    int sign = bits >>> 16 & 0x8000;
+    int exponent = bits >>> 23 & 0xFF;
+    int significand = bits & 0x7FFFFF;
+
+    if (exponent == 0xFF) // Infinity, or a quiet NaN keeping the high bits of the payload
+      return (short) (sign | 0x7C00 | (significand == 0 ? 0 : 0x200 | significand >>> 13));
+
+    int halfExponent = exponent - 127 + 15;
+    if (halfExponent >= 0x1F) // Too large: infinity
+      return (short) (sign | 0x7C00);
+
+    int shift = 13;
+    if (halfExponent <= 0) { // Subnormal half, the implicit 1 becomes explicit
+      if (halfExponent < -10)
+        return (short) sign;
+      significand |= 0x800000;
+      shift = 14 - halfExponent;
+      halfExponent = 0;
+    }
+
+    int rounded = significand >>> shift;
+    int remainder = significand & ((1 << shift) - 1);
+    int halfway = 1 << (shift - 1);
+    if (remainder > halfway || (remainder == halfway && (rounded & 1) != 0))
+      rounded++; // May carry into the exponent, up to infinity, which is what rounding means there
+
+    return (short) (sign | ((halfExponent << 10) + rounded));
+  }
+
+  public static float halfToFloat(short half) {
+    int sign = (half & 0x8000) << 16;
+    int exponent = half >>> 10 & 0x1F;
+    int significand = half & 0x3FF;
+
+    if (exponent == 0x1F)
+      return Float.intBitsToFloat(sign | 0x7F800000 | significand << 13);
+    if (exponent == 0) { // Zero or subnormal: significand x 2^-24, exact as a float
+      float value = significand * 0x1p-24f;
+      return sign == 0 ? value : -value;
+    }
+    return Float.intBitsToFloat(sign | (exponent - 15 + 127) << 23 | significand << 13);
+  }
+
+  /**
+   * @return the bfloat16 bits of the value (the 16 high bits of the float), rounded to the nearest even
+   */
+  public static short floatToBFloat16(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    if ((bits & 0x7FFFFFFF) > 0x7F800000) // NaN: truncating could turn it into infinity, keep it quiet
+      return (short) (bits >>> 16 | 0x40);
+    return (short) ((bits + 0x7FFF + (bits >>> 16 & 1)) >>> 16);
+  }
+
+  public static float bfloat16ToFloat(short bfloat16) {
+    return Float.intBitsToFloat(bfloat16 << 16);
+  }
+
+  public static short[] floatsToHalves(float[] floats, int startFrom, int endAt) {
+    if (startFrom < 0 || startFrom > floats.length) {
+      System.err.println("Returning null! startFrom: " + startFrom + " floats.length: " + floats.length);
+      return null;
+    }
+    if (endAt < 0 || endAt > floats.length) {
+      System.err.println("Returning null! endAt: " + endAt + " floats.length: " + floats.length);
+      return null;
+    }
+    if (endAt < startFrom) {
+      System.err.println("Returning null! endAt: " + endAt + " startFrom: " + startFrom);
+      return null;
+    }
+
+    short[] halves = new short[endAt - startFrom];
+    int offset = 0;
+    for (int idx = startFrom; idx < endAt; idx++)
+      halves[offset++] = floatToHalf(floats[idx]);
+
+    return halves;
+  }
+
+  public static float[] halvesToFloats(short[] halves) {
+    float[] floats = new float[halves.length];
+    for (int i = 0; i < floats.length; i++)
+      floats[i] = halfToFloat(halves[i]);
+
+    return floats;
+  }
+
+  public static short[] floatsToBFloat16s(float[] floats, int startFrom, int endAt) {
+    if (startFrom < 0 || startFrom > floats.length) {
+      System.err.println("Returning null! startFrom: " + startFrom + " floats.length: " + floats.length);
+      return null;
+    }
+    if (endAt < 0 || endAt > floats.length) {
+      System.err.println("Returning null! endAt: " + endAt + " floats.length: " + floats.length);
+      return null;
+    }
+    if (endAt < startFrom) {
+      System.err.println("Returning null! endAt: " + endAt + " startFrom: " + startFrom);
+      return null;
+    }
+
+    short[] bfloat16s = new short[endAt - startFrom];
+    int offset = 0;
+    for (int idx = startFrom; idx < endAt; idx++)
+      bfloat16s[offset++] = floatToBFloat16(floats[idx]);
+
+    return bfloat16s;
+  }
+
+  public static float[] bfloat16sToFloats(short[] bfloat16s) {
+    float[] floats = new float[bfloat16s.length];
+    for (int i = 0; i < floats.length; i++)
+      floats[i] = bfloat16ToFloat(bfloat16s[i]);
+
+    return floats;
+  }
+
 	/*
 	Published in 1988, the C Programming Language 2nd Ed. (by Brian W. Kernighan and Dennis M. Ritchie) mentions
 	this in exercise 2-9. On April 19, 2006 Don Knuth pointed out that this method "was first published by Peter Wegner
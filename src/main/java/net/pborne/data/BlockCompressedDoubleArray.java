@@ -0,0 +1,274 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An array of doubles cut into fixed-size blocks, each block being compressed independently
+ * with {@link Compression#deltaXorEncode64(double[])}.
+ * <p>
+ * The statistics of each block (zone map) are kept next to the compressed block so that
+ * {@link #scan(RangePredicate)} can skip the blocks that cannot match without decompressing them.
+ * <p>
+ * When a {@link DecodedBlockCache} is installed with {@link #setCache(DecodedBlockCache)}, every read
+ * ({@link #get(int)}, {@link #decode()}, {@link #scan(RangePredicate)} and {@link #decodeBlock(int)}) goes through it.
+ */
+public class BlockCompressedDoubleArray {
+
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  private static volatile DecodedBlockCache cache; // null: no cache
+
+  public final int uncompressedArrayLength;
+  public final int blockSize;
+
+  public final CompressedDoubleArray[] blocks;
+  public final BlockStatistics[] statistics;
+
+  private final long cacheId = DecodedBlockCache.newArrayId();
+
+  public BlockCompressedDoubleArray(CompressedDoubleArray[] blocks,
+                                    BlockStatistics[] statistics,
+                                    int uncompressedArrayLength,
+                                    int blockSize) {
+    this.blocks = blocks;
+    this.statistics = statistics;
+    this.uncompressedArrayLength = uncompressedArrayLength;
+    this.blockSize = blockSize;
+  }
+
+  public static BlockCompressedDoubleArray encode(double[] uncompressed) {
+    return encode(uncompressed, DEFAULT_BLOCK_SIZE);
+  }
+
+  public static BlockCompressedDoubleArray encode(double[] uncompressed, int blockSize) {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("The block size must be greater than 0. Block size = " + blockSize);
+
+    int numberOfBlocks = (uncompressed.length + blockSize - 1) / blockSize;
+    CompressedDoubleArray[] blocks = new CompressedDoubleArray[numberOfBlocks];
+    BlockStatistics[] statistics = new BlockStatistics[numberOfBlocks];
+
+    for (int block = 0; block < numberOfBlocks; block++) {
+      int startFrom = block * blockSize;
+      int endAt = Math.min(startFrom + blockSize, uncompressed.length);
+      statistics[block] = BlockStatistics.compute(uncompressed, startFrom, endAt);
+      blocks[block] = Compression.deltaXorEncode64(Arrays.copyOfRange(uncompressed, startFrom, endAt));
+    }
+
+    return new BlockCompressedDoubleArray(blocks, statistics, uncompressed.length, blockSize);
+  }
+
+  /**
+   * @param decodedBlockCache the cache shared by all the arrays, null to decode every read
+   */
+  public static void setCache(DecodedBlockCache decodedBlockCache) {
+    cache = decodedBlockCache;
+  }
+
+  public static DecodedBlockCache getCache() {
+    return cache;
+  }
+
+  public int getNumberOfBlocks() {
+    return blocks.length;
+  }
+
+  /**
+   * @return the decoded block, a copy the caller can modify
+   */
+  public double[] decodeBlock(int block) throws Exception {
+    DecodedBlockCache cache = BlockCompressedDoubleArray.cache;
+    double[] decoded = readBlock(block, cache);
+    return cache == null || cache.isOffHeap() || decoded == null ? decoded : decoded.clone();
+  }
+
+  /**
+   * @return the decoded block, possibly shared with the cache: it must not be modified
+   */
+  private double[] readBlock(int block, DecodedBlockCache cache) throws Exception {
+    if (cache == null)
+      return Compression.deltaXorDecode64(blocks[block]);
+    return cache.get(cacheId, block, () -> Compression.deltaXorDecode64(blocks[block]));
+  }
+
+  /**
+   * Random access: decode the block of the value, reuse it from the cache when one is installed.
+   *
+   * @throws IllegalStateException when the block cannot be decoded
+   */
+  public double get(int index) throws Exception {
+    if (index < 0 || index >= uncompressedArrayLength)
+      throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + uncompressedArrayLength);
+    int block = index / blockSize;
+    DecodedBlockCache cache = BlockCompressedDoubleArray.cache;
+    if (cache != null)
+      return cache.getValue(cacheId, block, index % blockSize, () -> Compression.deltaXorDecode64(blocks[block]));
+
+    double[] decoded = Compression.deltaXorDecode64(blocks[block]);
+    if (decoded == null)
+      throw new IllegalStateException("Block " + block + " cannot be decoded");
+    return decoded[index % blockSize];
+  }
+
+  /**
+   * Remove the blocks of this array from the installed cache, if any.
+   */
+  public void invalidateCache() {
+    DecodedBlockCache cache = BlockCompressedDoubleArray.cache;
+    if (cache != null)
+      cache.invalidate(cacheId);
+  }
+
+  public double[] decode() throws Exception {
+    double[] uncompressed = new double[uncompressedArrayLength];
+    for (int block = 0; block < blocks.length; block++) {
+      double[] decompressedBlock = readBlock(block, cache);
+      System.arraycopy(decompressedBlock, 0, uncompressed, block * blockSize, decompressedBlock.length);
+    }
+    return uncompressed;
+  }
+
+  /**
+   * @return the values, block by block: the blocks are decoded when the traversal reaches them, and the
+   * spliterator splits on block boundaries so that parallel streams decode different blocks in different threads
+   */
+  public Spliterator.OfDouble spliterator() {
+    return new BlockSpliterator(0, blocks.length);
+  }
+
+  /**
+   * @param parallel true to decode and process the blocks in the common pool
+   */
+  public DoubleStream doubleStream(boolean parallel) {
+    return StreamSupport.doubleStream(spliterator(), parallel);
+  }
+
+  /**
+   * @return the number of values of the blocks in [fromBlock, toBlock)
+   */
+  private long numberOfValues(int fromBlock, int toBlock) {
+    if (fromBlock >= toBlock)
+      return 0;
+    return Math.min((long) toBlock * blockSize, uncompressedArrayLength) - (long) fromBlock * blockSize;
+  }
+
+  /**
+   * The blocks in [nextBlock, endBlock), plus the rest of the current block once the traversal started.
+   */
+  private final class BlockSpliterator implements Spliterator.OfDouble {
+    private int nextBlock;
+    private final int endBlock;
+    private double[] currentBlock; // null until the traversal starts, shared with the cache: read only
+    private int position;
+
+    BlockSpliterator(int fromBlock, int endBlock) {
+      this.nextBlock = fromBlock;
+      this.endBlock = endBlock;
+    }
+
+    private boolean advanceBlock() {
+      while (currentBlock == null || position == currentBlock.length) {
+        if (nextBlock >= endBlock)
+          return false;
+        currentBlock = decodeOrFail(nextBlock++);
+        position = 0;
+      }
+      return true;
+    }
+
+    private double[] decodeOrFail(int block) {
+      double[] decoded;
+      try {
+        decoded = readBlock(block, cache);
+      } catch (Exception e) {
+        throw new IllegalStateException("Block " + block + " cannot be decoded", e);
+      }
+      if (decoded == null)
+        throw new IllegalStateException("Block " + block + " cannot be decoded");
+      return decoded;
+    }
+
+    @Override
+    public boolean tryAdvance(DoubleConsumer action) {
+      if (!advanceBlock())
+        return false;
+      action.accept(currentBlock[position++]);
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(DoubleConsumer action) {
+      while (advanceBlock()) {
+        double[] block = currentBlock;
+        for (int i = position; i < block.length; i++)
+          action.accept(block[i]);
+        position = block.length;
+      }
+    }
+
+    /**
+     * @return the first half of the blocks not started yet
+     */
+    @Override
+    public Spliterator.OfDouble trySplit() {
+      if (currentBlock != null && position < currentBlock.length)
+        return null; // The prefix is the started block, it cannot be handed over
+      int middle = nextBlock + (endBlock - nextBlock) / 2;
+      if (middle == nextBlock)
+        return null;
+      BlockSpliterator prefix = new BlockSpliterator(nextBlock, middle);
+      nextBlock = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return (currentBlock == null ? 0 : currentBlock.length - position) + numberOfValues(nextBlock, endBlock);
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+  }
+
+  /**
+   * Find the positions of the values matching the predicate.
+   * Blocks whose statistics prove that no value can match are skipped and blocks whose statistics
+   * prove that every value matches are not decompressed either.
+   *
+   * @param predicate the range the values must fall in
+   * @return the positions of the matching values, in ascending order
+   */
+  public int[] scan(RangePredicate predicate) throws Exception {
+    int[] positions = new int[16];
+    int numberOfPositions = 0;
+
+    for (int block = 0; block < blocks.length; block++) {
+      BlockStatistics blockStatistics = statistics[block];
+      if (!predicate.mightMatch(blockStatistics))
+        continue;
+
+      int blockStart = block * blockSize;
+      if (positions.length < numberOfPositions + blockStatistics.count)
+        positions = Arrays.copyOf(positions, Math.max(2 * positions.length, numberOfPositions + blockStatistics.count));
+
+      if (predicate.allMatch(blockStatistics)) {
+        for (int i = 0; i < blockStatistics.count; i++)
+          positions[numberOfPositions++] = blockStart + i;
+        continue;
+      }
+
+      double[] decompressedBlock = readBlock(block, cache);
+      for (int i = 0; i < decompressedBlock.length; i++)
+        if (predicate.test(decompressedBlock[i]))
+          positions[numberOfPositions++] = blockStart + i;
+    }
+
+    return Arrays.copyOf(positions, numberOfPositions);
+  }
+}
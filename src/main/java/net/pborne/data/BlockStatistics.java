@@ -0,0 +1,58 @@
+package net.pborne.data;
+
+/**
+ * Zone map of a block of doubles: the statistics stored next to each compressed block so that
+ * a scan can decide whether a block may contain matching values without decompressing it.
+ * <p>
+ * NaN values are only counted: they are excluded from min, max and sum. When a block only
+ * contains NaN values, min is +Infinity and max is -Infinity.
+ */
+public class BlockStatistics {
+
+  public final int count;
+  public final int nanCount;
+
+  public final double min;
+  public final double max;
+  public final double sum;
+
+  public BlockStatistics(int count, int nanCount, double min, double max, double sum) {
+    this.count = count;
+    this.nanCount = nanCount;
+    this.min = min;
+    this.max = max;
+    this.sum = sum;
+  }
+
+  public static BlockStatistics compute(double[] values, int startFrom, int endAt) {
+    int nanCount = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0.0d;
+
+    for (int idx = startFrom; idx < endAt; idx++) {
+      double value = values[idx];
+      if (value != value) { // Only NaN is not equal to itself
+        nanCount++;
+        continue;
+      }
+      min = value < min ? value : min;
+      max = value > max ? value : max;
+      sum += value;
+    }
+
+    return new BlockStatistics(endAt - startFrom, nanCount, min, max, sum);
+  }
+
+  /**
+   * @return true when the block has no value other than NaN
+   */
+  public boolean isAllNaN() {
+    return nanCount == count;
+  }
+
+  @Override
+  public String toString() {
+    return "count: " + count + " nanCount: " + nanCount + " min: " + min + " max: " + max + " sum: " + sum;
+  }
+}
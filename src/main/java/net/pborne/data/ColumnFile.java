@@ -0,0 +1,52 @@
+package net.pborne.data;
+
+/**
+ * A compressed column file: a header followed by independently compressed blocks, so a column can be
+ * written and read one block at a time without holding it in memory.
+ * <pre>
+ * header: magic "PBCC" (int), version (short), type (byte), block size (int)
+ * block:  number of values (int, greater than 0), codec (byte), payload
+ * end:    0 (int)
+ * </pre>
+ * The payload of the {@link BlockCodec#DELTA_XOR_32} and {@link BlockCodec#DELTA_XOR_64} blocks is a
+ * {@link CompressedDoubleArray#writeTo serialized CompressedDoubleArray}; the payload of the other codecs
+ * is the length of the encoded array (int) followed by its ints or longs.
+ */
+public final class ColumnFile {
+
+  public static final int MAGIC = 0x50424343; // "PBCC"
+  public static final short VERSION = 1;
+
+  public enum Type {
+    FLOAT,
+    DOUBLE,
+    INT,
+    LONG;
+
+    public boolean isIntegral() {
+      return this == INT || this == LONG;
+    }
+
+    public int getByteSize() {
+      switch (this) {
+        case FLOAT:
+          return TypeSize.FLOAT_BYTESIZE;
+        case INT:
+          return TypeSize.INT32_BYTESIZE;
+        default:
+          return TypeSize.INT64_BYTESIZE;
+      }
+    }
+  }
+
+  public enum BlockCodec {
+    DELTA_XOR_32,   // Compression.deltaXorEncode32
+    DELTA_XOR_64,   // Compression.deltaXorEncode64
+    DELTA_VAL_32,   // Compression.deltaValEncode(int[])
+    DELTA_VAL_64,   // Compression.deltaValEncode(long[])
+    DELTA_OF_DELTA  // Compression.deltaOfDeltaEncode
+  }
+
+  private ColumnFile() {
+  }
+}
@@ -0,0 +1,197 @@
+package net.pborne.data;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read a {@link ColumnFile} one decoded block at a time. The read methods return null after the last block.
+ */
+public class ColumnFileReader implements Closeable {
+
+  private final DataInputStream input;
+  private final ColumnFile.Type type;
+  private final int blockSize;
+
+  private boolean finished = false;
+
+  public ColumnFileReader(InputStream inputStream) throws IOException {
+    this.input = new DataInputStream(new BufferedInputStream(inputStream));
+
+    int magic = input.readInt();
+    if (magic != ColumnFile.MAGIC)
+      throw new IOException("Not a column file. Magic = 0x" + Integer.toHexString(magic));
+    short version = input.readShort();
+    if (version != ColumnFile.VERSION)
+      throw new IOException("Unsupported column file version: " + version);
+    int typeOrdinal = input.readByte();
+    if (typeOrdinal < 0 || typeOrdinal >= ColumnFile.Type.values().length)
+      throw new IOException("Unknown column type: " + typeOrdinal);
+    this.type = ColumnFile.Type.values()[typeOrdinal];
+    this.blockSize = input.readInt();
+  }
+
+  public ColumnFile.Type getType() {
+    return type;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public float[] readFloatBlock() throws IOException {
+    checkType(ColumnFile.Type.FLOAT);
+    return (float[]) readBlock();
+  }
+
+  public double[] readDoubleBlock() throws IOException {
+    checkType(ColumnFile.Type.DOUBLE);
+    return (double[]) readBlock();
+  }
+
+  public int[] readIntBlock() throws IOException {
+    checkType(ColumnFile.Type.INT);
+    return (int[]) readBlock();
+  }
+
+  public long[] readLongBlock() throws IOException {
+    checkType(ColumnFile.Type.LONG);
+    return (long[]) readBlock();
+  }
+
+  /**
+   * Read the next block whatever the type of the column, widened to doubles.
+   */
+  public double[] readBlockAsDoubles() throws IOException {
+    Object block = readBlock();
+    if (block == null)
+      return null;
+
+    switch (type) {
+      case FLOAT: {
+        float[] floats = (float[]) block;
+        double[] doubles = new double[floats.length];
+        for (int i = 0; i < floats.length; i++)
+          doubles[i] = floats[i];
+        return doubles;
+      }
+      case INT: {
+        int[] ints = (int[]) block;
+        double[] doubles = new double[ints.length];
+        for (int i = 0; i < ints.length; i++)
+          doubles[i] = ints[i];
+        return doubles;
+      }
+      case LONG: {
+        long[] longs = (long[]) block;
+        double[] doubles = new double[longs.length];
+        for (int i = 0; i < longs.length; i++)
+          doubles[i] = longs[i];
+        return doubles;
+      }
+      default:
+        return (double[]) block;
+    }
+  }
+
+  private void checkType(ColumnFile.Type expected) {
+    if (type != expected)
+      throw new IllegalStateException("The column is a " + type + " column, not a " + expected + " column.");
+  }
+
+  private Object readBlock() throws IOException {
+    if (finished)
+      return null;
+
+    int numberOfValues = input.readInt();
+    if (numberOfValues == 0) {
+      finished = true;
+      return null;
+    }
+    if (numberOfValues < 0 || numberOfValues > blockSize)
+      throw new IOException("Wrong number of values in the block: " + numberOfValues);
+
+    int codecOrdinal = input.readByte();
+    if (codecOrdinal < 0 || codecOrdinal >= ColumnFile.BlockCodec.values().length)
+      throw new IOException("Unknown block codec: " + codecOrdinal);
+
+    Object block;
+    try {
+      switch (ColumnFile.BlockCodec.values()[codecOrdinal]) {
+        case DELTA_XOR_32:
+          block = Compression.deltaXorDecode32(CompressedDoubleArray.readFrom(input));
+          break;
+        case DELTA_XOR_64:
+          block = Compression.deltaXorDecode64(CompressedDoubleArray.readFrom(input));
+          break;
+        case DELTA_VAL_32:
+          block = Compression.deltaValDecode(readInts(numberOfValues));
+          break;
+        case DELTA_VAL_64:
+          block = Compression.deltaValDecode(readLongs(numberOfValues));
+          break;
+        case DELTA_OF_DELTA:
+          block = Compression.deltaOfDeltaDecode(readLongs(numberOfValues));
+          break;
+        default:
+          throw new IOException("Unknown block codec: " + codecOrdinal);
+      }
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Cannot decode the block.", e);
+    }
+
+    if (block == null || lengthOf(block) != numberOfValues)
+      throw new IOException("Corrupted block: expected " + numberOfValues + " values.");
+    return block;
+  }
+
+  /**
+   * @return the length of the decoded block, -1 when it does not match the type of the column
+   */
+  private int lengthOf(Object block) {
+    switch (type) {
+      case FLOAT:
+        return block instanceof float[] ? ((float[]) block).length : -1;
+      case DOUBLE:
+        return block instanceof double[] ? ((double[]) block).length : -1;
+      case INT:
+        return block instanceof int[] ? ((int[]) block).length : -1;
+      default:
+        return block instanceof long[] ? ((long[]) block).length : -1;
+    }
+  }
+
+  private int[] readInts(int numberOfValues) throws IOException {
+    int[] values = new int[readPackedLength(numberOfValues)];
+    for (int i = 0; i < values.length; i++)
+      values[i] = input.readInt();
+    return values;
+  }
+
+  private long[] readLongs(int numberOfValues) throws IOException {
+    long[] values = new long[readPackedLength(numberOfValues)];
+    for (int i = 0; i < values.length; i++)
+      values[i] = input.readLong();
+    return values;
+  }
+
+  /**
+   * The bit packings of a block take at most 64 bits per value plus their headers and block widths: a longer
+   * length is a corrupted file, not an array to allocate.
+   */
+  private int readPackedLength(int numberOfValues) throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > 2L * numberOfValues + 16)
+      throw new IOException("Wrong length of the packed block: " + length + " for " + numberOfValues + " values.");
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
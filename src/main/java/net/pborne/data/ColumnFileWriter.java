@@ -0,0 +1,170 @@
+package net.pborne.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Write a {@link ColumnFile} one value at a time: the values are buffered until a block is full, then the
+ * block is compressed and written. The memory used is bounded by the block size, whatever the number of values.
+ * <p>
+ * The long blocks are encoded with both {@link Compression#deltaValEncode(long[])} and
+ * {@link Compression#deltaOfDeltaEncode(long[])} and the smaller one is kept.
+ */
+public class ColumnFileWriter implements Closeable {
+
+  private final DataOutputStream output;
+  private final ColumnFile.Type type;
+  private final int blockSize;
+
+  private final float[] floats;
+  private final double[] doubles;
+  private final int[] ints;
+  private final long[] longs;
+
+  private int numberOfBufferedValues = 0;
+  private long numberOfValues = 0;
+  private long numberOfBlocks = 0;
+  private boolean closed = false;
+
+  public ColumnFileWriter(OutputStream outputStream, ColumnFile.Type type, int blockSize) throws IOException {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("The block size must be greater than 0. Block size = " + blockSize);
+
+    this.output = new DataOutputStream(new BufferedOutputStream(outputStream));
+    this.type = type;
+    this.blockSize = blockSize;
+
+    this.floats = type == ColumnFile.Type.FLOAT ? new float[blockSize] : null;
+    this.doubles = type == ColumnFile.Type.DOUBLE ? new double[blockSize] : null;
+    this.ints = type == ColumnFile.Type.INT ? new int[blockSize] : null;
+    this.longs = type == ColumnFile.Type.LONG ? new long[blockSize] : null;
+
+    output.writeInt(ColumnFile.MAGIC);
+    output.writeShort(ColumnFile.VERSION);
+    output.writeByte(type.ordinal());
+    output.writeInt(blockSize);
+  }
+
+  public ColumnFile.Type getType() {
+    return type;
+  }
+
+  public long getNumberOfValues() {
+    return numberOfValues;
+  }
+
+  public long getNumberOfBlocks() {
+    return numberOfBlocks;
+  }
+
+  /**
+   * Append a value to a FLOAT or DOUBLE column.
+   */
+  public void writeDouble(double value) throws IOException {
+    switch (type) {
+      case FLOAT:
+        floats[numberOfBufferedValues] = (float) value;
+        break;
+      case DOUBLE:
+        doubles[numberOfBufferedValues] = value;
+        break;
+      default:
+        throw new IllegalStateException("Cannot write a floating point value to a " + type + " column.");
+    }
+    valueWritten();
+  }
+
+  /**
+   * Append a value to an INT or LONG column.
+   */
+  public void writeLong(long value) throws IOException {
+    switch (type) {
+      case INT:
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("The value does not fit in an INT column: " + value);
+        ints[numberOfBufferedValues] = (int) value;
+        break;
+      case LONG:
+        longs[numberOfBufferedValues] = value;
+        break;
+      default:
+        throw new IllegalStateException("Cannot write an integral value to a " + type + " column.");
+    }
+    valueWritten();
+  }
+
+  private void valueWritten() throws IOException {
+    if (closed)
+      throw new IllegalStateException("The writer is closed.");
+    numberOfBufferedValues++;
+    numberOfValues++;
+    if (numberOfBufferedValues == blockSize)
+      flushBlock();
+  }
+
+  private void flushBlock() throws IOException {
+    if (numberOfBufferedValues == 0)
+      return;
+
+    output.writeInt(numberOfBufferedValues);
+    switch (type) {
+      case FLOAT:
+        output.writeByte(ColumnFile.BlockCodec.DELTA_XOR_32.ordinal());
+        Compression.deltaXorEncode32(Arrays.copyOf(floats, numberOfBufferedValues)).writeTo(output);
+        break;
+      case DOUBLE:
+        output.writeByte(ColumnFile.BlockCodec.DELTA_XOR_64.ordinal());
+        Compression.deltaXorEncode64(Arrays.copyOf(doubles, numberOfBufferedValues)).writeTo(output);
+        break;
+      case INT:
+        output.writeByte(ColumnFile.BlockCodec.DELTA_VAL_32.ordinal());
+        writeInts(Compression.deltaValEncode(Arrays.copyOf(ints, numberOfBufferedValues)));
+        break;
+      case LONG:
+        long[] block = Arrays.copyOf(longs, numberOfBufferedValues);
+        long[] deltaVal = Compression.deltaValEncode(block);
+        long[] deltaOfDelta = Compression.deltaOfDeltaEncode(block);
+        boolean useDeltaOfDelta = deltaOfDelta.length < deltaVal.length;
+        output.writeByte((useDeltaOfDelta ? ColumnFile.BlockCodec.DELTA_OF_DELTA : ColumnFile.BlockCodec.DELTA_VAL_64).ordinal());
+        writeLongs(useDeltaOfDelta ? deltaOfDelta : deltaVal);
+        break;
+      default:
+        throw new IllegalStateException("Unknown type: " + type);
+    }
+
+    numberOfBufferedValues = 0;
+    numberOfBlocks++;
+  }
+
+  private void writeInts(int[] values) throws IOException {
+    output.writeInt(values.length);
+    for (int value : values)
+      output.writeInt(value);
+  }
+
+  private void writeLongs(long[] values) throws IOException {
+    output.writeInt(values.length);
+    for (long value : values)
+      output.writeLong(value);
+  }
+
+  /**
+   * Write the last (partial) block and the end marker, then close the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    try {
+      flushBlock();
+      output.writeInt(0);
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package net.pborne.data;
+
+import com.ctc.wstx.stax.WstxInputFactory;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass ingestion of JSON-lines, CSV or XML exports into one {@link ColumnFile} per numeric field.
+ * <p>
+ * The inputs are stream-parsed and every value goes straight to the {@link ColumnFileWriter} of its column,
+ * so the memory used is one block per column whatever the size of the export.
+ * <p>
+ * The columns are either declared with {@link #declareColumn(String, ColumnFile.Type)}, and then only those
+ * fields are ingested, or discovered: every field holding a number becomes a DOUBLE column. The columns stay
+ * aligned with the records: a missing, null or non numeric value is written as NaN (an error for the INT and
+ * LONG columns) and a column discovered late is back-filled with NaN.
+ * <p>
+ * Nested JSON objects and XML elements are flattened with dots ("position.x"), XML attributes are fields too.
+ */
+public class ColumnIngestion implements Closeable {
+
+  public static final String FILE_EXTENSION = ".pbcc";
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private final File outputDirectory;
+  private final int blockSize;
+  private final Map<String, ColumnFile.Type> declaredColumns = new LinkedHashMap<>();
+  private final Map<String, Column> columns = new LinkedHashMap<>();
+
+  private long numberOfRecords = 0;
+
+  private static class Column {
+    final ColumnFileWriter writer;
+    final ColumnFile.Type type;
+    final File file;
+    long numberOfValues = 0;
+
+    Column(ColumnFileWriter writer, ColumnFile.Type type, File file) {
+      this.writer = writer;
+      this.type = type;
+      this.file = file;
+    }
+  }
+
+  public ColumnIngestion(File outputDirectory, int blockSize) {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("The block size must be greater than 0. Block size = " + blockSize);
+    this.outputDirectory = outputDirectory;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Only ingest the declared columns, with the given types.
+   */
+  public ColumnIngestion declareColumn(String name, ColumnFile.Type type) {
+    if (numberOfRecords > 0)
+      throw new IllegalStateException("The columns must be declared before the ingestion.");
+    declaredColumns.put(name, type);
+    return this;
+  }
+
+  public long getNumberOfRecords() {
+    return numberOfRecords;
+  }
+
+  /**
+   * @return the column files written so far, by column name
+   */
+  public Map<String, File> getColumnFiles() {
+    Map<String, File> files = new LinkedHashMap<>();
+    for (Map.Entry<String, Column> entry : columns.entrySet())
+      files.put(entry.getKey(), entry.getValue().file);
+    return files;
+  }
+
+  // ---------------------------------------------------------------------
+  // ---------------------- JSON lines -----------------------------------
+  // ---------------------------------------------------------------------
+
+  /**
+   * Ingest a sequence of JSON objects, usually one per line.
+   *
+   * @return the number of records ingested
+   */
+  public long ingestJsonLines(InputStream inputStream) throws IOException {
+    long numberOfRecordsBefore = numberOfRecords;
+    try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        if (token != JsonToken.START_OBJECT)
+          throw new IOException("Expected a JSON object at line " + parser.getCurrentLocation().getLineNr() + ", got " + token);
+        readJsonObject(parser, "");
+        endRecord();
+      }
+    }
+    return numberOfRecords - numberOfRecordsBefore;
+  }
+
+  private void readJsonObject(JsonParser parser, String prefix) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = prefix + parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch (token) {
+        case VALUE_NUMBER_INT:
+          if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER)
+            numberField(name, parser.getText(), parser.getDoubleValue());
+          else
+            integralField(name, parser.getLongValue());
+          break;
+        case VALUE_NUMBER_FLOAT:
+          numberField(name, parser.getText(), parser.getDoubleValue());
+          break;
+        case VALUE_STRING:
+          textField(name, parser.getText());
+          break;
+        case START_OBJECT:
+          readJsonObject(parser, name + ".");
+          break;
+        default:
+          parser.skipChildren(); // Arrays, booleans and nulls: nothing to store, the value will be missing
+      }
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // ---------------------- CSV ------------------------------------------
+  // ---------------------------------------------------------------------
+
+  /**
+   * Ingest a CSV export whose first line holds the names of the columns.
+   * Fields may be quoted with double quotes, quoted fields cannot span lines.
+   *
+   * @return the number of records ingested
+   */
+  public long ingestCsv(InputStream inputStream, char delimiter) throws IOException {
+    long numberOfRecordsBefore = numberOfRecords;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+
+    String line = reader.readLine();
+    if (line == null)
+      return 0;
+    List<String> names = splitCsvLine(line, delimiter, 1);
+
+    List<String> fields = new ArrayList<>(names.size());
+    int lineNumber = 1;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.isEmpty())
+        continue;
+      fields.clear();
+      splitCsvLine(line, delimiter, lineNumber, fields);
+      for (int i = 0; i < Math.min(names.size(), fields.size()); i++)
+        if (!fields.get(i).isEmpty())
+          textField(names.get(i), fields.get(i));
+      endRecord();
+    }
+    return numberOfRecords - numberOfRecordsBefore;
+  }
+
+  private static List<String> splitCsvLine(String line, char delimiter, int lineNumber) throws IOException {
+    List<String> fields = new ArrayList<>();
+    splitCsvLine(line, delimiter, lineNumber, fields);
+    return fields;
+  }
+
+  private static void splitCsvLine(String line, char delimiter, int lineNumber, List<String> fields) throws IOException {
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c != '"')
+          field.append(c);
+        else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+          field.append(line.charAt(++i)); // Escaped quote
+        else
+          quoted = false;
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == delimiter) {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (quoted)
+      throw new IOException("Unterminated quoted field at line " + lineNumber + ".");
+    fields.add(field.toString().trim());
+  }
+
+  // ---------------------------------------------------------------------
+  // ---------------------- XML ------------------------------------------
+  // ---------------------------------------------------------------------
+
+  /**
+   * Ingest the records of an XML export: every element named recordElement, wherever it is, is a record
+   * whose fields are its attributes and the text of its child elements.
+   *
+   * @return the number of records ingested
+   */
+  public long ingestXml(InputStream inputStream, String recordElement) throws IOException {
+    long numberOfRecordsBefore = numberOfRecords;
+    XMLInputFactory factory = new WstxInputFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false); // No external entities in the exports
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(recordElement)) {
+            readXmlElement(reader, "");
+            endRecord();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Cannot parse the XML input: " + e.getMessage(), e);
+    }
+    return numberOfRecords - numberOfRecordsBefore;
+  }
+
+  /**
+   * Read the current element up to its end element, the text of the leaves being the values.
+   */
+  private void readXmlElement(XMLStreamReader reader, String prefix) throws XMLStreamException, IOException {
+    for (int i = 0; i < reader.getAttributeCount(); i++)
+      textField(prefix + reader.getAttributeLocalName(i), reader.getAttributeValue(i).trim());
+
+    StringBuilder text = new StringBuilder();
+    boolean hasChildren = false;
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        hasChildren = true;
+        String name = reader.getLocalName();
+        readXmlElement(reader, prefix + name + ".");
+      } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+        text.append(reader.getText());
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+
+    // The leaves are fields named after the path without the trailing dot, the record itself is not a field
+    if (!hasChildren && !prefix.isEmpty() && text.length() > 0)
+      textField(prefix.substring(0, prefix.length() - 1), text.toString().trim());
+  }
+
+  // ---------------------------------------------------------------------
+  // ---------------------- Routing --------------------------------------
+  // ---------------------------------------------------------------------
+
+  private void integralField(String name, long value) throws IOException {
+    Column column = column(name, true);
+    if (column == null)
+      return;
+    if (column.type.isIntegral())
+      write(column, name, value);
+    else
+      write(column, value);
+  }
+
+  /**
+   * @param text the number as written in the input, parsed again for the integral columns
+   */
+  private void numberField(String name, String text, double value) throws IOException {
+    Column column = column(name, true);
+    if (column == null)
+      return;
+    if (column.type.isIntegral())
+      write(column, name, parseLong(name, text));
+    else
+      write(column, value);
+  }
+
+  private void textField(String name, String text) throws IOException {
+    boolean numeric = isNumber(text);
+    Column column = column(name, numeric);
+    if (column == null)
+      return;
+    if (column.type.isIntegral()) {
+      write(column, name, parseLong(name, text));
+    } else {
+      write(column, numeric ? Double.parseDouble(text) : Double.NaN);
+    }
+  }
+
+  private static boolean isNumber(String text) {
+    if (text.isEmpty())
+      return false;
+    try {
+      Double.parseDouble(text);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private long parseLong(String name, String text) throws IOException {
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException e) {
+      throw new IOException("Record " + numberOfRecords + ": not an integral value for the column " + name + ": '" + text + "'");
+    }
+  }
+
+  /**
+   * @param create whether to create the column when it is not declared and does not exist yet
+   * @return the column, null when the field must be ignored
+   */
+  private Column column(String name, boolean create) throws IOException {
+    Column column = columns.get(name);
+    if (column != null)
+      return column;
+
+    ColumnFile.Type type = declaredColumns.get(name);
+    if (type == null && (!declaredColumns.isEmpty() || !create))
+      return null;
+    return createColumn(name, type == null ? ColumnFile.Type.DOUBLE : type);
+  }
+
+  private Column createColumn(String name, ColumnFile.Type type) throws IOException {
+    if (type.isIntegral() && numberOfRecords > 0)
+      throw new IOException("The column " + name + " is missing from the first " + numberOfRecords + " records.");
+
+    File file = new File(outputDirectory, fileName(name));
+    for (Map.Entry<String, Column> entry : columns.entrySet())
+      if (entry.getValue().file.equals(file))
+        throw new IOException("The columns " + entry.getKey() + " and " + name + " would both be written to " + file + ".");
+    Column column = new Column(new ColumnFileWriter(new FileOutputStream(file), type, blockSize), type, file);
+    columns.put(name, column);
+
+    // Back-fill the records that did not have the field
+    while (column.numberOfValues < numberOfRecords)
+      write(column, Double.NaN);
+    return column;
+  }
+
+  /**
+   * @return a file name that cannot escape the output directory
+   */
+  static String fileName(String columnName) {
+    StringBuilder fileName = new StringBuilder();
+    for (int i = 0; i < columnName.length(); i++) {
+      char c = columnName.charAt(i);
+      fileName.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' || (c == '.' && i > 0) ? c : '_');
+    }
+    return fileName + FILE_EXTENSION;
+  }
+
+  private void write(Column column, double value) throws IOException {
+    if (column.numberOfValues > numberOfRecords) // The field appears twice in the record: keep the first one
+      return;
+    column.writer.writeDouble(value);
+    column.numberOfValues++;
+  }
+
+  private void write(Column column, String name, long value) throws IOException {
+    if (column.numberOfValues > numberOfRecords)
+      return;
+    try {
+      column.writer.writeLong(value);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Record " + numberOfRecords + ", column " + name + ": " + e.getMessage());
+    }
+    column.numberOfValues++;
+  }
+
+  private void endRecord() throws IOException {
+    for (Map.Entry<String, Column> entry : columns.entrySet()) {
+      Column column = entry.getValue();
+      if (column.numberOfValues > numberOfRecords)
+        continue;
+      if (column.type.isIntegral())
+        throw new IOException("Record " + numberOfRecords + ": no value for the " + column.type + " column " + entry.getKey() + ".");
+      write(column, Double.NaN);
+    }
+    numberOfRecords++;
+  }
+
+  /**
+   * Write the last blocks and close every column file.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for (Column column : columns.values()) {
+      try {
+        column.writer.close();
+      } catch (IOException e) {
+        if (exception == null)
+          exception = e;
+      }
+    }
+    if (exception != null)
+      throw exception;
+  }
+}
@@ -0,0 +1,239 @@
+package net.pborne.data;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CompressedDoubleArray} held in a single byte array, for the caches of many small arrays: the
+ * header and the three streams share one object instead of a CompressedDoubleArray, three byte arrays and
+ * their headers.
+ * <p>
+ * Layout:
+ * <ul>
+ * <li>the width (low 4 bits) and the flags (high 4 bits), 1 byte, like {@link CompressedDoubleArray#writeTo}</li>
+ * <li>the length of the array, varint</li>
+ * <li>for the signs, the exponents and the significands: the algorithm ordinal (1 byte, 0xFF when none), then
+ * the length of the stream + 1 (varint, 0 when the stream is null)</li>
+ * <li>the bytes of the three streams, one after the other</li>
+ * </ul>
+ * The varints are unsigned LEB128, see {@link RleBitPackedHybrid}. The offsets of the streams are read from the
+ * header on each access rather than kept in fields. The byte array can be copied off heap with
+ * {@link #writeTo(ByteBuffer)} and read back with {@link #readFrom(ByteBuffer)}.
+ */
+public final class CompactCompressedDoubleArray {
+
+  private static final int noAlgorithm = 0xFF;
+  private static final int numberOfStreams = CompressionMetrics.Stream.values().length;
+
+  private final byte[] buffer;
+
+  private CompactCompressedDoubleArray(byte[] buffer) {
+    this.buffer = buffer;
+  }
+
+  public static CompactCompressedDoubleArray of(CompressedDoubleArray compressed) {
+    byte[][] streams = {compressed.compressedSigns, compressed.compressedExponents, compressed.compressedSignificands};
+    CompressionAlgorithms[] algorithms = {compressed.signsAlgorithm, compressed.exponentsAlgorithm, compressed.significandsAlgorithm};
+
+    long size = 1 + varintLength(compressed.uncompressedArrayLength);
+    for (byte[] stream : streams)
+      size += 1 + varintLength(stream == null ? 0 : stream.length + 1L) + (stream == null ? 0 : stream.length);
+    if (size > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("The compressed array does not fit in a byte array: " + size + " bytes");
+
+    byte[] buffer = new byte[(int) size];
+    buffer[0] = (byte) (compressed.width.ordinal() | compressed.flags << 4);
+    int position = writeVarint(buffer, 1, compressed.uncompressedArrayLength);
+    for (int i = 0; i < numberOfStreams; i++) {
+      buffer[position++] = (byte) (algorithms[i] == null ? noAlgorithm : algorithms[i].ordinal());
+      position = writeVarint(buffer, position, streams[i] == null ? 0 : streams[i].length + 1L);
+    }
+    for (byte[] stream : streams) {
+      if (stream != null) {
+        System.arraycopy(stream, 0, buffer, position, stream.length);
+        position += stream.length;
+      }
+    }
+    return new CompactCompressedDoubleArray(buffer);
+  }
+
+  /**
+   * @param buffer the bytes of {@link #toByteArray()}, they are not copied
+   */
+  public static CompactCompressedDoubleArray wrap(byte[] buffer) {
+    if (encodedSize(ByteBuffer.wrap(buffer)) != buffer.length)
+      throw new IllegalArgumentException("Wrong compact array size: " + buffer.length + " bytes");
+    return new CompactCompressedDoubleArray(buffer);
+  }
+
+  /**
+   * Read an array written by {@link #writeTo(ByteBuffer)} from the position of the buffer, which can be direct.
+   */
+  public static CompactCompressedDoubleArray readFrom(ByteBuffer buffer) {
+    int size = encodedSize(buffer.duplicate());
+    byte[] bytes = new byte[size];
+    buffer.get(bytes);
+    return new CompactCompressedDoubleArray(bytes);
+  }
+
+  public void writeTo(ByteBuffer output) {
+    output.put(buffer);
+  }
+
+  /**
+   * @return the backing array, not a copy
+   */
+  public byte[] toByteArray() {
+    return buffer;
+  }
+
+  public int sizeInBytes() {
+    return buffer.length;
+  }
+
+  public CompressedDoubleArray.WIDTH width() {
+    return CompressedDoubleArray.WIDTH.values()[buffer[0] & 0x0F];
+  }
+
+  public int flags() {
+    return (buffer[0] & 0xFF) >>> 4;
+  }
+
+  public int uncompressedArrayLength() {
+    return (int) readVarint(buffer, 1);
+  }
+
+  /**
+   * @return the algorithm of the stream, null when the array has no such stream
+   */
+  public CompressionAlgorithms algorithm(CompressionMetrics.Stream stream) {
+    int position = descriptorsOffset();
+    for (int i = 0; i < stream.ordinal(); i++)
+      position = skipVarint(buffer, position + 1);
+    int ordinal = buffer[position] & 0xFF;
+    return ordinal == noAlgorithm ? null : CompressionAlgorithms.values()[ordinal];
+  }
+
+  /**
+   * @return a read-only view of the bytes of the stream, null when the stream is null
+   */
+  public ByteBuffer stream(CompressionMetrics.Stream stream) {
+    int position = descriptorsOffset();
+    int offset = 0; // Of the stream from the end of the descriptors
+    long lengthPlusOne = 0;
+    for (int i = 0; i < numberOfStreams; i++) {
+      long descriptor = readVarint(buffer, position + 1);
+      position = skipVarint(buffer, position + 1);
+      if (i < stream.ordinal())
+        offset += descriptor == 0 ? 0 : (int) descriptor - 1;
+      else if (i == stream.ordinal())
+        lengthPlusOne = descriptor;
+    }
+    return lengthPlusOne == 0 ? null : ByteBuffer.wrap(buffer, position + offset, (int) lengthPlusOne - 1).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the array with copies of the streams, for the decoders of {@link Compression}
+   */
+  public CompressedDoubleArray toCompressedDoubleArray() {
+    byte[][] streams = new byte[numberOfStreams][];
+    CompressionAlgorithms[] algorithms = new CompressionAlgorithms[numberOfStreams];
+    for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values()) {
+      ByteBuffer view = stream(stream);
+      if (view != null) {
+        streams[stream.ordinal()] = new byte[view.remaining()];
+        view.get(streams[stream.ordinal()]);
+      }
+      algorithms[stream.ordinal()] = algorithm(stream);
+    }
+    return new CompressedDoubleArray(streams[0], streams[1], streams[2], algorithms[0], algorithms[1], algorithms[2],
+        uncompressedArrayLength(), width(), flags());
+  }
+
+  private int descriptorsOffset() {
+    return skipVarint(buffer, 1);
+  }
+
+  /**
+   * Check the header from the position of the buffer, which is moved to the first stream.
+   *
+   * @return the size of the array: header and streams
+   */
+  private static int encodedSize(ByteBuffer buffer) {
+    int start = buffer.position();
+    try {
+      int widthOrdinal = buffer.get() & 0x0F;
+      if (widthOrdinal >= CompressedDoubleArray.WIDTH.values().length)
+        throw new IllegalArgumentException("Unknown width: " + widthOrdinal);
+      if (readVarint(buffer) > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Wrong array length");
+      long size = 0;
+      for (int i = 0; i < numberOfStreams; i++) {
+        int ordinal = buffer.get() & 0xFF;
+        if (ordinal != noAlgorithm && ordinal >= CompressionAlgorithms.values().length)
+          throw new IllegalArgumentException("Unknown compression algorithm: " + ordinal);
+        long length = readVarint(buffer);
+        size += length == 0 ? 0 : length - 1;
+      }
+      size += buffer.position() - start;
+      if (size > buffer.limit() - start)
+        throw new IllegalArgumentException("Truncated compact array: " + size + " bytes expected");
+      return (int) size;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated compact array header");
+    }
+  }
+
+  private static int varintLength(long value) {
+    int length = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * @return the position after the varint
+   */
+  private static int writeVarint(byte[] bytes, int position, long value) {
+    while ((value & ~0x7FL) != 0) {
+      bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[position++] = (byte) value;
+    return position;
+  }
+
+  private static long readVarint(byte[] bytes, int position) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[position++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0 && shift < TypeSize.INT64_BITSIZE);
+    return value;
+  }
+
+  private static long readVarint(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0 && shift < TypeSize.INT64_BITSIZE);
+    return value;
+  }
+
+  private static int skipVarint(byte[] bytes, int position) {
+    byte b;
+    do {
+      b = bytes[position++];
+    } while (b < 0); // The high bit is set on all the bytes but the last one
+    return position;
+  }
+}
@@ -0,0 +1,99 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+
+/**
+ * Arrays encoded together by {@link Compression#encodeBatch(double[][], boolean, boolean)}.
+ * <p>
+ * Either one compressed array per input array (null for an empty one), or a single compressed array holding the
+ * concatenation of all the values when the batch is concatenated. In both cases offsets[i] is the position of the
+ * array i in the concatenation and offsets[numberOfArrays()] is the total number of values.
+ */
+public final class CompressedBatch {
+
+  public final CompressedDoubleArray[] arrays;
+  public final int[] offsets;
+  public final boolean concatenated;
+
+  CompressedBatch(CompressedDoubleArray[] arrays, int[] offsets, boolean concatenated) {
+    this.arrays = arrays;
+    this.offsets = offsets;
+    this.concatenated = concatenated;
+  }
+
+  public int numberOfArrays() {
+    return offsets.length - 1;
+  }
+
+  public int length(int index) {
+    return offsets[index + 1] - offsets[index];
+  }
+
+  public long compressedSizeInBytes() {
+    long size = 0;
+    for (CompressedDoubleArray array : arrays)
+      if (array != null)
+        size += array.compressedSizeInBytes();
+    return size;
+  }
+
+  /**
+   * @return the arrays, null when a stream does not decode
+   */
+  public double[][] decode64() throws Exception {
+    double[][] decoded = new double[numberOfArrays()][];
+    if (concatenated) {
+      double[] values = arrays[0] == null ? new double[0] : Compression.deltaXorDecode64(arrays[0]);
+      if (values == null)
+        return null;
+      for (int i = 0; i < decoded.length; i++)
+        decoded[i] = Arrays.copyOfRange(values, offsets[i], offsets[i + 1]);
+      return decoded;
+    }
+    for (int i = 0; i < decoded.length; i++)
+      if ((decoded[i] = decodeArray64(i)) == null)
+        return null;
+    return decoded;
+  }
+
+  public float[][] decode32() throws Exception {
+    float[][] decoded = new float[numberOfArrays()][];
+    if (concatenated) {
+      float[] values = arrays[0] == null ? new float[0] : Compression.deltaXorDecode32(arrays[0]);
+      if (values == null)
+        return null;
+      for (int i = 0; i < decoded.length; i++)
+        decoded[i] = Arrays.copyOfRange(values, offsets[i], offsets[i + 1]);
+      return decoded;
+    }
+    for (int i = 0; i < decoded.length; i++)
+      if ((decoded[i] = decodeArray32(i)) == null)
+        return null;
+    return decoded;
+  }
+
+  /**
+   * Decode one array. A concatenated batch decodes all the values to return one array.
+   */
+  public double[] decodeArray64(int index) throws Exception {
+    if (index < 0 || index >= numberOfArrays())
+      throw new IllegalArgumentException("No array " + index + " in a batch of " + numberOfArrays());
+    if (length(index) == 0)
+      return new double[0];
+    if (!concatenated)
+      return Compression.deltaXorDecode64(arrays[index]);
+    double[] values = Compression.deltaXorDecode64(arrays[0]);
+    return values == null ? null : Arrays.copyOfRange(values, offsets[index], offsets[index + 1]);
+  }
+
+  public float[] decodeArray32(int index) throws Exception {
+    if (index < 0 || index >= numberOfArrays())
+      throw new IllegalArgumentException("No array " + index + " in a batch of " + numberOfArrays());
+    if (length(index) == 0)
+      return new float[0];
+    if (!concatenated)
+      return Compression.deltaXorDecode32(arrays[index]);
+    float[] values = Compression.deltaXorDecode32(arrays[0]);
+    return values == null ? null : Arrays.copyOfRange(values, offsets[index], offsets[index + 1]);
+  }
+}
@@ -1,10 +1,16 @@
 package net.pborne.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class CompressedDoubleArray {
 
   public enum WIDTH {
     THIRTY_TWO,
-    SIXTY_FOUR
+    SIXTY_FOUR,
+    SIXTEEN,  // IEEE 754 half precision
+    BFLOAT16  // The 16 high bits of a float
   }
 
   public final int uncompressedArrayLength;
@@ -19,6 +25,23 @@ public class CompressedDoubleArray {
 
   public final WIDTH width;
 
+  /*
+  Downcast SIXTY_FOUR arrays, see Compression.deltaXorEncode64(double[], boolean):
+    FLAG_FLOATS:        every value is exactly a float, the three streams are the ones of the 32-bit encoder
+    FLAG_WHOLE_NUMBERS: every value is exactly a long, the significands stream holds Compression.deltaValEncode(long[])
+                        and there are no signs or exponents streams
+    FLAG_WHOLE_NUMBER_DELTAS: same as FLAG_WHOLE_NUMBERS with Compression.deltaOfDeltaEncode(long[])
+  Small THIRTY_TWO and SIXTY_FOUR arrays, see Compression.SMALL_ARRAY_THRESHOLD:
+    FLAG_SMALL:         the significands stream holds all the bits of the values, uncompressed (NONE), and there are
+                        no signs or exponents streams
+  */
+  public static final int FLAG_FLOATS = 1;
+  public static final int FLAG_WHOLE_NUMBERS = 2;
+  public static final int FLAG_WHOLE_NUMBER_DELTAS = 4;
+  public static final int FLAG_SMALL = 8;
+
+  public final int flags;
+
   public CompressedDoubleArray(byte[] compressedSigns,
                                byte[] compressedExponents,
                                byte[] compressedSignificands,
@@ -27,6 +50,20 @@ public class CompressedDoubleArray {
                                CompressionAlgorithms significandsAlgorithm,
                                int uncompressedArrayLength,
                                WIDTH width) {
+    this(compressedSigns, compressedExponents, compressedSignificands,
+        signsAlgorithm, exponentsAlgorithm, significandsAlgorithm,
+        uncompressedArrayLength, width, 0);
+  }
+
+  public CompressedDoubleArray(byte[] compressedSigns,
+                               byte[] compressedExponents,
+                               byte[] compressedSignificands,
+                               CompressionAlgorithms signsAlgorithm,
+                               CompressionAlgorithms exponentsAlgorithm,
+                               CompressionAlgorithms significandsAlgorithm,
+                               int uncompressedArrayLength,
+                               WIDTH width,
+                               int flags) {
 
     this.compressedSigns = compressedSigns;
     this.compressedExponents = compressedExponents;
@@ -38,5 +75,84 @@ public class CompressedDoubleArray {
 
     this.uncompressedArrayLength = uncompressedArrayLength;
     this.width = width;
+    this.flags = flags;
+  }
+
+  /**
+   * @return true when every value of the array is the same: the three streams are constant, or no bit of a small array changes
+   */
+  public boolean isConstant() {
+    if ((flags & FLAG_SMALL) != 0) // The header says no bit changes from a value to the next
+      return compressedSignificands != null && compressedSignificands.length > 0 && compressedSignificands[0] == 0;
+    return signsAlgorithm == CompressionAlgorithms.CONSTANT
+        && exponentsAlgorithm == CompressionAlgorithms.CONSTANT
+        && significandsAlgorithm == CompressionAlgorithms.CONSTANT;
+  }
+
+  /**
+   * @return the number of bytes of the three compressed streams
+   */
+  public int compressedSizeInBytes() {
+    return (compressedSigns == null ? 0 : compressedSigns.length)
+        + (compressedExponents == null ? 0 : compressedExponents.length)
+        + (compressedSignificands == null ? 0 : compressedSignificands.length);
+  }
+
+  /**
+   * Serialize the array: the width (low 4 bits) and the flags (high 4 bits), the length, then the algorithm (-1 when none), the length (-1 when null)
+   * and the bytes of each of the three streams.
+   */
+  public void writeTo(DataOutput output) throws IOException {
+    output.writeByte(width.ordinal() | flags << 4);
+    output.writeInt(uncompressedArrayLength);
+    writeStream(output, signsAlgorithm, compressedSigns);
+    writeStream(output, exponentsAlgorithm, compressedExponents);
+    writeStream(output, significandsAlgorithm, compressedSignificands);
+  }
+
+  public static CompressedDoubleArray readFrom(DataInput input) throws IOException {
+    int widthAndFlags = input.readUnsignedByte();
+    int widthOrdinal = widthAndFlags & 0x0F;
+    if (widthOrdinal >= WIDTH.values().length)
+      throw new IOException("Unknown width: " + widthOrdinal);
+    int uncompressedArrayLength = input.readInt();
+
+    CompressionAlgorithms signsAlgorithm = readAlgorithm(input);
+    byte[] compressedSigns = readBytes(input);
+    CompressionAlgorithms exponentsAlgorithm = readAlgorithm(input);
+    byte[] compressedExponents = readBytes(input);
+    CompressionAlgorithms significandsAlgorithm = readAlgorithm(input);
+    byte[] compressedSignificands = readBytes(input);
+
+    return new CompressedDoubleArray(compressedSigns, compressedExponents, compressedSignificands,
+        signsAlgorithm, exponentsAlgorithm, significandsAlgorithm,
+        uncompressedArrayLength, WIDTH.values()[widthOrdinal], widthAndFlags >>> 4);
+  }
+
+  private static void writeStream(DataOutput output, CompressionAlgorithms algorithm, byte[] bytes) throws IOException {
+    output.writeByte(algorithm == null ? -1 : algorithm.ordinal());
+    output.writeInt(bytes == null ? -1 : bytes.length);
+    if (bytes != null)
+      output.write(bytes);
+  }
+
+  private static CompressionAlgorithms readAlgorithm(DataInput input) throws IOException {
+    int ordinal = input.readByte();
+    if (ordinal == -1)
+      return null;
+    if (ordinal < 0 || ordinal >= CompressionAlgorithms.values().length)
+      throw new IOException("Unknown compression algorithm: " + ordinal);
+    return CompressionAlgorithms.values()[ordinal];
+  }
+
+  private static byte[] readBytes(DataInput input) throws IOException {
+    int length = input.readInt();
+    if (length == -1)
+      return null;
+    if (length < 0)
+      throw new IOException("Wrong stream length: " + length);
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return bytes;
   }
 }
@@ -3,9 +3,11 @@ package net.pborne.data;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -14,9 +16,19 @@ import java.util.zip.Inflater;
 public class Compression {
 
   private static final boolean debug = false;
-  private static final boolean stats = true;
   private static final boolean compare = false;
 
+  private static volatile CompressionMetrics metrics = NoOpCompressionMetrics.INSTANCE;
+
+  private static final CompressionAlgorithms[] defaultStreamAlgorithms = {
+      CompressionAlgorithms.GZIP, CompressionAlgorithms.ZIP, CompressionAlgorithms.RLE};
+  // Never modified once published: setStreamAlgorithms replaces the whole table
+  private static volatile CompressionAlgorithms[][] streamAlgorithms = new CompressionAlgorithms[CompressionMetrics.Stream.values().length][];
+
+  static {
+    Arrays.fill(streamAlgorithms, defaultStreamAlgorithms);
+  }
+
   /*
 The IEEE 754 standard specifies a float 32 as having:
   Sign:         1 bit
@@ -47,226 +59,419 @@ The IEEE 754 standard specifies a float 32 as having:
   private static final long exponentBitMask64 = 0b0111111111110000000000000000000000000000000000000000000000000000L;
   private static final long significandBitMask64 = 0b0000000000001111111111111111111111111111111111111111111111111111L;
 
-  public static CompressedDoubleArray deltaXorEncode32(float[] uncompressed) {
+  /*
+  The IEEE 754 standard specifies a float 16 (half) as having:
+      Sign:         1 bit
+      Exponent:     5 bits
+      Significand: 11 bits (10 explicitly stored)
+  A bfloat16 is the upper half of a float 32:
+      Sign:         1 bit
+      Exponent:     8 bits
+      Significand:  8 bits (7 explicitly stored)
+  */
+  private static final int signBitWidth16 = 1;
+  private static final int exponentBitWidthHalf = 5;
+  private static final int exponentBitWidthBFloat16 = 8;
+  private static final int floatingPointBitWidth16 = 16;
 
-    /*
-     * We retrieve the three components of an IEEE 754 float (32 bits)
-     * The signs are retrieved as is and then compressed (ZIP or GZIP)
-     * The exponents and significands are XOR'ed and then compressed (ZIP or GZIP)
-     */
+  private static final int signBitMask16 = 0b1000000000000000;
 
-    int[] uncompressedInts = BitManipulationHelper.floatsToInts(uncompressed, 0, uncompressed.length);
+  /**
+   * Install the instrumentation of the encoders and decoders, {@link NoOpCompressionMetrics} by default.
+   */
+  public static void setMetrics(CompressionMetrics compressionMetrics) {
+    if (compressionMetrics == null)
+      throw new IllegalArgumentException("The metrics cannot be null, use NoOpCompressionMetrics.INSTANCE instead.");
+    metrics = compressionMetrics;
+  }
+
+  public static CompressionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Select the algorithms tried on a stream by the encoders, the smallest output is kept.
+   * By default: GZIP, ZIP and RLE. Sign streams, for instance, are mostly long runs that RLE alone finds
+   * much faster than Deflate. PARALLEL_GZIP compresses and inflates the large streams on all the cores.
+   */
+  public static synchronized void setStreamAlgorithms(CompressionMetrics.Stream stream, CompressionAlgorithms... algorithms) {
+    if (algorithms.length == 0)
+      throw new IllegalArgumentException("At least one algorithm is needed for " + stream);
+    for (CompressionAlgorithms algorithm : algorithms)
+      if (algorithm != CompressionAlgorithms.GZIP && algorithm != CompressionAlgorithms.ZIP
+          && algorithm != CompressionAlgorithms.RLE && algorithm != CompressionAlgorithms.NONE
+          && algorithm != CompressionAlgorithms.PARALLEL_GZIP)
+        throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    CompressionAlgorithms[][] updated = streamAlgorithms.clone();
+    updated[stream.ordinal()] = algorithms.clone();
+    streamAlgorithms = updated;
+  }
+
+  public static CompressionAlgorithms[] getStreamAlgorithms(CompressionMetrics.Stream stream) {
+    return streamAlgorithms[stream.ordinal()].clone();
+  }
+
+  /**
+   * A compressed stream and the algorithm that produced it.
+   */
+  private static final class CompressedStream {
+    final byte[] bytes;
+    final CompressionAlgorithms algorithm;
 
-    int numberOfSignInts;
-    if ((uncompressedInts.length * signBitWidth32) % floatingPointBitWidth32 == 0)
-      numberOfSignInts = uncompressedInts.length * signBitWidth32 / floatingPointBitWidth32; // Divide by 32 bits per float
-    else
-      numberOfSignInts = 1 + uncompressedInts.length * signBitWidth32 / floatingPointBitWidth32; // +1 to make room for the extra bits that won't fit
-    int[] uncompressedSigns = new int[numberOfSignInts];
+    CompressedStream(byte[] bytes, CompressionAlgorithms algorithm) {
+      this.bytes = bytes;
+      this.algorithm = algorithm;
+    }
+  }
 
-    int numberOfExponentInts;
-    if ((uncompressedInts.length * exponentBitWidth32) % floatingPointBitWidth32 == 0)             // x8 because the exponent is stored on 8 bits
-      numberOfExponentInts = uncompressedInts.length * exponentBitWidth32 / floatingPointBitWidth32; // Divide by 32 bits per float
-    else
-      numberOfExponentInts = 1 + uncompressedInts.length * exponentBitWidth32 / floatingPointBitWidth32; // +1 to make room for the extra bits that won't fit
-    int[] uncompressedExponents = new int[numberOfExponentInts];
+  /**
+   * The Deflater and the scratch arrays of the encoders. A batch reuses one per worker for all its arrays, a single
+   * array has its own. Not thread safe: the Deflater is ended by close().
+   */
+  private static final class EncoderContext implements AutoCloseable {
+    private final CompressionMetrics metrics;
+    // The selection in effect when the encoding started, shared by all the streams it compresses
+    private final CompressionAlgorithms[][] streamAlgorithms = Compression.streamAlgorithms;
+    private Deflater deflater;
+    private byte[] zipBuffer;
+    private final ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+    private int[] ints = new int[0];
+    private long[] longs = new long[0];
+    private final int[][] intWords = new int[CompressionMetrics.Stream.values().length][0];
+    private final long[][] longWords = new long[CompressionMetrics.Stream.values().length][0];
+
+    EncoderContext(CompressionMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    /**
+     * @return the Deflater, reset for a new stream
+     */
+    Deflater deflater() {
+      if (deflater == null) {
+        deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        zipBuffer = new byte[32 * 1024]; // 32 kiloBytes
+      } else
+        deflater.reset();
+      return deflater;
+    }
 
-    int numberOfSignificandInts;
-    if ((uncompressedInts.length * significandBitWidth32) % floatingPointBitWidth32 == 0)            // x23 because the significand is stored on 23 bits
-      numberOfSignificandInts = uncompressedInts.length * significandBitWidth32 / floatingPointBitWidth32; // Divide by 32 bits per float
-    else
-      numberOfSignificandInts = 1 + uncompressedInts.length * significandBitWidth32 / floatingPointBitWidth32; // +1 to make room for the extra bits that won't fit
-    int[] uncompressedSignificands = new int[numberOfSignificandInts];
+    /**
+     * @return at least length ints, their values are not cleared
+     */
+    int[] ints(int length) {
+      if (ints.length < length) {
+        ints = new int[length];
+        metrics.recordAllocation((long) length * TypeSize.INT32_BYTESIZE);
+      }
+      return ints;
+    }
 
-    int signOffset = 0;
-    int exponentOffset = 0;
-    int significandOffset = 0;
+    long[] longs(int length) {
+      if (longs.length < length) {
+        longs = new long[length];
+        metrics.recordAllocation((long) length * TypeSize.INT64_BYTESIZE);
+      }
+      return longs;
+    }
 
-    // XOR the exponents and the significands
-    int previousInt = uncompressedInts[0];
-    writeBits(uncompressedSigns, uncompressedInts[0] >>> (floatingPointBitWidth32 - signBitWidth32), signOffset, signBitWidth32, false);
-    writeBits(uncompressedExponents, (uncompressedInts[0] & exponentBitMask32) >>> significandBitWidth32, exponentOffset, exponentBitWidth32, false); // Mask the bits we want
-    writeBits(uncompressedSignificands, uncompressedInts[0] & significandBitMask32, significandOffset, significandBitWidth32, false); // Mask the bits we want
+    /**
+     * @return at least length words for the stream, the first length ones set to 0 for writeBits()
+     */
+    int[] intWords(CompressionMetrics.Stream stream, int length) {
+      int[] words = intWords[stream.ordinal()];
+      if (words.length < length) {
+        words = intWords[stream.ordinal()] = new int[length];
+        metrics.recordAllocation((long) length * TypeSize.INT32_BYTESIZE);
+      } else
+        Arrays.fill(words, 0, length, 0);
+      return words;
+    }
+
+    long[] longWords(CompressionMetrics.Stream stream, int length) {
+      long[] words = longWords[stream.ordinal()];
+      if (words.length < length) {
+        words = longWords[stream.ordinal()] = new long[length];
+        metrics.recordAllocation((long) length * TypeSize.INT64_BYTESIZE);
+      } else
+        Arrays.fill(words, 0, length, 0L);
+      return words;
+    }
+
+    @Override
+    public void close() {
+      if (deflater != null)
+        deflater.end();
+    }
+  }
 
-    if (debug) {
-      binaryPrint("  compress raw exp: ", uncompressedInts[0] & exponentBitMask32);
-      binaryPrint("  compress raw sig: ", uncompressedInts[0] & significandBitMask32);
+  /**
+   * Arrays of at most {@link #SMALL_ARRAY_THRESHOLD} values are encoded as a single stream, see {@link CompressedDoubleArray#FLAG_SMALL}.
+   */
+  public static CompressedDoubleArray deltaXorEncode32(float[] uncompressed) {
+    if (uncompressed.length > 0 && uncompressed.length <= SMALL_ARRAY_THRESHOLD)
+      return smallEncode32(uncompressed);
+    try (EncoderContext context = new EncoderContext(metrics)) {
+      return deltaXorEncodeStreams32(uncompressed, context);
     }
+  }
 
-    signOffset += signBitWidth32;
-    exponentOffset += exponentBitWidth32;
-    significandOffset += significandBitWidth32;
+  private static CompressedDoubleArray deltaXorEncode32(float[] uncompressed, EncoderContext context) {
+    if (uncompressed.length > 0 && uncompressed.length <= SMALL_ARRAY_THRESHOLD)
+      return smallEncode32(uncompressed);
+    return deltaXorEncodeStreams32(uncompressed, context);
+  }
 
-    for (int idx = 1; idx < uncompressedInts.length; idx++) {
+  private static CompressedDoubleArray deltaXorEncodeStreams32(float[] uncompressed, EncoderContext context) {
+
+    /*
+     * We retrieve the three components of an IEEE 754 float (32 bits)
+     * The signs are retrieved as is and then compressed (ZIP or GZIP)
+     * The exponents and significands are XOR'ed and then compressed (ZIP or GZIP)
+     */
+
+    CompressionMetrics metrics = Compression.metrics;
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    int numberOfValues = uncompressed.length;
+    int[] uncompressedInts = context.ints(numberOfValues);
+    for (int idx = 0; idx < numberOfValues; idx++)
+      uncompressedInts[idx] = Float.floatToRawIntBits(uncompressed[idx]);
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    long rawBytes = (long) numberOfValues * TypeSize.INT32_BYTESIZE;
+    event.end(true, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.THIRTY_TWO, numberOfValues, rawBytes, rawBytes);
+
+    return encodeStreams32(uncompressedInts, numberOfValues, rawBytes, CompressedDoubleArray.WIDTH.THIRTY_TWO, 0, start, metrics, context);
+  }
+
+  /**
+   * The stages of the 32-bit encoder after the CONVERSION of the values to their bits.
+   *
+   * @param width THIRTY_TWO, or SIXTY_FOUR for doubles that are exactly floats (FLAG_FLOATS)
+   * @param start the end of the CONVERSION stage
+   */
+  private static CompressedDoubleArray encodeStreams32(int[] uncompressedInts, int numberOfValues, long rawBytes,
+                                                       CompressedDoubleArray.WIDTH width, int flags, long start,
+                                                       CompressionMetrics metrics, EncoderContext context) {
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    // XOR the exponents and the significands with the previous value, the signs are kept as is.
+    // Going backward, the array can be updated in place.
+    for (int idx = numberOfValues - 1; idx > 0; idx--)
+      uncompressedInts[idx] ^= uncompressedInts[idx - 1] & ~signBitMask32;
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(true, CompressionMetrics.Stage.SPLIT_XOR, width, numberOfValues, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // A stream is constant when all the signs are the same, or when the XOR'ed exponents (resp. significands)
+    // are all 0 after the first value: only its value is stored, see CompressionAlgorithms.CONSTANT
+    int first = numberOfValues == 0 ? 0 : uncompressedInts[0];
+    int or = 0;
+    int and = -1;
+    for (int idx = 1; idx < numberOfValues; idx++) {
+      or |= uncompressedInts[idx];
+      and &= uncompressedInts[idx];
+    }
+    boolean constantSigns = numberOfValues > 0 && ((or | first) & signBitMask32) == (and & first & signBitMask32);
+    boolean constantExponents = numberOfValues > 0 && (or & exponentBitMask32) == 0;
+    boolean constantSignificands = numberOfValues > 0 && (or & significandBitMask32) == 0;
+
+    int signWords = constantSigns ? 0 : numberOfWords(numberOfValues, signBitWidth32, floatingPointBitWidth32);
+    int exponentWords = constantExponents ? 0 : numberOfWords(numberOfValues, exponentBitWidth32, floatingPointBitWidth32);
+    int significandWords = constantSignificands ? 0 : numberOfWords(numberOfValues, significandBitWidth32, floatingPointBitWidth32);
+    int[] uncompressedSigns = context.intWords(CompressionMetrics.Stream.SIGNS, signWords);
+    int[] uncompressedExponents = context.intWords(CompressionMetrics.Stream.EXPONENTS, exponentWords);
+    int[] uncompressedSignificands = context.intWords(CompressionMetrics.Stream.SIGNIFICANDS, significandWords);
+
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
+
+    for (int idx = 0; idx < numberOfValues; idx++) {
       int currentInt = uncompressedInts[idx];
       // Push the bit sign all the way. The triple chevron is so we push 0 from the MSB
-      writeBits(uncompressedSigns, currentInt >>> (floatingPointBitWidth32 - signBitWidth32), signOffset, signBitWidth32, false);
+      if (!constantSigns)
+        writeBits(uncompressedSigns, currentInt >>> (floatingPointBitWidth32 - signBitWidth32), signOffset, signBitWidth32, false);
       // Mask the bits we want
-      writeBits(uncompressedExponents, ((previousInt ^ currentInt) & exponentBitMask32) >>> significandBitWidth32, exponentOffset, exponentBitWidth32, false);
-      if (debug) {
-        binaryPrint("  compress raw exp: ", currentInt & exponentBitMask32);
-        binaryPrint("  compress XOR exp: ", (previousInt ^ currentInt) & exponentBitMask32);
-      }
-      // XOR with the previous integer
-      writeBits(uncompressedSignificands, (previousInt ^ currentInt) & significandBitMask32, significandOffset, significandBitWidth32, false);
+      if (!constantExponents)
+        writeBits(uncompressedExponents, (currentInt & exponentBitMask32) >>> significandBitWidth32, exponentOffset, exponentBitWidth32, false);
+      if (!constantSignificands)
+        writeBits(uncompressedSignificands, currentInt & significandBitMask32, significandOffset, significandBitWidth32, false);
 
       if (debug) {
-        binaryPrint("  compress raw sig: ", currentInt & significandBitMask32);
-        binaryPrint("  compress XOR sig: ", (previousInt ^ currentInt) & significandBitMask32);
+        binaryPrint("  compress XOR exp: ", currentInt & exponentBitMask32);
+        binaryPrint("  compress XOR sig: ", currentInt & significandBitMask32);
       }
 
       signOffset += signBitWidth32;
       exponentOffset += exponentBitWidth32;
       significandOffset += significandBitWidth32;
-      previousInt = currentInt;
-    }
-
-    if (debug) {
-      uncompressedInts[0] &= exponentBitMask32;
-      previousInt = uncompressedInts[0];
-      for (int idx = 1; idx < uncompressedInts.length; idx++) {
-        int currentInt = uncompressedInts[idx];
-        uncompressedInts[idx] = (previousInt ^ currentInt) & exponentBitMask32;
-        previousInt = currentInt;
-      }
     }
+    long packedBytes = (long) (signWords + exponentWords + significandWords) * TypeSize.INT32_BYTESIZE;
+    byte[] signBytes = BitManipulationHelper.intsToBytes(uncompressedSigns, 0, signWords);
+    byte[] exponentBytes = BitManipulationHelper.intsToBytes(uncompressedExponents, 0, exponentWords);
+    byte[] significandBytes = BitManipulationHelper.intsToBytes(uncompressedSignificands, 0, significandWords);
+    metrics.recordAllocation(signBytes.length);
+    metrics.recordAllocation(exponentBytes.length);
+    metrics.recordAllocation(significandBytes.length);
+    recordEncodeStage(metrics, CompressionMetrics.Stage.BIT_PACKING, start);
+    event.end(true, CompressionMetrics.Stage.BIT_PACKING, width, numberOfValues, rawBytes, packedBytes);
 
     // Let's deflate those arrays independently
+    CompressedStream signs = constantSigns
+        ? constantStream(first >>> (floatingPointBitWidth32 - signBitWidth32), CompressionMetrics.Stream.SIGNS, metrics)
+        : compressStream(signBytes, CompressionMetrics.Stream.SIGNS, width, numberOfValues, metrics, context);
+    CompressedStream exponents = constantExponents
+        ? constantStream((first & exponentBitMask32) >>> significandBitWidth32, CompressionMetrics.Stream.EXPONENTS, metrics)
+        : compressStream(exponentBytes, CompressionMetrics.Stream.EXPONENTS, width, numberOfValues, metrics, context);
+    CompressedStream significands = constantSignificands
+        ? constantStream(first & significandBitMask32, CompressionMetrics.Stream.SIGNIFICANDS, metrics)
+        : compressStream(significandBytes, CompressionMetrics.Stream.SIGNIFICANDS, width, numberOfValues, metrics, context);
+
+    return new CompressedDoubleArray(signs.bytes,
+        exponents.bytes,
+        significands.bytes,
+        signs.algorithm,
+        exponents.algorithm,
+        significands.algorithm,
+        numberOfValues,
+        width,
+        flags); // We did everything for 32-bit floats
 
-    // -------------------------------------------------------
-    // ---------------------- Signs --------------------------
-    // -------------------------------------------------------
-
-    byte[] bestCompressedSigns = null, bestCompressedExponents = null, bestCompressedSignificands = null;
-    CompressionAlgorithms bestSignsAlgorithm = null, bestExponentsAlgorithm = null, bestSignificandsAlgorithm = null;
-
-    int uncompressedSize = 0;
-    int gzipSize = 0;
-    int zipSize = 0;
+  }
 
-    if (stats) {
-      System.out.println("\nuncompressedSigns: size = " + uncompressedSigns.length * TypeSize.FLOAT_BYTESIZE + " bytes"); // x4 because we use an array of ints (32 bits = 4 bytes)
-      uncompressedSize += uncompressedSigns.length * TypeSize.FLOAT_BYTESIZE;
-    }
+  public static CompressedBatch encodeBatch(List<float[]> uncompressed) {
+    return encodeBatch(uncompressed, false, false);
+  }
 
-    byte[] gzipCompressedSigns;
-    try {
-      gzipCompressedSigns = compressGzip(BitManipulationHelper.intsToBytes(uncompressedSigns, 0, uncompressedSigns.length));
-      bestCompressedSigns = gzipCompressedSigns;
-      bestSignsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedSigns.length + " bytes");
-        gzipSize += gzipCompressedSigns.length;
-      }
-    } catch (IOException e1) {
-      e1.printStackTrace();
-    }
+  /**
+   * Encode many arrays in one call. The arrays share one Deflater and the scratch arrays of the encoder, one set per
+   * worker when they are encoded in parallel.
+   *
+   * @param parallel    encode the arrays in the common pool, when they are not concatenated
+   * @param concatenate encode all the values as a single array: one set of streams and one codec framing for the
+   *                    whole batch, the arrays are found from the offsets of the batch
+   */
+  public static CompressedBatch encodeBatch(List<float[]> uncompressed, boolean parallel, boolean concatenate) {
+    int[] offsets = batchOffsets(uncompressed.size(), i -> uncompressed.get(i).length);
+    if (concatenate) {
+      float[] values = new float[offsets[uncompressed.size()]];
+      for (int i = 0; i < uncompressed.size(); i++)
+        System.arraycopy(uncompressed.get(i), 0, values, offsets[i], uncompressed.get(i).length);
+      return new CompressedBatch(new CompressedDoubleArray[]{values.length == 0 ? null : deltaXorEncode32(values)}, offsets, true);
+    }
+    CompressedDoubleArray[] arrays = new CompressedDoubleArray[uncompressed.size()];
+    encodeBatch(arrays.length, parallel, (i, context) -> {
+      if (uncompressed.get(i).length > 0)
+        arrays[i] = deltaXorEncode32(uncompressed.get(i), context);
+    });
+    return new CompressedBatch(arrays, offsets, false);
+  }
 
-    byte[] zipCompressedSigns;
-    try {
-      zipCompressedSigns = compressZip(BitManipulationHelper.intsToBytes(uncompressedSigns, 0, uncompressedSigns.length));
-      if (bestCompressedSigns == null || zipCompressedSigns.length < bestCompressedSigns.length) {
-        bestCompressedSigns = zipCompressedSigns;
-        bestSignsAlgorithm = CompressionAlgorithms.ZIP;
-      }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedSigns.length + " bytes");
-        zipSize += zipCompressedSigns.length;
-      }
-    } catch (Exception e1) {
-      e1.printStackTrace();
-    }
+  public static CompressedBatch encodeBatch(double[][] uncompressed) {
+    return encodeBatch(uncompressed, false, false);
+  }
 
-    // -------------------------------------------------------
-    // ---------------------- Exponents ----------------------
-    // -------------------------------------------------------
-    if (stats) {
-      System.out.println("\nuncompressedExponents: size = " + uncompressedExponents.length * TypeSize.FLOAT_BYTESIZE + " bytes"); // x4 because we use an array of ints.
-      uncompressedSize += uncompressedExponents.length * TypeSize.FLOAT_BYTESIZE;
-    }
+  /**
+   * @see #encodeBatch(List, boolean, boolean)
+   */
+  public static CompressedBatch encodeBatch(double[][] uncompressed, boolean parallel, boolean concatenate) {
+    int[] offsets = batchOffsets(uncompressed.length, i -> uncompressed[i].length);
+    if (concatenate) {
+      double[] values = new double[offsets[uncompressed.length]];
+      for (int i = 0; i < uncompressed.length; i++)
+        System.arraycopy(uncompressed[i], 0, values, offsets[i], uncompressed[i].length);
+      return new CompressedBatch(new CompressedDoubleArray[]{values.length == 0 ? null : deltaXorEncode64(values)}, offsets, true);
+    }
+    CompressedDoubleArray[] arrays = new CompressedDoubleArray[uncompressed.length];
+    encodeBatch(arrays.length, parallel, (i, context) -> {
+      if (uncompressed[i].length > 0)
+        arrays[i] = deltaXorEncode64(uncompressed[i], context);
+    });
+    return new CompressedBatch(arrays, offsets, false);
+  }
 
-    byte[] gzipCompressedExponents;
-    try {
-      gzipCompressedExponents = compressGzip(BitManipulationHelper.intsToBytes(uncompressedExponents, 0, uncompressedExponents.length));
-      bestCompressedExponents = gzipCompressedExponents;
-      bestExponentsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedExponents.length + " bytes");
-        gzipSize += gzipCompressedExponents.length;
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  private interface BatchEncoder {
+    void encode(int index, EncoderContext context);
+  }
 
-    byte[] zipCompressedExponents;
-    try {
-      zipCompressedExponents = compressZip(BitManipulationHelper.intsToBytes(uncompressedExponents, 0, uncompressedExponents.length));
-      if (bestCompressedExponents == null || zipCompressedExponents.length < bestCompressedExponents.length) {
-        bestCompressedExponents = zipCompressedExponents;
-        bestExponentsAlgorithm = CompressionAlgorithms.ZIP;
-      }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedExponents.length + " bytes");
-        zipSize += zipCompressedExponents.length;
+  /**
+   * Run the encoder on every index with one context per worker. The workers take the indexes in turn, so the
+   * arrays of different lengths are spread over all of them.
+   */
+  private static void encodeBatch(int numberOfArrays, boolean parallel, BatchEncoder encoder) {
+    int numberOfWorkers = parallel ? Math.min(numberOfArrays, Runtime.getRuntime().availableProcessors()) : 1;
+    IntStream workers = IntStream.range(0, numberOfWorkers);
+    CompressionMetrics metrics = Compression.metrics;
+    (numberOfWorkers > 1 ? workers.parallel() : workers).forEach(worker -> {
+      try (EncoderContext context = new EncoderContext(metrics)) {
+        for (int i = worker; i < numberOfArrays; i += numberOfWorkers)
+          encoder.encode(i, context);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    });
+  }
 
-    // ----------------------------------------------------------
-    // ---------------------- Significands ----------------------
-    // ----------------------------------------------------------
-    if (stats) {
-      System.out.println("\nuncompressedSignificands: size = " + uncompressedSignificands.length * TypeSize.FLOAT_BYTESIZE + " bytes"); // x4 because we use an array of ints.
-      uncompressedSize += uncompressedSignificands.length * TypeSize.FLOAT_BYTESIZE;
-    }
+  /**
+   * @return the offset of each array in the concatenation of the arrays, followed by the total length
+   */
+  private static int[] batchOffsets(int numberOfArrays, IntUnaryOperator lengths) {
+    int[] offsets = new int[numberOfArrays + 1];
+    long offset = 0;
+    for (int i = 0; i < numberOfArrays; i++) {
+      offsets[i] = (int) offset;
+      offset += lengths.applyAsInt(i);
+      if (offset > Integer.MAX_VALUE - 8)
+        throw new IllegalArgumentException("Too many values for a single batch: " + offset + ". Use several batches.");
+    }
+    offsets[numberOfArrays] = (int) offset;
+    return offsets;
+  }
 
-    byte[] gzipCompressedSignificands;
-    try {
-      gzipCompressedSignificands = compressGzip(BitManipulationHelper.intsToBytes(uncompressedSignificands, 0, uncompressedSignificands.length));
-      bestCompressedSignificands = gzipCompressedSignificands;
-      bestSignificandsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedSignificands.length + " bytes");
-        gzipSize += gzipCompressedSignificands.length;
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  /**
+   * Lossy encoding: the decoded values are within the error bound of the original ones.
+   */
+  public static CompressedDoubleArray deltaXorEncode32(float[] uncompressed, ErrorBound errorBound) {
+    return deltaXorEncode32(errorBound.truncate(uncompressed));
+  }
 
-    byte[] zipCompressedSignificands;
-    try {
-      zipCompressedSignificands = compressZip(BitManipulationHelper.intsToBytes(uncompressedSignificands, 0, uncompressedSignificands.length));
-      if (bestCompressedSignificands == null || zipCompressedSignificands.length < bestCompressedSignificands.length) {
-        bestCompressedSignificands = zipCompressedSignificands;
-        bestSignificandsAlgorithm = CompressionAlgorithms.ZIP;
-      }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedSignificands.length + " bytes");
-        zipSize += zipCompressedSignificands.length;
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  /**
+   * Arrays of at most {@link #SMALL_ARRAY_THRESHOLD} values are encoded as a single stream, see {@link CompressedDoubleArray#FLAG_SMALL}.
+   */
+  public static CompressedDoubleArray deltaXorEncode64(double[] uncompressed) {
+    if (uncompressed.length > 0 && uncompressed.length <= SMALL_ARRAY_THRESHOLD)
+      return smallEncode64(uncompressed);
+    return deltaXorEncode64(uncompressed, true);
+  }
 
-    if (stats) {
-      System.out.println("Total uncompressed: " + uncompressedSize);
-      System.out.println("Total gzip:         " + gzipSize + " ratio: " + gzipSize * 1.0f / uncompressedSize);
-      System.out.println("Total  zip:         " + zipSize + " ratio: " + zipSize * 1.0f / uncompressedSize);
-    }
+  private static CompressedDoubleArray deltaXorEncode64(double[] uncompressed, EncoderContext context) {
+    if (uncompressed.length > 0 && uncompressed.length <= SMALL_ARRAY_THRESHOLD)
+      return smallEncode64(uncompressed);
+    return deltaXorEncode64(uncompressed, true, context);
+  }
 
-    return new CompressedDoubleArray(bestCompressedSigns,
-        bestCompressedExponents,
-        bestCompressedSignificands,
-        bestSignsAlgorithm,
-        bestExponentsAlgorithm,
-        bestSignificandsAlgorithm,
-        uncompressed.length,
-        CompressedDoubleArray.WIDTH.THIRTY_TWO); // We did everything for 32-bit floats
+  /**
+   * Lossy encoding: the decoded values are within the error bound of the original ones.
+   */
+  public static CompressedDoubleArray deltaXorEncode64(double[] uncompressed, ErrorBound errorBound) {
+    return deltaXorEncode64(errorBound.truncate(uncompressed));
+  }
 
+  /**
+   * The three streams, whatever the length of the array.
+   *
+   * @param downcast when true and every value is exactly a long (resp. a float), the array is stored with
+   *                 deltaValEncode(long[]) or deltaOfDeltaEncode(long[]) (resp. the 32-bit encoder) and
+   *                 flagged for deltaXorDecode64
+   */
+  public static CompressedDoubleArray deltaXorEncode64(double[] uncompressed, boolean downcast) {
+    try (EncoderContext context = new EncoderContext(metrics)) {
+      return deltaXorEncode64(uncompressed, downcast, context);
+    }
   }
 
-  public static CompressedDoubleArray deltaXorEncode64(double[] uncompressed) {
+  private static CompressedDoubleArray deltaXorEncode64(double[] uncompressed, boolean downcast, EncoderContext context) {
 
     /*
      * We retrieve the three components of an IEEE 754 float (64 bits)
@@ -274,215 +479,233 @@ The IEEE 754 standard specifies a float 32 as having:
      * The exponents and significands are XOR'ed and then compressed (ZIP or GZIP)
      */
 
-    long[] uncompressedLongs = BitManipulationHelper.doublesToLongs(uncompressed, 0, uncompressed.length);
-
-    int numberOfLongs;
-    if ((uncompressedLongs.length * signBitWidth64) % floatingPointBitWidth64 == 0)
-      numberOfLongs = uncompressedLongs.length * signBitWidth64 / floatingPointBitWidth64;
-    else
-      numberOfLongs = 1 + uncompressedLongs.length * signBitWidth64 / floatingPointBitWidth64; // +1 to make room for the extra bits that won't fit
-    long[] uncompressedSigns = new long[numberOfLongs];
-
-    int numberOfExponentLongs;
-    if ((uncompressedLongs.length * exponentBitWidth64) % floatingPointBitWidth64 == 0)
-      numberOfExponentLongs = uncompressedLongs.length * exponentBitWidth64 / floatingPointBitWidth64;
-    else
-      numberOfExponentLongs = 1 + uncompressedLongs.length * exponentBitWidth64 / floatingPointBitWidth64; // +1 to make room for the extra bits that won't fit
-    long[] uncompressedExponents = new long[numberOfExponentLongs];
-
-    int numberOfSignificandLongs;
-    if ((uncompressedLongs.length * significandBitWidth64) % floatingPointBitWidth64 == 0)
-      numberOfSignificandLongs = uncompressedLongs.length * significandBitWidth64 / floatingPointBitWidth64;
-    else
-      numberOfSignificandLongs = 1 + uncompressedLongs.length * significandBitWidth64 / floatingPointBitWidth64; // +1 to make room for the extra bits that won't fit
-    long[] uncompressedSignificands = new long[numberOfSignificandLongs];
-
-    int signOffset = 0;
-    int exponentOffset = 0;
-    int significandOffset = 0;
-
-    // XOR the exponents and the significands
-    long previousLong = uncompressedLongs[0];
-    writeBits(uncompressedSigns, uncompressedLongs[0] >>> (floatingPointBitWidth64 - signBitWidth64), signOffset, signBitWidth64, false);
-    writeBits(uncompressedExponents, (uncompressedLongs[0] & exponentBitMask64) >>> significandBitWidth64, exponentOffset, exponentBitWidth64, false); // Mask the bits we want
-    writeBits(uncompressedSignificands, uncompressedLongs[0] & significandBitMask64, significandOffset, significandBitWidth64, false); // Mask the bits we want
-
-    if (debug) {
-      binaryPrint("  compress raw exp: ", uncompressedLongs[0] & exponentBitMask64);
-      binaryPrint("  compress raw sig: ", uncompressedLongs[0] & significandBitMask64);
-    }
-
-    signOffset += signBitWidth64;
-    exponentOffset += exponentBitWidth64;
-    significandOffset += significandBitWidth64;
-
-    for (int idx = 1; idx < uncompressedLongs.length; idx++) {
+    CompressionMetrics metrics = Compression.metrics;
+
+    if (downcast && uncompressed.length > 0) {
+      CompressedDoubleArray downcasted = downcastEncode64(uncompressed, metrics, context);
+      if (downcasted != null)
+        return downcasted;
+    }
+
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    int numberOfValues = uncompressed.length;
+    long[] uncompressedLongs = context.longs(numberOfValues);
+    for (int idx = 0; idx < numberOfValues; idx++)
+      uncompressedLongs[idx] = Double.doubleToRawLongBits(uncompressed[idx]);
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    long rawBytes = (long) numberOfValues * TypeSize.INT64_BYTESIZE;
+    event.end(true, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // XOR the exponents and the significands with the previous value, the signs are kept as is.
+    // Going backward, the array can be updated in place.
+    for (int idx = numberOfValues - 1; idx > 0; idx--)
+      uncompressedLongs[idx] ^= uncompressedLongs[idx - 1] & ~signBitMask64;
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(true, CompressionMetrics.Stage.SPLIT_XOR, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // A stream is constant when all the signs are the same, or when the XOR'ed exponents (resp. significands)
+    // are all 0 after the first value: only its value is stored, see CompressionAlgorithms.CONSTANT
+    long first = numberOfValues == 0 ? 0 : uncompressedLongs[0];
+    long or = 0;
+    long and = -1L;
+    for (int idx = 1; idx < numberOfValues; idx++) {
+      or |= uncompressedLongs[idx];
+      and &= uncompressedLongs[idx];
+    }
+    boolean constantSigns = numberOfValues > 0 && ((or | first) & signBitMask64) == (and & first & signBitMask64);
+    boolean constantExponents = numberOfValues > 0 && (or & exponentBitMask64) == 0;
+    boolean constantSignificands = numberOfValues > 0 && (or & significandBitMask64) == 0;
+
+    int signWords = constantSigns ? 0 : numberOfWords(numberOfValues, signBitWidth64, floatingPointBitWidth64);
+    int exponentWords = constantExponents ? 0 : numberOfWords(numberOfValues, exponentBitWidth64, floatingPointBitWidth64);
+    int significandWords = constantSignificands ? 0 : numberOfWords(numberOfValues, significandBitWidth64, floatingPointBitWidth64);
+    long[] uncompressedSigns = context.longWords(CompressionMetrics.Stream.SIGNS, signWords);
+    long[] uncompressedExponents = context.longWords(CompressionMetrics.Stream.EXPONENTS, exponentWords);
+    long[] uncompressedSignificands = context.longWords(CompressionMetrics.Stream.SIGNIFICANDS, significandWords);
+
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
+
+    for (int idx = 0; idx < numberOfValues; idx++) {
       long currentLong = uncompressedLongs[idx];
       // Push the bit sign all the way. The triple chevron is so we push 0 from the MSB
-      writeBits(uncompressedSigns, currentLong >>> (floatingPointBitWidth64 - signBitWidth64), signOffset, signBitWidth64, false);
+      if (!constantSigns)
+        writeBits(uncompressedSigns, currentLong >>> (floatingPointBitWidth64 - signBitWidth64), signOffset, signBitWidth64, false);
       // Mask the bits we want
-      writeBits(uncompressedExponents, ((previousLong ^ currentLong) & exponentBitMask64) >>> significandBitWidth64, exponentOffset, exponentBitWidth64, false);
-      if (debug) {
-        binaryPrint("  compress raw exp: ", currentLong & exponentBitMask64);
-        binaryPrint("  compress XOR exp: ", (previousLong ^ currentLong) & exponentBitMask64);
-      }
-      // XOR with the previous integer
-      writeBits(uncompressedSignificands, (previousLong ^ currentLong) & significandBitMask64, significandOffset, significandBitWidth64, false);
+      if (!constantExponents)
+        writeBits(uncompressedExponents, (currentLong & exponentBitMask64) >>> significandBitWidth64, exponentOffset, exponentBitWidth64, false);
+      if (!constantSignificands)
+        writeBits(uncompressedSignificands, currentLong & significandBitMask64, significandOffset, significandBitWidth64, false);
 
       if (debug) {
-        binaryPrint("  compress raw sig: ", currentLong & significandBitMask64);
-        binaryPrint("  compress XOR sig: ", (previousLong ^ currentLong) & significandBitMask64);
+        binaryPrint("  compress XOR exp: ", currentLong & exponentBitMask64);
+        binaryPrint("  compress XOR sig: ", currentLong & significandBitMask64);
       }
 
       signOffset += signBitWidth64;
       exponentOffset += exponentBitWidth64;
       significandOffset += significandBitWidth64;
-      previousLong = currentLong;
-    }
-
-    if (debug) {
-      uncompressedLongs[0] &= exponentBitMask64;
-      previousLong = uncompressedLongs[0];
-      for (int idx = 1; idx < uncompressedLongs.length; idx++) {
-        long currentLong = uncompressedLongs[idx];
-        uncompressedLongs[idx] = (previousLong ^ currentLong) & exponentBitMask64;
-        previousLong = currentLong;
-      }
     }
+    long packedBytes = (long) (signWords + exponentWords + significandWords) * TypeSize.INT64_BYTESIZE;
+    byte[] signBytes = BitManipulationHelper.longsToBytes(uncompressedSigns, 0, signWords);
+    byte[] exponentBytes = BitManipulationHelper.longsToBytes(uncompressedExponents, 0, exponentWords);
+    byte[] significandBytes = BitManipulationHelper.longsToBytes(uncompressedSignificands, 0, significandWords);
+    metrics.recordAllocation(signBytes.length);
+    metrics.recordAllocation(exponentBytes.length);
+    metrics.recordAllocation(significandBytes.length);
+    recordEncodeStage(metrics, CompressionMetrics.Stage.BIT_PACKING, start);
+    event.end(true, CompressionMetrics.Stage.BIT_PACKING, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, packedBytes);
 
     // Let's deflate those arrays independently
+    CompressedStream signs = constantSigns
+        ? constantStream(first >>> (floatingPointBitWidth64 - signBitWidth64), CompressionMetrics.Stream.SIGNS, metrics)
+        : compressStream(signBytes, CompressionMetrics.Stream.SIGNS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, metrics, context);
+    CompressedStream exponents = constantExponents
+        ? constantStream((first & exponentBitMask64) >>> significandBitWidth64, CompressionMetrics.Stream.EXPONENTS, metrics)
+        : compressStream(exponentBytes, CompressionMetrics.Stream.EXPONENTS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, metrics, context);
+    CompressedStream significands = constantSignificands
+        ? constantStream(first & significandBitMask64, CompressionMetrics.Stream.SIGNIFICANDS, metrics)
+        : compressStream(significandBytes, CompressionMetrics.Stream.SIGNIFICANDS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, metrics, context);
+
+    return new CompressedDoubleArray(signs.bytes,
+        exponents.bytes,
+        significands.bytes,
+        signs.algorithm,
+        exponents.algorithm,
+        significands.algorithm,
+        uncompressed.length,
+        CompressedDoubleArray.WIDTH.SIXTY_FOUR); // We did everything for 64-bit floats
 
-    // -------------------------------------------------------
-    // ---------------------- Signs --------------------------
-    // -------------------------------------------------------
-
-    byte[] bestCompressedSigns = null, bestCompressedExponents = null, bestCompressedSignificands = null;
-    CompressionAlgorithms bestSignsAlgorithm = null, bestExponentsAlgorithm = null, bestSignificandsAlgorithm = null;
-
-    int uncompressedSize = 0;
-    int gzipSize = 0;
-    int zipSize = 0;
-
-    if (stats) {
-      System.out.println("\nuncompressedSigns: size = " + uncompressedSigns.length * TypeSize.DOUBLE_BYTESIZE + " bytes"); // x4 because we use an array of ints (32 bits = 4 bytes)
-      uncompressedSize += uncompressedSigns.length * TypeSize.DOUBLE_BYTESIZE;
-    }
+  }
 
-    byte[] gzipCompressedSigns;
-    try {
-      gzipCompressedSigns = compressGzip(BitManipulationHelper.longsToBytes(uncompressedSigns, 0, uncompressedSigns.length));
-      bestCompressedSigns = gzipCompressedSigns;
-      bestSignsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedSigns.length + " bytes");
-        gzipSize += gzipCompressedSigns.length;
+  /**
+   * @return the array encoded as whole numbers or as floats, null when the values are neither
+   */
+  private static CompressedDoubleArray downcastEncode64(double[] uncompressed, CompressionMetrics metrics, EncoderContext context) {
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+    int numberOfValues = uncompressed.length;
+    long rawBytes = (long) numberOfValues * TypeSize.INT64_BYTESIZE;
+
+    // Compare the bits, not the values: -0.0 is not the long 0 and a NaN payload is not preserved by a float
+    boolean wholeNumbers = true;
+    boolean floats = true;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (double value : uncompressed) {
+      long bits = Double.doubleToRawLongBits(value);
+      if (wholeNumbers) {
+        long asLong = (long) value;
+        if (Double.doubleToRawLongBits((double) asLong) == bits) {
+          min = Math.min(min, asLong);
+          max = Math.max(max, asLong);
+        } else
+          wholeNumbers = false;
       }
-    } catch (IOException e1) {
-      e1.printStackTrace();
+      if (floats && Double.doubleToRawLongBits((double) (float) value) != bits)
+        floats = false;
+      if (!wholeNumbers && !floats)
+        return null;
     }
 
-    byte[] zipCompressedSigns;
-    try {
-      zipCompressedSigns = compressZip(BitManipulationHelper.longsToBytes(uncompressedSigns, 0, uncompressedSigns.length));
-      if (bestCompressedSigns == null || zipCompressedSigns.length < bestCompressedSigns.length) {
-        bestCompressedSigns = zipCompressedSigns;
-        bestSignsAlgorithm = CompressionAlgorithms.ZIP;
+    if (wholeNumbers) {
+      long[] longs = new long[uncompressed.length];
+      for (int i = 0; i < longs.length; i++)
+        longs[i] = (long) uncompressed[i];
+      // The stages are recorded once the downcast is kept: otherwise the values go through the other encoders
+      long converted = metrics.isEnabled() ? System.nanoTime() : 0;
+      event.end();
+      CompressionStageEvent packingEvent = CompressionStageEvent.start();
+
+      // Keep the smaller of the two bit packings: series (counters, timestamps) prefer the deltas of deltas
+      long[] packed = deltaOfDeltaEncode(longs);
+      int flag = CompressedDoubleArray.FLAG_WHOLE_NUMBER_DELTAS;
+      if (64 - Long.numberOfLeadingZeros(max - min) < significandBitWidth64) {
+        long[] deltaValPacked = deltaValEncode(longs);
+        if (deltaValPacked.length < packed.length) {
+          packed = deltaValPacked;
+          flag = CompressedDoubleArray.FLAG_WHOLE_NUMBERS;
+        }
       }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedSigns.length + " bytes");
-        zipSize += zipCompressedSigns.length;
+      metrics.recordAllocation((long) (longs.length + packed.length) * TypeSize.INT64_BYTESIZE);
+
+      // Beyond 52 bits per value, the XOR encoder does at least as well
+      if ((long) packed.length * floatingPointBitWidth64 < (long) longs.length * significandBitWidth64) {
+        byte[] packedBytes = BitManipulationHelper.longsToBytes(packed, 0, packed.length);
+        metrics.recordAllocation(packedBytes.length);
+        if (metrics.isEnabled()) {
+          metrics.recordEncodeNanos(CompressionMetrics.Stage.CONVERSION, converted - start);
+          metrics.recordEncodeNanos(CompressionMetrics.Stage.BIT_PACKING, System.nanoTime() - converted);
+        }
+        event.end(true, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, rawBytes);
+        packingEvent.end(true, CompressionMetrics.Stage.BIT_PACKING, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, packedBytes.length);
+
+        CompressedStream significands = compressStream(packedBytes,
+            CompressionMetrics.Stream.SIGNIFICANDS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, longs.length, metrics, context);
+        return new CompressedDoubleArray(null, null, significands.bytes,
+            null, null, significands.algorithm,
+            uncompressed.length, CompressedDoubleArray.WIDTH.SIXTY_FOUR, flag);
       }
-    } catch (Exception e1) {
-      e1.printStackTrace();
-    }
-
-    // -------------------------------------------------------
-    // ---------------------- Exponents ----------------------
-    // -------------------------------------------------------
-    if (stats) {
-      System.out.println("\nuncompressedExponents: size = " + uncompressedExponents.length * TypeSize.DOUBLE_BYTESIZE + " bytes"); // x4 because we use an array of ints.
-      uncompressedSize += uncompressedExponents.length * TypeSize.DOUBLE_BYTESIZE;
     }
 
-    byte[] gzipCompressedExponents;
-    try {
-      gzipCompressedExponents = compressGzip(BitManipulationHelper.longsToBytes(uncompressedExponents, 0, uncompressedExponents.length));
-      bestCompressedExponents = gzipCompressedExponents;
-      bestExponentsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedExponents.length + " bytes");
-        gzipSize += gzipCompressedExponents.length;
+    if (floats) {
+      if (wholeNumbers) { // Whole numbers not kept: the float conversion is a new stage
+        start = metrics.isEnabled() ? System.nanoTime() : 0;
+        event = CompressionStageEvent.start();
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+      int[] uncompressedInts = context.ints(numberOfValues);
+      for (int i = 0; i < numberOfValues; i++)
+        uncompressedInts[i] = Float.floatToRawIntBits((float) uncompressed[i]);
+      start = recordEncodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+      event.end(true, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.SIXTY_FOUR, numberOfValues, rawBytes, rawBytes);
 
-    byte[] zipCompressedExponents;
-    try {
-      zipCompressedExponents = compressZip(BitManipulationHelper.longsToBytes(uncompressedExponents, 0, uncompressedExponents.length));
-      if (bestCompressedExponents == null || zipCompressedExponents.length < bestCompressedExponents.length) {
-        bestCompressedExponents = zipCompressedExponents;
-        bestExponentsAlgorithm = CompressionAlgorithms.ZIP;
-      }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedExponents.length + " bytes");
-        zipSize += zipCompressedExponents.length;
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
+      return encodeStreams32(uncompressedInts, numberOfValues, rawBytes, CompressedDoubleArray.WIDTH.SIXTY_FOUR,
+          CompressedDoubleArray.FLAG_FLOATS, start, metrics, context);
     }
 
-    // ----------------------------------------------------------
-    // ---------------------- Significands ----------------------
-    // ----------------------------------------------------------
-    if (stats) {
-      System.out.println("\nuncompressedSignificands: size = " + uncompressedSignificands.length * TypeSize.DOUBLE_BYTESIZE + " bytes"); // x4 because we use an array of ints.
-      uncompressedSize += uncompressedSignificands.length * TypeSize.DOUBLE_BYTESIZE;
-    }
+    return null;
+  }
 
-    byte[] gzipCompressedSignificands;
-    try {
-      gzipCompressedSignificands = compressGzip(BitManipulationHelper.longsToBytes(uncompressedSignificands, 0, uncompressedSignificands.length));
-      bestCompressedSignificands = gzipCompressedSignificands;
-      bestSignificandsAlgorithm = CompressionAlgorithms.GZIP;
-      if (stats) {
-        System.out.println("GZIP: size = " + gzipCompressedSignificands.length + " bytes");
-        gzipSize += gzipCompressedSignificands.length;
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  private static double[] downcastDecode64(CompressedDoubleArray compressed, CompressionMetrics metrics) throws Exception {
 
-    byte[] zipCompressedSignificands;
-    try {
-      zipCompressedSignificands = compressZip(BitManipulationHelper.longsToBytes(uncompressedSignificands, 0, uncompressedSignificands.length));
-      if (bestCompressedSignificands == null || zipCompressedSignificands.length < bestCompressedSignificands.length) {
-        bestCompressedSignificands = zipCompressedSignificands;
-        bestSignificandsAlgorithm = CompressionAlgorithms.ZIP;
-      }
-      if (stats) {
-        System.out.println("ZIP:  size = " + zipCompressedSignificands.length + " bytes");
-        zipSize += zipCompressedSignificands.length;
+    if ((compressed.flags & (CompressedDoubleArray.FLAG_WHOLE_NUMBERS | CompressedDoubleArray.FLAG_WHOLE_NUMBER_DELTAS)) != 0) {
+      byte[] significandBytes = uncompressStream(compressed.compressedSignificands, compressed.significandsAlgorithm, CompressionMetrics.Stream.SIGNIFICANDS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, metrics);
+      if (significandBytes == null)
+        return null;
+      long[] packed = BitManipulationHelper.bytesToLongs(significandBytes);
+      long[] longs;
+      if ((compressed.flags & CompressedDoubleArray.FLAG_WHOLE_NUMBERS) != 0)
+        longs = packed.length < 2 ? null : deltaValDecode(packed);
+      else
+        longs = packed.length < deltaOfDeltaHeaderLength ? null : deltaOfDeltaDecode(packed);
+      if (longs == null || longs.length != compressed.uncompressedArrayLength) {
+        System.err.println("Wrong number of whole numbers. Should be " + compressed.uncompressedArrayLength);
+        return null;
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+      double[] decompressed = new double[longs.length];
+      for (int i = 0; i < longs.length; i++)
+        decompressed[i] = longs[i];
+      metrics.recordAllocation((long) decompressed.length * TypeSize.DOUBLE_BYTESIZE);
+      return decompressed;
     }
 
-    if (stats) {
-      System.out.println("Total uncompressed: " + uncompressedSize);
-      System.out.println("Total gzip:         " + gzipSize + " ratio: " + gzipSize * 1.0f / uncompressedSize);
-      System.out.println("Total  zip:         " + zipSize + " ratio: " + zipSize * 1.0f / uncompressedSize);
-    }
-
-    return new CompressedDoubleArray(bestCompressedSigns,
-        bestCompressedExponents,
-        bestCompressedSignificands,
-        bestSignsAlgorithm,
-        bestExponentsAlgorithm,
-        bestSignificandsAlgorithm,
-        uncompressed.length,
-        CompressedDoubleArray.WIDTH.SIXTY_FOUR); // We did everything for 64-bit floats
-
+    float[] floats = deltaXorDecode32(new CompressedDoubleArray(compressed.compressedSigns, compressed.compressedExponents, compressed.compressedSignificands,
+        compressed.signsAlgorithm, compressed.exponentsAlgorithm, compressed.significandsAlgorithm,
+        compressed.uncompressedArrayLength, CompressedDoubleArray.WIDTH.THIRTY_TWO));
+    if (floats == null)
+      return null;
+    double[] decompressed = new double[floats.length];
+    for (int i = 0; i < floats.length; i++)
+      decompressed[i] = floats[i];
+    metrics.recordAllocation((long) decompressed.length * TypeSize.DOUBLE_BYTESIZE);
+    return decompressed;
   }
 
   public static float[] deltaXorDecode32(CompressedDoubleArray compressed) throws Exception {
@@ -500,67 +723,56 @@ The IEEE 754 standard specifies a float 32 as having:
       return null;
     }
 
-    // decompress the 3 components
+    CompressionMetrics metrics = Compression.metrics;
 
-    int[] decompressedSigns;
-    switch (compressed.signsAlgorithm) {
-      case NONE:
-        decompressedSigns = BitManipulationHelper.bytesToInts(compressed.compressedSigns);
-        break;
-      case ZIP:
-        decompressedSigns = BitManipulationHelper.bytesToInts(uncompressZip(compressed.compressedSigns));
-        break;
-      case GZIP:
-        decompressedSigns = BitManipulationHelper.bytesToInts(uncompressGzip(compressed.compressedSigns));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for signs.");
-        return null;
-    }
+    if ((compressed.flags & CompressedDoubleArray.FLAG_SMALL) != 0)
+      return smallDecode32(compressed, metrics);
 
-    int[] decompressedExponents;
-    switch (compressed.exponentsAlgorithm) {
-      case NONE:
-        decompressedExponents = BitManipulationHelper.bytesToInts(compressed.compressedExponents);
-        break;
-      case ZIP:
-        decompressedExponents = BitManipulationHelper.bytesToInts(uncompressZip(compressed.compressedExponents));
-        break;
-      case GZIP:
-        decompressedExponents = BitManipulationHelper.bytesToInts(uncompressGzip(compressed.compressedExponents));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for exponents.");
-        return null;
-    }
+    // decompress the 3 components, the constant ones are only a value
+    boolean constantSigns = compressed.signsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantExponents = compressed.exponentsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantSignificands = compressed.significandsAlgorithm == CompressionAlgorithms.CONSTANT;
+    int constantSign = (int) constantValue(compressed.compressedSigns, constantSigns, CompressionMetrics.Stream.SIGNS, metrics);
+    int constantExponent = (int) constantValue(compressed.compressedExponents, constantExponents, CompressionMetrics.Stream.EXPONENTS, metrics);
+    int constantSignificand = (int) constantValue(compressed.compressedSignificands, constantSignificands, CompressionMetrics.Stream.SIGNIFICANDS, metrics);
 
-    int[] decompressedSignificands;
-    switch (compressed.significandsAlgorithm) {
-      case NONE:
-        decompressedSignificands = BitManipulationHelper.bytesToInts(compressed.compressedSignificands);
-        break;
-      case ZIP:
-        decompressedSignificands = BitManipulationHelper.bytesToInts(uncompressZip(compressed.compressedSignificands));
-        break;
-      case GZIP:
-        decompressedSignificands = BitManipulationHelper.bytesToInts(uncompressGzip(compressed.compressedSignificands));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for significands.");
-        return null;
+    if (constantSigns && constantExponents && constantSignificands) { // Every value is the same
+      int value = constantSign << (floatingPointBitWidth32 - signBitWidth32) | constantExponent << significandBitWidth32 | constantSignificand;
+      float[] decompressed = new float[compressed.uncompressedArrayLength];
+      Arrays.fill(decompressed, Float.intBitsToFloat(value));
+      metrics.recordAllocation((long) decompressed.length * TypeSize.FLOAT_BYTESIZE);
+      return decompressed;
     }
 
+    byte[] signBytes = constantSigns ? new byte[0] : uncompressStream(compressed.compressedSigns, compressed.signsAlgorithm, CompressionMetrics.Stream.SIGNS, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, metrics);
+    byte[] exponentBytes = constantExponents ? new byte[0] : uncompressStream(compressed.compressedExponents, compressed.exponentsAlgorithm, CompressionMetrics.Stream.EXPONENTS, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, metrics);
+    byte[] significandBytes = constantSignificands ? new byte[0] : uncompressStream(compressed.compressedSignificands, compressed.significandsAlgorithm, CompressionMetrics.Stream.SIGNIFICANDS, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, metrics);
+    if (signBytes == null || exponentBytes == null || significandBytes == null)
+      return null;
+    long packedBytes = (long) signBytes.length + exponentBytes.length + significandBytes.length;
+    long rawBytes = (long) compressed.uncompressedArrayLength * TypeSize.FLOAT_BYTESIZE;
+
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+    int[] decompressedSigns = BitManipulationHelper.bytesToInts(signBytes);
+    int[] decompressedExponents = BitManipulationHelper.bytesToInts(exponentBytes);
+    int[] decompressedSignificands = BitManipulationHelper.bytesToInts(significandBytes);
+    metrics.recordAllocation((long) decompressedSigns.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) decompressedExponents.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) decompressedSignificands.length * TypeSize.INT32_BYTESIZE);
+
     // Rebuild the array of floats
-    int signOffset = 0;
-    int exponentOffset = 0;
-    int significandOffset = 0;
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
 
     int[] decompressedAsInts = new int[compressed.uncompressedArrayLength];
+    metrics.recordAllocation((long) decompressedAsInts.length * TypeSize.INT32_BYTESIZE);
 
     for (int i = 0; i < decompressedAsInts.length; i++) {
-      int decompressedSign = readBits(decompressedSigns, signOffset, signBitWidth32);
-      int decompressedExponent = readBits(decompressedExponents, exponentOffset, exponentBitWidth32);
-      int decompressedSignificand = readBits(decompressedSignificands, significandOffset, significandBitWidth32);
+      int decompressedSign = constantSigns ? constantSign : readBits(decompressedSigns, signOffset, signBitWidth32);
+      int decompressedExponent = constantExponents ? (i == 0 ? constantExponent : 0) : readBits(decompressedExponents, exponentOffset, exponentBitWidth32);
+      int decompressedSignificand = constantSignificands ? (i == 0 ? constantSignificand : 0) : readBits(decompressedSignificands, significandOffset, significandBitWidth32);
 
       decompressedSign <<= (floatingPointBitWidth32 - signBitWidth32);
       decompressedExponent <<= (floatingPointBitWidth32 - signBitWidth32 - exponentBitWidth32);
@@ -569,23 +781,24 @@ The IEEE 754 standard specifies a float 32 as having:
       exponentOffset += exponentBitWidth32;
       significandOffset += significandBitWidth32;
     }
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.REASSEMBLY, start);
+    event.end(false, CompressionMetrics.Stage.REASSEMBLY, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, packedBytes, rawBytes);
 
-    int previousInt = decompressedAsInts[0];
-    int previousExponent = previousInt & exponentBitMask32;
-    int previousSignificand = previousInt & significandBitMask32;
+    event = CompressionStageEvent.start();
 
-    // XOR the exponents and significands
-    for (int i = 1; i < decompressedAsInts.length; i++) {
-      int currentSign = decompressedAsInts[i] & signBitMask32;
-      int currentExponent = decompressedAsInts[i] & exponentBitMask32;
-      int currentSignificand = decompressedAsInts[i] & significandBitMask32;
+    // XOR the exponents and significands with the previous (already decoded) value
+    for (int i = 1; i < decompressedAsInts.length; i++)
+      decompressedAsInts[i] ^= decompressedAsInts[i - 1] & ~signBitMask32;
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(false, CompressionMetrics.Stage.SPLIT_XOR, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, rawBytes, rawBytes);
 
-      decompressedAsInts[i] = currentSign | (previousExponent ^ currentExponent) | (previousSignificand ^ currentSignificand);
-      previousExponent = previousExponent ^ currentExponent;
-      previousSignificand = previousSignificand ^ currentSignificand;
-    }
+    event = CompressionStageEvent.start();
 
-    return BitManipulationHelper.intsToFloats(decompressedAsInts);
+    float[] decompressed = BitManipulationHelper.intsToFloats(decompressedAsInts);
+    metrics.recordAllocation((long) decompressed.length * TypeSize.FLOAT_BYTESIZE);
+    recordDecodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    event.end(false, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.THIRTY_TWO, compressed.uncompressedArrayLength, rawBytes, rawBytes);
+    return decompressed;
   }
 
   public static double[] deltaXorDecode64(CompressedDoubleArray compressed) throws Exception {
@@ -603,66 +816,58 @@ The IEEE 754 standard specifies a float 32 as having:
       return null;
     }
 
-    // decompress the 3 components
-    long[] decompressedSigns;
-    switch (compressed.signsAlgorithm) {
-      case NONE:
-        decompressedSigns = BitManipulationHelper.bytesToLongs(compressed.compressedSigns);
-        break;
-      case ZIP:
-        decompressedSigns = BitManipulationHelper.bytesToLongs(uncompressZip(compressed.compressedSigns));
-        break;
-      case GZIP:
-        decompressedSigns = BitManipulationHelper.bytesToLongs(uncompressGzip(compressed.compressedSigns));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for signs.");
-        return null;
-    }
+    CompressionMetrics metrics = Compression.metrics;
 
-    long[] decompressedExponents;
-    switch (compressed.exponentsAlgorithm) {
-      case NONE:
-        decompressedExponents = BitManipulationHelper.bytesToLongs(compressed.compressedExponents);
-        break;
-      case ZIP:
-        decompressedExponents = BitManipulationHelper.bytesToLongs(uncompressZip(compressed.compressedExponents));
-        break;
-      case GZIP:
-        decompressedExponents = BitManipulationHelper.bytesToLongs(uncompressGzip(compressed.compressedExponents));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for exponents.");
-        return null;
-    }
+    if ((compressed.flags & CompressedDoubleArray.FLAG_SMALL) != 0)
+      return smallDecode64(compressed, metrics);
+    if (compressed.flags != 0)
+      return downcastDecode64(compressed, metrics);
 
-    long[] decompressedSignificands;
-    switch (compressed.significandsAlgorithm) {
-      case NONE:
-        decompressedSignificands = BitManipulationHelper.bytesToLongs(compressed.compressedSignificands);
-        break;
-      case ZIP:
-        decompressedSignificands = BitManipulationHelper.bytesToLongs(uncompressZip(compressed.compressedSignificands));
-        break;
-      case GZIP:
-        decompressedSignificands = BitManipulationHelper.bytesToLongs(uncompressGzip(compressed.compressedSignificands));
-        break;
-      default:
-        System.err.println("Unknown compression algorithm for significands.");
-        return null;
+    // decompress the 3 components, the constant ones are only a value
+    boolean constantSigns = compressed.signsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantExponents = compressed.exponentsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantSignificands = compressed.significandsAlgorithm == CompressionAlgorithms.CONSTANT;
+    long constantSign = constantValue(compressed.compressedSigns, constantSigns, CompressionMetrics.Stream.SIGNS, metrics);
+    long constantExponent = constantValue(compressed.compressedExponents, constantExponents, CompressionMetrics.Stream.EXPONENTS, metrics);
+    long constantSignificand = constantValue(compressed.compressedSignificands, constantSignificands, CompressionMetrics.Stream.SIGNIFICANDS, metrics);
+
+    if (constantSigns && constantExponents && constantSignificands) { // Every value is the same
+      long value = constantSign << (floatingPointBitWidth64 - signBitWidth64) | constantExponent << significandBitWidth64 | constantSignificand;
+      double[] decompressed = new double[compressed.uncompressedArrayLength];
+      Arrays.fill(decompressed, Double.longBitsToDouble(value));
+      metrics.recordAllocation((long) decompressed.length * TypeSize.DOUBLE_BYTESIZE);
+      return decompressed;
     }
 
+    byte[] signBytes = constantSigns ? new byte[0] : uncompressStream(compressed.compressedSigns, compressed.signsAlgorithm, CompressionMetrics.Stream.SIGNS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, metrics);
+    byte[] exponentBytes = constantExponents ? new byte[0] : uncompressStream(compressed.compressedExponents, compressed.exponentsAlgorithm, CompressionMetrics.Stream.EXPONENTS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, metrics);
+    byte[] significandBytes = constantSignificands ? new byte[0] : uncompressStream(compressed.compressedSignificands, compressed.significandsAlgorithm, CompressionMetrics.Stream.SIGNIFICANDS, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, metrics);
+    if (signBytes == null || exponentBytes == null || significandBytes == null)
+      return null;
+    long packedBytes = (long) signBytes.length + exponentBytes.length + significandBytes.length;
+    long rawBytes = (long) compressed.uncompressedArrayLength * TypeSize.DOUBLE_BYTESIZE;
+
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+    long[] decompressedSigns = BitManipulationHelper.bytesToLongs(signBytes);
+    long[] decompressedExponents = BitManipulationHelper.bytesToLongs(exponentBytes);
+    long[] decompressedSignificands = BitManipulationHelper.bytesToLongs(significandBytes);
+    metrics.recordAllocation((long) decompressedSigns.length * TypeSize.INT64_BYTESIZE);
+    metrics.recordAllocation((long) decompressedExponents.length * TypeSize.INT64_BYTESIZE);
+    metrics.recordAllocation((long) decompressedSignificands.length * TypeSize.INT64_BYTESIZE);
+
     // Rebuild the array of doubles
-    int signOffset = 0;
-    int exponentOffset = 0;
-    int significandOffset = 0;
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
 
     long[] decompressedAsLongs = new long[compressed.uncompressedArrayLength];
+    metrics.recordAllocation((long) decompressedAsLongs.length * TypeSize.INT64_BYTESIZE);
 
     for (int i = 0; i < decompressedAsLongs.length; i++) {
-      long decompressedSign = readBits(decompressedSigns, signOffset, signBitWidth64);
-      long decompressedExponent = readBits(decompressedExponents, exponentOffset, exponentBitWidth64);
-      long decompressedSignificand = readBits(decompressedSignificands, significandOffset, significandBitWidth64);
+      long decompressedSign = constantSigns ? constantSign : readBits(decompressedSigns, signOffset, signBitWidth64);
+      long decompressedExponent = constantExponents ? (i == 0 ? constantExponent : 0) : readBits(decompressedExponents, exponentOffset, exponentBitWidth64);
+      long decompressedSignificand = constantSignificands ? (i == 0 ? constantSignificand : 0) : readBits(decompressedSignificands, significandOffset, significandBitWidth64);
 
       decompressedSign <<= (floatingPointBitWidth64 - signBitWidth64);
       decompressedExponent <<= (floatingPointBitWidth64 - signBitWidth64 - exponentBitWidth64);
@@ -672,23 +877,634 @@ The IEEE 754 standard specifies a float 32 as having:
       exponentOffset += exponentBitWidth64;
       significandOffset += significandBitWidth64;
     }
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.REASSEMBLY, start);
+    event.end(false, CompressionMetrics.Stage.REASSEMBLY, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, packedBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // XOR the exponents and significands with the previous (already decoded) value
+    for (int i = 1; i < decompressedAsLongs.length; i++)
+      decompressedAsLongs[i] ^= decompressedAsLongs[i - 1] & ~signBitMask64;
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(false, CompressionMetrics.Stage.SPLIT_XOR, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    double[] decompressed = BitManipulationHelper.longsToDoubles(decompressedAsLongs);
+    metrics.recordAllocation((long) decompressed.length * TypeSize.DOUBLE_BYTESIZE);
+    recordDecodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    event.end(false, CompressionMetrics.Stage.CONVERSION, CompressedDoubleArray.WIDTH.SIXTY_FOUR, compressed.uncompressedArrayLength, rawBytes, rawBytes);
+    return decompressed;
+  }
+
+  /**
+   * @param uncompressed the bits of the values, see BitManipulationHelper.floatsToHalves and floatsToBFloat16s
+   * @param width        SIXTEEN or BFLOAT16
+   */
+  public static CompressedDoubleArray deltaXorEncode16(short[] uncompressed, CompressedDoubleArray.WIDTH width) {
+
+    /*
+     * Same as deltaXorEncode32, with the layout of the width.
+     * The components are packed in ints: none of them is larger than 16 bits.
+     */
+
+    int exponentBitWidth = exponentBitWidth16(width);
+    int significandBitWidth = floatingPointBitWidth16 - signBitWidth16 - exponentBitWidth;
+    int significandBitMask = (1 << significandBitWidth) - 1;
+
+    CompressionMetrics metrics = Compression.metrics;
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    int[] uncompressedInts = new int[uncompressed.length];
+    for (int i = 0; i < uncompressedInts.length; i++)
+      uncompressedInts[i] = uncompressed[i] & 0xFFFF;
+    metrics.recordAllocation((long) uncompressedInts.length * TypeSize.INT32_BYTESIZE);
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    long rawBytes = (long) uncompressedInts.length * TypeSize.SHORT_BYTESIZE;
+    event.end(true, CompressionMetrics.Stage.CONVERSION, width, uncompressedInts.length, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // XOR the exponents and the significands with the previous value, the signs are kept as is.
+    // Going backward, the array can be updated in place.
+    for (int idx = uncompressedInts.length - 1; idx > 0; idx--)
+      uncompressedInts[idx] ^= uncompressedInts[idx - 1] & ~signBitMask16;
+    start = recordEncodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(true, CompressionMetrics.Stage.SPLIT_XOR, width, uncompressedInts.length, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // A stream is constant when all the signs are the same, or when the XOR'ed exponents (resp. significands)
+    // are all 0 after the first value: only its value is stored, see CompressionAlgorithms.CONSTANT
+    int first = uncompressedInts.length == 0 ? 0 : uncompressedInts[0];
+    int or = 0;
+    int and = -1;
+    for (int idx = 1; idx < uncompressedInts.length; idx++) {
+      or |= uncompressedInts[idx];
+      and &= uncompressedInts[idx];
+    }
+    boolean constantSigns = uncompressedInts.length > 0 && ((or | first) & signBitMask16) == (and & first & signBitMask16);
+    boolean constantExponents = uncompressedInts.length > 0 && (or & (~signBitMask16 & ~significandBitMask)) == 0;
+    boolean constantSignificands = uncompressedInts.length > 0 && (or & significandBitMask) == 0;
+
+    int[] uncompressedSigns = new int[constantSigns ? 0 : numberOfWords(uncompressedInts.length, signBitWidth16, floatingPointBitWidth32)];
+    int[] uncompressedExponents = new int[constantExponents ? 0 : numberOfWords(uncompressedInts.length, exponentBitWidth, floatingPointBitWidth32)];
+    int[] uncompressedSignificands = new int[constantSignificands ? 0 : numberOfWords(uncompressedInts.length, significandBitWidth, floatingPointBitWidth32)];
+    metrics.recordAllocation((long) uncompressedSigns.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) uncompressedExponents.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) uncompressedSignificands.length * TypeSize.INT32_BYTESIZE);
+
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
+
+    for (int currentInt : uncompressedInts) {
+      if (!constantSigns)
+        writeBits(uncompressedSigns, currentInt >>> (floatingPointBitWidth16 - signBitWidth16), signOffset, signBitWidth16, false);
+      if (!constantExponents)
+        writeBits(uncompressedExponents, (currentInt & ~signBitMask16) >>> significandBitWidth, exponentOffset, exponentBitWidth, false);
+      if (!constantSignificands)
+        writeBits(uncompressedSignificands, currentInt & significandBitMask, significandOffset, significandBitWidth, false);
+
+      signOffset += signBitWidth16;
+      exponentOffset += exponentBitWidth;
+      significandOffset += significandBitWidth;
+    }
+    long packedBytes = (long) (uncompressedSigns.length + uncompressedExponents.length + uncompressedSignificands.length) * TypeSize.INT32_BYTESIZE;
+    byte[] signBytes = BitManipulationHelper.intsToBytes(uncompressedSigns, 0, uncompressedSigns.length);
+    byte[] exponentBytes = BitManipulationHelper.intsToBytes(uncompressedExponents, 0, uncompressedExponents.length);
+    byte[] significandBytes = BitManipulationHelper.intsToBytes(uncompressedSignificands, 0, uncompressedSignificands.length);
+    metrics.recordAllocation(signBytes.length);
+    metrics.recordAllocation(exponentBytes.length);
+    metrics.recordAllocation(significandBytes.length);
+    recordEncodeStage(metrics, CompressionMetrics.Stage.BIT_PACKING, start);
+    event.end(true, CompressionMetrics.Stage.BIT_PACKING, width, uncompressedInts.length, rawBytes, packedBytes);
+
+    try (EncoderContext context = new EncoderContext(metrics)) {
+      CompressedStream signs = constantSigns
+          ? constantStream(first >>> (floatingPointBitWidth16 - signBitWidth16), CompressionMetrics.Stream.SIGNS, metrics)
+          : compressStream(signBytes, CompressionMetrics.Stream.SIGNS, width, uncompressedInts.length, metrics, context);
+      CompressedStream exponents = constantExponents
+          ? constantStream((first & (~signBitMask16 & ~significandBitMask)) >>> significandBitWidth, CompressionMetrics.Stream.EXPONENTS, metrics)
+          : compressStream(exponentBytes, CompressionMetrics.Stream.EXPONENTS, width, uncompressedInts.length, metrics, context);
+      CompressedStream significands = constantSignificands
+          ? constantStream(first & significandBitMask, CompressionMetrics.Stream.SIGNIFICANDS, metrics)
+          : compressStream(significandBytes, CompressionMetrics.Stream.SIGNIFICANDS, width, uncompressedInts.length, metrics, context);
+
+      return new CompressedDoubleArray(signs.bytes,
+          exponents.bytes,
+          significands.bytes,
+          signs.algorithm,
+          exponents.algorithm,
+          significands.algorithm,
+          uncompressed.length,
+          width);
+    }
+  }
+
+  /**
+   * @return the bits of the values encoded by deltaXorEncode16, null when the array is not valid
+   */
+  public static short[] deltaXorDecode16(CompressedDoubleArray compressed) throws Exception {
+
+    if (compressed == null)
+      return null;
+
+    if (compressed.width != CompressedDoubleArray.WIDTH.SIXTEEN && compressed.width != CompressedDoubleArray.WIDTH.BFLOAT16) {
+      System.err.println("Wrong format. Should be " + CompressedDoubleArray.WIDTH.SIXTEEN + " or " + CompressedDoubleArray.WIDTH.BFLOAT16 + " bits.");
+      return null;
+    }
+
+    if (compressed.uncompressedArrayLength <= 0) {
+      System.err.println("Wrong length. Should be greater than 0. Length = " + compressed.uncompressedArrayLength);
+      return null;
+    }
+
+    CompressedDoubleArray.WIDTH width = compressed.width;
+    int exponentBitWidth = exponentBitWidth16(width);
+    int significandBitWidth = floatingPointBitWidth16 - signBitWidth16 - exponentBitWidth;
+
+    CompressionMetrics metrics = Compression.metrics;
+
+    // decompress the 3 components, the constant ones are only a value
+    boolean constantSigns = compressed.signsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantExponents = compressed.exponentsAlgorithm == CompressionAlgorithms.CONSTANT;
+    boolean constantSignificands = compressed.significandsAlgorithm == CompressionAlgorithms.CONSTANT;
+    int constantSign = (int) constantValue(compressed.compressedSigns, constantSigns, CompressionMetrics.Stream.SIGNS, metrics);
+    int constantExponent = (int) constantValue(compressed.compressedExponents, constantExponents, CompressionMetrics.Stream.EXPONENTS, metrics);
+    int constantSignificand = (int) constantValue(compressed.compressedSignificands, constantSignificands, CompressionMetrics.Stream.SIGNIFICANDS, metrics);
+
+    if (constantSigns && constantExponents && constantSignificands) { // Every value is the same
+      int value = constantSign << (floatingPointBitWidth16 - signBitWidth16) | constantExponent << significandBitWidth | constantSignificand;
+      short[] decompressed = new short[compressed.uncompressedArrayLength];
+      Arrays.fill(decompressed, (short) value);
+      metrics.recordAllocation((long) decompressed.length * TypeSize.SHORT_BYTESIZE);
+      return decompressed;
+    }
+
+    byte[] signBytes = constantSigns ? new byte[0] : uncompressStream(compressed.compressedSigns, compressed.signsAlgorithm, CompressionMetrics.Stream.SIGNS, width, compressed.uncompressedArrayLength, metrics);
+    byte[] exponentBytes = constantExponents ? new byte[0] : uncompressStream(compressed.compressedExponents, compressed.exponentsAlgorithm, CompressionMetrics.Stream.EXPONENTS, width, compressed.uncompressedArrayLength, metrics);
+    byte[] significandBytes = constantSignificands ? new byte[0] : uncompressStream(compressed.compressedSignificands, compressed.significandsAlgorithm, CompressionMetrics.Stream.SIGNIFICANDS, width, compressed.uncompressedArrayLength, metrics);
+    if (signBytes == null || exponentBytes == null || significandBytes == null)
+      return null;
+    long packedBytes = (long) signBytes.length + exponentBytes.length + significandBytes.length;
+    long rawBytes = (long) compressed.uncompressedArrayLength * TypeSize.SHORT_BYTESIZE;
+
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+    int[] decompressedSigns = BitManipulationHelper.bytesToInts(signBytes);
+    int[] decompressedExponents = BitManipulationHelper.bytesToInts(exponentBytes);
+    int[] decompressedSignificands = BitManipulationHelper.bytesToInts(significandBytes);
+    metrics.recordAllocation((long) decompressedSigns.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) decompressedExponents.length * TypeSize.INT32_BYTESIZE);
+    metrics.recordAllocation((long) decompressedSignificands.length * TypeSize.INT32_BYTESIZE);
+
+    long signOffset = 0;
+    long exponentOffset = 0;
+    long significandOffset = 0;
+
+    int[] decompressedAsInts = new int[compressed.uncompressedArrayLength];
+    metrics.recordAllocation((long) decompressedAsInts.length * TypeSize.INT32_BYTESIZE);
+
+    for (int i = 0; i < decompressedAsInts.length; i++) {
+      int decompressedSign = constantSigns ? constantSign : readBits(decompressedSigns, signOffset, signBitWidth16);
+      int decompressedExponent = constantExponents ? (i == 0 ? constantExponent : 0) : readBits(decompressedExponents, exponentOffset, exponentBitWidth);
+      int decompressedSignificand = constantSignificands ? (i == 0 ? constantSignificand : 0) : readBits(decompressedSignificands, significandOffset, significandBitWidth);
+
+      decompressedSign <<= (floatingPointBitWidth16 - signBitWidth16);
+      decompressedExponent <<= significandBitWidth;
+      decompressedAsInts[i] = decompressedSign | decompressedExponent | decompressedSignificand;
+      signOffset += signBitWidth16;
+      exponentOffset += exponentBitWidth;
+      significandOffset += significandBitWidth;
+    }
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.REASSEMBLY, start);
+    event.end(false, CompressionMetrics.Stage.REASSEMBLY, width, compressed.uncompressedArrayLength, packedBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    // XOR the exponents and significands with the previous (already decoded) value
+    for (int i = 1; i < decompressedAsInts.length; i++)
+      decompressedAsInts[i] ^= decompressedAsInts[i - 1] & ~signBitMask16;
+    start = recordDecodeStage(metrics, CompressionMetrics.Stage.SPLIT_XOR, start);
+    event.end(false, CompressionMetrics.Stage.SPLIT_XOR, width, compressed.uncompressedArrayLength, rawBytes, rawBytes);
+
+    event = CompressionStageEvent.start();
+
+    short[] decompressed = new short[decompressedAsInts.length];
+    for (int i = 0; i < decompressed.length; i++)
+      decompressed[i] = (short) decompressedAsInts[i];
+    metrics.recordAllocation((long) decompressed.length * TypeSize.SHORT_BYTESIZE);
+    recordDecodeStage(metrics, CompressionMetrics.Stage.CONVERSION, start);
+    event.end(false, CompressionMetrics.Stage.CONVERSION, width, compressed.uncompressedArrayLength, rawBytes, rawBytes);
+    return decompressed;
+  }
+
+  /**
+   * Decode an array encoded by deltaXorEncode16 and widen the values to floats (exactly).
+   */
+  public static float[] deltaXorDecode16ToFloats(CompressedDoubleArray compressed) throws Exception {
+    short[] decompressed = deltaXorDecode16(compressed);
+    if (decompressed == null)
+      return null;
+    return compressed.width == CompressedDoubleArray.WIDTH.SIXTEEN
+        ? BitManipulationHelper.halvesToFloats(decompressed)
+        : BitManipulationHelper.bfloat16sToFloats(decompressed);
+  }
 
-    long previousLong = decompressedAsLongs[0];
-    long previousExponent = previousLong & exponentBitMask64;
-    long previousSignificand = previousLong & significandBitMask64;
+  private static int exponentBitWidth16(CompressedDoubleArray.WIDTH width) {
+    if (width == CompressedDoubleArray.WIDTH.SIXTEEN)
+      return exponentBitWidthHalf;
+    if (width == CompressedDoubleArray.WIDTH.BFLOAT16)
+      return exponentBitWidthBFloat16;
+    throw new IllegalArgumentException("Not a 16-bit width: " + width);
+  }
+
+  /**
+   * Arrays of at most that many values are encoded by deltaXorEncode32(float[]) and deltaXorEncode64(double[]) as a
+   * single stream, without stream codec: on a few values, the framing of GZIP or ZIP costs more than it saves.
+   */
+  public static final int SMALL_ARRAY_THRESHOLD = 64;
+
+  /*
+  The single stream of the small arrays (CompressedDoubleArray.FLAG_SMALL), allocated once at its exact size:
+    header:  significantBits << 6 | trailingZeros as an unsigned varint (LEB128, 1 or 2 bytes)
+    values:  the first value as is, then (value[i] ^ value[i - 1]) >>> trailingZeros on significantBits bits.
+             When significantBits is the width of the values, the XOR does not help: the values are stored as is.
+             Nothing follows the first value when all the values are equal.
+  The bits are written least significant first, the last byte is padded with zeros.
+  */
+  private static final int smallHeaderShift = 6;
+  private static final int smallTrailingZerosMask = (1 << smallHeaderShift) - 1;
+
+  private static CompressedDoubleArray smallEncode32(float[] uncompressed) {
+    CompressionMetrics metrics = Compression.metrics;
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    // The bits that change from a value to the next
+    int or = 0;
+    int previous = Float.floatToRawIntBits(uncompressed[0]);
+    for (int idx = 1; idx < uncompressed.length; idx++) {
+      int current = Float.floatToRawIntBits(uncompressed[idx]);
+      or |= current ^ previous;
+      previous = current;
+    }
+    int trailingZeros = or == 0 ? 0 : Integer.numberOfTrailingZeros(or);
+    int significantBits = or == 0 ? 0 : floatingPointBitWidth32 - Integer.numberOfLeadingZeros(or) - trailingZeros;
+    boolean raw = significantBits == floatingPointBitWidth32;
+    int header = significantBits << smallHeaderShift | trailingZeros;
+
+    byte[] bytes = new byte[smallStreamLength(header, uncompressed.length, floatingPointBitWidth32)];
+    long bitOffset = (long) writeSmallHeader(bytes, header) * TypeSize.BYTE_BITSIZE;
+    previous = Float.floatToRawIntBits(uncompressed[0]);
+    writeBits(bytes, previous & 0xFFFFFFFFL, bitOffset, floatingPointBitWidth32);
+    bitOffset += floatingPointBitWidth32;
+    for (int idx = 1; idx < uncompressed.length && significantBits > 0; idx++) {
+      int current = Float.floatToRawIntBits(uncompressed[idx]);
+      writeBits(bytes, (raw ? current : (current ^ previous) >>> trailingZeros) & 0xFFFFFFFFL, bitOffset, significantBits);
+      bitOffset += significantBits;
+      previous = current;
+    }
+
+    long rawBytes = (long) uncompressed.length * TypeSize.FLOAT_BYTESIZE;
+    metrics.recordAllocation(bytes.length);
+    if (metrics.isEnabled()) {
+      recordEncodeStage(metrics, CompressionMetrics.Stage.BIT_PACKING, start);
+      metrics.recordEncodedStream(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.NONE, rawBytes, bytes.length);
+    }
+    event.end(true, CompressionMetrics.Stage.BIT_PACKING, CompressedDoubleArray.WIDTH.THIRTY_TWO, uncompressed.length, rawBytes, bytes.length);
+    return new CompressedDoubleArray(null, null, bytes, null, null, CompressionAlgorithms.NONE,
+        uncompressed.length, CompressedDoubleArray.WIDTH.THIRTY_TWO, CompressedDoubleArray.FLAG_SMALL);
+  }
+
+  private static CompressedDoubleArray smallEncode64(double[] uncompressed) {
+    CompressionMetrics metrics = Compression.metrics;
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    long or = 0;
+    long previous = Double.doubleToRawLongBits(uncompressed[0]);
+    for (int idx = 1; idx < uncompressed.length; idx++) {
+      long current = Double.doubleToRawLongBits(uncompressed[idx]);
+      or |= current ^ previous;
+      previous = current;
+    }
+    int trailingZeros = or == 0 ? 0 : Long.numberOfTrailingZeros(or);
+    int significantBits = or == 0 ? 0 : floatingPointBitWidth64 - Long.numberOfLeadingZeros(or) - trailingZeros;
+    boolean raw = significantBits == floatingPointBitWidth64;
+    int header = significantBits << smallHeaderShift | trailingZeros;
+
+    byte[] bytes = new byte[smallStreamLength(header, uncompressed.length, floatingPointBitWidth64)];
+    long bitOffset = (long) writeSmallHeader(bytes, header) * TypeSize.BYTE_BITSIZE;
+    previous = Double.doubleToRawLongBits(uncompressed[0]);
+    writeBits(bytes, previous, bitOffset, floatingPointBitWidth64);
+    bitOffset += floatingPointBitWidth64;
+    for (int idx = 1; idx < uncompressed.length && significantBits > 0; idx++) {
+      long current = Double.doubleToRawLongBits(uncompressed[idx]);
+      writeBits(bytes, raw ? current : (current ^ previous) >>> trailingZeros, bitOffset, significantBits);
+      bitOffset += significantBits;
+      previous = current;
+    }
+
+    long rawBytes = (long) uncompressed.length * TypeSize.DOUBLE_BYTESIZE;
+    metrics.recordAllocation(bytes.length);
+    if (metrics.isEnabled()) {
+      recordEncodeStage(metrics, CompressionMetrics.Stage.BIT_PACKING, start);
+      metrics.recordEncodedStream(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.NONE, rawBytes, bytes.length);
+    }
+    event.end(true, CompressionMetrics.Stage.BIT_PACKING, CompressedDoubleArray.WIDTH.SIXTY_FOUR, uncompressed.length, rawBytes, bytes.length);
+    return new CompressedDoubleArray(null, null, bytes, null, null, CompressionAlgorithms.NONE,
+        uncompressed.length, CompressedDoubleArray.WIDTH.SIXTY_FOUR, CompressedDoubleArray.FLAG_SMALL);
+  }
+
+  private static float[] smallDecode32(CompressedDoubleArray compressed, CompressionMetrics metrics) {
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    byte[] bytes = compressed.compressedSignificands;
+    int header = readSmallHeader(bytes, compressed.uncompressedArrayLength, floatingPointBitWidth32);
+    if (header < 0)
+      return null;
+    int significantBits = header >>> smallHeaderShift;
+    int trailingZeros = header & smallTrailingZerosMask;
+    boolean raw = significantBits == floatingPointBitWidth32;
+
+    float[] decompressed = new float[compressed.uncompressedArrayLength];
+    long bitOffset = (long) (header < 0x80 ? 1 : 2) * TypeSize.BYTE_BITSIZE;
+    int previous = (int) readBits(bytes, bitOffset, floatingPointBitWidth32);
+    bitOffset += floatingPointBitWidth32;
+    decompressed[0] = Float.intBitsToFloat(previous);
+    if (significantBits == 0)
+      Arrays.fill(decompressed, decompressed[0]);
+    for (int idx = 1; idx < decompressed.length && significantBits > 0; idx++) {
+      int value = (int) readBits(bytes, bitOffset, significantBits);
+      previous = raw ? value : previous ^ value << trailingZeros;
+      decompressed[idx] = Float.intBitsToFloat(previous);
+      bitOffset += significantBits;
+    }
+
+    long rawBytes = (long) decompressed.length * TypeSize.FLOAT_BYTESIZE;
+    metrics.recordAllocation(rawBytes);
+    if (metrics.isEnabled()) {
+      metrics.recordDecodedStream(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.NONE, bytes.length, rawBytes);
+      recordDecodeStage(metrics, CompressionMetrics.Stage.REASSEMBLY, start);
+    }
+    event.end(false, CompressionMetrics.Stage.REASSEMBLY, CompressedDoubleArray.WIDTH.THIRTY_TWO, decompressed.length, bytes.length, rawBytes);
+    return decompressed;
+  }
+
+  private static double[] smallDecode64(CompressedDoubleArray compressed, CompressionMetrics metrics) {
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    byte[] bytes = compressed.compressedSignificands;
+    int header = readSmallHeader(bytes, compressed.uncompressedArrayLength, floatingPointBitWidth64);
+    if (header < 0)
+      return null;
+    int significantBits = header >>> smallHeaderShift;
+    int trailingZeros = header & smallTrailingZerosMask;
+    boolean raw = significantBits == floatingPointBitWidth64;
+
+    double[] decompressed = new double[compressed.uncompressedArrayLength];
+    long bitOffset = (long) (header < 0x80 ? 1 : 2) * TypeSize.BYTE_BITSIZE;
+    long previous = readBits(bytes, bitOffset, floatingPointBitWidth64);
+    bitOffset += floatingPointBitWidth64;
+    decompressed[0] = Double.longBitsToDouble(previous);
+    if (significantBits == 0)
+      Arrays.fill(decompressed, decompressed[0]);
+    for (int idx = 1; idx < decompressed.length && significantBits > 0; idx++) {
+      long value = readBits(bytes, bitOffset, significantBits);
+      previous = raw ? value : previous ^ value << trailingZeros;
+      decompressed[idx] = Double.longBitsToDouble(previous);
+      bitOffset += significantBits;
+    }
+
+    long rawBytes = (long) decompressed.length * TypeSize.DOUBLE_BYTESIZE;
+    metrics.recordAllocation(rawBytes);
+    if (metrics.isEnabled()) {
+      metrics.recordDecodedStream(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.NONE, bytes.length, rawBytes);
+      recordDecodeStage(metrics, CompressionMetrics.Stage.REASSEMBLY, start);
+    }
+    event.end(false, CompressionMetrics.Stage.REASSEMBLY, CompressedDoubleArray.WIDTH.SIXTY_FOUR, decompressed.length, bytes.length, rawBytes);
+    return decompressed;
+  }
+
+  private static int smallStreamLength(int header, int numberOfValues, int bitWidth) {
+    long bits = bitWidth + (long) (numberOfValues - 1) * (header >>> smallHeaderShift);
+    return (header < 0x80 ? 1 : 2) + (int) ((bits + TypeSize.BYTE_BITSIZE - 1) / TypeSize.BYTE_BITSIZE);
+  }
+
+  /**
+   * @return the length of the header, the header is always below 2^14
+   */
+  private static int writeSmallHeader(byte[] bytes, int header) {
+    if (header < 0x80) {
+      bytes[0] = (byte) header;
+      return 1;
+    }
+    bytes[0] = (byte) (header | 0x80);
+    bytes[1] = (byte) (header >>> 7);
+    return 2;
+  }
+
+  /**
+   * @return the header or -1 when the stream does not hold that many values of that width
+   */
+  private static int readSmallHeader(byte[] bytes, int numberOfValues, int bitWidth) {
+    int header = -1;
+    if (bytes != null && bytes.length > 0) {
+      header = bytes[0] & 0x7F;
+      if (bytes[0] < 0)
+        header = bytes.length > 1 && bytes[1] >= 0 ? header | bytes[1] << 7 : -1;
+    }
+    if (header < 0 || (header >>> smallHeaderShift) + (header & smallTrailingZerosMask) > bitWidth
+        || (header < 0x80) != (bytes[0] >= 0) || bytes.length != smallStreamLength(header, numberOfValues, bitWidth)) {
+      System.err.println("Wrong small array stream. Header: " + header + " length: " + (bytes == null ? null : bytes.length));
+      return -1;
+    }
+    return header;
+  }
+
+  /**
+   * The streams are converted to byte arrays before being compressed: beyond that size, use
+   * {@link BlockCompressedDoubleArray} to compress the array in blocks.
+   */
+  private static final long maxStreamByteSize = Integer.MAX_VALUE - 8;
+
+  /**
+   * @return the number of words of wordBitWidth bits needed to store numberOfValues values of valueBitWidth bits
+   */
+  private static int numberOfWords(int numberOfValues, int valueBitWidth, int wordBitWidth) {
+    long numberOfWords = ((long) numberOfValues * valueBitWidth + wordBitWidth - 1) / wordBitWidth;
+    if (numberOfWords * (wordBitWidth / Byte.SIZE) > maxStreamByteSize)
+      throw new IllegalArgumentException("Too many values for a single array: " + numberOfValues + ". Use BlockCompressedDoubleArray.");
+    return (int) numberOfWords;
+  }
+
+  private static int checkArrayLength(long length) {
+    if (length > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("The encoded array would be too large: " + length + " entries.");
+    return (int) length;
+  }
+
+  /**
+   * Compress the stream with every algorithm and keep the smallest result.
+   */
+  private static CompressedStream compressStream(byte[] uncompressed, CompressionMetrics.Stream stream,
+                                                 CompressedDoubleArray.WIDTH width, int elementCount, CompressionMetrics metrics,
+                                                 EncoderContext context) {
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
+
+    byte[] bestCompressed = null;
+    CompressionAlgorithms bestAlgorithm = null;
+
+    for (CompressionAlgorithms algorithm : context.streamAlgorithms[stream.ordinal()]) {
+      byte[] compressed = null;
+      try {
+        switch (algorithm) {
+          case NONE:
+            compressed = uncompressed;
+            break;
+          case ZIP:
+            compressed = compressZip(uncompressed, DeflateDictionaries.forStream(stream), context);
+            break;
+          case GZIP:
+            compressed = compressGzip(uncompressed);
+            break;
+          case RLE:
+            compressed = RleBitPackedHybrid.encode(uncompressed);
+            break;
+          case PARALLEL_GZIP:
+            compressed = ParallelGzip.compress(uncompressed);
+            break;
+          default:
+            throw new IllegalStateException("Unsupported algorithm: " + algorithm);
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (bestAlgorithm == null || (compressed != null && (bestCompressed == null || compressed.length < bestCompressed.length))) {
+        bestCompressed = compressed;
+        bestAlgorithm = algorithm;
+      }
+    }
+
+    if (metrics.isEnabled()) {
+      metrics.recordEncodeNanos(CompressionMetrics.Stage.STREAM_CODEC, System.nanoTime() - start);
+      metrics.recordEncodedStream(stream, bestAlgorithm, uncompressed.length, bestCompressed == null ? 0 : bestCompressed.length);
+    }
+    event.end(true, CompressionMetrics.Stage.STREAM_CODEC, width, elementCount, uncompressed.length, bestCompressed == null ? 0 : bestCompressed.length,
+        stream, bestAlgorithm);
+    return new CompressedStream(bestCompressed, bestAlgorithm);
+  }
+
+  /**
+   * A constant stream: its value in as few bytes as possible (big endian, none for 0) instead of the packed values.
+   */
+  private static CompressedStream constantStream(long value, CompressionMetrics.Stream stream, CompressionMetrics metrics) {
+    byte[] bytes = new byte[(TypeSize.INT64_BITSIZE - Long.numberOfLeadingZeros(value) + TypeSize.BYTE_BITSIZE - 1) / TypeSize.BYTE_BITSIZE];
+    for (int i = bytes.length - 1; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= TypeSize.BYTE_BITSIZE;
+    }
+    if (metrics.isEnabled())
+      metrics.recordEncodedStream(stream, CompressionAlgorithms.CONSTANT, 0, bytes.length);
+    return new CompressedStream(bytes, CompressionAlgorithms.CONSTANT);
+  }
+
+  private static long constantValue(byte[] bytes, boolean constant, CompressionMetrics.Stream stream, CompressionMetrics metrics) {
+    if (!constant)
+      return 0;
+    long value = 0;
+    if (bytes != null)
+      for (byte b : bytes)
+        value = value << TypeSize.BYTE_BITSIZE | (b & 0xFF);
+    if (metrics.isEnabled())
+      metrics.recordDecodedStream(stream, CompressionAlgorithms.CONSTANT, bytes == null ? 0 : bytes.length, 0);
+    return value;
+  }
+
+  /**
+   * @return the uncompressed stream or null when the algorithm is unknown
+   */
+  private static byte[] uncompressStream(byte[] compressed, CompressionAlgorithms algorithm, CompressionMetrics.Stream stream,
+                                         CompressedDoubleArray.WIDTH width, int elementCount, CompressionMetrics metrics) throws Exception {
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    CompressionStageEvent event = CompressionStageEvent.start();
 
-    // XOR the exponents and significands
-    for (int i = 1; i < decompressedAsLongs.length; i++) {
-      long currentSign = decompressedAsLongs[i] & signBitMask64;
-      long currentExponent = decompressedAsLongs[i] & exponentBitMask64;
-      long currentSignificand = decompressedAsLongs[i] & significandBitMask64;
+    byte[] uncompressed;
+    switch (algorithm) {
+      case NONE:
+        uncompressed = compressed;
+        break;
+      case ZIP:
+        uncompressed = uncompressZip(compressed);
+        break;
+      case GZIP:
+        uncompressed = uncompressGzip(compressed);
+        break;
+      case RLE:
+        uncompressed = compressed == null ? null : RleBitPackedHybrid.decodeBytes(compressed);
+        break;
+      case PARALLEL_GZIP:
+        uncompressed = ParallelGzip.uncompress(compressed, maxStreamLength(elementCount));
+        break;
+      default:
+        System.err.println("Unknown compression algorithm for " + stream.name().toLowerCase() + ".");
+        return null;
+    }
 
-      decompressedAsLongs[i] = currentSign | (previousExponent ^ currentExponent) | (previousSignificand ^ currentSignificand);
-      previousExponent = previousExponent ^ currentExponent;
-      previousSignificand = previousSignificand ^ currentSignificand;
+    if (metrics.isEnabled()) {
+      metrics.recordDecodeNanos(CompressionMetrics.Stage.STREAM_CODEC, System.nanoTime() - start);
+      metrics.recordDecodedStream(stream, algorithm, compressed == null ? 0 : compressed.length, uncompressed == null ? 0 : uncompressed.length);
+      if (algorithm != CompressionAlgorithms.NONE && uncompressed != null)
+        metrics.recordAllocation(uncompressed.length);
     }
+    event.end(false, CompressionMetrics.Stage.STREAM_CODEC, width, elementCount, compressed == null ? 0 : compressed.length,
+        uncompressed == null ? 0 : uncompressed.length, stream, algorithm);
+    return uncompressed;
+  }
 
-    return BitManipulationHelper.longsToDoubles(decompressedAsLongs);
+  /**
+   * @return an upper bound of the uncompressed size of a stream: at most 64 bits per value plus the headers of the
+   * whole number encodings
+   */
+  private static long maxStreamLength(int elementCount) {
+    return (long) elementCount * TypeSize.INT64_BYTESIZE + 64;
+  }
+
+  /**
+   * @return the stream before compression, null when the array has no such stream or when it is constant
+   */
+  static byte[] uncompressedStream(CompressedDoubleArray compressed, CompressionMetrics.Stream stream) throws Exception {
+    byte[][] streams = {compressed.compressedSigns, compressed.compressedExponents, compressed.compressedSignificands};
+    CompressionAlgorithms[] algorithms = {compressed.signsAlgorithm, compressed.exponentsAlgorithm, compressed.significandsAlgorithm};
+    CompressionAlgorithms algorithm = algorithms[stream.ordinal()];
+    if (algorithm == null || algorithm == CompressionAlgorithms.CONSTANT)
+      return null;
+    return uncompressStream(streams[stream.ordinal()], algorithm, stream, compressed.width, compressed.uncompressedArrayLength, NoOpCompressionMetrics.INSTANCE);
+  }
+
+  /**
+   * @return the time at the end of the stage, the start of the next one
+   */
+  private static long recordEncodeStage(CompressionMetrics metrics, CompressionMetrics.Stage stage, long start) {
+    if (!metrics.isEnabled())
+      return 0;
+    long end = System.nanoTime();
+    metrics.recordEncodeNanos(stage, end - start);
+    return end;
+  }
+
+  private static long recordDecodeStage(CompressionMetrics metrics, CompressionMetrics.Stage stage, long start) {
+    if (!metrics.isEnabled())
+      return 0;
+    long end = System.nanoTime();
+    metrics.recordDecodeNanos(stage, end - start);
+    return end;
   }
 
   private static byte[] compressGzip(final byte[] input) throws IOException {
@@ -718,15 +1534,20 @@ The IEEE 754 standard specifies a float 32 as having:
     return buffer.toByteArray();
   }
 
-  private static byte[] compressZip(final byte[] input) throws Exception {
+  /**
+   * @param dictionary the preset dictionary, its id is written in the zlib header (null for none), see {@link DeflateDictionaries}
+   */
+  private static byte[] compressZip(final byte[] input, final byte[] dictionary, EncoderContext context) throws Exception {
     if (input == null || input.length == 0)
       return null;
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    Deflater deflater = new Deflater();
-    deflater.setLevel(Deflater.BEST_COMPRESSION);
+    Deflater deflater = context.deflater();
+    if (dictionary != null)
+      deflater.setDictionary(dictionary);
     deflater.setInput(input);
     deflater.finish();
-    byte[] tmp = new byte[32 * 1024]; // 32 kiloBytes
+    ByteArrayOutputStream outputStream = context.zipOutput;
+    outputStream.reset();
+    byte[] tmp = context.zipBuffer;
     try {
       while (!deflater.finished()) {
         int size = deflater.deflate(tmp);
@@ -754,14 +1575,30 @@ The IEEE 754 standard specifies a float 32 as having:
     inflater.setInput(input);
     outputStream = new ByteArrayOutputStream();
     byte[] tmp = new byte[32 * 1024];
+    boolean dictionarySet = false;
     try {
       while (!inflater.finished()) {
+        if (inflater.needsDictionary() && !dictionarySet) {
+          byte[] dictionary = DeflateDictionaries.get(inflater.getAdler());
+          if (dictionary == null) {
+            System.err.println("Unknown dictionary: " + inflater.getAdler() + ". Register it with DeflateDictionaries.");
+            return null;
+          }
+          inflater.setDictionary(dictionary);
+          dictionarySet = true;
+        }
         int size = inflater.inflate(tmp);
+        // inflate returns 0 without finishing when the input is truncated or the dictionary was not the right one
+        if (size == 0 && !inflater.finished() && (inflater.needsInput() || dictionarySet && inflater.needsDictionary())) {
+          System.err.println("Truncated or corrupted ZIP stream.");
+          return null;
+        }
         outputStream.write(tmp, 0, size);
       }
     } catch (Exception ex) {
       throw ex;
     } finally {
+      inflater.end();
       try {
         if (outputStream != null)
           outputStream.close();
@@ -834,8 +1671,8 @@ The IEEE 754 standard specifies a float 32 as having:
     // + 1 for the first entry that stores the minimum value
     // + 1 for the number of bits used to encode each delta
     // + 1 for the number of longs when decompressing
-    int numberOfCompressedLongs = 1 + (numberOfBitsToEncode * uncompressed.length) / TypeSize.INT64_BITSIZE;
-    long[] compressed = new long[1 + 1 + 1 + numberOfCompressedLongs];
+    int numberOfCompressedLongs = checkArrayLength(1 + 1 + 1 + 1 + ((long) numberOfBitsToEncode * uncompressed.length) / TypeSize.INT64_BITSIZE);
+    long[] compressed = new long[numberOfCompressedLongs];
 
     if (debug)
       System.out.println("numberOfCompressedLongs: " + numberOfCompressedLongs + " uncompressed.length: " + uncompressed.length);
@@ -845,7 +1682,7 @@ The IEEE 754 standard specifies a float 32 as having:
     compressed[1] = ((long) numberOfBitsToEncode) << 32;
     compressed[1] |= uncompressed.length;
 
-    int bitOffset = 2 * TypeSize.INT64_BITSIZE; // 2 for the 2 entries above x 64 bits each,
+    long bitOffset = 2 * TypeSize.INT64_BITSIZE; // 2 for the 2 entries above x 64 bits each,
     for (long value : uncompressed) {
       writeBits(compressed, value - min, bitOffset, numberOfBitsToEncode);
       bitOffset += numberOfBitsToEncode;
@@ -858,7 +1695,7 @@ The IEEE 754 standard specifies a float 32 as having:
 
     long min = compressed[0];
     int numberOfBitsToEncode = (int) (compressed[1] >>> 32);
-    int numberOfUncompressedLongs = (int) (compressed[1] & 0xFFFFFFFF); // Keep only the low 32 bits
+    int numberOfUncompressedLongs = (int) (compressed[1] & 0xFFFFFFFFL); // Keep only the low 32 bits
 
     if (debug)
       System.out.println("numberOfUncompressedLongs: " + numberOfUncompressedLongs);
@@ -868,7 +1705,7 @@ The IEEE 754 standard specifies a float 32 as having:
     if (debug)
       System.out.println("Min: " + min + " numberOfBitsToEncode: " + numberOfBitsToEncode + " uncompressed.length: " + uncompressed.length);
 
-    int offsetBitsCompressed = 2 * TypeSize.INT64_BITSIZE; // Skip the first 2 entries above x 64 bits each
+    long offsetBitsCompressed = 2 * TypeSize.INT64_BITSIZE; // Skip the first 2 entries above x 64 bits each
     for (int i = 0; i < uncompressed.length; i++) {
       uncompressed[i] = min + readBits(compressed, offsetBitsCompressed, numberOfBitsToEncode);
       offsetBitsCompressed += numberOfBitsToEncode;
@@ -898,8 +1735,8 @@ The IEEE 754 standard specifies a float 32 as having:
     // + 1 for the first entry that stores the minimum value
     // + 1 for the number of bits used to encode each delta
     // + 1 for the number of integers when decompressing
-    int numberOfCompressedInts = 1 + (numberOfBitsToEncode * uncompressed.length) / TypeSize.INT32_BITSIZE;
-    int[] compressed = new int[1 + 1 + 1 + numberOfCompressedInts];
+    int numberOfCompressedInts = checkArrayLength(1 + 1 + 1 + 1 + ((long) numberOfBitsToEncode * uncompressed.length) / TypeSize.INT32_BITSIZE);
+    int[] compressed = new int[numberOfCompressedInts];
 
     if (debug)
       System.out.println("numberOfCompressedInts: " + numberOfCompressedInts + " uncompressed.length: " + uncompressed.length);
@@ -908,7 +1745,7 @@ The IEEE 754 standard specifies a float 32 as having:
     compressed[1] = numberOfBitsToEncode;
     compressed[2] = uncompressed.length;
 
-    int bitOffset = 3 * TypeSize.INT32_BITSIZE; // 3 for the 3 entries above x 32 bits each,
+    long bitOffset = 3 * TypeSize.INT32_BITSIZE; // 3 for the 3 entries above x 32 bits each,
     for (int value : uncompressed) {
       writeBits(compressed, value - min, bitOffset, numberOfBitsToEncode, false);
       bitOffset += numberOfBitsToEncode;
@@ -926,7 +1763,7 @@ The IEEE 754 standard specifies a float 32 as having:
     if (debug)
       System.out.println("Min: " + min + " numberOfBitsToEncode: " + numberOfBitsToEncode + " uncompressed.length: " + uncompressed.length);
 
-    int offsetBitsCompressed = 3 * TypeSize.INT32_BITSIZE; // Skip the first 3 entries above x 32 bits each
+    long offsetBitsCompressed = 3 * TypeSize.INT32_BITSIZE; // Skip the first 3 entries above x 32 bits each
     for (int i = 0; i < uncompressed.length; i++) {
       uncompressed[i] = min + readBits(compressed, offsetBitsCompressed, numberOfBitsToEncode);
       offsetBitsCompressed += numberOfBitsToEncode;
@@ -935,6 +1772,249 @@ The IEEE 754 standard specifies a float 32 as having:
     return uncompressed;
   }
 
+  /*
+  Delta-of-delta encoding, for timestamps and other monotonic series where the interval between
+  consecutive values is nearly constant:
+    [0] flags (high 32 bits) | number of values (low 32 bits)
+    [1] first value
+    [2] first delta
+    then, for every block of deltaOfDeltaBlockSize deltas of deltas, the number of bits used in the
+    block (7 bits) followed by the zigzag encoded deltas of deltas on that number of bits.
+  The deltas are computed with the wrapping long arithmetic, so any range of values round trips.
+  When the interval never changes, the bit stream is omitted altogether.
+  */
+  private static final int deltaOfDeltaBlockSize = 256;
+  private static final int deltaOfDeltaWidthBitWidth = 7; // Enough to store 0 to 64
+  private static final int deltaOfDeltaHeaderLength = 3;
+  private static final long deltaOfDeltaRegularFlag = 1L;
+
+  public static long[] deltaOfDeltaEncode(long[] uncompressed) {
+    int numberOfValues = uncompressed.length;
+    int numberOfDeltaOfDeltas = Math.max(numberOfValues - 2, 0);
+    int numberOfBlocks = (numberOfDeltaOfDeltas + deltaOfDeltaBlockSize - 1) / deltaOfDeltaBlockSize;
+
+    long firstValue = numberOfValues > 0 ? uncompressed[0] : 0;
+    long firstDelta = numberOfValues > 1 ? uncompressed[1] - uncompressed[0] : 0;
+
+    // First pass: find the number of bits needed by each block
+    int[] blockBitWidths = new int[numberOfBlocks];
+    long numberOfBits = 0;
+    for (int block = 0; block < numberOfBlocks; block++) {
+      int startFrom = 2 + block * deltaOfDeltaBlockSize;
+      int endAt = Math.min(startFrom + deltaOfDeltaBlockSize, numberOfValues);
+      long bitsSet = 0;
+      for (int idx = startFrom; idx < endAt; idx++)
+        bitsSet |= zigzagEncode(uncompressed[idx] - 2 * uncompressed[idx - 1] + uncompressed[idx - 2]);
+      blockBitWidths[block] = TypeSize.INT64_BITSIZE - Long.numberOfLeadingZeros(bitsSet);
+      numberOfBits += deltaOfDeltaWidthBitWidth + (long) blockBitWidths[block] * (endAt - startFrom);
+    }
+
+    // Fast path: perfectly regular intervals, only the header is needed
+    boolean regular = numberOfBits == (long) numberOfBlocks * deltaOfDeltaWidthBitWidth;
+    if (regular)
+      numberOfBits = 0;
+
+    long[] compressed = new long[checkArrayLength(deltaOfDeltaHeaderLength + (numberOfBits + TypeSize.INT64_BITSIZE - 1) / TypeSize.INT64_BITSIZE)];
+    compressed[0] = ((regular ? deltaOfDeltaRegularFlag : 0L) << 32) | numberOfValues;
+    compressed[1] = firstValue;
+    compressed[2] = firstDelta;
+
+    if (debug)
+      System.out.println("numberOfValues: " + numberOfValues + " numberOfBlocks: " + numberOfBlocks + " numberOfBits: " + numberOfBits + " regular: " + regular);
+
+    if (regular)
+      return compressed;
+
+    long bitOffset = deltaOfDeltaHeaderLength * TypeSize.INT64_BITSIZE;
+    for (int block = 0; block < numberOfBlocks; block++) {
+      int startFrom = 2 + block * deltaOfDeltaBlockSize;
+      int endAt = Math.min(startFrom + deltaOfDeltaBlockSize, numberOfValues);
+      int numberOfBitsToEncode = blockBitWidths[block];
+
+      writeBits(compressed, numberOfBitsToEncode, bitOffset, deltaOfDeltaWidthBitWidth);
+      bitOffset += deltaOfDeltaWidthBitWidth;
+      if (numberOfBitsToEncode == 0)
+        continue;
+
+      for (int idx = startFrom; idx < endAt; idx++) {
+        writeBits(compressed, zigzagEncode(uncompressed[idx] - 2 * uncompressed[idx - 1] + uncompressed[idx - 2]), bitOffset, numberOfBitsToEncode);
+        bitOffset += numberOfBitsToEncode;
+      }
+    }
+
+    return compressed;
+  }
+
+  public static long[] deltaOfDeltaDecode(long[] compressed) {
+    int numberOfValues = (int) (compressed[0] & 0xFFFFFFFFL);
+    boolean regular = ((compressed[0] >>> 32) & deltaOfDeltaRegularFlag) != 0;
+
+    long[] uncompressed = new long[numberOfValues];
+    if (numberOfValues == 0)
+      return uncompressed;
+
+    long value = compressed[1];
+    long delta = compressed[2];
+    uncompressed[0] = value;
+
+    if (regular) {
+      for (int i = 1; i < numberOfValues; i++) {
+        value += delta;
+        uncompressed[i] = value;
+      }
+      return uncompressed;
+    }
+
+    if (numberOfValues > 1) {
+      value += delta;
+      uncompressed[1] = value;
+    }
+
+    long bitOffset = deltaOfDeltaHeaderLength * TypeSize.INT64_BITSIZE;
+    for (int startFrom = 2; startFrom < numberOfValues; startFrom += deltaOfDeltaBlockSize) {
+      int endAt = Math.min(startFrom + deltaOfDeltaBlockSize, numberOfValues);
+      int numberOfBitsToEncode = (int) readBits(compressed, bitOffset, deltaOfDeltaWidthBitWidth);
+      bitOffset += deltaOfDeltaWidthBitWidth;
+
+      for (int idx = startFrom; idx < endAt; idx++) {
+        if (numberOfBitsToEncode > 0) { // readBits() does not deal with 0 bits
+          delta += zigzagDecode(readBits(compressed, bitOffset, numberOfBitsToEncode));
+          bitOffset += numberOfBitsToEncode;
+        }
+        value += delta;
+        uncompressed[idx] = value;
+      }
+    }
+
+    return uncompressed;
+  }
+
+  /*
+  FPC (Burtscher and Ratanaworabhan): two hash table predictors guess every value from the previous ones
+    FCM:  the value that followed the same context (hash of the previous values) last time
+    DFCM: the previous value plus the delta that followed the same context of deltas last time
+  The prediction with the most leading zeros once XOR'ed with the value is kept. Layout of the long[]:
+    [0] number of values
+    [1] number of bits of the size of the hash tables
+    then, for every value, the predictor (1 bit), the number of leading zero bytes of the residual (3 bits)
+    and the residual (value XOR prediction) without its leading zero bytes.
+  Like in FPC, 4 leading zero bytes are stored as 3 so that 3 bits are enough for 0 to 8.
+  */
+  public static final int FPC_DEFAULT_TABLE_SIZE_BITS = 10; // 2 tables of 8KB: they fit in the L1 cache
+  private static final int fpcMaxTableSizeBits = 24;
+  private static final int fpcHeaderLength = 2;
+  private static final int fpcCodeBitWidth = 4;
+
+  public static long[] fpcEncode(double[] uncompressed) {
+    return fpcEncode(uncompressed, FPC_DEFAULT_TABLE_SIZE_BITS);
+  }
+
+  public static long[] fpcEncode(double[] uncompressed, int tableSizeBits) {
+    if (tableSizeBits < 1 || tableSizeBits > fpcMaxTableSizeBits)
+      throw new IllegalArgumentException("The table size bits must be between 1 and " + fpcMaxTableSizeBits + ": " + tableSizeBits);
+
+    int mask = (1 << tableSizeBits) - 1;
+    long[] fcm = new long[1 << tableSizeBits];
+    long[] dfcm = new long[1 << tableSizeBits];
+    int fcmHash = 0;
+    int dfcmHash = 0;
+    long last = 0;
+
+    // Worst case: no leading zero byte at all, the array is trimmed at the end
+    long[] compressed = new long[checkArrayLength(fpcHeaderLength
+        + ((long) uncompressed.length * (fpcCodeBitWidth + TypeSize.INT64_BITSIZE) + TypeSize.INT64_BITSIZE - 1) / TypeSize.INT64_BITSIZE)];
+    compressed[0] = uncompressed.length;
+    compressed[1] = tableSizeBits;
+
+    long bitOffset = fpcHeaderLength * TypeSize.INT64_BITSIZE;
+    for (double uncompressedValue : uncompressed) {
+      long value = Double.doubleToRawLongBits(uncompressedValue);
+      long fcmResidual = value ^ fcm[fcmHash];
+      long dfcmResidual = value ^ (dfcm[dfcmHash] + last);
+
+      fcm[fcmHash] = value;
+      fcmHash = (int) ((fcmHash << 6 ^ value >>> 48) & mask);
+      dfcm[dfcmHash] = value - last;
+      dfcmHash = (int) ((dfcmHash << 2 ^ (value - last) >>> 40) & mask);
+      last = value;
+
+      int predictor = Long.numberOfLeadingZeros(dfcmResidual) > Long.numberOfLeadingZeros(fcmResidual) ? 1 : 0;
+      long residual = predictor == 0 ? fcmResidual : dfcmResidual;
+      int leadingZeroBytes = Long.numberOfLeadingZeros(residual) >>> 3;
+      if (leadingZeroBytes == 4)
+        leadingZeroBytes = 3;
+
+      writeBits(compressed, predictor | (leadingZeroBytes > 4 ? leadingZeroBytes - 1 : leadingZeroBytes) << 1, bitOffset, fpcCodeBitWidth);
+      bitOffset += fpcCodeBitWidth;
+      int residualBitWidth = (TypeSize.INT64_BYTESIZE - leadingZeroBytes) * TypeSize.BYTE_BITSIZE;
+      writeBits(compressed, residual, bitOffset, residualBitWidth);
+      bitOffset += residualBitWidth;
+    }
+
+    return Arrays.copyOf(compressed, (int) ((bitOffset + TypeSize.INT64_BITSIZE - 1) / TypeSize.INT64_BITSIZE));
+  }
+
+  public static double[] fpcDecode(long[] compressed) {
+    if (compressed == null || compressed.length < fpcHeaderLength) {
+      System.err.println("Wrong format. The FPC header is missing.");
+      return null;
+    }
+
+    int numberOfValues = (int) compressed[0];
+    int tableSizeBits = (int) compressed[1];
+    if (numberOfValues < 0 || tableSizeBits < 1 || tableSizeBits > fpcMaxTableSizeBits) {
+      System.err.println("Wrong format. Number of values: " + numberOfValues + " table size bits: " + tableSizeBits);
+      return null;
+    }
+
+    int mask = (1 << tableSizeBits) - 1;
+    long[] fcm = new long[1 << tableSizeBits];
+    long[] dfcm = new long[1 << tableSizeBits];
+    int fcmHash = 0;
+    int dfcmHash = 0;
+    long last = 0;
+
+    double[] uncompressed = new double[numberOfValues];
+    long bitOffset = fpcHeaderLength * TypeSize.INT64_BITSIZE;
+    for (int i = 0; i < numberOfValues; i++) {
+      int code = (int) readBits(compressed, bitOffset, fpcCodeBitWidth);
+      bitOffset += fpcCodeBitWidth;
+      int leadingZeroBytes = code >>> 1;
+      if (leadingZeroBytes > 3)
+        leadingZeroBytes++;
+      int residualBitWidth = (TypeSize.INT64_BYTESIZE - leadingZeroBytes) * TypeSize.BYTE_BITSIZE;
+      long residual = 0;
+      if (residualBitWidth > 0) { // readBits() does not deal with 0 bits
+        residual = readBits(compressed, bitOffset, residualBitWidth);
+        bitOffset += residualBitWidth;
+      }
+
+      long value = residual ^ ((code & 1) == 0 ? fcm[fcmHash] : dfcm[dfcmHash] + last);
+
+      fcm[fcmHash] = value;
+      fcmHash = (int) ((fcmHash << 6 ^ value >>> 48) & mask);
+      dfcm[dfcmHash] = value - last;
+      dfcmHash = (int) ((dfcmHash << 2 ^ (value - last) >>> 40) & mask);
+      last = value;
+
+      uncompressed[i] = Double.longBitsToDouble(value);
+    }
+
+    return uncompressed;
+  }
+
+  /**
+   * Map the signed values to unsigned ones so that small magnitudes get small codes:
+   * 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...
+   */
+  private static long zigzagEncode(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long zigzagDecode(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
   /**
    * Write a certain number of bits of an integer into an integer array
    * starting from the given start offset
@@ -944,12 +2024,12 @@ The IEEE 754 standard specifies a float 32 as having:
    * @param outOffset the start offset in bits in the output array
    * @param bits      the number of bits to be written (bits greater or equal to 0)
    */
-  private static void writeBits(int[] out, int val, int outOffset, int bits, boolean printInfo) {
+  private static void writeBits(int[] out, int val, long outOffset, int bits, boolean printInfo) {
     if (bits <= 0 || bits > 32) // Working with ints, the number of bits to write must be positive and LTE 32
       return;
 
-    final int index = outOffset >>> 5;     // Divide by 32 (=2^5)
-    final int skip = outOffset & 0b11111; // Modulo 32
+    final int index = (int) (outOffset >>> 5);     // Divide by 32 (=2^5)
+    final int skip = (int) (outOffset & 0b11111); // Modulo 32
 
     if (printInfo) {
       System.out.println();
@@ -986,12 +2066,12 @@ The IEEE 754 standard specifies a float 32 as having:
    * @param outOffset the start offset in bits in the output array
    * @param bits      the number of bits to be written (bits greater or equal to 0)
    */
-  private static void writeBits(long[] out, long val, int outOffset, int bits, boolean printInfo) {
+  private static void writeBits(long[] out, long val, long outOffset, int bits, boolean printInfo) {
     if (bits <= 0 || bits > 64) // Working with ints, the number of bits to write must be positive and LTE 64
       return;
 
-    final int index = outOffset >>> 6;     // Divide by 64 (=2^6)
-    final int skip = outOffset & 0b111111; // Modulo 64
+    final int index = (int) (outOffset >>> 6);     // Divide by 64 (=2^6)
+    final int skip = (int) (outOffset & 0b111111); // Modulo 64
 
     if (printInfo) {
       System.out.println();
@@ -1134,9 +2214,9 @@ The IEEE 754 standard specifies a float 32 as having:
    *                 just skip the entire bits-bit slots without decoding them
    * @return the bits bits of the input
    */
-  private static int readBits(int[] in, final int inOffset, final int bits) {
-    final int index = inOffset >>> 5;     // Divide by 32 (2^5)
-    final int skip = inOffset & 0b11111; // Keep the last 5 bits
+  private static int readBits(int[] in, final long inOffset, final int bits) {
+    final int index = (int) (inOffset >>> 5);     // Divide by 32 (2^5)
+    final int skip = (int) (inOffset & 0b11111); // Keep the last 5 bits
     int val = in[index] >>> skip;
     if (32 - skip < bits) {
       val |= (in[index + 1] << (32 - skip));
@@ -1144,6 +2224,27 @@ The IEEE 754 standard specifies a float 32 as having:
     return val & (0xFFFFFFFF >>> (32 - bits));
   }
 
+  /**
+   * Write the bits least significant first, the bits of val above numberOfBits must be 0.
+   */
+  private static void writeBits(byte[] out, long val, long outOffset, int numberOfBits) {
+    int index = (int) (outOffset >>> 3);
+    int shift = (int) (outOffset & 7);
+    for (int written = -shift; written < numberOfBits; written += TypeSize.BYTE_BITSIZE)
+      out[index++] |= (byte) (written >= 0 ? val >>> written : val << -written);
+  }
+
+  private static long readBits(byte[] in, final long inOffset, final int numberOfBits) {
+    int index = (int) (inOffset >>> 3);
+    int shift = (int) (inOffset & 7);
+    long value = 0;
+    for (int gathered = -shift; gathered < numberOfBits; gathered += TypeSize.BYTE_BITSIZE) {
+      long b = in[index++] & 0xFFL;
+      value |= gathered >= 0 ? b << gathered : b >>> -gathered;
+    }
+    return numberOfBits == TypeSize.INT64_BITSIZE ? value : value & ((1L << numberOfBits) - 1);
+  }
+
   /**
    * Write a certain number of bits of a long into a long array
    * starting from the given start offset
@@ -1153,12 +2254,12 @@ The IEEE 754 standard specifies a float 32 as having:
    * @param outOffset    the start offset in bits in the output array
    * @param numberOfBits the number of bits to be written (bits greater or equal to 0)
    */
-  private static void writeBits(long[] out, long val, int outOffset, int numberOfBits) {
+  private static void writeBits(long[] out, long val, long outOffset, int numberOfBits) {
     if (numberOfBits <= 0 || numberOfBits > 64)
       return;
 
-    final int index = outOffset >>> 6;      // divide by 64 (=2^6)
-    final int skip = outOffset & 0b111111; // Modulo 64
+    final int index = (int) (outOffset >>> 6);      // divide by 64 (=2^6)
+    final int skip = (int) (outOffset & 0b111111); // Modulo 64
     val &= (0xFFFFFFFFFFFFFFFFL >>> (64 - numberOfBits));
     out[index] |= (val << skip);
     if (64 - skip < numberOfBits)
@@ -1177,9 +2278,9 @@ The IEEE 754 standard specifies a float 32 as having:
    *                     just skip the entire bits-bit slots without decoding them
    * @return the bits bits of the input
    */
-  private static long readBits(long[] in, final int inOffset, final int numberOfBits) {
-    final int index = inOffset >>> 6;      // Divide by 64 (=2^6)
-    final int skip = inOffset & 0b111111; // Modulo 64
+  private static long readBits(long[] in, final long inOffset, final int numberOfBits) {
+    final int index = (int) (inOffset >>> 6);      // Divide by 64 (=2^6)
+    final int skip = (int) (inOffset & 0b111111); // Modulo 64
     long val = in[index] >>> skip;
     if (64 - skip < numberOfBits) {
       val |= (in[index + 1] << (64 - skip));
@@ -1187,50 +2288,15 @@ The IEEE 754 standard specifies a float 32 as having:
     return val & (0xFFFFFFFFFFFFFFFFL >>> (64 - numberOfBits));
   }
 
+  /**
+   * @see RleBitPackedHybrid
+   */
   public static byte[] rleEncode(byte[] uncompressed) {
-    int size = uncompressed.length;
-    ByteBuffer bb = ByteBuffer.allocate(2 * size);
-    bb.putInt(size);
-    int zeros = 0;
-    for (int i = 0; i < size; i++) {
-      if (uncompressed[i] == 0) {
-        if (++zeros == 255) {
-          bb.putShort((short) zeros);
-          zeros = 0;
-        }
-      } else {
-        if (zeros > 0) {
-          bb.putShort((short) zeros);
-          zeros = 0;
-        }
-        bb.put(uncompressed[i]);
-      }
-    }
-    if (zeros > 0) {
-      bb.putShort((short) zeros);
-      zeros = 0;
-    }
-    size = bb.position();
-    byte[] buf = new byte[size];
-    bb.rewind();
-    bb.get(buf, 0, size).array();
-    return buf;
+    return RleBitPackedHybrid.encode(uncompressed);
   }
 
   public static byte[] rleDecode(byte[] compressed) {
-    ByteBuffer bb = ByteBuffer.wrap(compressed);
-    byte[] uncompressed = new byte[bb.getInt()];
-    int pos = 0;
-    while (bb.position() < bb.capacity()) {
-      byte value = bb.get();
-      if (value == 0) {
-        bb.position(bb.position() - 1);
-        pos += bb.getShort();
-      } else {
-        uncompressed[pos++] = value;
-      }
-    }
-    return uncompressed;
+    return RleBitPackedHybrid.decodeBytes(compressed);
   }
 
   public static int[] transpose32b(int[] input) {
@@ -1414,11 +2480,10 @@ The IEEE 754 standard specifies a float 32 as having:
     }
   }
 
+  /**
+   * See {@link CompressionCli}.
+   */
   public static void main(String[] args) throws Exception {
-
-    System.out.println("\ntestTranspose32b()");
-    testTranspose32b();
-
-    testBitStorage32();
+    CompressionCli.main(args);
   }
 }
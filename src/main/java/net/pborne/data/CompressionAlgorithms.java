@@ -5,5 +5,8 @@ public enum CompressionAlgorithms {
   ZIP,
   GZIP,
   LZO,
-  SNAPPY
+  SNAPPY,
+  RLE,     // RleBitPackedHybrid
+  CONSTANT, // Every value of the stream is the same, only the value is stored
+  PARALLEL_GZIP // ParallelGzip: GZIP members compressed and inflated in parallel
 }
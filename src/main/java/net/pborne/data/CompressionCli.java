@@ -0,0 +1,446 @@
+package net.pborne.data;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool to compress column exports and to compare the codecs on them.
+ * <pre>
+ * encode  INPUT OUTPUT  compress a binary or CSV column into a column file ({@link ColumnFile})
+ * decode  INPUT [OUTPUT] decompress a column file into a binary or CSV column (standard output by default)
+ * bakeoff INPUT         report the ratio and the throughput of every codec, and the size of every stream
+ * ingest  INPUT OUTPUT  split a CSV (with a header), JSON-lines or XML export into one column file per numeric
+ *                       field, written to the OUTPUT directory (see {@link ColumnIngestion})
+ * </pre>
+ * Binary columns are the raw values one after the other, big endian unless --little-endian is given.
+ * CSV columns are one field of each line; empty, NaN and null fields are NaN for the floating point types.
+ */
+public class CompressionCli {
+
+  public enum Command {
+    ENCODE,
+    DECODE,
+    BAKEOFF,
+    INGEST
+  }
+
+  public enum Format {
+    BINARY,
+    CSV,
+    JSON, // JSON lines, ingest only
+    XML   // ingest only
+  }
+
+  @Argument(index = 0, required = true, metaVar = "COMMAND", usage = "encode, decode, bakeoff or ingest")
+  private Command command;
+
+  @Argument(index = 1, required = true, metaVar = "INPUT", usage = "the input file")
+  private File input;
+
+  @Argument(index = 2, metaVar = "OUTPUT", usage = "the output file")
+  private File output;
+
+  @Option(name = "-t", aliases = "--type", metaVar = "TYPE", usage = "the type of the values: float, double, int or long (default: double)")
+  private ColumnFile.Type type = ColumnFile.Type.DOUBLE;
+
+  @Option(name = "-f", aliases = "--format", metaVar = "FORMAT", usage = "the format of the uncompressed column: binary or csv, or csv, json or xml for ingest (default: binary)")
+  private Format format = Format.BINARY;
+
+  @Option(name = "-c", aliases = "--column", metaVar = "INDEX", usage = "the CSV field to read, starting from 0 (default: 0)")
+  private int column = 0;
+
+  @Option(name = "-d", aliases = "--delimiter", metaVar = "DELIMITER", usage = "the CSV delimiter (default: ,)")
+  private String delimiter = ",";
+
+  @Option(name = "--header", usage = "skip the first line of the CSV input")
+  private boolean header = false;
+
+  @Option(name = "--little-endian", usage = "binary values are little endian")
+  private boolean littleEndian = false;
+
+  @Option(name = "-b", aliases = "--block-size", metaVar = "VALUES", usage = "the number of values per compressed block (default: 4096)")
+  private int blockSize = BlockCompressedDoubleArray.DEFAULT_BLOCK_SIZE;
+
+  @Option(name = "-i", aliases = "--iterations", metaVar = "N", usage = "bakeoff: the number of timed runs of each codec (default: 5)")
+  private int iterations = RegressionSuite.DEFAULT_ITERATIONS;
+
+  @Option(name = "--record", metaVar = "ELEMENT", usage = "ingest: the name of the XML elements holding the records (default: row)")
+  private String recordElement = "row";
+
+  @Option(name = "--columns", metaVar = "NAME:TYPE,...", usage = "ingest: only ingest these columns, with these types")
+  private String declaredColumns;
+
+  @Option(name = "-r", aliases = "--report", metaVar = "FILE", usage = "bakeoff: also write the results to a JSON report")
+  private File report;
+
+  private interface ValueVisitor {
+    void visitDouble(double value) throws IOException;
+
+    void visitLong(long value) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int status = run(args, System.out, System.err);
+    if (status != 0)
+      System.exit(status);
+  }
+
+  /**
+   * @return the exit status: 0 on success, 1 on error, 2 on a usage error
+   */
+  public static int run(String[] args, PrintStream out, PrintStream err) throws Exception {
+    CompressionCli cli = new CompressionCli();
+    CmdLineParser parser = new CmdLineParser(cli);
+    try {
+      parser.parseArgument(args);
+      if ((cli.command == Command.ENCODE || cli.command == Command.INGEST) && cli.output == null)
+        throw new CmdLineException(parser, cli.command.name().toLowerCase() + " needs an OUTPUT");
+      if (cli.command == Command.INGEST ? cli.format == Format.BINARY : (cli.format == Format.JSON || cli.format == Format.XML))
+        throw new CmdLineException(parser, "The " + cli.format + " format is not supported by " + cli.command.name().toLowerCase());
+      if (cli.command == Command.INGEST && cli.format == Format.CSV && cli.delimiter.length() != 1)
+        throw new CmdLineException(parser, "The CSV delimiter must be a single character");
+      if (cli.blockSize <= 0)
+        throw new CmdLineException(parser, "The block size must be greater than 0");
+      if (cli.iterations <= 0)
+        throw new CmdLineException(parser, "The number of iterations must be greater than 0");
+    } catch (CmdLineException e) {
+      err.println(e.getMessage());
+      err.println("Usage: CompressionCli COMMAND INPUT [OUTPUT] [options]");
+      parser.printUsage(err);
+      return 2;
+    }
+
+    try {
+      switch (cli.command) {
+        case ENCODE:
+          cli.encode(out);
+          break;
+        case DECODE:
+          cli.decode(out);
+          break;
+        case BAKEOFF:
+          cli.bakeoff(out);
+          break;
+        case INGEST:
+          cli.ingest(out);
+          break;
+        default:
+          throw new IllegalStateException("Unknown command: " + cli.command);
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      err.println("Error: " + e.getMessage());
+      return 1;
+    }
+    return 0;
+  }
+
+  private void encode(PrintStream out) throws IOException {
+    long start = System.nanoTime();
+    ColumnFileWriter writer = new ColumnFileWriter(new FileOutputStream(output), type, blockSize);
+    try {
+      readInput(new ValueVisitor() {
+        @Override
+        public void visitDouble(double value) throws IOException {
+          writer.writeDouble(value);
+        }
+
+        @Override
+        public void visitLong(long value) throws IOException {
+          writer.writeLong(value);
+        }
+      });
+    } finally {
+      writer.close();
+    }
+
+    long rawBytes = writer.getNumberOfValues() * type.getByteSize();
+    out.println(String.format("%d values in %d blocks: %d bytes -> %d bytes, ratio: %.4f in %.1f ms",
+        writer.getNumberOfValues(), writer.getNumberOfBlocks(), rawBytes, output.length(),
+        rawBytes == 0 ? 0.0d : (double) output.length() / rawBytes, (System.nanoTime() - start) / 1e6d));
+  }
+
+  private void ingest(PrintStream out) throws IOException {
+    if (!output.isDirectory() && !output.mkdirs())
+      throw new IOException("Cannot create the directory " + output);
+
+    long start = System.nanoTime();
+    long numberOfRecords;
+    Map<String, File> columnFiles;
+    try (ColumnIngestion ingestion = new ColumnIngestion(output, blockSize);
+         InputStream inputStream = new BufferedInputStream(new FileInputStream(input))) {
+      if (declaredColumns != null)
+        for (String declaredColumn : declaredColumns.split(",")) {
+          int colon = declaredColumn.lastIndexOf(':');
+          String name = colon < 0 ? declaredColumn : declaredColumn.substring(0, colon);
+          String columnType = colon < 0 ? ColumnFile.Type.DOUBLE.name() : declaredColumn.substring(colon + 1);
+          ingestion.declareColumn(name.trim(), ColumnFile.Type.valueOf(columnType.trim().toUpperCase()));
+        }
+
+      switch (format) {
+        case CSV:
+          numberOfRecords = ingestion.ingestCsv(inputStream, delimiter.charAt(0));
+          break;
+        case JSON:
+          numberOfRecords = ingestion.ingestJsonLines(inputStream);
+          break;
+        default:
+          numberOfRecords = ingestion.ingestXml(inputStream, recordElement);
+      }
+      columnFiles = ingestion.getColumnFiles();
+    }
+    // The sizes once the last blocks are flushed by the close
+    for (Map.Entry<String, File> entry : columnFiles.entrySet())
+      out.println(String.format("%-30s %12d bytes  %s", entry.getKey(), entry.getValue().length(), entry.getValue()));
+    out.println(String.format("%d records from %s in %.1f ms", numberOfRecords, input, (System.nanoTime() - start) / 1e6d));
+  }
+
+  private void decode(PrintStream out) throws IOException {
+    OutputStream outputStream = output == null ? out : new FileOutputStream(output);
+    try (ColumnFileReader reader = new ColumnFileReader(new FileInputStream(input))) {
+      ColumnFile.Type columnType = reader.getType();
+      OutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+      ByteBuffer buffer = ByteBuffer.allocate(columnType.getByteSize())
+          .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+      Object block;
+      while ((block = readBlock(reader, columnType)) != null) {
+        int length = lengthOf(block);
+        for (int i = 0; i < length; i++) {
+          buffer.clear();
+          String text;
+          switch (columnType) {
+            case FLOAT:
+              buffer.putFloat(((float[]) block)[i]);
+              text = Float.toString(((float[]) block)[i]);
+              break;
+            case DOUBLE:
+              buffer.putDouble(((double[]) block)[i]);
+              text = Double.toString(((double[]) block)[i]);
+              break;
+            case INT:
+              buffer.putInt(((int[]) block)[i]);
+              text = Integer.toString(((int[]) block)[i]);
+              break;
+            default:
+              buffer.putLong(((long[]) block)[i]);
+              text = Long.toString(((long[]) block)[i]);
+          }
+          if (format == Format.BINARY)
+            bufferedOutputStream.write(buffer.array());
+          else
+            bufferedOutputStream.write((text + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+      }
+      bufferedOutputStream.flush();
+    } finally {
+      if (output != null)
+        outputStream.close();
+    }
+  }
+
+  private static Object readBlock(ColumnFileReader reader, ColumnFile.Type columnType) throws IOException {
+    switch (columnType) {
+      case FLOAT:
+        return reader.readFloatBlock();
+      case DOUBLE:
+        return reader.readDoubleBlock();
+      case INT:
+        return reader.readIntBlock();
+      default:
+        return reader.readLongBlock();
+    }
+  }
+
+  private static int lengthOf(Object block) {
+    if (block instanceof float[])
+      return ((float[]) block).length;
+    if (block instanceof double[])
+      return ((double[]) block).length;
+    if (block instanceof int[])
+      return ((int[]) block).length;
+    return ((long[]) block).length;
+  }
+
+  private void bakeoff(PrintStream out) throws Exception {
+    // The whole column is needed to time the codecs: keep it in primitive arrays
+    double[][] doubles = {new double[1024]};
+    long[][] longs = {type.isIntegral() ? new long[1024] : null};
+    int[] numberOfValues = {0};
+
+    readInput(new ValueVisitor() {
+      @Override
+      public void visitDouble(double value) {
+        if (numberOfValues[0] == doubles[0].length)
+          doubles[0] = Arrays.copyOf(doubles[0], 2 * doubles[0].length);
+        doubles[0][numberOfValues[0]++] = type == ColumnFile.Type.FLOAT ? (float) value : value;
+      }
+
+      @Override
+      public void visitLong(long value) {
+        if (numberOfValues[0] == longs[0].length) {
+          doubles[0] = Arrays.copyOf(doubles[0], 2 * doubles[0].length);
+          longs[0] = Arrays.copyOf(longs[0], 2 * longs[0].length);
+        }
+        doubles[0][numberOfValues[0]] = value;
+        longs[0][numberOfValues[0]++] = value;
+      }
+    });
+
+    if (numberOfValues[0] == 0)
+      throw new IOException("No values in " + input);
+
+    double[] values = Arrays.copyOf(doubles[0], numberOfValues[0]);
+    long[] integralValues = longs[0] == null ? null : Arrays.copyOf(longs[0], numberOfValues[0]);
+    out.println(numberOfValues[0] + " " + type + " values from " + input);
+
+    List<RegressionSuite.Result> results = new ArrayList<>();
+    for (RegressionSuite.Codec codec : codecsFor(type)) {
+      RegressionSuite.Result result = RegressionSuite.measure(input.getName(), codec, values, integralValues, iterations);
+      results.add(result);
+      out.println(result);
+      if (!codec.isIntegral() && codec != RegressionSuite.Codec.FPC_64) // FPC has no streams
+        printStreams(out, codec, values);
+    }
+
+    if (report != null)
+      try (OutputStream outputStream = new FileOutputStream(report)) {
+        RegressionSuite.writeReport(results, outputStream);
+      }
+  }
+
+  /**
+   * @return the codecs that can store the type without loss
+   */
+  static List<RegressionSuite.Codec> codecsFor(ColumnFile.Type type) {
+    List<RegressionSuite.Codec> codecs = new ArrayList<>();
+    for (RegressionSuite.Codec codec : RegressionSuite.Codec.values()) {
+      if (codec == RegressionSuite.Codec.DELTA_XOR_32 && type != ColumnFile.Type.FLOAT)
+        continue;
+      if (codec.isIntegral() && !type.isIntegral())
+        continue;
+      codecs.add(codec);
+    }
+    return codecs;
+  }
+
+  /**
+   * Encode once more with the metrics enabled to report the size of every stream and the chosen algorithms.
+   */
+  private static void printStreams(PrintStream out, RegressionSuite.Codec codec, double[] values) throws Exception {
+    InMemoryCompressionMetrics metrics = new InMemoryCompressionMetrics();
+    CompressionMetrics previousMetrics = Compression.getMetrics();
+    Compression.setMetrics(metrics);
+    try {
+      RegressionSuite.measure("streams", codec, values, null, 1);
+    } finally {
+      Compression.setMetrics(previousMetrics);
+    }
+
+    for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values()) {
+      long uncompressedBytes = metrics.getEncodedUncompressedBytes(stream);
+      long compressedBytes = metrics.getEncodedCompressedBytes(stream);
+      StringBuilder algorithms = new StringBuilder();
+      for (CompressionAlgorithms algorithm : CompressionAlgorithms.values())
+        if (metrics.getChosenAlgorithmCount(stream, algorithm) > 0)
+          algorithms.append(' ').append(algorithm);
+      out.println(String.format("    %-13s %12d bytes -> %12d bytes ratio: %.4f%s", stream, uncompressedBytes, compressedBytes,
+          uncompressedBytes == 0 ? 0.0d : (double) compressedBytes / uncompressedBytes, algorithms));
+    }
+  }
+
+  private void readInput(ValueVisitor visitor) throws IOException {
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(input))) {
+      if (format == Format.BINARY)
+        readBinary(inputStream, visitor);
+      else
+        readCsv(inputStream, visitor);
+    }
+  }
+
+  private void readBinary(InputStream inputStream, ValueVisitor visitor) throws IOException {
+    int byteSize = type.getByteSize();
+    byte[] bytes = new byte[byteSize * 8192];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+    int numberOfBytes = 0;
+    int read;
+    while ((read = inputStream.read(bytes, numberOfBytes, bytes.length - numberOfBytes)) >= 0) {
+      numberOfBytes += read;
+      int numberOfWholeValues = numberOfBytes / byteSize;
+      for (int i = 0; i < numberOfWholeValues; i++) {
+        int offset = i * byteSize;
+        switch (type) {
+          case FLOAT:
+            visitor.visitDouble(buffer.getFloat(offset));
+            break;
+          case DOUBLE:
+            visitor.visitDouble(buffer.getDouble(offset));
+            break;
+          case INT:
+            visitor.visitLong(buffer.getInt(offset));
+            break;
+          default:
+            visitor.visitLong(buffer.getLong(offset));
+        }
+      }
+      // Keep the bytes of the last partial value for the next read
+      int consumed = numberOfWholeValues * byteSize;
+      System.arraycopy(bytes, consumed, bytes, 0, numberOfBytes - consumed);
+      numberOfBytes -= consumed;
+    }
+
+    if (numberOfBytes != 0)
+      throw new IOException("The input is truncated: " + numberOfBytes + " trailing bytes for a " + type + " column.");
+  }
+
+  private void readCsv(InputStream inputStream, ValueVisitor visitor) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    Pattern separator = Pattern.compile(Pattern.quote(delimiter));
+
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if ((header && lineNumber == 1) || line.isEmpty())
+        continue;
+
+      String[] fields = separator.split(line, -1);
+      if (column >= fields.length)
+        throw new IOException("Line " + lineNumber + " has no field " + column + ".");
+      String field = fields[column].trim();
+
+      try {
+        if (type.isIntegral())
+          visitor.visitLong(Long.parseLong(field));
+        else if (field.isEmpty() || field.equalsIgnoreCase("null") || field.equalsIgnoreCase("NaN"))
+          visitor.visitDouble(Double.NaN);
+        else
+          visitor.visitDouble(Double.parseDouble(field));
+      } catch (NumberFormatException e) {
+        throw new IOException("Line " + lineNumber + ": not a " + type + " value: '" + field + "'");
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package net.pborne.data;
+
+/**
+ * Instrumentation hooks of the encoders and decoders of {@link Compression}.
+ * <p>
+ * Install an implementation with {@link Compression#setMetrics(CompressionMetrics)}. The default is
+ * {@link NoOpCompressionMetrics}: when {@link #isEnabled()} returns false, the encoders do not even read the clock.
+ * Implementations are called concurrently by every thread that encodes or decodes and must be thread safe.
+ */
+public interface CompressionMetrics {
+
+  enum Stage {
+    CONVERSION,   // floats/doubles to and from ints/longs
+    SPLIT_XOR,    // XOR of the exponents and significands with the previous value, and its reverse
+    BIT_PACKING,  // Packing of the signs, exponents and significands into their own streams of bytes
+    STREAM_CODEC, // Compression (GZIP, ZIP, ...) and decompression of each stream
+    REASSEMBLY    // Unpacking of the three streams of bytes and reassembly of the values
+  }
+
+  enum Stream {
+    SIGNS,
+    EXPONENTS,
+    SIGNIFICANDS
+  }
+
+  /**
+   * @return false when nothing is recorded, so the callers can skip the measurements
+   */
+  boolean isEnabled();
+
+  /**
+   * @param algorithm         the codec chosen for the stream
+   * @param uncompressedBytes the size of the stream before compression
+   * @param compressedBytes   the size of the stream after compression
+   */
+  void recordEncodedStream(Stream stream, CompressionAlgorithms algorithm, long uncompressedBytes, long compressedBytes);
+
+  void recordDecodedStream(Stream stream, CompressionAlgorithms algorithm, long compressedBytes, long uncompressedBytes);
+
+  void recordEncodeNanos(Stage stage, long nanos);
+
+  void recordDecodeNanos(Stage stage, long nanos);
+
+  /**
+   * @param bytes the size of an array allocated by an encoder or a decoder
+   */
+  void recordAllocation(long bytes);
+}
@@ -0,0 +1,81 @@
+package net.pborne.data;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event emitted around every stage of the IEEE 754 XOR encoders and decoders of {@link Compression}.
+ * <p>
+ * Disabled by default because a block encoder emits about a dozen events per block. Enable it in a custom .jfc file
+ * ({@code <event name="net.pborne.data.CompressionStage"><setting name="enabled">true</setting></event>})
+ * or programmatically with {@code recording.enable("net.pborne.data.CompressionStage")}.
+ * When the event is disabled, the cost is a few instructions per stage.
+ */
+@Name("net.pborne.data.CompressionStage")
+@Label("Compression Stage")
+@Category({"Columnar Compression"})
+@Description("One stage of the encoding or the decoding of a compressed double array")
+@StackTrace(false)
+@Enabled(false)
+class CompressionStageEvent extends Event {
+
+  @Label("Operation")
+  @Description("encode or decode")
+  String operation;
+
+  @Label("Stage")
+  String stage;
+
+  @Label("Width")
+  String width;
+
+  @Label("Stream")
+  @Description("The stream (signs, exponents or significands) of the codec stages")
+  String stream;
+
+  @Label("Codec")
+  @Description("The compression algorithm of the codec stages")
+  String codec;
+
+  @Label("Element Count")
+  int elementCount;
+
+  @Label("Input Bytes")
+  @DataAmount
+  long inputBytes;
+
+  @Label("Output Bytes")
+  @DataAmount
+  long outputBytes;
+
+  static CompressionStageEvent start() {
+    CompressionStageEvent event = new CompressionStageEvent();
+    event.begin();
+    return event;
+  }
+
+  void end(boolean encode, CompressionMetrics.Stage stage, CompressedDoubleArray.WIDTH width, int elementCount, long inputBytes, long outputBytes) {
+    end(encode, stage, width, elementCount, inputBytes, outputBytes, null, null);
+  }
+
+  void end(boolean encode, CompressionMetrics.Stage stage, CompressedDoubleArray.WIDTH width, int elementCount, long inputBytes, long outputBytes,
+           CompressionMetrics.Stream stream, CompressionAlgorithms codec) {
+    if (!shouldCommit())
+      return;
+    this.operation = encode ? "encode" : "decode";
+    this.stage = stage.name();
+    this.width = width.name();
+    this.elementCount = elementCount;
+    this.inputBytes = inputBytes;
+    this.outputBytes = outputBytes;
+    this.stream = stream == null ? null : stream.name();
+    this.codec = codec == null ? null : codec.name();
+    commit();
+  }
+}
@@ -0,0 +1,159 @@
+package net.pborne.data;
+
+import java.util.Random;
+
+/**
+ * Reproducible synthetic series that look like production data, to evaluate the codecs on something
+ * else than uniform noise. Every generator is seeded: the same arguments always give the same values.
+ */
+public final class DatasetGenerators {
+
+  public enum Dataset {
+    UNIFORM_NOISE,   // 1.1 + uniform noise: the worst case for the XOR codecs
+    RANDOM_WALK,     // Gaussian steps around a slowly moving level
+    SINE_SENSOR,     // Daily cycle sampled every minute, with sensor noise
+    TICK_PRICES,     // Prices moving by whole ticks of 0.01
+    MONOTONIC_COUNTER,
+    SPARSE,          // Mostly missing values (NaN)
+    MOSTLY_CONSTANT, // Long stretches of the same value with rare level changes
+    TIMESTAMPS;      // Epoch milliseconds every second, with a little jitter
+
+    /**
+     * @return true when the dataset is made of whole numbers that are better stored as longs
+     */
+    public boolean isIntegral() {
+      return this == MONOTONIC_COUNTER || this == TIMESTAMPS;
+    }
+
+    public double[] generateDoubles(int size, long seed) {
+      switch (this) {
+        case UNIFORM_NOISE:
+          return uniformNoise(size, seed);
+        case RANDOM_WALK:
+          return randomWalk(size, seed, 100.0d, 0.1d);
+        case SINE_SENSOR:
+          return sineWithNoise(size, seed, 20.0d, 5.0d, 1440, 0.01d);
+        case TICK_PRICES:
+          return tickPrices(size, seed, 150.0d, 2);
+        case SPARSE:
+          return sparse(size, seed, 0.02d);
+        case MOSTLY_CONSTANT:
+          return mostlyConstant(size, seed, 0.001d);
+        default:
+          long[] longs = generateLongs(size, seed);
+          double[] doubles = new double[size];
+          for (int i = 0; i < size; i++)
+            doubles[i] = longs[i];
+          return doubles;
+      }
+    }
+
+    public long[] generateLongs(int size, long seed) {
+      switch (this) {
+        case MONOTONIC_COUNTER:
+          return monotonicCounter(size, seed, 1000L);
+        case TIMESTAMPS:
+          return timestamps(size, seed, 1700000000000L, 1000L, 3L);
+        default:
+          double[] doubles = generateDoubles(size, seed);
+          long[] longs = new long[size];
+          for (int i = 0; i < size; i++)
+            longs[i] = Math.round(doubles[i] * 1000.0d);
+          return longs;
+      }
+    }
+  }
+
+  private DatasetGenerators() {
+  }
+
+  public static double[] uniformNoise(int size, long seed) {
+    Random random = new Random(seed);
+    double[] values = new double[size];
+    for (int i = 0; i < size; i++)
+      values[i] = 1.1d + random.nextDouble();
+    return values;
+  }
+
+  public static double[] randomWalk(int size, long seed, double start, double stepStandardDeviation) {
+    Random random = new Random(seed);
+    double[] values = new double[size];
+    double level = start;
+    for (int i = 0; i < size; i++) {
+      level += random.nextGaussian() * stepStandardDeviation;
+      values[i] = level;
+    }
+    return values;
+  }
+
+  public static double[] sineWithNoise(int size, long seed, double offset, double amplitude, int period, double noiseStandardDeviation) {
+    Random random = new Random(seed);
+    double[] values = new double[size];
+    for (int i = 0; i < size; i++)
+      values[i] = offset + amplitude * Math.sin(i * 2.0d * Math.PI / period) + random.nextGaussian() * noiseStandardDeviation;
+    return values;
+  }
+
+  /**
+   * Prices with a fixed number of decimals, moving by at most a few ticks at a time.
+   */
+  public static double[] tickPrices(int size, long seed, double start, int decimals) {
+    Random random = new Random(seed);
+    double scale = Math.pow(10.0d, decimals);
+    long ticks = Math.round(start * scale);
+    double[] values = new double[size];
+    for (int i = 0; i < size; i++) {
+      ticks = Math.max(1L, ticks + random.nextInt(5) - 2);
+      values[i] = ticks / scale; // Closest double to the decimal price, like a parsed quote
+    }
+    return values;
+  }
+
+  public static long[] monotonicCounter(int size, long seed, long maxIncrement) {
+    Random random = new Random(seed);
+    long[] values = new long[size];
+    long counter = 0;
+    for (int i = 0; i < size; i++) {
+      counter += (long) (random.nextDouble() * (maxIncrement + 1));
+      values[i] = counter;
+    }
+    return values;
+  }
+
+  public static long[] timestamps(int size, long seed, long start, long interval, long jitter) {
+    Random random = new Random(seed);
+    long[] values = new long[size];
+    for (int i = 0; i < size; i++)
+      values[i] = start + i * interval + (jitter > 0 ? (long) (random.nextDouble() * (2 * jitter + 1)) - jitter : 0L);
+    return values;
+  }
+
+  /**
+   * @param density the probability for a value to be present, the missing values are NaN
+   */
+  public static double[] sparse(int size, long seed, double density) {
+    Random random = new Random(seed);
+    double[] values = new double[size];
+    double level = 50.0d;
+    for (int i = 0; i < size; i++) {
+      level += random.nextGaussian() * 0.1d;
+      values[i] = random.nextDouble() < density ? level : Double.NaN;
+    }
+    return values;
+  }
+
+  /**
+   * @param changeProbability the probability for the level to change at each position
+   */
+  public static double[] mostlyConstant(int size, long seed, double changeProbability) {
+    Random random = new Random(seed);
+    double[] values = new double[size];
+    double level = 1.0d;
+    for (int i = 0; i < size; i++) {
+      if (random.nextDouble() < changeProbability)
+        level = Math.round(random.nextDouble() * 100.0d) / 4.0d;
+      values[i] = level;
+    }
+    return values;
+  }
+}
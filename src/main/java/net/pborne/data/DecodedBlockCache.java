@@ -0,0 +1,321 @@
+package net.pborne.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of decoded blocks, keyed by (array id, block) and bounded by bytes, so repeated reads of the same
+ * blocks skip the decoders. Install it with {@link BlockCompressedDoubleArray#setCache(DecodedBlockCache)}.
+ * <p>
+ * The keys are spread over stripes, each with its own lock and its own share of the bytes. A stripe is a
+ * segmented LRU: a new block enters the probation segment and is promoted to the protected segment (at most
+ * 80% of the stripe) when it is read again, so a single scan of cold blocks only evicts other blocks read once.
+ * The least recently used blocks of the protected segment go back to the probation segment, the least recently
+ * used blocks of the probation segment are evicted.
+ * <p>
+ * Off heap, the blocks are kept in direct buffers and copied to a new array on each hit: the decoders are not run
+ * but the heap holds only the keys. On heap, the cached arrays are returned as is and must not be modified.
+ * <p>
+ * The blocks are decoded outside of the locks: two threads missing the same block both decode it.
+ */
+public final class DecodedBlockCache {
+
+  public static final int DEFAULT_NUMBER_OF_STRIPES = 16;
+
+  private static final int entryOverheadBytes = 96; // Key, map entry and array header, roughly
+  private static final int protectedPercentage = 80;
+
+  private static final AtomicLong nextArrayId = new AtomicLong();
+
+  private final Stripe[] stripes;
+  private final boolean offHeap;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public DecodedBlockCache(long maxBytes) {
+    this(maxBytes, DEFAULT_NUMBER_OF_STRIPES, false);
+  }
+
+  /**
+   * @param maxBytes        the size of the decoded blocks the cache can hold, shared equally by the stripes
+   * @param numberOfStripes the number of independent locks
+   * @param offHeap         when true the blocks are kept in direct buffers
+   */
+  public DecodedBlockCache(long maxBytes, int numberOfStripes, boolean offHeap) {
+    if (maxBytes < 0)
+      throw new IllegalArgumentException("The size of the cache must be positive: " + maxBytes);
+    if (numberOfStripes <= 0)
+      throw new IllegalArgumentException("The number of stripes must be greater than 0: " + numberOfStripes);
+    this.stripes = new Stripe[numberOfStripes];
+    for (int i = 0; i < numberOfStripes; i++)
+      stripes[i] = new Stripe(maxBytes / numberOfStripes);
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * @return a new identifier for the blocks of an array
+   */
+  static long newArrayId() {
+    return nextArrayId.incrementAndGet();
+  }
+
+  /**
+   * @param decoder decodes the block on a miss, its result is not cached when null
+   * @return the decoded block, cached or not
+   */
+  public double[] get(long arrayId, int block, Callable<double[]> decoder) throws Exception {
+    Key key = new Key(arrayId, block);
+    Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+
+    Object cached = stripe.get(key);
+    if (cached != null) {
+      hits.increment();
+      return cached instanceof double[] ? (double[]) cached : toArray((DoubleBuffer) cached);
+    }
+
+    return load(key, stripe, decoder);
+  }
+
+  /**
+   * Random access: an off-heap block is read in place instead of being copied to the heap.
+   *
+   * @param index   the index of the value in the block
+   * @param decoder decodes the block on a miss
+   * @throws IllegalStateException when the decoder returns null
+   */
+  public double getValue(long arrayId, int block, int index, Callable<double[]> decoder) throws Exception {
+    Key key = new Key(arrayId, block);
+    Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+
+    Object cached = stripe.get(key);
+    if (cached != null) {
+      hits.increment();
+      return cached instanceof double[] ? ((double[]) cached)[index] : ((DoubleBuffer) cached).get(index);
+    }
+
+    double[] decoded = load(key, stripe, decoder);
+    if (decoded == null)
+      throw new IllegalStateException("Block " + block + " of the array " + arrayId + " cannot be decoded");
+    return decoded[index];
+  }
+
+  private double[] load(Key key, Stripe stripe, Callable<double[]> decoder) throws Exception {
+    misses.increment();
+    double[] decoded = decoder.call();
+    if (decoded != null)
+      evictions.add(stripe.put(key, offHeap ? toBuffer(decoded) : decoded, sizeInBytes(decoded.length)));
+    return decoded;
+  }
+
+  /**
+   * Remove every block of the array.
+   */
+  public void invalidate(long arrayId) {
+    for (Stripe stripe : stripes)
+      stripe.invalidate(arrayId);
+  }
+
+  public void clear() {
+    for (Stripe stripe : stripes)
+      stripe.clear();
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the hits over the lookups, 0 before the first lookup
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0.0d : (double) hits / lookups;
+  }
+
+  /**
+   * @return the estimated size of the cached blocks, including the per-entry overhead
+   */
+  public long getSizeInBytes() {
+    long size = 0;
+    for (Stripe stripe : stripes)
+      size += stripe.sizeInBytes();
+    return size;
+  }
+
+  public long getNumberOfBlocks() {
+    long count = 0;
+    for (Stripe stripe : stripes)
+      count += stripe.numberOfBlocks();
+    return count;
+  }
+
+  private static long sizeInBytes(int numberOfValues) {
+    return (long) numberOfValues * TypeSize.DOUBLE_BYTESIZE + entryOverheadBytes;
+  }
+
+  private static DoubleBuffer toBuffer(double[] values) {
+    DoubleBuffer buffer = ByteBuffer.allocateDirect(values.length * TypeSize.DOUBLE_BYTESIZE).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    buffer.put(values);
+    return buffer;
+  }
+
+  private static double[] toArray(DoubleBuffer buffer) {
+    double[] values = new double[buffer.capacity()];
+    DoubleBuffer view = buffer.duplicate(); // The position of the shared buffer is not touched
+    view.clear();
+    view.get(values);
+    return values;
+  }
+
+  private static final class Key {
+    final long arrayId;
+    final int block;
+
+    Key(long arrayId, int block) {
+      this.arrayId = arrayId;
+      this.block = block;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key))
+        return false;
+      Key key = (Key) other;
+      return arrayId == key.arrayId && block == key.block;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 31 * Long.hashCode(arrayId) + block;
+      return hash ^ (hash >>> 16);
+    }
+  }
+
+  private static final class Entry {
+    final Object values; // double[] or DoubleBuffer
+    final long sizeInBytes;
+
+    Entry(Object values, long sizeInBytes) {
+      this.values = values;
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+
+  /**
+   * A segmented LRU, every method holds its lock. The maps are in access order: the eldest entry is the least
+   * recently used one.
+   */
+  private static final class Stripe {
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.maxProtectedBytes = maxBytes * protectedPercentage / 100;
+    }
+
+    synchronized Object get(Key key) {
+      Entry entry = protectedSegment.get(key);
+      if (entry != null)
+        return entry.values;
+
+      entry = probation.remove(key);
+      if (entry == null)
+        return null;
+      // Read twice: promoted, the least recently used protected blocks make room
+      probationBytes -= entry.sizeInBytes;
+      protectedSegment.put(key, entry);
+      protectedBytes += entry.sizeInBytes;
+      Iterator<Map.Entry<Key, Entry>> eldest = protectedSegment.entrySet().iterator();
+      while (protectedBytes > maxProtectedBytes && eldest.hasNext()) {
+        Map.Entry<Key, Entry> demoted = eldest.next();
+        if (demoted.getKey().equals(key))
+          break;
+        eldest.remove();
+        protectedBytes -= demoted.getValue().sizeInBytes;
+        probation.put(demoted.getKey(), demoted.getValue());
+        probationBytes += demoted.getValue().sizeInBytes;
+      }
+      return entry.values;
+    }
+
+    /**
+     * @return the number of evicted blocks
+     */
+    synchronized int put(Key key, Object values, long sizeInBytes) {
+      if (sizeInBytes > maxBytes || protectedSegment.containsKey(key) || probation.containsKey(key))
+        return 0; // Too large, or decoded concurrently by another thread
+      probation.put(key, new Entry(values, sizeInBytes));
+      probationBytes += sizeInBytes;
+
+      int evicted = 0;
+      Iterator<Map.Entry<Key, Entry>> eldest = probation.entrySet().iterator();
+      while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+        // The new block itself when the protected segment leaves no room for it
+        Map.Entry<Key, Entry> victim = eldest.next();
+        eldest.remove();
+        probationBytes -= victim.getValue().sizeInBytes;
+        evicted++;
+      }
+      return evicted;
+    }
+
+    synchronized void invalidate(long arrayId) {
+      for (LinkedHashMap<Key, Entry> segment : Arrays.asList(probation, protectedSegment)) {
+        Iterator<Map.Entry<Key, Entry>> entries = segment.entrySet().iterator();
+        while (entries.hasNext()) {
+          Map.Entry<Key, Entry> entry = entries.next();
+          if (entry.getKey().arrayId == arrayId) {
+            entries.remove();
+            if (segment == probation)
+              probationBytes -= entry.getValue().sizeInBytes;
+            else
+              protectedBytes -= entry.getValue().sizeInBytes;
+          }
+        }
+      }
+    }
+
+    synchronized void clear() {
+      probation.clear();
+      protectedSegment.clear();
+      probationBytes = 0;
+      protectedBytes = 0;
+    }
+
+    synchronized long sizeInBytes() {
+      return probationBytes + protectedBytes;
+    }
+
+    synchronized int numberOfBlocks() {
+      return probation.size() + protectedSegment.size();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package net.pborne.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Adler32;
+
+/**
+ * Preset dictionaries for the ZIP (zlib) streams: a Deflater primed with the byte patterns that a family of
+ * arrays has in common finds matches from the first byte, which matters for short streams.
+ * <p>
+ * A dictionary is identified by its Adler-32, which zlib writes in the header of every stream compressed with
+ * it (FDICT): the decoder reads the id back from the stream and looks the dictionary up in the registry, so the
+ * dictionaries must be registered before decoding too. The arrays of at most
+ * {@link Compression#SMALL_ARRAY_THRESHOLD} values have no ZIP stream and do not use the dictionaries.
+ */
+public final class DeflateDictionaries {
+
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024; // The Deflate window
+  public static final int DEFAULT_SEGMENT_LENGTH = 8;
+
+  private static final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+  private static final AtomicReferenceArray<byte[]> streamDictionaries = new AtomicReferenceArray<>(CompressionMetrics.Stream.values().length);
+
+  private DeflateDictionaries() {
+  }
+
+  /**
+   * @return the id of the dictionary, its Adler-32
+   */
+  public static int register(byte[] dictionary) {
+    if (dictionary == null || dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE)
+      throw new IllegalArgumentException("A dictionary has 1 to " + MAX_DICTIONARY_SIZE + " bytes");
+    int id = id(dictionary);
+    byte[] registered = dictionaries.putIfAbsent(id, dictionary.clone());
+    if (registered != null && !Arrays.equals(registered, dictionary))
+      throw new IllegalArgumentException("Another dictionary is registered with the id " + id);
+    return id;
+  }
+
+  public static void unregister(int id) {
+    dictionaries.remove(id);
+    for (int i = 0; i < streamDictionaries.length(); i++)
+      if (streamDictionaries.get(i) != null && id(streamDictionaries.get(i)) == id)
+        streamDictionaries.set(i, null);
+  }
+
+  /**
+   * @return the dictionary, null when no dictionary is registered with the id
+   */
+  public static byte[] get(int id) {
+    return dictionaries.get(id);
+  }
+
+  /**
+   * Compress the ZIP streams of that type with a registered dictionary.
+   */
+  public static void useForStream(CompressionMetrics.Stream stream, int id) {
+    byte[] dictionary = dictionaries.get(id);
+    if (dictionary == null)
+      throw new IllegalArgumentException("No dictionary registered with the id " + id);
+    streamDictionaries.set(stream.ordinal(), dictionary);
+  }
+
+  public static void stopUsingForStream(CompressionMetrics.Stream stream) {
+    streamDictionaries.set(stream.ordinal(), null);
+  }
+
+  /**
+   * @return the dictionary of the stream type, null when there is none
+   */
+  static byte[] forStream(CompressionMetrics.Stream stream) {
+    return streamDictionaries.get(stream.ordinal());
+  }
+
+  /**
+   * Train a dictionary for a stream type from sample arrays, encoded with {@link Compression#deltaXorEncode64(double[], boolean)}.
+   */
+  public static byte[] train(CompressionMetrics.Stream stream, List<double[]> samples, int maxSize) throws Exception {
+    List<byte[]> streams = new ArrayList<>();
+    for (double[] sample : samples) {
+      byte[] bytes = Compression.uncompressedStream(Compression.deltaXorEncode64(sample, false), stream);
+      if (bytes != null)
+        streams.add(bytes);
+    }
+    return train(streams, maxSize);
+  }
+
+  public static byte[] train(List<byte[]> samples, int maxSize) {
+    return train(samples, maxSize, DEFAULT_SEGMENT_LENGTH);
+  }
+
+  /**
+   * Keep the segments found in the most samples, the most frequent at the end of the dictionary where the
+   * matches are the closest and the cheapest.
+   *
+   * @return the dictionary, empty when no segment is found in two samples
+   */
+  public static byte[] train(List<byte[]> samples, int maxSize, int segmentLength) {
+    if (maxSize <= 0 || maxSize > MAX_DICTIONARY_SIZE)
+      throw new IllegalArgumentException("The size of a dictionary is 1 to " + MAX_DICTIONARY_SIZE + " bytes: " + maxSize);
+    if (segmentLength < 3) // The shortest Deflate match
+      throw new IllegalArgumentException("The segments have at least 3 bytes: " + segmentLength);
+
+    // In how many samples each segment is found
+    Map<ByteBuffer, Integer> counts = new HashMap<>();
+    for (byte[] sample : samples) {
+      Set<ByteBuffer> segments = new HashSet<>();
+      for (int offset = 0; offset + segmentLength <= sample.length; offset++)
+        segments.add(ByteBuffer.wrap(sample, offset, segmentLength).slice());
+      for (ByteBuffer segment : segments)
+        counts.merge(segment, 1, Integer::sum);
+    }
+
+    List<Map.Entry<ByteBuffer, Integer>> frequent = new ArrayList<>();
+    for (Map.Entry<ByteBuffer, Integer> entry : counts.entrySet())
+      if (entry.getValue() > 1)
+        frequent.add(entry);
+    frequent.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+    // Most frequent first, the segments already in the dictionary are skipped
+    byte[] selected = new byte[maxSize];
+    int size = 0;
+    byte[] segment = new byte[segmentLength];
+    for (Map.Entry<ByteBuffer, Integer> entry : frequent) {
+      if (size + segmentLength > maxSize)
+        break;
+      entry.getKey().duplicate().get(segment);
+      if (indexOf(selected, size, segment) >= 0)
+        continue;
+      System.arraycopy(segment, 0, selected, size, segmentLength);
+      size += segmentLength;
+    }
+
+    byte[] dictionary = new byte[size];
+    for (int i = 0; i < size; i += segmentLength)
+      System.arraycopy(selected, i, dictionary, size - i - segmentLength, segmentLength);
+    return dictionary;
+  }
+
+  private static int indexOf(byte[] bytes, int length, byte[] pattern) {
+    for (int i = 0; i + pattern.length <= length; i++) {
+      int j = 0;
+      while (j < pattern.length && bytes[i + j] == pattern[j])
+        j++;
+      if (j == pattern.length)
+        return i;
+    }
+    return -1;
+  }
+
+  private static int id(byte[] dictionary) {
+    Adler32 adler = new Adler32();
+    adler.update(dictionary, 0, dictionary.length);
+    return (int) adler.getValue();
+  }
+}
@@ -0,0 +1,338 @@
+package net.pborne.data;
+
+/**
+ * Aggregations evaluated directly on the output of {@link Compression#deltaValEncode(int[])} and
+ * {@link Compression#deltaValEncode(long[])}, without materializing the decoded array.
+ * <p>
+ * Every value is stored as (value - min) on a fixed number of bits, so for instance
+ * sum = count * min + sum of the packed fields, and the packed fields are summed with kernels
+ * specialized for the most common widths.
+ * <p>
+ * Layout of the int[] version:   [0] min, [1] number of bits, [2] count, packed values from int 3.
+ * Layout of the long[] version:  [0] min, [1] number of bits (high 32 bits) | count (low 32 bits),
+ * packed values from long 2.
+ * In both cases the values are packed from the least significant bit of each word.
+ */
+public final class DeltaValAggregations {
+
+  static final int INT_HEADER_LENGTH = 3;
+  static final int LONG_HEADER_LENGTH = 2;
+
+  private DeltaValAggregations() {
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Header ----------------------------
+  // ----------------------------------------------------------
+
+  public static int count(int[] compressed) {
+    return compressed[2];
+  }
+
+  public static int count(long[] compressed) {
+    return (int) (compressed[1] & 0xFFFFFFFFL);
+  }
+
+  static int numberOfBits(int[] compressed) {
+    return compressed[1];
+  }
+
+  static int numberOfBits(long[] compressed) {
+    return (int) (compressed[1] >>> 32);
+  }
+
+  /**
+   * The minimum is stored as is in the header: nothing to decode.
+   */
+  public static int min(int[] compressed) {
+    return compressed[0];
+  }
+
+  public static long min(long[] compressed) {
+    return compressed[0];
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Max -------------------------------
+  // ----------------------------------------------------------
+
+  public static int max(int[] compressed) {
+    int bits = numberOfBits(compressed);
+    int count = count(compressed);
+    if (bits == 0 || count == 0)
+      return min(compressed);
+
+    // The padding bits after the last value are 0 and cannot change the maximum
+    long maxPacked = 0;
+    if (bits == TypeSize.INT32_BITSIZE) {
+      for (int idx = INT_HEADER_LENGTH; idx < INT_HEADER_LENGTH + count; idx++)
+        maxPacked = Math.max(maxPacked, compressed[idx] & 0xFFFFFFFFL);
+    } else {
+      final long mask = 0xFFFFFFFFL >>> (32 - bits);
+      long buffer = 0;
+      int available = 0;
+      int word = INT_HEADER_LENGTH;
+      for (int i = 0; i < count; i++) {
+        if (available < bits) {
+          buffer |= (compressed[word++] & 0xFFFFFFFFL) << available;
+          available += 32;
+        }
+        maxPacked = Math.max(maxPacked, buffer & mask);
+        buffer >>>= bits;
+        available -= bits;
+      }
+    }
+
+    return min(compressed) + (int) maxPacked;
+  }
+
+  public static long max(long[] compressed) {
+    int bits = numberOfBits(compressed);
+    int count = count(compressed);
+    if (bits == 0 || count == 0)
+      return min(compressed);
+
+    final long mask = 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+    long maxPacked = 0;
+    int word = LONG_HEADER_LENGTH;
+    int skip = 0;
+    for (int i = 0; i < count; i++) {
+      long packed = compressed[word] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[word + 1] << (64 - skip);
+      packed &= mask;
+      // The packed values are unsigned: with 64 bits, the range may not fit in a signed long
+      if (Long.compareUnsigned(packed, maxPacked) > 0)
+        maxPacked = packed;
+      skip += bits;
+      if (skip >= 64) {
+        skip -= 64;
+        word++;
+      }
+    }
+
+    return min(compressed) + maxPacked;
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Sum -------------------------------
+  // ----------------------------------------------------------
+
+  /**
+   * @return the sum of the values, computed on 64 bits so it does not overflow
+   */
+  public static long sum(int[] compressed) {
+    int count = count(compressed);
+    return (long) count * min(compressed) + sumPacked(compressed, numberOfBits(compressed), count);
+  }
+
+  /**
+   * @return the sum of the values, wrapping around on overflow like the Java long arithmetic
+   */
+  public static long sum(long[] compressed) {
+    int count = count(compressed);
+    return count * min(compressed) + sumPacked(compressed, numberOfBits(compressed), count);
+  }
+
+  private static long sumPacked(int[] compressed, int bits, int count) {
+    if (bits == 0 || count == 0)
+      return 0;
+
+    // The padding bits after the last value are 0: summing whole words is safe
+    int numberOfWords = (int) (((long) count * bits + 31) / 32);
+    int endAt = INT_HEADER_LENGTH + numberOfWords;
+    long sum = 0;
+
+    switch (bits) {
+      case 1:
+      case 2:
+      case 4: {
+        // Narrow fields: count the bits set at each position of a field across the whole stream
+        for (int position = 0; position < bits; position++) {
+          int laneMask = laneMask32(bits, position);
+          long bitsSet = 0;
+          for (int idx = INT_HEADER_LENGTH; idx < endAt; idx++)
+            bitsSet += Integer.bitCount(compressed[idx] & laneMask);
+          sum += bitsSet << position;
+        }
+        return sum;
+      }
+      case 8:
+        for (int idx = INT_HEADER_LENGTH; idx < endAt; idx++) {
+          int word = compressed[idx];
+          // Add the bytes pairwise in 16-bit lanes, then fold the two lanes
+          int pairs = (word & 0x00FF00FF) + ((word >>> 8) & 0x00FF00FF);
+          sum += (pairs & 0xFFFF) + (pairs >>> 16);
+        }
+        return sum;
+      case 16:
+        for (int idx = INT_HEADER_LENGTH; idx < endAt; idx++) {
+          int word = compressed[idx];
+          sum += (word & 0xFFFF) + (word >>> 16);
+        }
+        return sum;
+      case 32:
+        for (int idx = INT_HEADER_LENGTH; idx < endAt; idx++)
+          sum += compressed[idx] & 0xFFFFFFFFL;
+        return sum;
+      default: {
+        final long mask = 0xFFFFFFFFL >>> (32 - bits);
+        long buffer = 0;
+        int available = 0;
+        int word = INT_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+          if (available < bits) {
+            buffer |= (compressed[word++] & 0xFFFFFFFFL) << available;
+            available += 32;
+          }
+          sum += buffer & mask;
+          buffer >>>= bits;
+          available -= bits;
+        }
+        return sum;
+      }
+    }
+  }
+
+  private static long sumPacked(long[] compressed, int bits, int count) {
+    if (bits == 0 || count == 0)
+      return 0;
+
+    int numberOfWords = (int) (((long) count * bits + 63) / 64);
+    int endAt = LONG_HEADER_LENGTH + numberOfWords;
+    long sum = 0;
+
+    if (bits <= 4 && 64 % bits == 0) {
+      for (int position = 0; position < bits; position++) {
+        long laneMask = laneMask64(bits, position);
+        long bitsSet = 0;
+        for (int idx = LONG_HEADER_LENGTH; idx < endAt; idx++)
+          bitsSet += Long.bitCount(compressed[idx] & laneMask);
+        sum += bitsSet << position;
+      }
+      return sum;
+    }
+
+    if (bits == 32) {
+      for (int idx = LONG_HEADER_LENGTH; idx < endAt; idx++) {
+        long word = compressed[idx];
+        sum += (word & 0xFFFFFFFFL) + (word >>> 32);
+      }
+      return sum;
+    }
+
+    if (bits == 64) {
+      for (int idx = LONG_HEADER_LENGTH; idx < endAt; idx++)
+        sum += compressed[idx];
+      return sum;
+    }
+
+    final long mask = 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+    int word = LONG_HEADER_LENGTH;
+    int skip = 0;
+    for (int i = 0; i < count; i++) {
+      long packed = compressed[word] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[word + 1] << (64 - skip);
+      sum += packed & mask;
+      skip += bits;
+      if (skip >= 64) {
+        skip -= 64;
+        word++;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return a mask with the bit at the given position set in every field of the given width
+   */
+  private static int laneMask32(int bits, int position) {
+    int mask = 0;
+    for (int shift = position; shift < 32; shift += bits)
+      mask |= 1 << shift;
+    return mask;
+  }
+
+  private static long laneMask64(int bits, int position) {
+    long mask = 0;
+    for (int shift = position; shift < 64; shift += bits)
+      mask |= 1L << shift;
+    return mask;
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Histogram -------------------------
+  // ----------------------------------------------------------
+
+  /**
+   * Count the values per bucket. The buckets split the packed domain [0, 2^bits[ in equal parts,
+   * so the bucket of a value is given by the high bits of its packed representation:
+   * bucket b holds the values in [min + b * 2^shift, min + (b + 1) * 2^shift[
+   * with shift = bits - log2(numberOfBuckets).
+   *
+   * @param numberOfBuckets a power of 2, capped to 2^bits
+   * @return the number of values in each bucket
+   */
+  public static long[] histogram(int[] compressed, int numberOfBuckets) {
+    int bits = numberOfBits(compressed);
+    int shift = histogramShift(bits, numberOfBuckets);
+    long[] histogram = new long[1 << (bits - shift)];
+    int count = count(compressed);
+
+    if (bits == 0) {
+      histogram[0] = count;
+      return histogram;
+    }
+
+    final long mask = 0xFFFFFFFFL >>> (32 - bits);
+    long buffer = 0;
+    int available = 0;
+    int word = INT_HEADER_LENGTH;
+    for (int i = 0; i < count; i++) {
+      if (available < bits) {
+        buffer |= (compressed[word++] & 0xFFFFFFFFL) << available;
+        available += 32;
+      }
+      histogram[(int) ((buffer & mask) >>> shift)]++;
+      buffer >>>= bits;
+      available -= bits;
+    }
+    return histogram;
+  }
+
+  public static long[] histogram(long[] compressed, int numberOfBuckets) {
+    int bits = numberOfBits(compressed);
+    int shift = histogramShift(bits, numberOfBuckets);
+    long[] histogram = new long[1 << (bits - shift)];
+    int count = count(compressed);
+
+    if (bits == 0) {
+      histogram[0] = count;
+      return histogram;
+    }
+
+    final long mask = 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+    int word = LONG_HEADER_LENGTH;
+    int skip = 0;
+    for (int i = 0; i < count; i++) {
+      long packed = compressed[word] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[word + 1] << (64 - skip);
+      histogram[(int) ((packed & mask) >>> shift)]++;
+      skip += bits;
+      if (skip >= 64) {
+        skip -= 64;
+        word++;
+      }
+    }
+    return histogram;
+  }
+
+  private static int histogramShift(int bits, int numberOfBuckets) {
+    if (numberOfBuckets <= 0 || Integer.bitCount(numberOfBuckets) != 1)
+      throw new IllegalArgumentException("The number of buckets must be a power of 2. Number of buckets = " + numberOfBuckets);
+    int bucketBits = Math.min(Integer.numberOfTrailingZeros(numberOfBuckets), bits);
+    return bits - bucketBits;
+  }
+}
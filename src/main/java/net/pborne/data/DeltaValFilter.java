@@ -0,0 +1,289 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+
+/**
+ * Predicates evaluated directly on the output of {@link Compression#deltaValEncode(int[])} and
+ * {@link Compression#deltaValEncode(long[])}.
+ * <p>
+ * Each predicate is rewritten in the packed domain by subtracting the minimum stored in the header,
+ * so the packed fields are compared as is and never turned back into values. The result is a
+ * {@link SelectionBitmap} and {@link #gather(int[], SelectionBitmap)} decodes the selected positions only.
+ * See {@link DeltaValAggregations} for the layout of the compressed arrays.
+ */
+public final class DeltaValFilter {
+
+  // Up to this width, IN-lists are looked up in a bitmap of the whole packed domain (8 kiloBytes at most)
+  private static final int IN_LIST_BITMAP_MAX_BITS = 16;
+
+  private DeltaValFilter() {
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Integers --------------------------
+  // ----------------------------------------------------------
+
+  public static SelectionBitmap equalTo(int[] compressed, int value) {
+    return between(compressed, value, value);
+  }
+
+  /**
+   * Select the values in [lower, upper] (both inclusive).
+   */
+  public static SelectionBitmap between(int[] compressed, int lower, int upper) {
+    int count = DeltaValAggregations.count(compressed);
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    long min = DeltaValAggregations.min(compressed);
+    long maxPacked = bits == 0 ? 0 : 0xFFFFFFFFL >>> (32 - bits);
+
+    // Rewrite the bounds in the packed domain
+    long lowerPacked = Math.max((long) lower - min, 0);
+    long upperPacked = Math.min((long) upper - min, maxPacked);
+
+    if (upperPacked < lowerPacked)
+      return new SelectionBitmap(count);
+    if (lowerPacked == 0 && upperPacked == maxPacked)
+      return SelectionBitmap.all(count);
+
+    SelectionBitmap selection = new SelectionBitmap(count);
+    long[] words = selection.words;
+    long width = upperPacked - lowerPacked;
+
+    final long mask = 0xFFFFFFFFL >>> (32 - bits);
+    long buffer = 0;
+    int available = 0;
+    int word = DeltaValAggregations.INT_HEADER_LENGTH;
+    for (int i = 0; i < count; i++) {
+      if (available < bits) {
+        buffer |= (compressed[word++] & 0xFFFFFFFFL) << available;
+        available += 32;
+      }
+      // A single unsigned comparison checks both bounds
+      if (Long.compareUnsigned((buffer & mask) - lowerPacked, width) <= 0)
+        words[i >>> 6] |= 1L << i;
+      buffer >>>= bits;
+      available -= bits;
+    }
+    return selection;
+  }
+
+  public static SelectionBitmap in(int[] compressed, int... values) {
+    int count = DeltaValAggregations.count(compressed);
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    long min = DeltaValAggregations.min(compressed);
+    long maxPacked = bits == 0 ? 0 : 0xFFFFFFFFL >>> (32 - bits);
+
+    // Rewrite the list in the packed domain and drop the values out of range
+    long[] packedValues = new long[values.length];
+    int numberOfPackedValues = 0;
+    for (int value : values) {
+      long packed = (long) value - min;
+      if (packed >= 0 && packed <= maxPacked)
+        packedValues[numberOfPackedValues++] = packed;
+    }
+
+    if (numberOfPackedValues == 0)
+      return new SelectionBitmap(count);
+    if (bits == 0)
+      return SelectionBitmap.all(count);
+
+    PackedSet packedSet = new PackedSet(Arrays.copyOf(packedValues, numberOfPackedValues), bits);
+    SelectionBitmap selection = new SelectionBitmap(count);
+    long[] words = selection.words;
+
+    final long mask = 0xFFFFFFFFL >>> (32 - bits);
+    long buffer = 0;
+    int available = 0;
+    int word = DeltaValAggregations.INT_HEADER_LENGTH;
+    for (int i = 0; i < count; i++) {
+      if (available < bits) {
+        buffer |= (compressed[word++] & 0xFFFFFFFFL) << available;
+        available += 32;
+      }
+      if (packedSet.contains(buffer & mask))
+        words[i >>> 6] |= 1L << i;
+      buffer >>>= bits;
+      available -= bits;
+    }
+    return selection;
+  }
+
+  /**
+   * Decode the selected positions only.
+   *
+   * @return the selected values, in the order of their positions
+   */
+  public static int[] gather(int[] compressed, SelectionBitmap selection) {
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    int min = DeltaValAggregations.min(compressed);
+    int[] positions = selection.toPositions();
+    int[] values = new int[positions.length];
+
+    if (bits == 0) {
+      Arrays.fill(values, min);
+      return values;
+    }
+
+    for (int i = 0; i < positions.length; i++) {
+      long offset = DeltaValAggregations.INT_HEADER_LENGTH * 32L + (long) positions[i] * bits;
+      int index = (int) (offset >>> 5);
+      int skip = (int) (offset & 0b11111);
+      long packed = (compressed[index] & 0xFFFFFFFFL) >>> skip;
+      if (32 - skip < bits)
+        packed |= (compressed[index + 1] & 0xFFFFFFFFL) << (32 - skip);
+      values[i] = min + (int) (packed & (0xFFFFFFFFL >>> (32 - bits)));
+    }
+    return values;
+  }
+
+  // ----------------------------------------------------------
+  // ---------------------- Longs -----------------------------
+  // ----------------------------------------------------------
+
+  public static SelectionBitmap equalTo(long[] compressed, long value) {
+    return between(compressed, value, value);
+  }
+
+  /**
+   * Select the values in [lower, upper] (both inclusive).
+   */
+  public static SelectionBitmap between(long[] compressed, long lower, long upper) {
+    int count = DeltaValAggregations.count(compressed);
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    long min = DeltaValAggregations.min(compressed);
+    long maxPacked = bits == 0 ? 0 : 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+
+    if (upper < lower || upper < min)
+      return new SelectionBitmap(count);
+
+    // Rewrite the bounds in the packed domain: the differences are positive, so they are exact as unsigned longs
+    long lowerPacked = lower <= min ? 0 : lower - min;
+    long upperPacked = upper - min;
+    if (Long.compareUnsigned(upperPacked, maxPacked) > 0)
+      upperPacked = maxPacked;
+
+    if (Long.compareUnsigned(upperPacked, lowerPacked) < 0)
+      return new SelectionBitmap(count);
+    if (lowerPacked == 0 && upperPacked == maxPacked)
+      return SelectionBitmap.all(count);
+
+    SelectionBitmap selection = new SelectionBitmap(count);
+    long[] words = selection.words;
+    long width = upperPacked - lowerPacked;
+
+    final long mask = maxPacked;
+    int word = DeltaValAggregations.LONG_HEADER_LENGTH;
+    int skip = 0;
+    for (int i = 0; i < count; i++) {
+      long packed = compressed[word] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[word + 1] << (64 - skip);
+      if (Long.compareUnsigned((packed & mask) - lowerPacked, width) <= 0)
+        words[i >>> 6] |= 1L << i;
+      skip += bits;
+      if (skip >= 64) {
+        skip -= 64;
+        word++;
+      }
+    }
+    return selection;
+  }
+
+  public static SelectionBitmap in(long[] compressed, long... values) {
+    int count = DeltaValAggregations.count(compressed);
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    long min = DeltaValAggregations.min(compressed);
+    long maxPacked = bits == 0 ? 0 : 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+
+    long[] packedValues = new long[values.length];
+    int numberOfPackedValues = 0;
+    for (long value : values) {
+      if (value < min)
+        continue;
+      long packed = value - min;
+      if (Long.compareUnsigned(packed, maxPacked) <= 0)
+        packedValues[numberOfPackedValues++] = packed;
+    }
+
+    if (numberOfPackedValues == 0)
+      return new SelectionBitmap(count);
+    if (bits == 0)
+      return SelectionBitmap.all(count);
+
+    PackedSet packedSet = new PackedSet(Arrays.copyOf(packedValues, numberOfPackedValues), bits);
+    SelectionBitmap selection = new SelectionBitmap(count);
+    long[] words = selection.words;
+
+    final long mask = maxPacked;
+    int word = DeltaValAggregations.LONG_HEADER_LENGTH;
+    int skip = 0;
+    for (int i = 0; i < count; i++) {
+      long packed = compressed[word] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[word + 1] << (64 - skip);
+      if (packedSet.contains(packed & mask))
+        words[i >>> 6] |= 1L << i;
+      skip += bits;
+      if (skip >= 64) {
+        skip -= 64;
+        word++;
+      }
+    }
+    return selection;
+  }
+
+  public static long[] gather(long[] compressed, SelectionBitmap selection) {
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    long min = DeltaValAggregations.min(compressed);
+    int[] positions = selection.toPositions();
+    long[] values = new long[positions.length];
+
+    if (bits == 0) {
+      Arrays.fill(values, min);
+      return values;
+    }
+
+    final long mask = 0xFFFFFFFFFFFFFFFFL >>> (64 - bits);
+    for (int i = 0; i < positions.length; i++) {
+      long offset = DeltaValAggregations.LONG_HEADER_LENGTH * 64L + (long) positions[i] * bits;
+      int index = (int) (offset >>> 6);
+      int skip = (int) (offset & 0b111111);
+      long packed = compressed[index] >>> skip;
+      if (64 - skip < bits)
+        packed |= compressed[index + 1] << (64 - skip);
+      values[i] = min + (packed & mask);
+    }
+    return values;
+  }
+
+  /**
+   * The values of an IN-list, rewritten in the packed domain.
+   * Narrow domains use a bitmap lookup, wide domains a binary search.
+   */
+  private static final class PackedSet {
+    private final long[] bitmap;
+    private final long[] sortedValues;
+
+    PackedSet(long[] packedValues, int bits) {
+      if (bits <= IN_LIST_BITMAP_MAX_BITS) {
+        bitmap = new long[((1 << bits) + 63) >>> 6];
+        for (long packed : packedValues)
+          bitmap[(int) (packed >>> 6)] |= 1L << packed;
+        sortedValues = null;
+      } else {
+        // Flip the sign bit so that the signed order of the array is the unsigned order of the packed values
+        sortedValues = new long[packedValues.length];
+        for (int i = 0; i < packedValues.length; i++)
+          sortedValues[i] = packedValues[i] ^ Long.MIN_VALUE;
+        Arrays.sort(sortedValues);
+        bitmap = null;
+      }
+    }
+
+    boolean contains(long packed) {
+      if (bitmap != null)
+        return (bitmap[(int) (packed >>> 6)] & (1L << packed)) != 0;
+      return Arrays.binarySearch(sortedValues, packed ^ Long.MIN_VALUE) >= 0;
+    }
+  }
+}
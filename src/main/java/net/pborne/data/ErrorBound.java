@@ -0,0 +1,95 @@
+package net.pborne.data;
+
+/**
+ * The maximum error of the lossy encoders, absolute (|decoded - value| &lt;= bound) or relative
+ * (|decoded - value| &lt;= bound * |value|).
+ * <p>
+ * The values are truncated: the low significand bits that are worth less than the bound are set to zero,
+ * which the XOR and the stream codecs then compress to almost nothing. Zeros, infinities and NaN are kept
+ * as is, and so are the subnormals with a relative bound (they have fewer significant bits than the others).
+ */
+public final class ErrorBound {
+
+  private static final int significandBitWidth32 = 23;
+  private static final int significandBitWidth64 = 52;
+  private static final int minExponent32 = -126;
+  private static final int minExponent64 = -1022;
+
+  public final double bound;
+  public final boolean relative;
+
+  private ErrorBound(double bound, boolean relative) {
+    if (!(bound >= 0.0d) || Double.isInfinite(bound))
+      throw new IllegalArgumentException("The error bound must be a finite positive number: " + bound);
+    this.bound = bound;
+    this.relative = relative;
+  }
+
+  public static ErrorBound absolute(double bound) {
+    return new ErrorBound(bound, false);
+  }
+
+  public static ErrorBound relative(double bound) {
+    return new ErrorBound(bound, true);
+  }
+
+  /**
+   * @return a copy of the values with the low significand bits below the bound set to zero
+   */
+  public double[] truncate(double[] values) {
+    if (bound < Double.MIN_NORMAL) // Including 0: lossless
+      return values.clone();
+
+    // Zeroing k significand bits of a value of exponent e changes it by less than 2^(e - 52 + k)
+    int boundExponent = Math.getExponent(bound); // 2^boundExponent <= bound
+    int relativeBits = clamp(significandBitWidth64 + boundExponent, significandBitWidth64);
+
+    double[] truncated = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      double value = values[i];
+      int exponent = Math.getExponent(value);
+      if (exponent > Double.MAX_EXPONENT || (relative && exponent < minExponent64)) {
+        truncated[i] = value;
+        continue;
+      }
+      int bits = relative ? relativeBits
+          : clamp(boundExponent - Math.max(exponent, minExponent64) + significandBitWidth64, significandBitWidth64);
+      truncated[i] = Double.longBitsToDouble(Double.doubleToRawLongBits(value) & (-1L << bits));
+    }
+    return truncated;
+  }
+
+  /**
+   * @return a copy of the values with the low significand bits below the bound set to zero
+   */
+  public float[] truncate(float[] values) {
+    if (bound < Double.MIN_NORMAL)
+      return values.clone();
+
+    int boundExponent = Math.getExponent(bound);
+    int relativeBits = clamp(significandBitWidth32 + boundExponent, significandBitWidth32);
+
+    float[] truncated = new float[values.length];
+    for (int i = 0; i < values.length; i++) {
+      float value = values[i];
+      int exponent = Math.getExponent(value);
+      if (exponent > Float.MAX_EXPONENT || (relative && exponent < minExponent32)) {
+        truncated[i] = value;
+        continue;
+      }
+      int bits = relative ? relativeBits
+          : clamp(boundExponent - Math.max(exponent, minExponent32) + significandBitWidth32, significandBitWidth32);
+      truncated[i] = Float.intBitsToFloat(Float.floatToRawIntBits(value) & (-1 << bits));
+    }
+    return truncated;
+  }
+
+  private static int clamp(int bits, int max) {
+    return Math.max(0, Math.min(bits, max));
+  }
+
+  @Override
+  public String toString() {
+    return (relative ? "relative " : "absolute ") + bound;
+  }
+}
@@ -0,0 +1,128 @@
+package net.pborne.data;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free {@link CompressionMetrics} that accumulates everything in memory with {@link LongAdder}s.
+ * The counters are indexed by the ordinals of the stages, streams and algorithms: recording never allocates.
+ */
+public class InMemoryCompressionMetrics implements CompressionMetrics {
+
+  private static final int NUMBER_OF_STAGES = Stage.values().length;
+  private static final int NUMBER_OF_STREAMS = Stream.values().length;
+  private static final int NUMBER_OF_ALGORITHMS = CompressionAlgorithms.values().length;
+
+  private final LongAdder[] encodedUncompressedBytes = newAdders(NUMBER_OF_STREAMS);
+  private final LongAdder[] encodedCompressedBytes = newAdders(NUMBER_OF_STREAMS);
+  private final LongAdder[] decodedCompressedBytes = newAdders(NUMBER_OF_STREAMS);
+  private final LongAdder[] decodedUncompressedBytes = newAdders(NUMBER_OF_STREAMS);
+  private final LongAdder[] chosenAlgorithms = newAdders(NUMBER_OF_STREAMS * NUMBER_OF_ALGORITHMS);
+
+  private final LongAdder[] encodeNanos = newAdders(NUMBER_OF_STAGES);
+  private final LongAdder[] encodeCalls = newAdders(NUMBER_OF_STAGES);
+  private final LongAdder[] decodeNanos = newAdders(NUMBER_OF_STAGES);
+  private final LongAdder[] decodeCalls = newAdders(NUMBER_OF_STAGES);
+
+  private final LongAdder allocations = new LongAdder();
+  private final LongAdder allocatedBytes = new LongAdder();
+
+  private static LongAdder[] newAdders(int size) {
+    LongAdder[] adders = new LongAdder[size];
+    for (int i = 0; i < size; i++)
+      adders[i] = new LongAdder();
+    return adders;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return true;
+  }
+
+  @Override
+  public void recordEncodedStream(Stream stream, CompressionAlgorithms algorithm, long uncompressedBytes, long compressedBytes) {
+    encodedUncompressedBytes[stream.ordinal()].add(uncompressedBytes);
+    encodedCompressedBytes[stream.ordinal()].add(compressedBytes);
+    if (algorithm != null)
+      chosenAlgorithms[stream.ordinal() * NUMBER_OF_ALGORITHMS + algorithm.ordinal()].increment();
+  }
+
+  @Override
+  public void recordDecodedStream(Stream stream, CompressionAlgorithms algorithm, long compressedBytes, long uncompressedBytes) {
+    decodedCompressedBytes[stream.ordinal()].add(compressedBytes);
+    decodedUncompressedBytes[stream.ordinal()].add(uncompressedBytes);
+  }
+
+  @Override
+  public void recordEncodeNanos(Stage stage, long nanos) {
+    encodeNanos[stage.ordinal()].add(nanos);
+    encodeCalls[stage.ordinal()].increment();
+  }
+
+  @Override
+  public void recordDecodeNanos(Stage stage, long nanos) {
+    decodeNanos[stage.ordinal()].add(nanos);
+    decodeCalls[stage.ordinal()].increment();
+  }
+
+  @Override
+  public void recordAllocation(long bytes) {
+    allocations.increment();
+    allocatedBytes.add(bytes);
+  }
+
+  public long getEncodedUncompressedBytes(Stream stream) {
+    return encodedUncompressedBytes[stream.ordinal()].sum();
+  }
+
+  public long getEncodedCompressedBytes(Stream stream) {
+    return encodedCompressedBytes[stream.ordinal()].sum();
+  }
+
+  public long getDecodedCompressedBytes(Stream stream) {
+    return decodedCompressedBytes[stream.ordinal()].sum();
+  }
+
+  public long getDecodedUncompressedBytes(Stream stream) {
+    return decodedUncompressedBytes[stream.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of times the algorithm was chosen for the stream
+   */
+  public long getChosenAlgorithmCount(Stream stream, CompressionAlgorithms algorithm) {
+    return chosenAlgorithms[stream.ordinal() * NUMBER_OF_ALGORITHMS + algorithm.ordinal()].sum();
+  }
+
+  public long getEncodeNanos(Stage stage) {
+    return encodeNanos[stage.ordinal()].sum();
+  }
+
+  public long getEncodeCalls(Stage stage) {
+    return encodeCalls[stage.ordinal()].sum();
+  }
+
+  public long getDecodeNanos(Stage stage) {
+    return decodeNanos[stage.ordinal()].sum();
+  }
+
+  public long getDecodeCalls(Stage stage) {
+    return decodeCalls[stage.ordinal()].sum();
+  }
+
+  public long getAllocations() {
+    return allocations.sum();
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes.sum();
+  }
+
+  public void reset() {
+    for (LongAdder[] adders : new LongAdder[][]{encodedUncompressedBytes, encodedCompressedBytes, decodedCompressedBytes,
+        decodedUncompressedBytes, chosenAlgorithms, encodeNanos, encodeCalls, decodeNanos, decodeCalls})
+      for (LongAdder adder : adders)
+        adder.reset();
+    allocations.reset();
+    allocatedBytes.reset();
+  }
+}
@@ -0,0 +1,75 @@
+package net.pborne.data;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a JSON snapshot of an {@link InMemoryCompressionMetrics}:
+ * <pre>
+ * {
+ *   "streams" : { "SIGNS" : { "encodedUncompressedBytes" : ..., "encodedCompressedBytes" : ..., "decodedCompressedBytes" : ...,
+ *                             "decodedUncompressedBytes" : ..., "algorithms" : { "GZIP" : ..., "ZIP" : ... } }, ... },
+ *   "stages" : { "CONVERSION" : { "encodeNanos" : ..., "encodeCalls" : ..., "decodeNanos" : ..., "decodeCalls" : ... }, ... },
+ *   "allocations" : { "count" : ..., "bytes" : ... }
+ * }
+ * </pre>
+ */
+public final class MetricsJsonExporter {
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private MetricsJsonExporter() {
+  }
+
+  public static String toJson(InMemoryCompressionMetrics metrics) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    write(metrics, outputStream);
+    return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  public static void write(InMemoryCompressionMetrics metrics, OutputStream outputStream) throws IOException {
+    JsonGenerator generator = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8);
+    generator.useDefaultPrettyPrinter();
+    generator.writeStartObject();
+
+    generator.writeObjectFieldStart("streams");
+    for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values()) {
+      generator.writeObjectFieldStart(stream.name());
+      generator.writeNumberField("encodedUncompressedBytes", metrics.getEncodedUncompressedBytes(stream));
+      generator.writeNumberField("encodedCompressedBytes", metrics.getEncodedCompressedBytes(stream));
+      generator.writeNumberField("decodedCompressedBytes", metrics.getDecodedCompressedBytes(stream));
+      generator.writeNumberField("decodedUncompressedBytes", metrics.getDecodedUncompressedBytes(stream));
+      generator.writeObjectFieldStart("algorithms");
+      for (CompressionAlgorithms algorithm : CompressionAlgorithms.values())
+        generator.writeNumberField(algorithm.name(), metrics.getChosenAlgorithmCount(stream, algorithm));
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+
+    generator.writeObjectFieldStart("stages");
+    for (CompressionMetrics.Stage stage : CompressionMetrics.Stage.values()) {
+      generator.writeObjectFieldStart(stage.name());
+      generator.writeNumberField("encodeNanos", metrics.getEncodeNanos(stage));
+      generator.writeNumberField("encodeCalls", metrics.getEncodeCalls(stage));
+      generator.writeNumberField("decodeNanos", metrics.getDecodeNanos(stage));
+      generator.writeNumberField("decodeCalls", metrics.getDecodeCalls(stage));
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+
+    generator.writeObjectFieldStart("allocations");
+    generator.writeNumberField("count", metrics.getAllocations());
+    generator.writeNumberField("bytes", metrics.getAllocatedBytes());
+    generator.writeEndObject();
+
+    generator.writeEndObject();
+    generator.flush();
+  }
+}
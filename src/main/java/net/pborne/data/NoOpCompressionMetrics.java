@@ -0,0 +1,37 @@
+package net.pborne.data;
+
+/**
+ * The default {@link CompressionMetrics}: records nothing.
+ */
+public final class NoOpCompressionMetrics implements CompressionMetrics {
+
+  public static final NoOpCompressionMetrics INSTANCE = new NoOpCompressionMetrics();
+
+  private NoOpCompressionMetrics() {
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return false;
+  }
+
+  @Override
+  public void recordEncodedStream(Stream stream, CompressionAlgorithms algorithm, long uncompressedBytes, long compressedBytes) {
+  }
+
+  @Override
+  public void recordDecodedStream(Stream stream, CompressionAlgorithms algorithm, long compressedBytes, long uncompressedBytes) {
+  }
+
+  @Override
+  public void recordEncodeNanos(Stage stage, long nanos) {
+  }
+
+  @Override
+  public void recordDecodeNanos(Stage stage, long nanos) {
+  }
+
+  @Override
+  public void recordAllocation(long bytes) {
+  }
+}
@@ -0,0 +1,111 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+
+/**
+ * An array of doubles with missing values.
+ * <p>
+ * The valid positions are kept in a compressed {@link ValidityBitmap} and only the valid values are
+ * compressed with {@link Compression#deltaXorEncode64(double[])}, so the gaps neither take space in the
+ * value streams nor break the XOR between consecutive values.
+ */
+public class NullableCompressedDoubleArray {
+
+  public final int uncompressedArrayLength;
+
+  public final ValidityBitmap validity;
+  public final CompressedDoubleArray values; // null when there is no valid value
+
+  public NullableCompressedDoubleArray(ValidityBitmap validity, CompressedDoubleArray values, int uncompressedArrayLength) {
+    this.validity = validity;
+    this.values = values;
+    this.uncompressedArrayLength = uncompressedArrayLength;
+  }
+
+  /**
+   * Encode an array where the missing values are represented by NaN.
+   */
+  public static NullableCompressedDoubleArray encode(double[] uncompressed) {
+    return encode(uncompressed, ValidityBitmap.fromNaN(uncompressed));
+  }
+
+  /**
+   * Encode an array with an explicit validity bitmap. The values at the null positions are ignored.
+   */
+  public static NullableCompressedDoubleArray encode(double[] uncompressed, ValidityBitmap validity) {
+    if (validity.length != uncompressed.length)
+      throw new IllegalArgumentException("The validity bitmap and the array have different lengths: "
+          + validity.length + " and " + uncompressed.length);
+
+    if (validity.cardinality() == 0)
+      return new NullableCompressedDoubleArray(validity, null, uncompressed.length);
+
+    double[] validValues = new double[validity.cardinality()];
+    int[] offset = {0};
+    validity.forEachValidRun((start, length) -> {
+      System.arraycopy(uncompressed, start, validValues, offset[0], length);
+      offset[0] += length;
+    });
+
+    return new NullableCompressedDoubleArray(validity, Compression.deltaXorEncode64(validValues), uncompressed.length);
+  }
+
+  /**
+   * @return the valid values only, in the order of their positions
+   */
+  public double[] decodeValid() throws Exception {
+    if (values == null)
+      return new double[0];
+    return Compression.deltaXorDecode64(values);
+  }
+
+  /**
+   * @return the whole array with NaN at the null positions
+   */
+  public double[] decode() throws Exception {
+    return decode(Double.NaN);
+  }
+
+  /**
+   * @param nullValue the value written at the null positions
+   * @return the whole array
+   */
+  public double[] decode(double nullValue) throws Exception {
+    double[] uncompressed = new double[uncompressedArrayLength];
+    double[] validValues = decodeValid();
+
+    int[] previousEnd = {0};
+    int[] offset = {0};
+    validity.forEachValidRun((start, length) -> {
+      Arrays.fill(uncompressed, previousEnd[0], start, nullValue);
+      System.arraycopy(validValues, offset[0], uncompressed, start, length);
+      offset[0] += length;
+      previousEnd[0] = start + length;
+    });
+    Arrays.fill(uncompressed, previousEnd[0], uncompressedArrayLength, nullValue);
+
+    return uncompressed;
+  }
+
+  /**
+   * Find the positions of the valid values matching the predicate. The null positions are skipped
+   * run by run, without being looked at.
+   *
+   * @return the positions of the matching values, in ascending order
+   */
+  public int[] scan(RangePredicate predicate) throws Exception {
+    double[] validValues = decodeValid();
+    int[] positions = new int[validValues.length];
+    int[] numberOfPositions = {0};
+    int[] offset = {0};
+
+    validity.forEachValidRun((start, length) -> {
+      for (int i = 0; i < length; i++)
+        if (predicate.test(validValues[offset[0] + i]))
+          positions[numberOfPositions[0]++] = start + i;
+      offset[0] += length;
+    });
+
+    return Arrays.copyOf(positions, numberOfPositions[0]);
+  }
+}
@@ -0,0 +1,234 @@
+package net.pborne.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * GZIP compression of independent chunks in parallel, like pigz or BGZF: the chunks are deflated in the common
+ * pool and written as concatenated GZIP members, which gzip and {@link GZIPInputStream} read as a single stream.
+ * <p>
+ * Each member carries its own size in an extra field of its header (subfield "PG", 4 bytes, little endian), so the
+ * decoder finds the members without inflating them and inflates them in parallel. The uncompressed size of a
+ * member is its ISIZE trailer. A stream without the extra fields (plain gzip output) is inflated serially.
+ */
+public final class ParallelGzip {
+
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  private static final int headerLength = 10;
+  private static final int extraLength = 10;    // XLEN (2), subfield id (2), subfield length (2), member size (4)
+  private static final int trailerLength = 8;   // CRC32 (4), ISIZE (4)
+  private static final byte flagExtra = 4;
+  private static final byte subfieldId1 = 'P';
+  private static final byte subfieldId2 = 'G';
+  private static final byte osUnknown = (byte) 255;
+  private static final int maxDeflateRatio = 1032; // The most a deflate stream expands: 258 bytes per 2-bit match
+
+  private ParallelGzip() {
+  }
+
+  /**
+   * @return the concatenated GZIP members, null when the input is empty like Compression's GZIP
+   */
+  public static byte[] compress(byte[] input) {
+    return compress(input, DEFAULT_CHUNK_SIZE);
+  }
+
+  public static byte[] compress(byte[] input, int chunkSize) {
+    if (chunkSize <= 0)
+      throw new IllegalArgumentException("The chunk size must be greater than 0: " + chunkSize);
+    if (input == null || input.length == 0)
+      return null;
+
+    int numberOfChunks = (int) ((input.length + (long) chunkSize - 1) / chunkSize);
+    IntStream chunks = IntStream.range(0, numberOfChunks);
+    byte[][] members = (numberOfChunks > 1 ? chunks.parallel() : chunks)
+        .mapToObj(chunk -> compressMember(input, chunk * chunkSize, Math.min(chunkSize, input.length - chunk * chunkSize)))
+        .toArray(byte[][]::new);
+
+    long size = 0;
+    for (byte[] member : members)
+      size += member.length;
+    if (size > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("The compressed stream does not fit in a byte array: " + size + " bytes");
+    byte[] output = new byte[(int) size];
+    int offset = 0;
+    for (byte[] member : members) {
+      System.arraycopy(member, 0, output, offset, member.length);
+      offset += member.length;
+    }
+    return output;
+  }
+
+  private static byte[] compressMember(byte[] input, int offset, int length) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(input, offset, length);
+      deflater.finish();
+      // Deflate can expand incompressible data by a few bytes per 16KB block
+      byte[] member = new byte[headerLength + extraLength + length + length / 1000 + 64 + trailerLength];
+      int size = headerLength + extraLength;
+      while (!deflater.finished()) {
+        if (size == member.length - trailerLength)
+          member = Arrays.copyOf(member, 2 * member.length);
+        size += deflater.deflate(member, size, member.length - trailerLength - size);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(input, offset, length);
+      writeIntLE(member, size, (int) crc.getValue());
+      writeIntLE(member, size + 4, length);
+      size += trailerLength;
+
+      member[0] = 0x1f;
+      member[1] = (byte) 0x8b;
+      member[2] = Deflater.DEFLATED;
+      member[3] = flagExtra;
+      member[9] = osUnknown; // Modification time (4 to 7) and extra flags (8) are 0
+      member[10] = extraLength - 2; // XLEN, the length of the extra field after it
+      member[12] = subfieldId1;
+      member[13] = subfieldId2;
+      member[14] = 4;               // Subfield length
+      writeIntLE(member, 16, size);
+      return Arrays.copyOf(member, size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return the uncompressed bytes, null when the stream is not valid
+   */
+  public static byte[] uncompress(byte[] input) {
+    return uncompress(input, Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * @param maxLength the largest uncompressed size expected by the caller: the sizes of a corrupted stream are
+   *                  rejected before anything is allocated
+   * @return the uncompressed bytes, null when the stream is not valid or larger than maxLength
+   */
+  public static byte[] uncompress(byte[] input, long maxLength) {
+    if (input == null || input.length == 0)
+      return null;
+
+    // The members, found from their sizes
+    int numberOfMembers = 0;
+    int[] offsets = new int[16];
+    long uncompressedSize = 0;
+    for (int offset = 0; offset < input.length; ) {
+      int size = memberSize(input, offset);
+      if (size < 0)
+        return uncompressSerially(input, maxLength);
+      if (numberOfMembers + 1 >= offsets.length)
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      offsets[numberOfMembers++] = offset;
+      long memberSize = readIntLE(input, offset + size - 4) & 0xFFFFFFFFL;
+      if (memberSize > (long) (size - headerLength - extraLength - trailerLength) * maxDeflateRatio) {
+        System.err.println("Corrupted parallel GZIP member at " + offset + ". Uncompressed size: " + memberSize);
+        return null;
+      }
+      uncompressedSize += memberSize;
+      offset += size;
+      offsets[numberOfMembers] = offset;
+    }
+    if (uncompressedSize > Math.min(maxLength, Integer.MAX_VALUE - 8)) {
+      System.err.println("Wrong parallel GZIP stream. Uncompressed size: " + uncompressedSize + ", at most " + maxLength + " expected");
+      return null;
+    }
+
+    byte[] output = new byte[(int) uncompressedSize];
+    int[] outputOffsets = new int[numberOfMembers + 1];
+    for (int member = 0; member < numberOfMembers; member++)
+      outputOffsets[member + 1] = outputOffsets[member] + readIntLE(input, offsets[member + 1] - 4);
+
+    int[] memberOffsets = offsets;
+    IntStream members = IntStream.range(0, numberOfMembers);
+    boolean valid = (numberOfMembers > 1 ? members.parallel() : members)
+        .allMatch(member -> inflateMember(input, memberOffsets[member], memberOffsets[member + 1],
+            output, outputOffsets[member], outputOffsets[member + 1]));
+    return valid ? output : null;
+  }
+
+  /**
+   * @return the size of the member from its extra field, -1 when the member has none
+   */
+  private static int memberSize(byte[] input, int offset) {
+    if (input.length - offset < headerLength + extraLength + trailerLength
+        || input[offset] != 0x1f || input[offset + 1] != (byte) 0x8b || input[offset + 2] != Deflater.DEFLATED
+        || input[offset + 3] != flagExtra || input[offset + 10] != extraLength - 2 || input[offset + 11] != 0
+        || input[offset + 12] != subfieldId1 || input[offset + 13] != subfieldId2 || input[offset + 14] != 4 || input[offset + 15] != 0)
+      return -1;
+    int size = readIntLE(input, offset + 16);
+    if (size < headerLength + extraLength + trailerLength || size > input.length - offset)
+      return -1;
+    return size;
+  }
+
+  private static boolean inflateMember(byte[] input, int from, int to, byte[] output, int outputFrom, int outputTo) {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(input, from + headerLength + extraLength, to - trailerLength - from - headerLength - extraLength);
+      int size = outputFrom;
+      while (size < outputTo && !inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary())
+        size += inflater.inflate(output, size, outputTo - size);
+      // The end of the deflate stream can remain once the output is full: more bytes than ISIZE is an error
+      if (!inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+        System.err.println("Parallel GZIP member larger than its size at " + from);
+        return false;
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(output, outputFrom, outputTo - outputFrom);
+      if (!inflater.finished() || size != outputTo || inflater.getRemaining() != 0 || (int) crc.getValue() != readIntLE(input, to - trailerLength)) {
+        System.err.println("Corrupted parallel GZIP member at " + from);
+        return false;
+      }
+      return true;
+    } catch (DataFormatException e) {
+      System.err.println("Corrupted parallel GZIP member at " + from + ": " + e.getMessage());
+      return false;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] uncompressSerially(byte[] input, long maxLength) {
+    long limit = Math.min(Math.min(maxLength, Integer.MAX_VALUE - 8), (long) input.length * maxDeflateRatio);
+    try (GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(input))) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] tmp = new byte[32 * 1024];
+      for (int read; (read = gzipInputStream.read(tmp)) >= 0; ) {
+        if (buffer.size() + (long) read > limit) {
+          System.err.println("GZIP stream larger than " + limit + " bytes");
+          return null;
+        }
+        buffer.write(tmp, 0, read);
+      }
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      System.err.println("Not a GZIP stream: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static void writeIntLE(byte[] bytes, int offset, int value) {
+    for (int i = 0; i < 4; i++)
+      bytes[offset + i] = (byte) (value >>> (i * TypeSize.BYTE_BITSIZE));
+  }
+
+  private static int readIntLE(byte[] bytes, int offset) {
+    int value = 0;
+    for (int i = 0; i < 4; i++)
+      value |= (bytes[offset + i] & 0xFF) << (i * TypeSize.BYTE_BITSIZE);
+    return value;
+  }
+}
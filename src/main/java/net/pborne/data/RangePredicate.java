@@ -0,0 +1,82 @@
+package net.pborne.data;
+
+/**
+ * A predicate over doubles of the form "lower (&lt; or &lt;=) value (&lt; or &lt;=) upper" that can also be
+ * evaluated against the statistics of a block (zone map).
+ * <p>
+ * Like the Java comparison operators, a NaN value never matches.
+ */
+public class RangePredicate {
+
+  public final double lower;
+  public final double upper;
+  public final boolean lowerInclusive;
+  public final boolean upperInclusive;
+
+  public RangePredicate(double lower, boolean lowerInclusive, double upper, boolean upperInclusive) {
+    this.lower = lower;
+    this.upper = upper;
+    this.lowerInclusive = lowerInclusive;
+    this.upperInclusive = upperInclusive;
+  }
+
+  public static RangePredicate greaterThan(double limit) {
+    return new RangePredicate(limit, false, Double.POSITIVE_INFINITY, true);
+  }
+
+  public static RangePredicate greaterThanOrEqual(double limit) {
+    return new RangePredicate(limit, true, Double.POSITIVE_INFINITY, true);
+  }
+
+  public static RangePredicate lessThan(double limit) {
+    return new RangePredicate(Double.NEGATIVE_INFINITY, true, limit, false);
+  }
+
+  public static RangePredicate lessThanOrEqual(double limit) {
+    return new RangePredicate(Double.NEGATIVE_INFINITY, true, limit, true);
+  }
+
+  public static RangePredicate between(double lower, double upper) {
+    return new RangePredicate(lower, true, upper, true);
+  }
+
+  public static RangePredicate equalTo(double value) {
+    return new RangePredicate(value, true, value, true);
+  }
+
+  public boolean test(double value) {
+    return aboveLower(value) && belowUpper(value);
+  }
+
+  /**
+   * @return false when the statistics prove that no value of the block can match
+   */
+  public boolean mightMatch(BlockStatistics statistics) {
+    if (statistics.isAllNaN())
+      return false;
+    // The block can only match if [min, max] intersects the range
+    return belowUpper(statistics.min) && aboveLower(statistics.max);
+  }
+
+  /**
+   * @return true when the statistics prove that every value of the block matches
+   */
+  public boolean allMatch(BlockStatistics statistics) {
+    if (statistics.nanCount > 0 || statistics.count == 0)
+      return false;
+    return aboveLower(statistics.min) && belowUpper(statistics.max);
+  }
+
+  private boolean aboveLower(double value) {
+    return lowerInclusive ? value >= lower : value > lower;
+  }
+
+  private boolean belowUpper(double value) {
+    return upperInclusive ? value <= upper : value < upper;
+  }
+
+  @Override
+  public String toString() {
+    return (lowerInclusive ? "[" : "]") + lower + ", " + upper + (upperInclusive ? "]" : "[");
+  }
+}
@@ -0,0 +1,343 @@
+package net.pborne.data;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compression ratio and throughput of every codec on every dataset of {@link DatasetGenerators}.
+ * <p>
+ * The results are written to a JSON report and can be compared to a baseline report: a codec regresses
+ * when its ratio (compressed size / raw size) grows or its throughput drops by more than a tolerance.
+ * <p>
+ * Usage: RegressionSuite report.json [baseline.json [ratioTolerance [throughputTolerance]]]
+ * The process exits with status 1 when a regression is found.
+ */
+public class RegressionSuite {
+
+  public static final int DEFAULT_SIZE = 1 << 18;
+  public static final int DEFAULT_ITERATIONS = 5;
+  public static final long SEED = 42L;
+
+  public static final double DEFAULT_RATIO_TOLERANCE = 0.02d;      // 2%: the ratios are deterministic
+  public static final double DEFAULT_THROUGHPUT_TOLERANCE = 0.25d; // 25%: timings are noisy
+
+  public enum Codec {
+    DELTA_XOR_32,
+    DELTA_XOR_64,
+    NULLABLE_DELTA_XOR_64,
+    FPC_64,
+    DELTA_VAL_64,
+    DELTA_OF_DELTA;
+
+    /**
+     * @return true when the codec works on longs, only used for the integral datasets
+     */
+    public boolean isIntegral() {
+      return this == DELTA_VAL_64 || this == DELTA_OF_DELTA;
+    }
+  }
+
+  public static class Result {
+    public final String dataset;
+    public final String codec;
+    public final long rawBytes;
+    public final long compressedBytes;
+    public final double encodeMBps;
+    public final double decodeMBps;
+
+    public Result(String dataset, String codec, long rawBytes, long compressedBytes, double encodeMBps, double decodeMBps) {
+      this.dataset = dataset;
+      this.codec = codec;
+      this.rawBytes = rawBytes;
+      this.compressedBytes = compressedBytes;
+      this.encodeMBps = encodeMBps;
+      this.decodeMBps = decodeMBps;
+    }
+
+    public double ratio() {
+      return (double) compressedBytes / rawBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-18s %-22s ratio: %.4f encode: %8.1f MB/s decode: %8.1f MB/s",
+          dataset, codec, ratio(), encodeMBps, decodeMBps);
+    }
+  }
+
+  public static List<Result> run(int size, int iterations) throws Exception {
+    List<Result> results = new ArrayList<>();
+    for (DatasetGenerators.Dataset dataset : DatasetGenerators.Dataset.values())
+      for (Codec codec : Codec.values())
+        if (!codec.isIntegral() || dataset.isIntegral())
+          results.add(measure(dataset, codec, size, iterations));
+    return results;
+  }
+
+  public static Result measure(DatasetGenerators.Dataset dataset, Codec codec, int size, int iterations) throws Exception {
+    return measure(dataset.name(), codec, dataset.generateDoubles(size, SEED), dataset.generateLongs(size, SEED), iterations);
+  }
+
+  /**
+   * @param name    the name of the data in the result
+   * @param doubles the values for the floating point codecs
+   * @param longs   the same values for the integral codecs, may be null when the codec is not integral
+   * @throws IllegalStateException when the codec does not decode the values it encoded
+   */
+  public static Result measure(String name, Codec codec, double[] doubles, long[] longs, int iterations) throws Exception {
+    int size = doubles.length;
+    float[] floats = new float[size];
+    for (int i = 0; i < size; i++)
+      floats[i] = (float) doubles[i];
+
+    long rawBytes = (long) size * (codec == Codec.DELTA_XOR_32 ? TypeSize.FLOAT_BYTESIZE : TypeSize.DOUBLE_BYTESIZE);
+    long compressedBytes = 0;
+    long bestEncodeNanos = Long.MAX_VALUE;
+    long bestDecodeNanos = Long.MAX_VALUE;
+
+    // Keep the best time of all the iterations: the first ones include the JIT compilation
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      long start = System.nanoTime();
+      Object encoded;
+      switch (codec) {
+        case DELTA_XOR_32:
+          encoded = Compression.deltaXorEncode32(floats);
+          break;
+        case DELTA_XOR_64:
+          encoded = Compression.deltaXorEncode64(doubles);
+          break;
+        case NULLABLE_DELTA_XOR_64:
+          encoded = NullableCompressedDoubleArray.encode(doubles);
+          break;
+        case FPC_64:
+          encoded = Compression.fpcEncode(doubles);
+          break;
+        case DELTA_VAL_64:
+          encoded = Compression.deltaValEncode(longs);
+          break;
+        case DELTA_OF_DELTA:
+          encoded = Compression.deltaOfDeltaEncode(longs);
+          break;
+        default:
+          throw new IllegalStateException("Unknown codec: " + codec);
+      }
+      bestEncodeNanos = Math.min(bestEncodeNanos, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      Object decoded;
+      switch (codec) {
+        case DELTA_XOR_32:
+          decoded = Compression.deltaXorDecode32((CompressedDoubleArray) encoded);
+          compressedBytes = ((CompressedDoubleArray) encoded).compressedSizeInBytes();
+          break;
+        case DELTA_XOR_64:
+          decoded = Compression.deltaXorDecode64((CompressedDoubleArray) encoded);
+          compressedBytes = ((CompressedDoubleArray) encoded).compressedSizeInBytes();
+          break;
+        case NULLABLE_DELTA_XOR_64:
+          NullableCompressedDoubleArray nullable = (NullableCompressedDoubleArray) encoded;
+          decoded = nullable.decode();
+          compressedBytes = nullable.validity.sizeInBytes() + (nullable.values == null ? 0 : nullable.values.compressedSizeInBytes());
+          break;
+        case FPC_64:
+          decoded = Compression.fpcDecode((long[]) encoded);
+          compressedBytes = (long) ((long[]) encoded).length * TypeSize.INT64_BYTESIZE;
+          break;
+        case DELTA_VAL_64:
+          decoded = Compression.deltaValDecode((long[]) encoded);
+          compressedBytes = (long) ((long[]) encoded).length * TypeSize.INT64_BYTESIZE;
+          break;
+        case DELTA_OF_DELTA:
+          decoded = Compression.deltaOfDeltaDecode((long[]) encoded);
+          compressedBytes = (long) ((long[]) encoded).length * TypeSize.INT64_BYTESIZE;
+          break;
+        default:
+          throw new IllegalStateException("Unknown codec: " + codec);
+      }
+      bestDecodeNanos = Math.min(bestDecodeNanos, System.nanoTime() - start);
+
+      // A codec that does not round trip must not report a ratio or a throughput
+      if (iteration == 0) {
+        int mismatch = firstMismatch(codec, decoded, floats, doubles, longs);
+        if (mismatch >= 0)
+          throw new IllegalStateException(name + "/" + codec + ": the decoded values are different"
+              + (decoded == null ? " (null)" : " at " + mismatch));
+      }
+    }
+
+    return new Result(name, codec.name(), rawBytes, compressedBytes,
+        megaBytesPerSecond(rawBytes, bestEncodeNanos), megaBytesPerSecond(rawBytes, bestDecodeNanos));
+  }
+
+  /**
+   * Compare the bits of the values, NaNs being equal whatever their payload (the nullable codec decodes its nulls
+   * as Double.NaN).
+   *
+   * @return the index of the first different value, the length when the lengths differ, -1 when they are the same
+   */
+  private static int firstMismatch(Codec codec, Object decoded, float[] floats, double[] doubles, long[] longs) {
+    if (decoded == null)
+      return 0;
+    if (codec == Codec.DELTA_XOR_32) {
+      float[] values = (float[]) decoded;
+      for (int i = 0; i < Math.min(values.length, floats.length); i++)
+        if (Float.floatToRawIntBits(values[i]) != Float.floatToRawIntBits(floats[i]) && !(Float.isNaN(values[i]) && Float.isNaN(floats[i])))
+          return i;
+      return values.length == floats.length ? -1 : Math.min(values.length, floats.length);
+    }
+    if (codec.isIntegral()) {
+      long[] values = (long[]) decoded;
+      for (int i = 0; i < Math.min(values.length, longs.length); i++)
+        if (values[i] != longs[i])
+          return i;
+      return values.length == longs.length ? -1 : Math.min(values.length, longs.length);
+    }
+    double[] values = (double[]) decoded;
+    for (int i = 0; i < Math.min(values.length, doubles.length); i++)
+      if (Double.doubleToRawLongBits(values[i]) != Double.doubleToRawLongBits(doubles[i]) && !(Double.isNaN(values[i]) && Double.isNaN(doubles[i])))
+        return i;
+    return values.length == doubles.length ? -1 : Math.min(values.length, doubles.length);
+  }
+
+  private static double megaBytesPerSecond(long bytes, long nanos) {
+    return bytes * 1000.0d / Math.max(nanos, 1L); // bytes / ns * 10^9 / 10^6
+  }
+
+  /**
+   * @return a description of every regression of the current results compared to the baseline
+   */
+  public static List<String> compare(List<Result> baseline, List<Result> current, double ratioTolerance, double throughputTolerance) {
+    List<String> regressions = new ArrayList<>();
+    for (Result reference : baseline) {
+      Result result = null;
+      for (Result candidate : current)
+        if (candidate.dataset.equals(reference.dataset) && candidate.codec.equals(reference.codec))
+          result = candidate;
+
+      String name = reference.dataset + "/" + reference.codec;
+      if (result == null) {
+        regressions.add(name + ": missing from the current results");
+        continue;
+      }
+      if (result.ratio() > reference.ratio() * (1.0d + ratioTolerance))
+        regressions.add(name + ": ratio " + result.ratio() + " > baseline " + reference.ratio());
+      if (result.encodeMBps < reference.encodeMBps * (1.0d - throughputTolerance))
+        regressions.add(name + ": encode " + result.encodeMBps + " MB/s < baseline " + reference.encodeMBps + " MB/s");
+      if (result.decodeMBps < reference.decodeMBps * (1.0d - throughputTolerance))
+        regressions.add(name + ": decode " + result.decodeMBps + " MB/s < baseline " + reference.decodeMBps + " MB/s");
+    }
+    return regressions;
+  }
+
+  public static void writeReport(List<Result> results, OutputStream outputStream) throws IOException {
+    JsonGenerator generator = new JsonFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+    generator.useDefaultPrettyPrinter();
+    generator.writeStartObject();
+    generator.writeNumberField("seed", SEED);
+    generator.writeArrayFieldStart("results");
+    for (Result result : results) {
+      generator.writeStartObject();
+      generator.writeStringField("dataset", result.dataset);
+      generator.writeStringField("codec", result.codec);
+      generator.writeNumberField("rawBytes", result.rawBytes);
+      generator.writeNumberField("compressedBytes", result.compressedBytes);
+      generator.writeNumberField("ratio", result.ratio());
+      generator.writeNumberField("encodeMBps", result.encodeMBps);
+      generator.writeNumberField("decodeMBps", result.decodeMBps);
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.flush();
+  }
+
+  public static List<Result> readReport(InputStream inputStream) throws IOException {
+    List<Result> results = new ArrayList<>();
+    JsonParser parser = new JsonFactory().createParser(inputStream);
+
+    // Skip everything until the array of results
+    JsonToken token;
+    while ((token = parser.nextToken()) != null)
+      if (token == JsonToken.FIELD_NAME && "results".equals(parser.getCurrentName()))
+        break;
+    if (parser.nextToken() != JsonToken.START_ARRAY)
+      throw new IOException("No results in the report.");
+
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      String dataset = null, codec = null;
+      long rawBytes = 0, compressedBytes = 0;
+      double encodeMBps = 0, decodeMBps = 0;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        switch (field) {
+          case "dataset":
+            dataset = parser.getText();
+            break;
+          case "codec":
+            codec = parser.getText();
+            break;
+          case "rawBytes":
+            rawBytes = parser.getLongValue();
+            break;
+          case "compressedBytes":
+            compressedBytes = parser.getLongValue();
+            break;
+          case "encodeMBps":
+            encodeMBps = parser.getDoubleValue();
+            break;
+          case "decodeMBps":
+            decodeMBps = parser.getDoubleValue();
+            break;
+          default:
+            parser.skipChildren(); // Derived (ratio) or unknown fields
+        }
+      }
+      results.add(new Result(dataset, codec, rawBytes, compressedBytes, encodeMBps, decodeMBps));
+    }
+    parser.close();
+    return results;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: RegressionSuite report.json [baseline.json [ratioTolerance [throughputTolerance]]]");
+      System.exit(2);
+    }
+
+    List<Result> results = run(DEFAULT_SIZE, DEFAULT_ITERATIONS);
+    for (Result result : results)
+      System.out.println(result);
+
+    try (OutputStream outputStream = new FileOutputStream(args[0])) {
+      writeReport(results, outputStream);
+    }
+
+    if (args.length < 2)
+      return;
+
+    List<Result> baseline;
+    try (InputStream inputStream = new FileInputStream(args[1])) {
+      baseline = readReport(inputStream);
+    }
+    double ratioTolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_RATIO_TOLERANCE;
+    double throughputTolerance = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_THROUGHPUT_TOLERANCE;
+
+    List<String> regressions = compare(baseline, results, ratioTolerance, throughputTolerance);
+    for (String regression : regressions)
+      System.err.println("REGRESSION " + regression);
+    if (!regressions.isEmpty())
+      System.exit(1);
+  }
+}
@@ -0,0 +1,323 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Run length / bit packing hybrid encoding, like Parquet's, for streams of unsigned values: long runs of the
+ * same value cost a few bytes whatever the value, everything else is bit-packed on the width of the largest value.
+ * <p>
+ * Layout: the number of values (varint), the bit width (1 byte), then runs until all the values are read:
+ * <ul>
+ * <li>repeated run: the header (length &lt;&lt; 1, varint), then the value on ceil(bitWidth / 8) bytes, little endian</li>
+ * <li>bit-packed run: the header (number of groups of 8 values &lt;&lt; 1 | 1, varint), then the values on bitWidth bits
+ * each, least significant bit first. The last group is padded with zeros.</li>
+ * </ul>
+ * The varints are unsigned LEB128: 7 bits per byte, least significant first, the high bit set when more bytes follow.
+ */
+public final class RleBitPackedHybrid {
+
+  private static final int groupSize = 8;
+  private static final int minRepeatedRunLength = 8; // Shorter repetitions are cheaper bit-packed
+
+  private RleBitPackedHybrid() {
+  }
+
+  public static byte[] encode(byte[] values) {
+    int or = 0;
+    for (byte value : values)
+      or |= value & 0xFF;
+    return encode(values.length, TypeSize.INT32_BITSIZE - Integer.numberOfLeadingZeros(or), i -> values[i] & 0xFF);
+  }
+
+  /**
+   * The values are encoded as unsigned: negative ones take 32 bits.
+   */
+  public static byte[] encode(int[] values) {
+    int or = 0;
+    for (int value : values)
+      or |= value;
+    return encode(values.length, TypeSize.INT32_BITSIZE - Integer.numberOfLeadingZeros(or), i -> values[i] & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The values are encoded as unsigned: negative ones take 64 bits.
+   */
+  public static byte[] encode(long[] values) {
+    long or = 0;
+    for (long value : values)
+      or |= value;
+    return encode(values.length, TypeSize.INT64_BITSIZE - Long.numberOfLeadingZeros(or), i -> values[i]);
+  }
+
+  /**
+   * @return the values or null when the encoding is not valid
+   */
+  public static byte[] decodeBytes(byte[] encoded) {
+    Reader reader = new Reader(encoded);
+    int numberOfValues = reader.readHeader(TypeSize.BYTE_BITSIZE);
+    if (numberOfValues < 0)
+      return null;
+    byte[] values = new byte[numberOfValues];
+    return reader.readRuns(numberOfValues, new ValueConsumer() {
+      public void set(int index, long value) {
+        values[index] = (byte) value;
+      }
+
+      public void fill(int from, int to, long value) {
+        Arrays.fill(values, from, to, (byte) value);
+      }
+    }) ? values : null;
+  }
+
+  public static int[] decodeInts(byte[] encoded) {
+    Reader reader = new Reader(encoded);
+    int numberOfValues = reader.readHeader(TypeSize.INT32_BITSIZE);
+    if (numberOfValues < 0)
+      return null;
+    int[] values = new int[numberOfValues];
+    return reader.readRuns(numberOfValues, new ValueConsumer() {
+      public void set(int index, long value) {
+        values[index] = (int) value;
+      }
+
+      public void fill(int from, int to, long value) {
+        Arrays.fill(values, from, to, (int) value);
+      }
+    }) ? values : null;
+  }
+
+  public static long[] decodeLongs(byte[] encoded) {
+    Reader reader = new Reader(encoded);
+    int numberOfValues = reader.readHeader(TypeSize.INT64_BITSIZE);
+    if (numberOfValues < 0)
+      return null;
+    long[] values = new long[numberOfValues];
+    return reader.readRuns(numberOfValues, new ValueConsumer() {
+      public void set(int index, long value) {
+        values[index] = value;
+      }
+
+      public void fill(int from, int to, long value) {
+        Arrays.fill(values, from, to, value);
+      }
+    }) ? values : null;
+  }
+
+  private static byte[] encode(int numberOfValues, int bitWidth, IntToLongFunction values) {
+    Writer writer = new Writer(bitWidth);
+    writer.writeUnsignedVarint(numberOfValues);
+    writer.writeByte(bitWidth);
+
+    int literalStart = 0; // The values in [literalStart, idx) are waiting to be bit-packed
+    int idx = 0;
+    while (idx < numberOfValues) {
+      long value = values.applyAsLong(idx);
+      int runLength = 1;
+      while (idx + runLength < numberOfValues && values.applyAsLong(idx + runLength) == value)
+        runLength++;
+
+      if (runLength < minRepeatedRunLength) {
+        idx += runLength;
+        continue;
+      }
+
+      // Only the last bit-packed run can be padded: complete the groups with the first values of the run
+      int numberOfLiterals = idx - literalStart;
+      if (numberOfLiterals > 0) {
+        int padding = (groupSize - numberOfLiterals % groupSize) % groupSize;
+        writer.writeBitPacked(values, literalStart, numberOfLiterals + padding, numberOfValues);
+        idx += padding;
+        runLength -= padding;
+      }
+      writer.writeRepeated(value, runLength);
+      idx += runLength;
+      literalStart = idx;
+    }
+    if (literalStart < numberOfValues)
+      writer.writeBitPacked(values, literalStart, numberOfValues - literalStart, numberOfValues);
+
+    return writer.toByteArray();
+  }
+
+  private static final class Writer {
+    private final int bitWidth;
+    private final int valueByteSize;
+    private byte[] bytes;
+    private int size;
+
+    Writer(int bitWidth) {
+      this.bitWidth = bitWidth;
+      this.valueByteSize = (bitWidth + TypeSize.BYTE_BITSIZE - 1) / TypeSize.BYTE_BITSIZE;
+      // Enough for a single repeated run, grows otherwise
+      this.bytes = new byte[16 + valueByteSize];
+    }
+
+    private void ensureCapacity(long additionalBytes) {
+      long required = size + additionalBytes;
+      if (required > Integer.MAX_VALUE - 8)
+        throw new IllegalArgumentException("The encoded stream does not fit in a byte array: " + required + " bytes");
+      if (required > bytes.length)
+        bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, 2L * bytes.length)));
+    }
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) value;
+    }
+
+    void writeUnsignedVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    void writeRepeated(long value, int runLength) {
+      writeUnsignedVarint((long) runLength << 1);
+      ensureCapacity(valueByteSize);
+      for (int i = 0; i < valueByteSize; i++) {
+        bytes[size++] = (byte) value;
+        value >>>= TypeSize.BYTE_BITSIZE;
+      }
+    }
+
+    /**
+     * @param count a multiple of 8 unless the run goes to the end of the values, the missing values are 0
+     */
+    void writeBitPacked(IntToLongFunction values, int from, int count, int numberOfValues) {
+      int numberOfGroups = (count + groupSize - 1) / groupSize;
+      writeUnsignedVarint((long) numberOfGroups << 1 | 1);
+      ensureCapacity((long) numberOfGroups * bitWidth); // 8 values of bitWidth bits = bitWidth bytes
+
+      long buffer = 0;
+      int bufferedBits = 0;
+      int end = from + numberOfGroups * groupSize;
+      for (int idx = from; idx < end; idx++) {
+        long value = idx < numberOfValues ? values.applyAsLong(idx) : 0L;
+        buffer |= value << bufferedBits;
+        int totalBits = bufferedBits + bitWidth;
+        if (totalBits >= TypeSize.INT64_BITSIZE) {
+          for (int i = 0; i < TypeSize.INT64_BYTESIZE; i++) {
+            bytes[size++] = (byte) buffer;
+            buffer >>>= TypeSize.BYTE_BITSIZE;
+          }
+          totalBits -= TypeSize.INT64_BITSIZE;
+          buffer = totalBits == 0 ? 0L : value >>> (bitWidth - totalBits);
+        }
+        bufferedBits = totalBits;
+        while (bufferedBits >= TypeSize.BYTE_BITSIZE) {
+          bytes[size++] = (byte) buffer;
+          buffer >>>= TypeSize.BYTE_BITSIZE;
+          bufferedBits -= TypeSize.BYTE_BITSIZE;
+        }
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+
+  private interface ValueConsumer {
+    void set(int index, long value);
+
+    void fill(int from, int to, long value);
+  }
+
+  private static final class Reader {
+    private final byte[] bytes;
+    private int position;
+    private int bitWidth;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * @return the number of values, -1 when the header is not valid
+     */
+    int readHeader(int maxBitWidth) {
+      try {
+        long numberOfValues = readUnsignedVarint();
+        bitWidth = bytes[position++];
+        if (numberOfValues > Integer.MAX_VALUE - 8 || bitWidth < 0 || bitWidth > maxBitWidth) {
+          System.err.println("Wrong RLE header. Number of values: " + numberOfValues + " bit width: " + bitWidth);
+          return -1;
+        }
+        return (int) numberOfValues;
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.err.println("Truncated RLE header.");
+        return -1;
+      }
+    }
+
+    boolean readRuns(int numberOfValues, ValueConsumer consumer) {
+      int valueByteSize = (bitWidth + TypeSize.BYTE_BITSIZE - 1) / TypeSize.BYTE_BITSIZE;
+      long mask = bitWidth == TypeSize.INT64_BITSIZE ? -1L : (1L << bitWidth) - 1;
+      try {
+        int idx = 0;
+        while (idx < numberOfValues) {
+          long header = readUnsignedVarint();
+          if ((header & 1) == 0) {
+            long runLength = header >>> 1;
+            if (runLength == 0 || runLength > numberOfValues - idx) {
+              System.err.println("Wrong RLE run length: " + runLength + " at value " + idx);
+              return false;
+            }
+            long value = 0;
+            for (int i = 0; i < valueByteSize; i++)
+              value |= (bytes[position++] & 0xFFL) << (i * TypeSize.BYTE_BITSIZE);
+            consumer.fill(idx, idx + (int) runLength, value);
+            idx += (int) runLength;
+          } else {
+            long numberOfGroups = header >>> 1;
+            long runLength = numberOfGroups * groupSize;
+            if (numberOfGroups == 0 || runLength - groupSize >= numberOfValues - idx) {
+              System.err.println("Wrong bit-packed run length: " + runLength + " at value " + idx);
+              return false;
+            }
+            long bitOffset = (long) position * TypeSize.BYTE_BITSIZE;
+            int end = (int) Math.min(numberOfValues, idx + runLength);
+            for (; idx < end; idx++) {
+              consumer.set(idx, readBits(bitOffset) & mask);
+              bitOffset += bitWidth;
+            }
+            position += (int) (numberOfGroups * bitWidth);
+            if (position > bytes.length)
+              throw new ArrayIndexOutOfBoundsException(position);
+          }
+        }
+        return true;
+      } catch (ArrayIndexOutOfBoundsException e) {
+        System.err.println("Truncated RLE stream.");
+        return false;
+      }
+    }
+
+    private long readBits(long bitOffset) {
+      int index = (int) (bitOffset >>> 3);
+      int shift = (int) (bitOffset & 7);
+      long value = 0;
+      for (int gathered = -shift; gathered < bitWidth; gathered += TypeSize.BYTE_BITSIZE) {
+        long b = bytes[index++] & 0xFFL;
+        value |= gathered >= 0 ? b << gathered : b >>> -gathered;
+      }
+      return value;
+    }
+
+    private long readUnsignedVarint() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[position++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0 && shift < TypeSize.INT64_BITSIZE);
+      return value;
+    }
+  }
+}
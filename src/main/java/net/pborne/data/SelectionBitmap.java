@@ -0,0 +1,102 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-length bitmap where bit i is set when the row i is selected.
+ * Bit i is stored in words[i / 64] at position i % 64.
+ */
+public class SelectionBitmap {
+
+  public final int length;
+  final long[] words;
+
+  public SelectionBitmap(int length) {
+    this(length, new long[(length + 63) >>> 6]);
+  }
+
+  SelectionBitmap(int length, long[] words) {
+    this.length = length;
+    this.words = words;
+  }
+
+  public static SelectionBitmap all(int length) {
+    SelectionBitmap bitmap = new SelectionBitmap(length);
+    Arrays.fill(bitmap.words, 0xFFFFFFFFFFFFFFFFL);
+    bitmap.clearPadding();
+    return bitmap;
+  }
+
+  public boolean get(int position) {
+    return (words[position >>> 6] & (1L << position)) != 0; // The shift only uses the low 6 bits
+  }
+
+  public void set(int position) {
+    words[position >>> 6] |= 1L << position;
+  }
+
+  public int cardinality() {
+    int cardinality = 0;
+    for (long word : words)
+      cardinality += Long.bitCount(word);
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    for (long word : words)
+      if (word != 0)
+        return false;
+    return true;
+  }
+
+  public SelectionBitmap and(SelectionBitmap other) {
+    checkLength(other);
+    long[] result = new long[words.length];
+    for (int i = 0; i < words.length; i++)
+      result[i] = words[i] & other.words[i];
+    return new SelectionBitmap(length, result);
+  }
+
+  public SelectionBitmap or(SelectionBitmap other) {
+    checkLength(other);
+    long[] result = new long[words.length];
+    for (int i = 0; i < words.length; i++)
+      result[i] = words[i] | other.words[i];
+    return new SelectionBitmap(length, result);
+  }
+
+  public SelectionBitmap not() {
+    long[] result = new long[words.length];
+    for (int i = 0; i < words.length; i++)
+      result[i] = ~words[i];
+    SelectionBitmap bitmap = new SelectionBitmap(length, result);
+    bitmap.clearPadding();
+    return bitmap;
+  }
+
+  /**
+   * @return the selected positions, in ascending order
+   */
+  public int[] toPositions() {
+    int[] positions = new int[cardinality()];
+    int offset = 0;
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      while (word != 0) {
+        positions[offset++] = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1; // Clear the lowest bit set
+      }
+    }
+    return positions;
+  }
+
+  private void clearPadding() {
+    if ((length & 0b111111) != 0)
+      words[words.length - 1] &= 0xFFFFFFFFFFFFFFFFL >>> (64 - (length & 0b111111));
+  }
+
+  private void checkLength(SelectionBitmap other) {
+    if (other.length != length)
+      throw new IllegalArgumentException("The bitmaps have different lengths: " + length + " and " + other.length);
+  }
+}
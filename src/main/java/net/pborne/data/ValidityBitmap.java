@@ -0,0 +1,281 @@
+package net.pborne.data;
+
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap of the valid (non-null) positions of a column.
+ * <p>
+ * Like Roaring bitmaps, the positions are split in chunks of 2^16 and each chunk is stored in
+ * whichever container is the smallest:
+ * - an array of the valid positions (2 bytes per valid position), good for very sparse chunks
+ * - a plain bitmap (8 kiloBytes), good for chunks where valid and null positions are mixed
+ * - a list of runs of valid positions (4 bytes per run), good for long gaps and long stretches
+ * Chunks without any valid position take no space at all.
+ */
+public class ValidityBitmap {
+
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int WORDS_PER_CHUNK = CHUNK_SIZE / TypeSize.INT64_BITSIZE;
+  private static final int BITMAP_CONTAINER_BYTESIZE = CHUNK_SIZE / TypeSize.BYTE_BITSIZE;
+
+  /**
+   * Receives the runs of valid positions, in ascending order.
+   */
+  public interface RunVisitor {
+    void visit(int start, int length);
+  }
+
+  public final int length;
+  private final Container[] containers; // One per chunk, null when the chunk has no valid position
+  private final int cardinality;
+
+  private ValidityBitmap(int length, Container[] containers, int cardinality) {
+    this.length = length;
+    this.containers = containers;
+    this.cardinality = cardinality;
+  }
+
+  /**
+   * NaN values are considered as null.
+   */
+  public static ValidityBitmap fromNaN(double[] values) {
+    long[] words = new long[(values.length + 63) >>> 6];
+    for (int i = 0; i < values.length; i++)
+      if (values[i] == values[i]) // Only NaN is not equal to itself
+        words[i >>> 6] |= 1L << i;
+    return fromWords(words, values.length);
+  }
+
+  public static ValidityBitmap fromBooleans(boolean[] valid) {
+    long[] words = new long[(valid.length + 63) >>> 6];
+    for (int i = 0; i < valid.length; i++)
+      if (valid[i])
+        words[i >>> 6] |= 1L << i;
+    return fromWords(words, valid.length);
+  }
+
+  public static ValidityBitmap fromSelection(SelectionBitmap selection) {
+    return fromWords(selection.words, selection.length);
+  }
+
+  private static ValidityBitmap fromWords(long[] words, int length) {
+    Container[] containers = new Container[(length + CHUNK_SIZE - 1) >>> CHUNK_BITS];
+    int totalCardinality = 0;
+
+    for (int chunk = 0; chunk < containers.length; chunk++) {
+      int startFrom = chunk * WORDS_PER_CHUNK;
+      int endAt = Math.min(startFrom + WORDS_PER_CHUNK, words.length);
+
+      int cardinality = 0;
+      int numberOfRuns = 0;
+      long previousWord = 0;
+      for (int w = startFrom; w < endAt; w++) {
+        long word = words[w];
+        cardinality += Long.bitCount(word);
+        // A run starts at each set bit whose predecessor is not set
+        numberOfRuns += Long.bitCount(word & ~((word << 1) | (previousWord >>> 63)));
+        previousWord = word;
+      }
+
+      totalCardinality += cardinality;
+      if (cardinality == 0)
+        continue;
+
+      int arraySize = cardinality * TypeSize.SHORT_BYTESIZE;
+      int runSize = numberOfRuns * 2 * TypeSize.SHORT_BYTESIZE;
+      if (runSize <= arraySize && runSize <= BITMAP_CONTAINER_BYTESIZE)
+        containers[chunk] = RunContainer.build(words, startFrom, endAt, numberOfRuns);
+      else if (arraySize <= BITMAP_CONTAINER_BYTESIZE)
+        containers[chunk] = ArrayContainer.build(words, startFrom, endAt, cardinality);
+      else
+        containers[chunk] = new BitmapContainer(Arrays.copyOfRange(words, startFrom, startFrom + WORDS_PER_CHUNK), cardinality);
+    }
+
+    return new ValidityBitmap(length, containers, totalCardinality);
+  }
+
+  public boolean isValid(int position) {
+    Container container = containers[position >>> CHUNK_BITS];
+    return container != null && container.contains((char) position);
+  }
+
+  /**
+   * @return the number of valid positions
+   */
+  public int cardinality() {
+    return cardinality;
+  }
+
+  public void forEachValidRun(RunVisitor visitor) {
+    for (int chunk = 0; chunk < containers.length; chunk++)
+      if (containers[chunk] != null)
+        containers[chunk].forEachRun(chunk << CHUNK_BITS, visitor);
+  }
+
+  /**
+   * @return the number of bytes used by the containers
+   */
+  public int sizeInBytes() {
+    int size = 0;
+    for (Container container : containers)
+      if (container != null)
+        size += container.sizeInBytes();
+    return size;
+  }
+
+  private abstract static class Container {
+    abstract boolean contains(char position);
+
+    abstract void forEachRun(int chunkOffset, RunVisitor visitor);
+
+    abstract int sizeInBytes();
+  }
+
+  private static final class ArrayContainer extends Container {
+    private final char[] positions;
+
+    private ArrayContainer(char[] positions) {
+      this.positions = positions;
+    }
+
+    static ArrayContainer build(long[] words, int startFrom, int endAt, int cardinality) {
+      char[] positions = new char[cardinality];
+      int offset = 0;
+      for (int w = startFrom; w < endAt; w++) {
+        long word = words[w];
+        while (word != 0) {
+          positions[offset++] = (char) (((w - startFrom) << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1; // Clear the lowest bit set
+        }
+      }
+      return new ArrayContainer(positions);
+    }
+
+    @Override
+    boolean contains(char position) {
+      return Arrays.binarySearch(positions, position) >= 0;
+    }
+
+    @Override
+    void forEachRun(int chunkOffset, RunVisitor visitor) {
+      int i = 0;
+      while (i < positions.length) {
+        int start = positions[i];
+        int end = i + 1;
+        while (end < positions.length && positions[end] == positions[end - 1] + 1)
+          end++;
+        visitor.visit(chunkOffset + start, end - i);
+        i = end;
+      }
+    }
+
+    @Override
+    int sizeInBytes() {
+      return positions.length * TypeSize.SHORT_BYTESIZE;
+    }
+  }
+
+  private static final class BitmapContainer extends Container {
+    private final long[] words;
+    private final int cardinality;
+
+    private BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(char position) {
+      return (words[position >>> 6] & (1L << position)) != 0;
+    }
+
+    @Override
+    void forEachRun(int chunkOffset, RunVisitor visitor) {
+      int position = nextSetBit(0);
+      while (position >= 0) {
+        int end = nextClearBit(position);
+        visitor.visit(chunkOffset + position, end - position);
+        position = end < CHUNK_SIZE ? nextSetBit(end) : -1;
+      }
+    }
+
+    private int nextSetBit(int from) {
+      int w = from >>> 6;
+      long word = words[w] & (0xFFFFFFFFFFFFFFFFL << from);
+      while (word == 0) {
+        if (++w == words.length)
+          return -1;
+        word = words[w];
+      }
+      return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private int nextClearBit(int from) {
+      int w = from >>> 6;
+      long word = ~words[w] & (0xFFFFFFFFFFFFFFFFL << from);
+      while (word == 0) {
+        if (++w == words.length)
+          return CHUNK_SIZE;
+        word = ~words[w];
+      }
+      return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    int sizeInBytes() {
+      return BITMAP_CONTAINER_BYTESIZE;
+    }
+  }
+
+  private static final class RunContainer extends Container {
+    private final char[] starts;
+    private final char[] lengthsMinusOne; // A run can be 2^16 long, which does not fit on 16 bits
+
+    private RunContainer(char[] starts, char[] lengthsMinusOne) {
+      this.starts = starts;
+      this.lengthsMinusOne = lengthsMinusOne;
+    }
+
+    static RunContainer build(long[] words, int startFrom, int endAt, int numberOfRuns) {
+      char[] starts = new char[numberOfRuns];
+      char[] lengthsMinusOne = new char[numberOfRuns];
+      int run = -1;
+      boolean previousBit = false;
+      for (int w = startFrom; w < endAt; w++) {
+        long word = words[w];
+        if (!previousBit && word == 0)
+          continue;
+        for (int bit = 0; bit < 64; bit++) {
+          boolean currentBit = (word & (1L << bit)) != 0;
+          if (currentBit && !previousBit)
+            starts[++run] = (char) (((w - startFrom) << 6) + bit);
+          else if (currentBit)
+            lengthsMinusOne[run]++;
+          previousBit = currentBit;
+        }
+      }
+      return new RunContainer(starts, lengthsMinusOne);
+    }
+
+    @Override
+    boolean contains(char position) {
+      int idx = Arrays.binarySearch(starts, position);
+      if (idx >= 0)
+        return true;
+      int run = -idx - 2; // The run starting right before the position
+      return run >= 0 && position <= starts[run] + lengthsMinusOne[run];
+    }
+
+    @Override
+    void forEachRun(int chunkOffset, RunVisitor visitor) {
+      for (int run = 0; run < starts.length; run++)
+        visitor.visit(chunkOffset + starts[run], lengthsMinusOne[run] + 1);
+    }
+
+    @Override
+    int sizeInBytes() {
+      return starts.length * 2 * TypeSize.SHORT_BYTESIZE;
+    }
+  }
+}
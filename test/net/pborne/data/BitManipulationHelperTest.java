@@ -205,4 +205,33 @@ public class BitManipulationHelperTest {
     }
   }
 
+  @Test
+  public void testHalfAndBFloat16Conversions() {
+    // Every non-NaN 16-bit pattern widens to a float and narrows back to itself
+    for (int bits = 0; bits < 1 << 16; bits++) {
+      short value = (short) bits;
+      float half = BitManipulationHelper.halfToFloat(value);
+      if (!Float.isNaN(half) && BitManipulationHelper.floatToHalf(half) != value)
+        throw new RuntimeException("Half does not round trip: " + Integer.toHexString(bits) + " -> " + half);
+      float bfloat16 = BitManipulationHelper.bfloat16ToFloat(value);
+      if (!Float.isNaN(bfloat16) && BitManipulationHelper.floatToBFloat16(bfloat16) != value)
+        throw new RuntimeException("Bfloat16 does not round trip: " + Integer.toHexString(bits) + " -> " + bfloat16);
+      if (Float.isNaN(half) != Float.isNaN(BitManipulationHelper.halfToFloat(BitManipulationHelper.floatToHalf(half))))
+        throw new RuntimeException("NaN is lost: " + Integer.toHexString(bits));
+    }
+
+    float[] floats = {1.0f, 65504.0f, 65520.0f, 0x1p-24f, 0x1p-25f, 1.0f / 3.0f, -2.5f, Float.NaN};
+    short[] expectedHalves = {0x3C00, 0x7BFF, 0x7C00, 0x0001, 0x0000, 0x3555, (short) 0xC100, 0x7E00};
+    short[] expectedBFloat16s = {0x3F80, 0x4780, 0x4780, 0x3380, 0x3300, 0x3EAB, (short) 0xC020, 0x7FC0};
+
+    short[] halves = BitManipulationHelper.floatsToHalves(floats, 0, floats.length);
+    short[] bfloat16s = BitManipulationHelper.floatsToBFloat16s(floats, 0, floats.length);
+    for (int i = 0; i < floats.length; i++) {
+      if (halves[i] != expectedHalves[i])
+        throw new RuntimeException("Wrong half for " + floats[i] + ": " + Integer.toHexString(halves[i] & 0xFFFF));
+      if (bfloat16s[i] != expectedBFloat16s[i])
+        throw new RuntimeException("Wrong bfloat16 for " + floats[i] + ": " + Integer.toHexString(bfloat16s[i] & 0xFFFF));
+    }
+  }
+
 }
@@ -0,0 +1,103 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+
+public class BlockCompressedDoubleArrayTest {
+
+  @Test
+  public void testEncodeDecode() throws Exception {
+    double[] originalDoubles = new double[10000]; // Not a multiple of the block size
+    for (int i = 0; i < originalDoubles.length; i++)
+      originalDoubles[i] = i % 97 == 0 ? Double.NaN : 1.1d + Math.random();
+
+    BlockCompressedDoubleArray compressed = BlockCompressedDoubleArray.encode(originalDoubles, 1024);
+    double[] uncompressed = compressed.decode();
+
+    if (compressed.getNumberOfBlocks() != 10)
+      throw new RuntimeException("Wrong number of blocks: " + compressed.getNumberOfBlocks());
+
+    for (int i = 0; i < originalDoubles.length; i++) {
+      if (Double.doubleToRawLongBits(originalDoubles[i]) != Double.doubleToRawLongBits(uncompressed[i])) {
+        throw new RuntimeException("Values are different: originalDoubles[" + i + "]=" + originalDoubles[i] +
+            " uncompressed[" + i + "]=" + uncompressed[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testStatistics() {
+    double[] values = {3.0d, Double.NaN, -1.5d, 7.25d, Double.NaN};
+    BlockStatistics statistics = BlockStatistics.compute(values, 0, values.length);
+
+    if (statistics.count != 5 || statistics.nanCount != 2 || statistics.min != -1.5d || statistics.max != 7.25d || statistics.sum != 8.75d)
+      throw new RuntimeException("Wrong statistics: " + statistics);
+
+    BlockStatistics allNaN = BlockStatistics.compute(values, 4, 5);
+    if (!allNaN.isAllNaN() || RangePredicate.greaterThan(Double.NEGATIVE_INFINITY).mightMatch(allNaN))
+      throw new RuntimeException("A block of NaN values cannot match: " + allNaN);
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    // Increasing series so that most blocks can be skipped
+    double[] originalDoubles = new double[8192];
+    for (int i = 0; i < originalDoubles.length; i++)
+      originalDoubles[i] = i + Math.random();
+    originalDoubles[5000] = Double.NaN;
+
+    BlockCompressedDoubleArray compressed = BlockCompressedDoubleArray.encode(originalDoubles, 512);
+
+    RangePredicate[] predicates = {
+        RangePredicate.greaterThan(7000.5d),
+        RangePredicate.lessThanOrEqual(10.0d),
+        RangePredicate.between(4000.0d, 6000.0d),
+        RangePredicate.equalTo(originalDoubles[1234]),
+        RangePredicate.greaterThan(1.0e9d)
+    };
+
+    for (RangePredicate predicate : predicates) {
+      int[] positions = compressed.scan(predicate);
+
+      int expected = 0;
+      for (int i = 0; i < originalDoubles.length; i++) {
+        if (!predicate.test(originalDoubles[i]))
+          continue;
+        if (expected >= positions.length || positions[expected] != i)
+          throw new RuntimeException("Missing position " + i + " for predicate " + predicate);
+        expected++;
+      }
+      if (expected != positions.length)
+        throw new RuntimeException("Too many positions for predicate " + predicate + ": " + positions.length + " instead of " + expected);
+    }
+  }
+
+  @Test
+  public void testDoubleStream() {
+    double[] originalDoubles = DatasetGenerators.randomWalk(100000, 42L, 0.0d, 1.0d);
+    BlockCompressedDoubleArray compressed = BlockCompressedDoubleArray.encode(originalDoubles, 1000);
+
+    // Split on block boundaries, down to single blocks
+    Spliterator.OfDouble spliterator = compressed.spliterator();
+    Spliterator.OfDouble prefix = spliterator.trySplit();
+    if (prefix.estimateSize() != 50000 || spliterator.estimateSize() != 50000 || !spliterator.hasCharacteristics(Spliterator.SUBSIZED))
+      throw new RuntimeException("Wrong split: " + prefix.estimateSize() + " " + spliterator.estimateSize());
+    spliterator.tryAdvance((double value) -> {
+    });
+    if (spliterator.trySplit() != null || spliterator.estimateSize() != 49999)
+      throw new RuntimeException("A started block cannot be split");
+
+    for (boolean parallel : new boolean[]{false, true}) {
+      if (!Arrays.equals(originalDoubles, compressed.doubleStream(parallel).toArray()))
+        throw new RuntimeException("Values are different, parallel: " + parallel);
+      long positives = compressed.doubleStream(parallel).filter(value -> value > 0.0d).count();
+      if (positives != Arrays.stream(originalDoubles).filter(value -> value > 0.0d).count())
+        throw new RuntimeException("Wrong number of positive values, parallel: " + parallel);
+      double sum = compressed.doubleStream(parallel).map(Math::abs).sum();
+      if (Math.abs(sum - Arrays.stream(originalDoubles).map(Math::abs).sum()) > 1.0e-6d * sum)
+        throw new RuntimeException("Wrong sum, parallel: " + parallel);
+    }
+  }
+}
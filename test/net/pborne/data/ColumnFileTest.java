@@ -0,0 +1,125 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ColumnFileTest {
+
+  @Test
+  public void testCompressedDoubleArraySerialization() throws Exception {
+    double[] values = DatasetGenerators.randomWalk(1000, 42L, 100.0d, 0.1d);
+    CompressedDoubleArray compressed = Compression.deltaXorEncode64(values);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    compressed.writeTo(new DataOutputStream(outputStream));
+    CompressedDoubleArray readBack = CompressedDoubleArray.readFrom(new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+
+    if (readBack.compressedSizeInBytes() != compressed.compressedSizeInBytes() || readBack.width != compressed.width)
+      throw new RuntimeException("The compressed array does not round trip");
+    if (!Arrays.equals(values, Compression.deltaXorDecode64(readBack)))
+      throw new RuntimeException("The values do not round trip");
+  }
+
+  @Test
+  public void testDoubleColumn() throws Exception {
+    double[] values = DatasetGenerators.sparse(2500, 42L, 0.5d);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (ColumnFileWriter writer = new ColumnFileWriter(outputStream, ColumnFile.Type.DOUBLE, 1000)) {
+      for (double value : values)
+        writer.writeDouble(value);
+      if (writer.getNumberOfBlocks() != 2)
+        throw new RuntimeException("The full blocks should be written as soon as they are full");
+    }
+
+    try (ColumnFileReader reader = new ColumnFileReader(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      if (reader.getType() != ColumnFile.Type.DOUBLE || reader.getBlockSize() != 1000)
+        throw new RuntimeException("Wrong header");
+      double[] decoded = new double[0];
+      double[] block;
+      while ((block = reader.readDoubleBlock()) != null) {
+        decoded = Arrays.copyOf(decoded, decoded.length + block.length);
+        System.arraycopy(block, 0, decoded, decoded.length - block.length, block.length);
+      }
+      if (!Arrays.equals(values, decoded))
+        throw new RuntimeException("The values do not round trip");
+      if (reader.readDoubleBlock() != null)
+        throw new RuntimeException("Reading after the end should return null");
+    }
+  }
+
+  @Test
+  public void testIntegralColumns() throws Exception {
+    long[] timestamps = DatasetGenerators.timestamps(3000, 42L, 1700000000000L, 1000L, 3L);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (ColumnFileWriter writer = new ColumnFileWriter(outputStream, ColumnFile.Type.LONG, 1024)) {
+      for (long timestamp : timestamps)
+        writer.writeLong(timestamp);
+    }
+    if (outputStream.size() > timestamps.length) // Delta of delta should be picked, well below 1 byte per value
+      throw new RuntimeException("The timestamps should compress better: " + outputStream.size() + " bytes");
+
+    try (ColumnFileReader reader = new ColumnFileReader(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      long[] first = reader.readLongBlock();
+      if (first.length != 1024 || !Arrays.equals(first, Arrays.copyOf(timestamps, 1024)))
+        throw new RuntimeException("Wrong first block");
+      reader.readLongBlock();
+      double[] last = reader.readBlockAsDoubles();
+      if (last.length != 3000 - 2048 || last[last.length - 1] != timestamps[timestamps.length - 1])
+        throw new RuntimeException("Wrong last block");
+    }
+
+    outputStream = new ByteArrayOutputStream();
+    try (ColumnFileWriter writer = new ColumnFileWriter(outputStream, ColumnFile.Type.INT, 10)) {
+      for (int i = -5; i < 5; i++)
+        writer.writeLong(i * 1000);
+      try {
+        writer.writeLong(1L << 40);
+        throw new RuntimeException("A long value should not fit in an INT column");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    try (ColumnFileReader reader = new ColumnFileReader(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      int[] block = reader.readIntBlock();
+      if (block.length != 10 || block[0] != -5000 || block[9] != 4000)
+        throw new RuntimeException("Wrong INT block: " + Arrays.toString(block));
+    }
+  }
+
+  @Test
+  public void testNotAColumnFile() throws Exception {
+    try {
+      new ColumnFileReader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}));
+      throw new RuntimeException("The magic number should be checked");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testCorruptedPackedLength() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (ColumnFileWriter writer = new ColumnFileWriter(outputStream, ColumnFile.Type.LONG, 100)) {
+      for (int i = 0; i < 100; i++)
+        writer.writeLong(i * 7L);
+    }
+
+    // Header (11 bytes), number of values (4 bytes), codec (1 byte), then the length of the packed longs
+    for (int length : new int[]{-1, Integer.MAX_VALUE, 1000}) {
+      byte[] corrupted = outputStream.toByteArray();
+      for (int i = 0; i < 4; i++)
+        corrupted[16 + i] = (byte) (length >>> (24 - 8 * i));
+      try (ColumnFileReader reader = new ColumnFileReader(new ByteArrayInputStream(corrupted))) {
+        reader.readLongBlock();
+        throw new RuntimeException("A corrupted length should be rejected: " + length);
+      } catch (IOException expected) {
+      }
+    }
+  }
+}
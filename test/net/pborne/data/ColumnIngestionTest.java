@@ -0,0 +1,148 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+public class ColumnIngestionTest {
+
+  private static File newDirectory() throws IOException {
+    return Files.createTempDirectory("ingestion").toFile();
+  }
+
+  private static void delete(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    directory.delete();
+  }
+
+  private static double[] readDoubles(File file) throws IOException {
+    double[] values = new double[0];
+    try (ColumnFileReader reader = new ColumnFileReader(new FileInputStream(file))) {
+      double[] block;
+      while ((block = reader.readBlockAsDoubles()) != null) {
+        values = Arrays.copyOf(values, values.length + block.length);
+        System.arraycopy(block, 0, values, values.length - block.length, block.length);
+      }
+    }
+    return values;
+  }
+
+  private static void check(Map<String, File> files, String column, double... expected) throws IOException {
+    if (!files.containsKey(column))
+      throw new RuntimeException("Missing column " + column + " in " + files.keySet());
+    double[] values = readDoubles(files.get(column));
+    if (!Arrays.equals(expected, values))
+      throw new RuntimeException(column + ": expected " + Arrays.toString(expected) + " got " + Arrays.toString(values));
+  }
+
+  private static ByteArrayInputStream input(String text) throws IOException {
+    return new ByteArrayInputStream(text.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testJsonLines() throws Exception {
+    File directory = newDirectory();
+    try {
+      ColumnIngestion ingestion = new ColumnIngestion(directory, 2);
+      long numberOfRecords = ingestion.ingestJsonLines(input(
+          "{\"id\": 1, \"price\": 10.5, \"name\": \"a\", \"position\": {\"x\": 1, \"y\": 2}}\n" +
+              "{\"id\": 2, \"price\": null, \"tags\": [1, 2], \"position\": {\"x\": 3, \"y\": 4}}\n" +
+              "{\"id\": 3, \"price\": \"12.25\", \"volume\": 7}\n"));
+      ingestion.close();
+
+      if (numberOfRecords != 3)
+        throw new RuntimeException("Wrong number of records: " + numberOfRecords);
+      Map<String, File> files = ingestion.getColumnFiles();
+      if (files.containsKey("name") || files.containsKey("tags"))
+        throw new RuntimeException("Only the numeric fields are columns: " + files.keySet());
+      check(files, "id", 1, 2, 3);
+      check(files, "price", 10.5, Double.NaN, 12.25);
+      check(files, "position.x", 1, 3, Double.NaN);
+      check(files, "volume", Double.NaN, Double.NaN, 7); // Discovered late, back-filled
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testCsvWithDeclaredColumns() throws Exception {
+    File directory = newDirectory();
+    try {
+      StringBuilder csv = new StringBuilder("time,\"label, quoted\",value,ignored\n");
+      for (int i = 0; i < 1000; i++)
+        csv.append(1700000000000L + i * 1000L).append(",\"x, \"\"").append(i).append("\"\"\",").append(i % 10 == 0 ? "" : Double.toString(i / 4.0d)).append(",").append(i).append('\n');
+
+      ColumnIngestion ingestion = new ColumnIngestion(directory, 128)
+          .declareColumn("time", ColumnFile.Type.LONG)
+          .declareColumn("value", ColumnFile.Type.FLOAT);
+      ingestion.ingestCsv(input(csv.toString()), ',');
+      ingestion.close();
+
+      Map<String, File> files = ingestion.getColumnFiles();
+      if (files.size() != 2)
+        throw new RuntimeException("Only the declared columns should be ingested: " + files.keySet());
+
+      try (ColumnFileReader reader = new ColumnFileReader(new FileInputStream(files.get("time")))) {
+        long[] block = reader.readLongBlock();
+        if (block.length != 128 || block[127] != 1700000000000L + 127 * 1000L)
+          throw new RuntimeException("Wrong time column");
+      }
+      double[] values = readDoubles(files.get("value"));
+      if (values.length != 1000 || !Double.isNaN(values[0]) || values[3] != 0.75d)
+        throw new RuntimeException("Wrong value column");
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testXml() throws Exception {
+    File directory = newDirectory();
+    try {
+      ColumnIngestion ingestion = new ColumnIngestion(directory, 16);
+      ingestion.ingestXml(input(
+          "<?xml version=\"1.0\"?><export><rows>" +
+              "<row id=\"1\"><temperature>20.5</temperature><sensor><humidity>40</humidity></sensor><site>north</site></row>" +
+              "<row id=\"2\"><temperature><![CDATA[21.0]]></temperature></row>" +
+              "</rows></export>"), "row");
+      ingestion.close();
+
+      Map<String, File> files = ingestion.getColumnFiles();
+      check(files, "id", 1, 2);
+      check(files, "temperature", 20.5, 21.0);
+      check(files, "sensor.humidity", 40, Double.NaN);
+      if (files.containsKey("site"))
+        throw new RuntimeException("Text fields are not columns");
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    File directory = newDirectory();
+    try {
+      ColumnIngestion ingestion = new ColumnIngestion(directory, 16).declareColumn("count", ColumnFile.Type.INT);
+      try {
+        ingestion.ingestJsonLines(input("{\"count\": 1}\n{\"count\": 2.5}\n"));
+        throw new RuntimeException("A fractional value cannot be stored in an INT column");
+      } catch (IOException expected) {
+      }
+      ingestion.close();
+
+      if (!ColumnIngestion.fileName("../../etc/passwd").equals("_._.._etc_passwd.pbcc"))
+        throw new RuntimeException("The file names must stay in the output directory: " + ColumnIngestion.fileName("../../etc/passwd"));
+    } finally {
+      delete(directory);
+    }
+  }
+}
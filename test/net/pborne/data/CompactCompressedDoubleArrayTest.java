@@ -0,0 +1,73 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class CompactCompressedDoubleArrayTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    double[] walk = DatasetGenerators.randomWalk(10000, 42L, 0.0d, 0.1d);
+    double[] counter = new double[1000];
+    for (int i = 0; i < counter.length; i++)
+      counter[i] = 1000000 + 3 * i;
+    double[] constant = new double[1000];
+    Arrays.fill(constant, -2.5d);
+
+    // The three streams, the downcasts (null streams), the constant streams and the small arrays
+    for (double[] original : new double[][]{walk, counter, constant, Arrays.copyOf(walk, 10)}) {
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(original);
+      CompactCompressedDoubleArray compact = CompactCompressedDoubleArray.of(compressed);
+
+      if (compact.width() != compressed.width || compact.flags() != compressed.flags
+          || compact.uncompressedArrayLength() != compressed.uncompressedArrayLength)
+        throw new RuntimeException("Wrong header: " + compact.width() + " " + compact.flags() + " " + compact.uncompressedArrayLength());
+
+      byte[][] streams = {compressed.compressedSigns, compressed.compressedExponents, compressed.compressedSignificands};
+      CompressionAlgorithms[] algorithms = {compressed.signsAlgorithm, compressed.exponentsAlgorithm, compressed.significandsAlgorithm};
+      for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values()) {
+        ByteBuffer view = compact.stream(stream);
+        byte[] bytes = view == null ? null : new byte[view.remaining()];
+        if (view != null)
+          view.get(bytes);
+        if (!Arrays.equals(streams[stream.ordinal()], bytes) || compact.algorithm(stream) != algorithms[stream.ordinal()])
+          throw new RuntimeException("Wrong view of the " + stream + " stream");
+      }
+
+      // Smaller than the serialized array, which has fixed size lengths
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      compressed.writeTo(new DataOutputStream(serialized));
+      if (compact.sizeInBytes() >= serialized.size())
+        throw new RuntimeException("The compact array is not smaller: " + compact.sizeInBytes() + " >= " + serialized.size());
+
+      // Off heap and back
+      ByteBuffer direct = ByteBuffer.allocateDirect(compact.sizeInBytes() + 3);
+      direct.put((byte) 1);
+      compact.writeTo(direct);
+      direct.flip().get();
+      CompactCompressedDoubleArray read = CompactCompressedDoubleArray.readFrom(direct);
+      if (direct.hasRemaining() || !Arrays.equals(compact.toByteArray(), read.toByteArray()))
+        throw new RuntimeException("The array does not survive a direct buffer");
+
+      double[] decoded = Compression.deltaXorDecode64(CompactCompressedDoubleArray.wrap(read.toByteArray()).toCompressedDoubleArray());
+      if (!Arrays.equals(original, decoded))
+        throw new RuntimeException("Values are different");
+    }
+  }
+
+  @Test
+  public void testMalformedInput() {
+    byte[] bytes = CompactCompressedDoubleArray.of(Compression.deltaXorEncode32(new float[]{1.0f, 2.0f, 3.0f})).toByteArray();
+    for (byte[] malformed : new byte[][]{Arrays.copyOf(bytes, bytes.length - 1), Arrays.copyOf(bytes, bytes.length + 1), Arrays.copyOf(bytes, 3)}) {
+      try {
+        CompactCompressedDoubleArray.wrap(malformed);
+        throw new RuntimeException("A malformed array of " + malformed.length + " bytes must be rejected");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
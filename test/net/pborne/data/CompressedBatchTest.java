@@ -0,0 +1,76 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CompressedBatchTest {
+
+  @Test
+  public void testRoundTrips() throws Exception {
+    double[][] arrays = new double[300][];
+    List<float[]> floatArrays = new ArrayList<>();
+    for (int i = 0; i < arrays.length; i++) {
+      // Short series, a few empty and small ones
+      arrays[i] = i % 50 == 0 ? new double[0] : DatasetGenerators.randomWalk(i % 7 == 0 ? 10 : 200, i, 100.0d, 0.1d);
+      float[] floats = new float[arrays[i].length];
+      for (int j = 0; j < floats.length; j++)
+        floats[j] = (float) arrays[i][j];
+      floatArrays.add(floats);
+    }
+
+    long separateSize = -1;
+    for (boolean parallel : new boolean[]{false, true})
+      for (boolean concatenate : new boolean[]{false, true}) {
+        CompressedBatch batch = Compression.encodeBatch(arrays, parallel, concatenate);
+        double[][] decoded = batch.decode64();
+        if (batch.numberOfArrays() != arrays.length || !Arrays.deepEquals(arrays, decoded))
+          throw new RuntimeException("Values are different, parallel: " + parallel + " concatenate: " + concatenate);
+        for (int i = 0; i < arrays.length; i += 37)
+          if (!Arrays.equals(arrays[i], batch.decodeArray64(i)))
+            throw new RuntimeException("Wrong array " + i + ", parallel: " + parallel + " concatenate: " + concatenate);
+
+        CompressedBatch floatBatch = Compression.encodeBatch(floatArrays, parallel, concatenate);
+        float[][] decodedFloats = floatBatch.decode32();
+        for (int i = 0; i < floatArrays.size(); i++)
+          if (!Arrays.equals(floatArrays.get(i), decodedFloats[i]))
+            throw new RuntimeException("Floats are different at " + i + ", parallel: " + parallel + " concatenate: " + concatenate);
+
+        if (!concatenate)
+          separateSize = batch.compressedSizeInBytes();
+        else if (batch.compressedSizeInBytes() >= separateSize)
+          throw new RuntimeException("Concatenated streams should be smaller: " + batch.compressedSizeInBytes() + " >= " + separateSize);
+      }
+
+    if (Compression.encodeBatch(new double[0][]).decode64().length != 0
+        || Compression.encodeBatch(new double[][]{{}}, false, true).decodeArray64(0).length != 0)
+      throw new RuntimeException("Empty batches should decode");
+  }
+
+  @Test
+  public void testSharedScratchArrays() throws Exception {
+    double[][] arrays = new double[100][];
+    for (int i = 0; i < arrays.length; i++)
+      arrays[i] = DatasetGenerators.randomWalk(1000, i, 0.0d, 0.1d);
+
+    InMemoryCompressionMetrics inMemory = new InMemoryCompressionMetrics();
+    Compression.setMetrics(inMemory);
+    try {
+      for (double[] array : arrays)
+        Compression.deltaXorEncode64(array);
+      long separateAllocations = inMemory.getAllocatedBytes();
+      inMemory.reset();
+
+      // The scratch arrays are allocated for the first array and reused for the next ones
+      CompressedBatch batch = Compression.encodeBatch(arrays);
+      if (inMemory.getAllocatedBytes() >= separateAllocations / 2)
+        throw new RuntimeException("The batch should reuse its scratch arrays: " + inMemory.getAllocatedBytes() + " >= " + separateAllocations + " / 2");
+      if (!Arrays.deepEquals(arrays, batch.decode64()))
+        throw new RuntimeException("Values are different");
+    } finally {
+      Compression.setMetrics(NoOpCompressionMetrics.INSTANCE);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+
+public class CompressionCliTest {
+
+  private static int run(String... args) throws Exception {
+    return CompressionCli.run(args, new PrintStream(new ByteArrayOutputStream()), new PrintStream(new ByteArrayOutputStream()));
+  }
+
+  @Test
+  public void testCsvRoundTrip() throws Exception {
+    File csv = File.createTempFile("column", ".csv");
+    File compressed = File.createTempFile("column", ".pbcc");
+    File decoded = File.createTempFile("column", ".csv");
+    try {
+      double[] values = DatasetGenerators.tickPrices(5000, 42L, 150.0d, 2);
+      StringBuilder text = new StringBuilder("time;price\n");
+      for (int i = 0; i < values.length; i++)
+        text.append(i).append(';').append(i % 100 == 0 ? "" : Double.toString(values[i])).append('\n');
+      Files.write(csv.toPath(), text.toString().getBytes("UTF-8"));
+
+      if (run("encode", csv.getPath(), compressed.getPath(), "-f", "csv", "-d", ";", "-c", "1", "--header", "-b", "1000") != 0)
+        throw new RuntimeException("encode failed");
+      if (compressed.length() >= csv.length() / 2)
+        throw new RuntimeException("The column file should be smaller: " + compressed.length() + " bytes");
+      if (run("decode", compressed.getPath(), decoded.getPath(), "--format", "CSV") != 0)
+        throw new RuntimeException("decode failed");
+
+      List<String> lines = Files.readAllLines(decoded.toPath());
+      if (lines.size() != values.length)
+        throw new RuntimeException("Wrong number of values: " + lines.size());
+      for (int i = 0; i < values.length; i++) {
+        double expected = i % 100 == 0 ? Double.NaN : values[i];
+        if (Double.compare(expected, Double.parseDouble(lines.get(i))) != 0)
+          throw new RuntimeException("Wrong value at " + i + ": " + lines.get(i) + " != " + expected);
+      }
+    } finally {
+      csv.delete();
+      compressed.delete();
+      decoded.delete();
+    }
+  }
+
+  @Test
+  public void testBinaryRoundTripAndBakeoff() throws Exception {
+    File binary = File.createTempFile("column", ".bin");
+    File compressed = File.createTempFile("column", ".pbcc");
+    File decoded = File.createTempFile("column", ".bin");
+    File report = File.createTempFile("report", ".json");
+    try {
+      long[] values = DatasetGenerators.monotonicCounter(3000, 42L, 1000L);
+      try (DataOutputStream output = new DataOutputStream(new FileOutputStream(binary))) {
+        for (long value : values)
+          output.writeLong(Long.reverseBytes(value)); // Little endian
+      }
+
+      if (run("encode", binary.getPath(), compressed.getPath(), "-t", "long", "--little-endian") != 0)
+        throw new RuntimeException("encode failed");
+      if (run("decode", compressed.getPath(), decoded.getPath(), "--little-endian") != 0)
+        throw new RuntimeException("decode failed");
+      if (!java.util.Arrays.equals(Files.readAllBytes(binary.toPath()), Files.readAllBytes(decoded.toPath())))
+        throw new RuntimeException("The binary column does not round trip");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int status = CompressionCli.run(new String[]{"bakeoff", binary.getPath(), "-t", "LONG", "--little-endian", "-i", "1", "-r", report.getPath()},
+          new PrintStream(out), System.err);
+      String output = out.toString("UTF-8");
+      System.out.println(output);
+      if (status != 0 || !output.contains("DELTA_OF_DELTA") || !output.contains("SIGNIFICANDS"))
+        throw new RuntimeException("Incomplete bake-off: " + output);
+      if (RegressionSuite.readReport(Files.newInputStream(report.toPath())).size() != CompressionCli.codecsFor(ColumnFile.Type.LONG).size())
+        throw new RuntimeException("Incomplete report");
+    } finally {
+      binary.delete();
+      compressed.delete();
+      decoded.delete();
+      report.delete();
+    }
+  }
+
+  @Test
+  public void testIngest() throws Exception {
+    File json = File.createTempFile("export", ".json");
+    File directory = Files.createTempDirectory("columns").toFile();
+    try {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < 100; i++)
+        text.append("{\"t\": ").append(1000 * i).append(", \"v\": ").append(i / 8.0d).append("}\n");
+      Files.write(json.toPath(), text.toString().getBytes("UTF-8"));
+
+      if (run("ingest", json.getPath(), directory.getPath(), "-f", "json", "--columns", "t:long,v") != 0)
+        throw new RuntimeException("ingest failed");
+      try (ColumnFileReader reader = new ColumnFileReader(new java.io.FileInputStream(new File(directory, "t.pbcc")))) {
+        long[] block = reader.readLongBlock();
+        if (reader.getType() != ColumnFile.Type.LONG || block.length != 100 || block[99] != 99000)
+          throw new RuntimeException("Wrong t column");
+      }
+      if (!new File(directory, "v.pbcc").isFile())
+        throw new RuntimeException("Missing v column");
+      if (run("ingest", json.getPath(), directory.getPath(), "-f", "binary") != 2)
+        throw new RuntimeException("ingest does not read binary columns");
+    } finally {
+      json.delete();
+      for (File file : directory.listFiles())
+        file.delete();
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    if (run() != 2 || run("compress", "x") != 2 || run("encode", "x") != 2)
+      throw new RuntimeException("Usage errors should return 2");
+
+    File binary = File.createTempFile("column", ".bin");
+    try {
+      Files.write(binary.toPath(), new byte[]{1, 2, 3, 4, 5});
+      if (run("bakeoff", binary.getPath(), "-t", "int") != 1)
+        throw new RuntimeException("A truncated input should fail");
+    } finally {
+      binary.delete();
+    }
+  }
+}
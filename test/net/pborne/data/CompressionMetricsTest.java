@@ -0,0 +1,170 @@
+package net.pborne.data;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CompressionMetricsTest {
+
+  @Test
+  public void testInMemoryMetrics() throws Exception {
+    double[] values = DatasetGenerators.randomWalk(10000, 42L, 0.0d, 0.1d); // Crosses 0: no constant stream
+    InMemoryCompressionMetrics inMemory = new InMemoryCompressionMetrics();
+
+    Compression.setMetrics(inMemory);
+    try {
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(values);
+      if (!Arrays.equals(values, Compression.deltaXorDecode64(compressed)))
+        throw new RuntimeException("The values do not round trip with the metrics enabled");
+
+      for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values()) {
+        if (inMemory.getEncodedUncompressedBytes(stream) <= 0)
+          throw new RuntimeException("No uncompressed bytes recorded for " + stream);
+        if (inMemory.getEncodedCompressedBytes(stream) != inMemory.getDecodedCompressedBytes(stream))
+          throw new RuntimeException("The encoded and decoded sizes differ for " + stream);
+        if (inMemory.getEncodedUncompressedBytes(stream) != inMemory.getDecodedUncompressedBytes(stream))
+          throw new RuntimeException("The uncompressed sizes differ for " + stream);
+        long chosen = 0;
+        for (CompressionAlgorithms algorithm : CompressionAlgorithms.values())
+          chosen += inMemory.getChosenAlgorithmCount(stream, algorithm);
+        if (chosen != 1)
+          throw new RuntimeException("One algorithm should have been chosen for " + stream);
+      }
+
+      long compressedBytes = 0;
+      for (CompressionMetrics.Stream stream : CompressionMetrics.Stream.values())
+        compressedBytes += inMemory.getEncodedCompressedBytes(stream);
+      if (compressedBytes != compressed.compressedSizeInBytes())
+        throw new RuntimeException("Wrong compressed size: " + compressedBytes + " != " + compressed.compressedSizeInBytes());
+
+      if (inMemory.getEncodeCalls(CompressionMetrics.Stage.STREAM_CODEC) != 3 || inMemory.getDecodeCalls(CompressionMetrics.Stage.STREAM_CODEC) != 3)
+        throw new RuntimeException("Every stream should be timed once");
+      if (inMemory.getEncodeCalls(CompressionMetrics.Stage.SPLIT_XOR) != 1 || inMemory.getDecodeCalls(CompressionMetrics.Stage.REASSEMBLY) != 1)
+        throw new RuntimeException("Missing stages");
+      if (inMemory.getAllocations() == 0 || inMemory.getAllocatedBytes() < (long) values.length * TypeSize.DOUBLE_BYTESIZE)
+        throw new RuntimeException("Missing allocations: " + inMemory.getAllocatedBytes());
+
+      // Each stage is recorded once per encode and once per decode
+      for (CompressionMetrics.Stage stage : new CompressionMetrics.Stage[]{CompressionMetrics.Stage.CONVERSION, CompressionMetrics.Stage.SPLIT_XOR})
+        if (inMemory.getEncodeCalls(stage) != 1 || inMemory.getDecodeCalls(stage) != 1)
+          throw new RuntimeException(stage + " should be recorded once: " + inMemory.getEncodeCalls(stage) + " " + inMemory.getDecodeCalls(stage));
+      if (inMemory.getEncodeCalls(CompressionMetrics.Stage.BIT_PACKING) != 1)
+        throw new RuntimeException("BIT_PACKING should be recorded once: " + inMemory.getEncodeCalls(CompressionMetrics.Stage.BIT_PACKING));
+
+      String json = MetricsJsonExporter.toJson(inMemory);
+      if (jsonField(json, "SIGNIFICANDS", "encodedCompressedBytes") != inMemory.getEncodedCompressedBytes(CompressionMetrics.Stream.SIGNIFICANDS)
+          || jsonField(json, "CONVERSION", "encodeCalls") != 1 || jsonField(json, "REASSEMBLY", "decodeCalls") != 1
+          || jsonField(json, "allocations", "count") != inMemory.getAllocations() || jsonField(json, "allocations", "bytes") != inMemory.getAllocatedBytes())
+        throw new RuntimeException("Wrong snapshot: " + json);
+
+      inMemory.reset();
+      if (inMemory.getAllocations() != 0 || inMemory.getEncodeNanos(CompressionMetrics.Stage.CONVERSION) != 0)
+        throw new RuntimeException("The metrics were not reset");
+    } finally {
+      Compression.setMetrics(NoOpCompressionMetrics.INSTANCE);
+    }
+  }
+
+  @Test
+  public void testDowncastMetrics() throws Exception {
+    double[] wholeNumbers = new double[10000];
+    double[] floats = new double[10000];
+    for (int i = 0; i < wholeNumbers.length; i++) {
+      wholeNumbers[i] = 1000000L + 10L * i + i % 7;
+      floats[i] = (float) Math.sin(i * 0.01d);
+    }
+
+    InMemoryCompressionMetrics inMemory = new InMemoryCompressionMetrics();
+    Compression.setMetrics(inMemory);
+    try {
+      for (double[] values : new double[][]{wholeNumbers, floats}) {
+        inMemory.reset();
+        CompressedDoubleArray compressed = Compression.deltaXorEncode64(values);
+        if ((compressed.flags & (CompressedDoubleArray.FLAG_FLOATS | CompressedDoubleArray.FLAG_WHOLE_NUMBERS | CompressedDoubleArray.FLAG_WHOLE_NUMBER_DELTAS)) == 0)
+          throw new RuntimeException("The values should be downcast");
+        if (inMemory.getEncodeCalls(CompressionMetrics.Stage.CONVERSION) != 1 || inMemory.getEncodeCalls(CompressionMetrics.Stage.BIT_PACKING) != 1
+            || inMemory.getEncodeCalls(CompressionMetrics.Stage.STREAM_CODEC) == 0 || inMemory.getAllocations() == 0)
+          throw new RuntimeException("Missing stages for the flags " + compressed.flags + ": " + MetricsJsonExporter.toJson(inMemory));
+        if (inMemory.getEncodedUncompressedBytes(CompressionMetrics.Stream.SIGNIFICANDS) == 0)
+          throw new RuntimeException("Missing significands for the flags " + compressed.flags);
+      }
+    } finally {
+      Compression.setMetrics(NoOpCompressionMetrics.INSTANCE);
+    }
+  }
+
+  /**
+   * @return the number of the field in the first object of that name
+   */
+  private static long jsonField(String json, String object, String field) throws IOException {
+    try (JsonParser parser = new JsonFactory().createParser(json)) {
+      while (parser.nextToken() != null)
+        if (parser.getCurrentToken() == JsonToken.FIELD_NAME && object.equals(parser.getCurrentName())) {
+          parser.nextToken(); // The start of the object
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals(field))
+              return parser.getLongValue();
+            parser.skipChildren();
+          }
+        }
+    }
+    throw new RuntimeException("No field " + object + "." + field + " in " + json);
+  }
+
+  @Test
+  public void testFloatsRoundTripWithoutMetrics() throws Exception {
+    float[] values = new float[]{1.5f, -2.25f, 0.0f, -0.0f, Float.NaN, Float.MAX_VALUE, Float.MIN_VALUE, 3.0f};
+    float[] decoded = Compression.deltaXorDecode32(Compression.deltaXorEncode32(values));
+    if (!Arrays.equals(values, decoded))
+      throw new RuntimeException("Expected " + Arrays.toString(values) + " got " + Arrays.toString(decoded));
+  }
+
+  @Test
+  public void testFlightRecorderEvents() throws Exception {
+    double[] values = DatasetGenerators.sineWithNoise(5000, 42L, 20.0d, 5.0d, 1440, 0.01d);
+    Path file = Files.createTempFile("compression", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable("net.pborne.data.CompressionStage").withoutThreshold();
+        recording.start();
+        Compression.deltaXorDecode64(Compression.deltaXorEncode64(values));
+        recording.stop();
+        recording.dump(file);
+      }
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+      Set<String> encodeStages = new HashSet<>();
+      Set<String> decodeStages = new HashSet<>();
+      for (RecordedEvent event : events) {
+        if (!event.getEventType().getName().equals("net.pborne.data.CompressionStage"))
+          continue;
+        if (event.getInt("elementCount") != values.length || !"SIXTY_FOUR".equals(event.getString("width")))
+          throw new RuntimeException("Wrong event: " + event);
+        if ("STREAM_CODEC".equals(event.getString("stage")) && (event.getString("codec") == null || event.getString("stream") == null))
+          throw new RuntimeException("The codec events should name the stream and the codec: " + event);
+        ("encode".equals(event.getString("operation")) ? encodeStages : decodeStages).add(event.getString("stage"));
+      }
+
+      if (!encodeStages.equals(new HashSet<>(Arrays.asList("CONVERSION", "SPLIT_XOR", "BIT_PACKING", "STREAM_CODEC"))))
+        throw new RuntimeException("Wrong encode stages: " + encodeStages);
+      if (!decodeStages.equals(new HashSet<>(Arrays.asList("STREAM_CODEC", "CONVERSION", "REASSEMBLY", "SPLIT_XOR"))))
+        throw new RuntimeException("Wrong decode stages: " + decodeStages);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -1,8 +1,14 @@
 package net.pborne.data;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.Arrays;
+import java.util.Random;
 
 public class CompressionTest {
 
@@ -244,4 +250,327 @@ public class CompressionTest {
 
   }
 
+  @Test
+  public void testDeltaXorDowncast64() throws Exception {
+    double[] wholeNumbers = new double[8192];
+    double[] floats = new double[8192];
+    for (int i = 0; i < wholeNumbers.length; i++) {
+      wholeNumbers[i] = 1000000 + 3 * i + i % 5; // A counter
+      floats[i] = (float) (1.1d + Math.random());
+    }
+    wholeNumbers[1] = Math.pow(2, 40);
+    floats[1] = -0.0d;
+    floats[2] = Double.NaN;
+    floats[3] = Double.NEGATIVE_INFINITY;
+
+    double[] mixed = wholeNumbers.clone();
+    mixed[5] = -0.0d; // Not a whole number: the long 0 would lose the sign
+
+    Object[][] cases = {
+        {wholeNumbers, CompressedDoubleArray.FLAG_WHOLE_NUMBERS | CompressedDoubleArray.FLAG_WHOLE_NUMBER_DELTAS},
+        {floats, CompressedDoubleArray.FLAG_FLOATS},
+        {mixed, CompressedDoubleArray.FLAG_FLOATS},
+        {Arrays.copyOf(new double[]{0.1d, 1.0d}, Compression.SMALL_ARRAY_THRESHOLD + 1), 0}, // Small arrays are never downcast
+    };
+
+    for (Object[] testCase : cases) {
+      double[] original = (double[]) testCase[0];
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(original);
+      CompressedDoubleArray notDowncast = Compression.deltaXorEncode64(original, false);
+      int expectedFlags = (Integer) testCase[1];
+      if ((expectedFlags == 0 ? compressed.flags != 0 : (compressed.flags & expectedFlags) == 0) || notDowncast.flags != 0)
+        throw new RuntimeException("Wrong flags: " + compressed.flags + " expected one of: " + expectedFlags);
+      if (compressed.flags != 0 && compressed.compressedSizeInBytes() >= notDowncast.compressedSizeInBytes())
+        throw new RuntimeException("The downcast array is not smaller: " + compressed.compressedSizeInBytes() + " >= " + notDowncast.compressedSizeInBytes());
+
+      // The flags must survive the serialization
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      compressed.writeTo(new DataOutputStream(bytes));
+      compressed = CompressedDoubleArray.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+      double[] uncompressed = Compression.deltaXorDecode64(compressed);
+      for (int i = 0; i < original.length; i++)
+        if (Double.doubleToRawLongBits(original[i]) != Double.doubleToRawLongBits(uncompressed[i]))
+          throw new RuntimeException("Values are different: original[" + i + "]=" + original[i] + " uncompressed[" + i + "]=" + uncompressed[i]);
+    }
+  }
+
+  @Test
+  public void testDeltaXorWith16BitFloats() throws Exception {
+    float[] originalFloats = new float[8192];
+    for (int i = 0; i < originalFloats.length; i++)
+      originalFloats[i] = (float) ((Math.random() - 0.5d) / 8.0d); // Like an embedding
+
+    for (CompressedDoubleArray.WIDTH width : new CompressedDoubleArray.WIDTH[]{CompressedDoubleArray.WIDTH.SIXTEEN, CompressedDoubleArray.WIDTH.BFLOAT16}) {
+      short[] original = width == CompressedDoubleArray.WIDTH.SIXTEEN
+          ? BitManipulationHelper.floatsToHalves(originalFloats, 0, originalFloats.length)
+          : BitManipulationHelper.floatsToBFloat16s(originalFloats, 0, originalFloats.length);
+      original[1] = (short) 0x8000; // -0.0
+
+      CompressedDoubleArray compressed = Compression.deltaXorEncode16(original, width);
+      short[] uncompressed = Compression.deltaXorDecode16(compressed);
+      float[] widened = Compression.deltaXorDecode16ToFloats(compressed);
+
+      for (int i = 0; i < original.length; i++) {
+        if (original[i] != uncompressed[i])
+          throw new RuntimeException(width + " values are different: original[" + i + "]=" + original[i] + " uncompressed[" + i + "]=" + uncompressed[i]);
+        float expected = width == CompressedDoubleArray.WIDTH.SIXTEEN ? BitManipulationHelper.halfToFloat(original[i]) : BitManipulationHelper.bfloat16ToFloat(original[i]);
+        if (Float.floatToRawIntBits(expected) != Float.floatToRawIntBits(widened[i]))
+          throw new RuntimeException(width + " widened values are different: expected[" + i + "]=" + expected + " widened[" + i + "]=" + widened[i]);
+      }
+
+      System.out.println(width + " compressed byte size: " + compressed.compressedSizeInBytes() + " raw: " + original.length * TypeSize.SHORT_BYTESIZE);
+    }
+
+    if (Compression.deltaXorDecode16(Compression.deltaXorEncode64(new double[]{1.5d})) != null)
+      throw new RuntimeException("A 64-bit array must not decode as 16 bits");
+  }
+
+  @Test
+  public void testLossyDeltaXor() throws Exception {
+    double[] originalDoubles = DatasetGenerators.randomWalk(8192, 42L, 100.0d, 0.1d);
+    originalDoubles[1] = -originalDoubles[1];
+    originalDoubles[2] = 0.0d;
+    originalDoubles[3] = Double.NaN;
+    originalDoubles[4] = Double.MIN_VALUE;
+    float[] originalFloats = new float[originalDoubles.length];
+    for (int i = 0; i < originalFloats.length; i++)
+      originalFloats[i] = (float) originalDoubles[i];
+
+    int lossless64 = Compression.deltaXorEncode64(originalDoubles).compressedSizeInBytes();
+    int lossless32 = Compression.deltaXorEncode32(originalFloats).compressedSizeInBytes();
+
+    for (ErrorBound errorBound : new ErrorBound[]{ErrorBound.absolute(0.001d), ErrorBound.relative(1e-4d), ErrorBound.absolute(0.0d)}) {
+      CompressedDoubleArray compressed64 = Compression.deltaXorEncode64(originalDoubles, errorBound);
+      CompressedDoubleArray compressed32 = Compression.deltaXorEncode32(originalFloats, errorBound);
+      double[] doubles = Compression.deltaXorDecode64(compressed64);
+      float[] floats = Compression.deltaXorDecode32(compressed32);
+
+      for (int i = 0; i < originalDoubles.length; i++) {
+        double limit = errorBound.relative ? errorBound.bound * Math.abs(originalDoubles[i]) : errorBound.bound;
+        if (!(Math.abs(doubles[i] - originalDoubles[i]) <= limit) && Double.compare(doubles[i], originalDoubles[i]) != 0)
+          throw new RuntimeException(errorBound + ": original[" + i + "]=" + originalDoubles[i] + " decoded[" + i + "]=" + doubles[i]);
+        limit = errorBound.relative ? errorBound.bound * Math.abs(originalFloats[i]) : errorBound.bound;
+        if (!(Math.abs(floats[i] - originalFloats[i]) <= limit) && Float.compare(floats[i], originalFloats[i]) != 0)
+          throw new RuntimeException(errorBound + ": original[" + i + "]=" + originalFloats[i] + " decoded[" + i + "]=" + floats[i]);
+      }
+
+      System.out.println(errorBound + ": " + compressed64.compressedSizeInBytes() + " bytes vs " + lossless64 + " lossless (64 bits), "
+          + compressed32.compressedSizeInBytes() + " bytes vs " + lossless32 + " lossless (32 bits)");
+      if (errorBound.bound > 0 && (compressed64.compressedSizeInBytes() * 2 > lossless64 || compressed32.compressedSizeInBytes() >= lossless32))
+        throw new RuntimeException(errorBound + " does not compress better than lossless");
+    }
+  }
+
+  @Test
+  public void testFpc() throws Exception {
+    double[] periodic = new double[8192];
+    for (int i = 0; i < periodic.length; i++)
+      periodic[i] = 40.0d + 10.0d * Math.sin(2.0d * Math.PI * (i % 60) / 60.0d);
+    double[] random = new double[8192];
+    for (int i = 0; i < random.length; i++)
+      random[i] = (Math.random() - 0.5d) * Math.pow(10.0d, (int) (Math.random() * 10.0d));
+    random[1] = -0.0d;
+    random[2] = Double.NaN;
+    random[3] = Double.POSITIVE_INFINITY;
+
+    for (double[] original : new double[][]{periodic, random, new double[0]}) {
+      for (int tableSizeBits : new int[]{1, Compression.FPC_DEFAULT_TABLE_SIZE_BITS, 16}) {
+        long[] compressed = Compression.fpcEncode(original, tableSizeBits);
+        double[] uncompressed = Compression.fpcDecode(compressed);
+        if (uncompressed.length != original.length)
+          throw new RuntimeException("Wrong length: " + uncompressed.length + " expected: " + original.length);
+        for (int i = 0; i < original.length; i++)
+          if (Double.doubleToRawLongBits(original[i]) != Double.doubleToRawLongBits(uncompressed[i]))
+            throw new RuntimeException("Values are different: original[" + i + "]=" + original[i] + " uncompressed[" + i + "]=" + uncompressed[i]);
+      }
+    }
+
+    // The FCM predictor learns the period, the previous value does not predict it
+    long fpcBytes = (long) Compression.fpcEncode(periodic).length * TypeSize.INT64_BYTESIZE;
+    System.out.println("Periodic values: FPC " + fpcBytes + " bytes");
+    if (fpcBytes * 8 > (long) periodic.length * TypeSize.DOUBLE_BYTESIZE)
+      throw new RuntimeException("FPC should compress periodic values at least 8 times: " + fpcBytes);
+  }
+
+  @Test
+  public void testConstantStreams() throws Exception {
+    double[] positives = new double[4096];
+    for (int i = 0; i < positives.length; i++)
+      positives[i] = 1.1d + Math.random();
+
+    CompressedDoubleArray compressed = Compression.deltaXorEncode64(positives, false);
+    if (compressed.signsAlgorithm != CompressionAlgorithms.CONSTANT || compressed.exponentsAlgorithm == CompressionAlgorithms.CONSTANT)
+      throw new RuntimeException("Only the signs are constant: " + compressed.signsAlgorithm + " " + compressed.exponentsAlgorithm);
+    if (!Arrays.equals(positives, Compression.deltaXorDecode64(compressed)))
+      throw new RuntimeException("Values are different");
+
+    // Every value the same, including -0.0 and NaN, and single values
+    for (double value : new double[]{-1.5d, -0.0d, Double.NaN, 3.0e300d}) {
+      for (int length : new int[]{1, 4096}) {
+        double[] doubles = new double[length];
+        float[] floats = new float[length];
+        short[] halves = new short[length];
+        Arrays.fill(doubles, value);
+        Arrays.fill(floats, (float) value);
+        Arrays.fill(halves, BitManipulationHelper.floatToHalf((float) value));
+
+        CompressedDoubleArray compressed64 = Compression.deltaXorEncode64(doubles, false);
+        CompressedDoubleArray compressed32 = Compression.deltaXorEncode32(floats);
+        CompressedDoubleArray compressed16 = Compression.deltaXorEncode16(halves, CompressedDoubleArray.WIDTH.SIXTEEN);
+        for (CompressedDoubleArray constant : new CompressedDoubleArray[]{compressed64, compressed32, compressed16})
+          if (!constant.isConstant() || constant.compressedSizeInBytes() > TypeSize.DOUBLE_BYTESIZE + 2)
+            throw new RuntimeException(value + " x " + length + " should be stored as constants: " + constant.compressedSizeInBytes() + " bytes");
+
+        double[] decoded64 = Compression.deltaXorDecode64(compressed64);
+        float[] decoded32 = Compression.deltaXorDecode32(compressed32);
+        short[] decoded16 = Compression.deltaXorDecode16(compressed16);
+        for (int i = 0; i < length; i++)
+          if (Double.doubleToRawLongBits(decoded64[i]) != Double.doubleToRawLongBits(doubles[i])
+              || Float.floatToRawIntBits(decoded32[i]) != Float.floatToRawIntBits(floats[i]) || decoded16[i] != halves[i])
+            throw new RuntimeException("Constant values are different for " + value + " at " + i);
+      }
+    }
+  }
+
+  @Test
+  public void testSmallArrays() throws Exception {
+    Random random = new Random(42L);
+    for (int length = 1; length <= Compression.SMALL_ARRAY_THRESHOLD; length++) {
+      double[][] cases = new double[4][length];
+      for (int i = 0; i < length; i++) {
+        cases[0][i] = random.nextDouble() * 1000.0d - 500.0d;  // Every bit changes: stored as is
+        cases[1][i] = 20.0d + (i % 4) * 0.25d;                  // A few bits change
+        cases[2][i] = 1700000000000.0d + 1000.0d * i;           // A counter
+        cases[3][i] = i % 3 == 0 ? -0.0d : (i % 3 == 1 ? Double.NaN : Double.NEGATIVE_INFINITY);
+      }
+
+      for (double[] doubles : cases) {
+        float[] floats = new float[length];
+        for (int i = 0; i < length; i++)
+          floats[i] = (float) doubles[i];
+
+        CompressedDoubleArray compressed64 = Compression.deltaXorEncode64(doubles);
+        CompressedDoubleArray compressed32 = Compression.deltaXorEncode32(floats);
+        for (CompressedDoubleArray compressed : new CompressedDoubleArray[]{compressed64, compressed32})
+          if (compressed.flags != CompressedDoubleArray.FLAG_SMALL || compressed.compressedSignificands.length > 2 + length * TypeSize.DOUBLE_BYTESIZE)
+            throw new RuntimeException("Wrong small array of " + length + " values: " + compressed.flags + " " + compressed.compressedSizeInBytes());
+
+        // The flag must survive the serialization
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        compressed64.writeTo(new DataOutputStream(bytes));
+        double[] decoded64 = Compression.deltaXorDecode64(CompressedDoubleArray.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        float[] decoded32 = Compression.deltaXorDecode32(compressed32);
+        for (int i = 0; i < length; i++)
+          if (Double.doubleToRawLongBits(decoded64[i]) != Double.doubleToRawLongBits(doubles[i])
+              || Float.floatToRawIntBits(decoded32[i]) != Float.floatToRawIntBits(floats[i]))
+            throw new RuntimeException("Small array values are different at " + i + " of " + length);
+      }
+
+      // Smaller than the three streams when only a few bits change
+      if (length >= 8 && Compression.deltaXorEncode64(cases[1]).compressedSizeInBytes() >= Compression.deltaXorEncode64(cases[1], false).compressedSizeInBytes())
+        throw new RuntimeException("The small array of " + length + " values should be smaller than the three streams");
+    }
+
+    double[] constant = new double[Compression.SMALL_ARRAY_THRESHOLD];
+    Arrays.fill(constant, 1.5d);
+    CompressedDoubleArray compressed = Compression.deltaXorEncode64(constant);
+    if (!compressed.isConstant() || compressed.compressedSizeInBytes() != 1 + TypeSize.DOUBLE_BYTESIZE)
+      throw new RuntimeException("A constant small array is its header and the value: " + compressed.compressedSizeInBytes());
+    if (Compression.deltaXorEncode64(new double[Compression.SMALL_ARRAY_THRESHOLD + 1]).flags == CompressedDoubleArray.FLAG_SMALL)
+      throw new RuntimeException("Only the arrays up to the threshold are small");
+
+    // A truncated stream or a wrong length must not decode
+    compressed = Compression.deltaXorEncode64(new double[]{1.0d, 2.0d, 3.0d});
+    byte[] truncated = Arrays.copyOf(compressed.compressedSignificands, compressed.compressedSignificands.length - 1);
+    if (Compression.deltaXorDecode64(new CompressedDoubleArray(null, null, truncated, null, null, CompressionAlgorithms.NONE,
+        3, CompressedDoubleArray.WIDTH.SIXTY_FOUR, CompressedDoubleArray.FLAG_SMALL)) != null
+        || Compression.deltaXorDecode64(new CompressedDoubleArray(null, null, compressed.compressedSignificands, null, null, CompressionAlgorithms.NONE,
+        4, CompressedDoubleArray.WIDTH.SIXTY_FOUR, CompressedDoubleArray.FLAG_SMALL)) != null)
+      throw new RuntimeException("A malformed small array must not decode");
+  }
+
+  @Test(timeout = 10000)
+  public void testTruncatedZipStream() throws Exception {
+    CompressionAlgorithms[] previousAlgorithms = Compression.getStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS);
+    Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.ZIP);
+    try {
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(DatasetGenerators.randomWalk(1000, 1, 100.0d, 0.1d), false);
+      if (compressed.significandsAlgorithm != CompressionAlgorithms.ZIP)
+        throw new RuntimeException("The significands should be zipped: " + compressed.significandsAlgorithm);
+
+      byte[] truncated = Arrays.copyOf(compressed.compressedSignificands, compressed.compressedSignificands.length / 2);
+      if (Compression.deltaXorDecode64(new CompressedDoubleArray(compressed.compressedSigns, compressed.compressedExponents, truncated,
+          compressed.signsAlgorithm, compressed.exponentsAlgorithm, compressed.significandsAlgorithm,
+          compressed.uncompressedArrayLength, compressed.width, compressed.flags)) != null)
+        throw new RuntimeException("A truncated ZIP stream must not decode");
+    } finally {
+      Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS, previousAlgorithms);
+    }
+  }
+
+  @Test
+  public void testDeltaOfDeltaWithTimestamps() {
+    long start = 1700000000000L; // Epoch milliseconds
+
+    // Perfectly regular intervals: only the header is stored
+    long[] regularTimestamps = new long[100000];
+    for (int i = 0; i < regularTimestamps.length; i++)
+      regularTimestamps[i] = start + 1000L * i;
+    long[] compressed = checkDeltaOfDelta(regularTimestamps);
+    if (compressed.length != 3)
+      throw new RuntimeException("Regular intervals should only need the header. Length = " + compressed.length);
+
+    // Jittered intervals with a few gaps
+    long[] jitteredTimestamps = new long[100000];
+    jitteredTimestamps[0] = start;
+    for (int i = 1; i < jitteredTimestamps.length; i++)
+      jitteredTimestamps[i] = jitteredTimestamps[i - 1] + 1000L + (long) (Math.random() * 5) - 2 + (i % 10000 == 0 ? 3600000L : 0L);
+    checkDeltaOfDelta(jitteredTimestamps);
+
+    // Spread wider than Long.MAX_VALUE and short arrays
+    checkDeltaOfDelta(new long[]{Long.MIN_VALUE, Long.MAX_VALUE, 0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE});
+    checkDeltaOfDelta(new long[]{start, start + 7L});
+    checkDeltaOfDelta(new long[]{start});
+    checkDeltaOfDelta(new long[0]);
+  }
+
+  private static long[] checkDeltaOfDelta(long[] originalLongs) {
+    long[] compressed = Compression.deltaOfDeltaEncode(originalLongs);
+    long[] uncompressed = Compression.deltaOfDeltaDecode(compressed);
+
+    if (uncompressed.length != originalLongs.length)
+      throw new RuntimeException("Wrong length: " + uncompressed.length + " instead of " + originalLongs.length);
+
+    for (int i = 0; i < originalLongs.length; i++) {
+      if (originalLongs[i] != uncompressed[i]) {
+        throw new RuntimeException("Values are different: originalLongs[" + i + "]=" + originalLongs[i] +
+            " uncompressed[" + i + "]=" + uncompressed[i]);
+      }
+    }
+
+    System.out.println("Delta of delta: " + originalLongs.length + " values in " + compressed.length * TypeSize.INT64_BYTESIZE + " bytes");
+    return compressed;
+  }
+
+  @Test
+  public void testDeltaValBeyondTwoGigabits() {
+    // 2^25 + 16 values of 64 bits: the bit offsets go past 2^31. Needs about 800 MB of heap.
+    Assume.assumeTrue(Runtime.getRuntime().maxMemory() > 1200L * 1024 * 1024);
+
+    long[] originalLongs = new long[(1 << 25) + 16];
+    for (int i = 0; i < originalLongs.length; i++)
+      originalLongs[i] = i * 0x9E3779B97F4A7C15L; // Spread over the whole range of longs
+
+    long[] compressed = Compression.deltaValEncode(originalLongs);
+    originalLongs = null; // Let the decoder have the memory, the values are recomputed below
+    long[] uncompressed = Compression.deltaValDecode(compressed);
+
+    if (uncompressed.length != (1 << 25) + 16)
+      throw new RuntimeException("Wrong length: " + uncompressed.length);
+    for (int i = 0; i < uncompressed.length; i++) {
+      if (uncompressed[i] != i * 0x9E3779B97F4A7C15L)
+        throw new RuntimeException("Values are different at " + i + ": " + uncompressed[i] + " != " + i * 0x9E3779B97F4A7C15L);
+    }
+  }
 }
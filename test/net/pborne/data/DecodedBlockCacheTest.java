@@ -0,0 +1,139 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DecodedBlockCacheTest {
+
+  @Test
+  public void testHitsMissesAndEviction() throws Exception {
+    for (boolean offHeap : new boolean[]{false, true}) {
+      long blockBytes = 1000 * TypeSize.DOUBLE_BYTESIZE + 96;
+      DecodedBlockCache cache = new DecodedBlockCache(10 * blockBytes, 1, offHeap);
+      AtomicInteger decodes = new AtomicInteger();
+
+      for (int round = 0; round < 3; round++)
+        for (int block = 0; block < 4; block++) {
+          int value = block;
+          double[] decoded = cache.get(1L, block, () -> {
+            decodes.incrementAndGet();
+            double[] values = new double[1000];
+            Arrays.fill(values, value);
+            return values;
+          });
+          if (decoded.length != 1000 || decoded[999] != block)
+            throw new RuntimeException("Wrong block " + block + " off heap: " + offHeap);
+        }
+      if (decodes.get() != 4 || cache.getHits() != 8 || cache.getMisses() != 4 || cache.getHitRate() != 8.0d / 12.0d)
+        throw new RuntimeException("Every block should be decoded once: " + decodes.get() + " " + cache.getHits() + " " + cache.getMisses());
+
+      // A scan of cold blocks evicts from the probation segment only: the 4 blocks read 3 times stay
+      for (int block = 100; block < 130; block++)
+        cache.get(1L, block, () -> new double[1000]);
+      if (cache.getSizeInBytes() > 10 * blockBytes || cache.getEvictions() == 0)
+        throw new RuntimeException("The cache is over its size: " + cache.getSizeInBytes());
+      decodes.set(0);
+      for (int block = 0; block < 4; block++)
+        cache.get(1L, block, () -> {
+          decodes.incrementAndGet();
+          return new double[1000];
+        });
+      if (decodes.get() != 0)
+        throw new RuntimeException("The hot blocks were evicted by a scan: " + decodes.get());
+
+      cache.invalidate(1L);
+      if (cache.getNumberOfBlocks() != 0 || cache.getSizeInBytes() != 0)
+        throw new RuntimeException("The blocks were not invalidated: " + cache.getNumberOfBlocks());
+      if (cache.get(2L, 0, () -> null) != null || cache.getNumberOfBlocks() != 0)
+        throw new RuntimeException("A failed decode must not be cached");
+    }
+  }
+
+  @Test
+  public void testBlockCompressedDoubleArray() throws Exception {
+    double[] values = DatasetGenerators.randomWalk(20000, 42L, 100.0d, 0.1d);
+    BlockCompressedDoubleArray compressed = BlockCompressedDoubleArray.encode(values, 1024);
+    DecodedBlockCache cache = new DecodedBlockCache(1L << 20);
+    DecodedBlockCache previousCache = BlockCompressedDoubleArray.getCache();
+    BlockCompressedDoubleArray.setCache(cache);
+    try {
+      if (!Arrays.equals(values, compressed.decode()))
+        throw new RuntimeException("Values are different");
+      for (int i = 0; i < values.length; i += 7)
+        if (compressed.get(i) != values[i])
+          throw new RuntimeException("Wrong value at " + i);
+      compressed.scan(RangePredicate.greaterThan(100.0d));
+      if (cache.getMisses() != compressed.getNumberOfBlocks() || cache.getHits() == 0)
+        throw new RuntimeException("Every block should be decoded once: " + cache.getMisses());
+
+      // The caller can modify the decoded blocks
+      compressed.decodeBlock(0)[0] = Double.NaN;
+      if (compressed.get(0) != values[0])
+        throw new RuntimeException("The cached block was modified");
+
+      // Concurrent reads
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++)
+          futures.add(executor.submit(() -> {
+            for (int i = 0; i < values.length; i += 3)
+              if (compressed.get(i) != values[i])
+                throw new RuntimeException("Wrong concurrent value at " + i);
+            return null;
+          }));
+        for (Future<?> future : futures)
+          future.get();
+      } finally {
+        executor.shutdown();
+      }
+
+      compressed.invalidateCache();
+      if (cache.getNumberOfBlocks() != 0)
+        throw new RuntimeException("The blocks of the array were not invalidated");
+
+      // Off heap, the values are read from the cached buffers
+      BlockCompressedDoubleArray.setCache(new DecodedBlockCache(1L << 20, 4, true));
+      for (int round = 0; round < 2; round++)
+        for (int i = 0; i < values.length; i += 5)
+          if (compressed.get(i) != values[i])
+            throw new RuntimeException("Wrong off heap value at " + i);
+      if (BlockCompressedDoubleArray.getCache().getMisses() != compressed.getNumberOfBlocks())
+        throw new RuntimeException("Every block should be decoded once: " + BlockCompressedDoubleArray.getCache().getMisses());
+    } finally {
+      BlockCompressedDoubleArray.setCache(previousCache);
+    }
+  }
+
+  @Test
+  public void testUndecodableBlock() throws Exception {
+    // A small block with a wrong length: the decoder returns null
+    CompressedDoubleArray block = Compression.deltaXorEncode64(new double[]{1.0d, 2.5d, 3.0d});
+    CompressedDoubleArray corrupted = new CompressedDoubleArray(block.compressedSigns, block.compressedExponents, block.compressedSignificands,
+        block.signsAlgorithm, block.exponentsAlgorithm, block.significandsAlgorithm, 4, block.width, block.flags);
+    BlockCompressedDoubleArray compressed = new BlockCompressedDoubleArray(new CompressedDoubleArray[]{corrupted},
+        new BlockStatistics[]{BlockStatistics.compute(new double[4], 0, 4)}, 4, 4);
+
+    DecodedBlockCache previousCache = BlockCompressedDoubleArray.getCache();
+    try {
+      for (DecodedBlockCache cache : new DecodedBlockCache[]{null, new DecodedBlockCache(1L << 20, 1, false), new DecodedBlockCache(1L << 20, 1, true)}) {
+        BlockCompressedDoubleArray.setCache(cache);
+        try {
+          compressed.get(1);
+          throw new RuntimeException("An undecodable block must not return a value, cache: " + cache);
+        } catch (IllegalStateException e) {
+          // Expected
+        }
+      }
+    } finally {
+      BlockCompressedDoubleArray.setCache(previousCache);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class DeflateDictionariesTest {
+
+  private static double[] prices(Random random) {
+    double[] prices = new double[200]; // Short arrays: a few hundred bytes per stream
+    double price = 90.0d + 20.0d * random.nextDouble();
+    for (int i = 0; i < prices.length; i++) {
+      price += (random.nextInt(5) - 2) * 0.01d;
+      prices[i] = Math.round(price * 100.0d) / 100.0d;
+    }
+    return prices;
+  }
+
+  @Test
+  public void testTrainedDictionaries() throws Exception {
+    Random random = new Random(42L);
+    List<double[]> samples = new ArrayList<>();
+    for (int i = 0; i < 200; i++)
+      samples.add(prices(random));
+    List<double[]> arrays = new ArrayList<>();
+    for (int i = 0; i < 50; i++)
+      arrays.add(prices(random));
+
+    // The exponents and signs of the prices are constant streams, the significands change
+    CompressionMetrics.Stream[] streams = {CompressionMetrics.Stream.SIGNIFICANDS};
+    CompressionAlgorithms[][] previousAlgorithms = new CompressionAlgorithms[streams.length][];
+    int[] ids = new int[streams.length];
+    for (int i = 0; i < streams.length; i++) {
+      byte[] dictionary = DeflateDictionaries.train(streams[i], samples, DeflateDictionaries.MAX_DICTIONARY_SIZE);
+      if (dictionary.length == 0 || dictionary.length > DeflateDictionaries.MAX_DICTIONARY_SIZE)
+        throw new RuntimeException("Wrong dictionary size for " + streams[i] + ": " + dictionary.length);
+      ids[i] = DeflateDictionaries.register(dictionary);
+      previousAlgorithms[i] = Compression.getStreamAlgorithms(streams[i]);
+    }
+
+    try {
+      long withoutDictionaries = 0;
+      for (double[] array : arrays)
+        withoutDictionaries += Compression.deltaXorEncode64(array, false).compressedSizeInBytes();
+
+      List<CompressedDoubleArray> compressed = new ArrayList<>();
+      long withDictionaries = 0;
+      for (int i = 0; i < streams.length; i++) {
+        Compression.setStreamAlgorithms(streams[i], CompressionAlgorithms.ZIP);
+        DeflateDictionaries.useForStream(streams[i], ids[i]);
+      }
+      for (double[] array : arrays) {
+        compressed.add(Compression.deltaXorEncode64(array, false));
+        withDictionaries += compressed.get(compressed.size() - 1).compressedSizeInBytes();
+      }
+      System.out.println("Without dictionaries: " + withoutDictionaries + " bytes, with dictionaries: " + withDictionaries + " bytes");
+      if (withDictionaries >= withoutDictionaries * 0.9d)
+        throw new RuntimeException("The dictionaries should save at least 10%: " + withDictionaries + " >= " + withoutDictionaries);
+
+      // The id is in the streams: decoding needs the registry, not the stream settings
+      for (int i = 0; i < streams.length; i++)
+        DeflateDictionaries.stopUsingForStream(streams[i]);
+      for (int i = 0; i < arrays.size(); i++)
+        if (!Arrays.equals(arrays.get(i), Compression.deltaXorDecode64(compressed.get(i))))
+          throw new RuntimeException("Values are different");
+
+      DeflateDictionaries.unregister(ids[0]);
+      if (Compression.deltaXorDecode64(compressed.get(0)) != null)
+        throw new RuntimeException("A stream must not decode without its dictionary");
+    } finally {
+      for (int i = 0; i < streams.length; i++) {
+        DeflateDictionaries.stopUsingForStream(streams[i]);
+        DeflateDictionaries.unregister(ids[i]);
+        Compression.setStreamAlgorithms(streams[i], previousAlgorithms[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testTrainAndRegister() {
+    byte[] pattern = "0123456789abcdef".getBytes();
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      byte[] sample = new byte[100];
+      new Random(i).nextBytes(sample);
+      System.arraycopy(pattern, 0, sample, i, pattern.length);
+      samples.add(sample);
+    }
+    byte[] dictionary = DeflateDictionaries.train(samples, 1024);
+    if (!new String(dictionary).contains("89abcdef") || dictionary.length > 2 * pattern.length)
+      throw new RuntimeException("The common pattern should be the dictionary: " + new String(dictionary));
+
+    int id = DeflateDictionaries.register(dictionary);
+    try {
+      if (DeflateDictionaries.register(dictionary) != id || !Arrays.equals(dictionary, DeflateDictionaries.get(id)))
+        throw new RuntimeException("The same dictionary has the same id");
+    } finally {
+      DeflateDictionaries.unregister(id);
+    }
+    if (DeflateDictionaries.get(id) != null)
+      throw new RuntimeException("The dictionary was not unregistered");
+  }
+}
@@ -0,0 +1,109 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+public class DeltaValAggregationsTest {
+
+  // Ranges chosen to hit the specialized kernels (1, 2, 4, 8, 16, 32 bits) and the generic one
+  static int[] ranges = {0, 1, 3, 15, 255, 65535, 1000, 123457};
+
+  @Test
+  public void testAggregationsWithIntegers() {
+    for (int range : ranges) {
+      int[] originalIntegers = new int[10001];
+      for (int i = 0; i < originalIntegers.length; i++)
+        originalIntegers[i] = -500 + (int) (Math.random() * (range + 1));
+      checkIntegers(originalIntegers);
+    }
+
+    // Full 32-bit range
+    int[] originalIntegers = new int[4097];
+    for (int i = 0; i < originalIntegers.length; i++)
+      originalIntegers[i] = (int) (Math.random() * 0xFFFFFFFFL);
+    originalIntegers[0] = Integer.MIN_VALUE;
+    originalIntegers[1] = Integer.MAX_VALUE;
+    checkIntegers(originalIntegers);
+  }
+
+  @Test
+  public void testAggregationsWithLongs() {
+    for (int range : ranges) {
+      long[] originalLongs = new long[10001];
+      for (int i = 0; i < originalLongs.length; i++)
+        originalLongs[i] = (2L << 37) + (long) (Math.random() * (range + 1));
+      checkLongs(originalLongs);
+    }
+
+    // Range wider than Long.MAX_VALUE: 64-bit fields
+    long[] originalLongs = new long[4097];
+    for (int i = 0; i < originalLongs.length; i++)
+      originalLongs[i] = (long) ((Math.random() - 0.5d) * 2.0d * Long.MAX_VALUE);
+    originalLongs[0] = Long.MIN_VALUE;
+    originalLongs[1] = Long.MAX_VALUE;
+    checkLongs(originalLongs);
+  }
+
+  private static void checkIntegers(int[] originalIntegers) {
+    int[] compressed = Compression.deltaValEncode(originalIntegers);
+
+    long sum = 0;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    for (int value : originalIntegers) {
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    if (DeltaValAggregations.count(compressed) != originalIntegers.length)
+      throw new RuntimeException("Wrong count with " + bits + " bits: " + DeltaValAggregations.count(compressed));
+    if (DeltaValAggregations.sum(compressed) != sum)
+      throw new RuntimeException("Wrong sum with " + bits + " bits: " + DeltaValAggregations.sum(compressed) + " instead of " + sum);
+    if (DeltaValAggregations.min(compressed) != min)
+      throw new RuntimeException("Wrong min with " + bits + " bits: " + DeltaValAggregations.min(compressed) + " instead of " + min);
+    if (DeltaValAggregations.max(compressed) != max)
+      throw new RuntimeException("Wrong max with " + bits + " bits: " + DeltaValAggregations.max(compressed) + " instead of " + max);
+
+    long[] histogram = DeltaValAggregations.histogram(compressed, 16);
+    int shift = bits - Integer.numberOfTrailingZeros(histogram.length);
+    long[] expected = new long[histogram.length];
+    for (int value : originalIntegers)
+      expected[(int) (((long) value - min) >>> shift)]++;
+    for (int i = 0; i < histogram.length; i++)
+      if (histogram[i] != expected[i])
+        throw new RuntimeException("Wrong histogram with " + bits + " bits: bucket " + i + " = " + histogram[i] + " instead of " + expected[i]);
+  }
+
+  private static void checkLongs(long[] originalLongs) {
+    long[] compressed = Compression.deltaValEncode(originalLongs);
+
+    long sum = 0;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (long value : originalLongs) {
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    int bits = DeltaValAggregations.numberOfBits(compressed);
+    if (DeltaValAggregations.count(compressed) != originalLongs.length)
+      throw new RuntimeException("Wrong count with " + bits + " bits: " + DeltaValAggregations.count(compressed));
+    if (DeltaValAggregations.sum(compressed) != sum)
+      throw new RuntimeException("Wrong sum with " + bits + " bits: " + DeltaValAggregations.sum(compressed) + " instead of " + sum);
+    if (DeltaValAggregations.min(compressed) != min)
+      throw new RuntimeException("Wrong min with " + bits + " bits: " + DeltaValAggregations.min(compressed) + " instead of " + min);
+    if (DeltaValAggregations.max(compressed) != max)
+      throw new RuntimeException("Wrong max with " + bits + " bits: " + DeltaValAggregations.max(compressed) + " instead of " + max);
+
+    long[] histogram = DeltaValAggregations.histogram(compressed, 16);
+    int shift = bits - Integer.numberOfTrailingZeros(histogram.length);
+    long[] expected = new long[histogram.length];
+    for (long value : originalLongs)
+      expected[(int) ((value - min) >>> shift)]++;
+    for (int i = 0; i < histogram.length; i++)
+      if (histogram[i] != expected[i])
+        throw new RuntimeException("Wrong histogram with " + bits + " bits: bucket " + i + " = " + histogram[i] + " instead of " + expected[i]);
+  }
+}
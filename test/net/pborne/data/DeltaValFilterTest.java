@@ -0,0 +1,119 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+public class DeltaValFilterTest {
+
+  static int numberOfValues = 5000;
+
+  @Test
+  public void testFilterWithIntegers() {
+    for (int range : new int[]{0, 7, 1000, 65535, 1 << 20}) {
+      int[] originalIntegers = new int[numberOfValues];
+      for (int i = 0; i < originalIntegers.length; i++)
+        originalIntegers[i] = -300 + (int) (Math.random() * (range + 1));
+      int[] compressed = Compression.deltaValEncode(originalIntegers);
+
+      int probe = originalIntegers[numberOfValues / 2];
+      checkIntegers(originalIntegers, compressed, DeltaValFilter.equalTo(compressed, probe), new int[]{probe}, probe, probe);
+      checkIntegers(originalIntegers, compressed, DeltaValFilter.between(compressed, -100, 400), null, -100, 400);
+      checkIntegers(originalIntegers, compressed, DeltaValFilter.between(compressed, Integer.MIN_VALUE, Integer.MAX_VALUE), null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+      checkIntegers(originalIntegers, compressed, DeltaValFilter.between(compressed, 1 << 25, 1 << 26), null, 1 << 25, 1 << 26);
+
+      int[] inList = {probe, -300, 12, 1 << 30, originalIntegers[7]};
+      checkIntegers(originalIntegers, compressed, DeltaValFilter.in(compressed, inList), inList, 0, -1);
+    }
+  }
+
+  @Test
+  public void testFilterWithLongs() {
+    for (long range : new long[]{0L, 7L, 1000L, 1L << 40, Long.MAX_VALUE}) {
+      long[] originalLongs = new long[numberOfValues];
+      for (int i = 0; i < originalLongs.length; i++)
+        originalLongs[i] = (long) ((Math.random() - 0.5d) * range);
+      long[] compressed = Compression.deltaValEncode(originalLongs);
+
+      long probe = originalLongs[numberOfValues / 2];
+      checkLongs(originalLongs, compressed, DeltaValFilter.equalTo(compressed, probe), new long[]{probe}, probe, probe);
+      checkLongs(originalLongs, compressed, DeltaValFilter.between(compressed, -100L, 400L), null, -100L, 400L);
+      checkLongs(originalLongs, compressed, DeltaValFilter.between(compressed, Long.MIN_VALUE, Long.MAX_VALUE), null, Long.MIN_VALUE, Long.MAX_VALUE);
+      checkLongs(originalLongs, compressed, DeltaValFilter.between(compressed, 0L, Long.MAX_VALUE), null, 0L, Long.MAX_VALUE);
+
+      long[] inList = {probe, Long.MIN_VALUE, 12L, originalLongs[7]};
+      checkLongs(originalLongs, compressed, DeltaValFilter.in(compressed, inList), inList, 0L, -1L);
+    }
+  }
+
+  @Test
+  public void testSelectionBitmap() {
+    SelectionBitmap all = SelectionBitmap.all(130);
+    SelectionBitmap some = new SelectionBitmap(130);
+    some.set(0);
+    some.set(64);
+    some.set(129);
+
+    if (all.cardinality() != 130 || all.not().cardinality() != 0)
+      throw new RuntimeException("Wrong cardinality: " + all.cardinality());
+    if (some.and(all).cardinality() != 3 || some.or(all).cardinality() != 130 || some.not().cardinality() != 127)
+      throw new RuntimeException("Wrong bitmap operations");
+
+    int[] positions = some.toPositions();
+    if (positions.length != 3 || positions[0] != 0 || positions[1] != 64 || positions[2] != 129)
+      throw new RuntimeException("Wrong positions");
+  }
+
+  /**
+   * When inList is null, the expected selection is [lower, upper], otherwise it is the IN-list.
+   */
+  private static void checkIntegers(int[] originalIntegers, int[] compressed, SelectionBitmap selection, int[] inList, int lower, int upper) {
+    int expectedCardinality = 0;
+    for (int i = 0; i < originalIntegers.length; i++) {
+      boolean expected = inList == null ? originalIntegers[i] >= lower && originalIntegers[i] <= upper : contains(inList, originalIntegers[i]);
+      if (selection.get(i) != expected)
+        throw new RuntimeException("Wrong selection at position " + i + " for value " + originalIntegers[i]);
+      if (expected)
+        expectedCardinality++;
+    }
+
+    int[] gathered = DeltaValFilter.gather(compressed, selection);
+    int[] positions = selection.toPositions();
+    if (gathered.length != expectedCardinality)
+      throw new RuntimeException("Wrong number of gathered values: " + gathered.length + " instead of " + expectedCardinality);
+    for (int i = 0; i < gathered.length; i++)
+      if (gathered[i] != originalIntegers[positions[i]])
+        throw new RuntimeException("Wrong gathered value at position " + positions[i] + ": " + gathered[i]);
+  }
+
+  private static void checkLongs(long[] originalLongs, long[] compressed, SelectionBitmap selection, long[] inList, long lower, long upper) {
+    int expectedCardinality = 0;
+    for (int i = 0; i < originalLongs.length; i++) {
+      boolean expected = inList == null ? originalLongs[i] >= lower && originalLongs[i] <= upper : contains(inList, originalLongs[i]);
+      if (selection.get(i) != expected)
+        throw new RuntimeException("Wrong selection at position " + i + " for value " + originalLongs[i]);
+      if (expected)
+        expectedCardinality++;
+    }
+
+    long[] gathered = DeltaValFilter.gather(compressed, selection);
+    int[] positions = selection.toPositions();
+    if (gathered.length != expectedCardinality)
+      throw new RuntimeException("Wrong number of gathered values: " + gathered.length + " instead of " + expectedCardinality);
+    for (int i = 0; i < gathered.length; i++)
+      if (gathered[i] != originalLongs[positions[i]])
+        throw new RuntimeException("Wrong gathered value at position " + positions[i] + ": " + gathered[i]);
+  }
+
+  private static boolean contains(int[] values, int value) {
+    for (int v : values)
+      if (v == value)
+        return true;
+    return false;
+  }
+
+  private static boolean contains(long[] values, long value) {
+    for (long v : values)
+      if (v == value)
+        return true;
+    return false;
+  }
+}
@@ -0,0 +1,79 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class NullableCompressedDoubleArrayTest {
+
+  static int numberOfDoubles = 150000; // More than two chunks of the validity bitmap
+
+  @Test
+  public void testSparseValues() throws Exception {
+    // Very sparse: array containers
+    double[] originalDoubles = new double[numberOfDoubles];
+    for (int i = 0; i < originalDoubles.length; i++)
+      originalDoubles[i] = Math.random() < 0.01d ? 1.1d + Math.random() : Double.NaN;
+    check(originalDoubles);
+  }
+
+  @Test
+  public void testLongGaps() throws Exception {
+    // Long stretches of values and gaps: run containers
+    double[] originalDoubles = new double[numberOfDoubles];
+    for (int i = 0; i < originalDoubles.length; i++)
+      originalDoubles[i] = (i / 1000) % 3 == 0 ? Double.NaN : 20.0d + Math.sin(i / 100.0d);
+    check(originalDoubles);
+  }
+
+  @Test
+  public void testMixedValues() throws Exception {
+    // Half of the values missing at random: bitmap containers
+    double[] originalDoubles = new double[numberOfDoubles];
+    for (int i = 0; i < originalDoubles.length; i++)
+      originalDoubles[i] = Math.random() < 0.5d ? -3.0d * Math.random() : Double.NaN;
+    check(originalDoubles);
+  }
+
+  @Test
+  public void testAllNull() throws Exception {
+    double[] originalDoubles = new double[1000];
+    Arrays.fill(originalDoubles, Double.NaN);
+    check(originalDoubles);
+  }
+
+  private static void check(double[] originalDoubles) throws Exception {
+    NullableCompressedDoubleArray compressed = NullableCompressedDoubleArray.encode(originalDoubles);
+    double[] uncompressed = compressed.decode();
+
+    int numberOfValidValues = 0;
+    for (int i = 0; i < originalDoubles.length; i++) {
+      boolean valid = !Double.isNaN(originalDoubles[i]);
+      if (compressed.validity.isValid(i) != valid)
+        throw new RuntimeException("Wrong validity at position " + i);
+      if (valid)
+        numberOfValidValues++;
+      if (Double.doubleToRawLongBits(originalDoubles[i]) != Double.doubleToRawLongBits(uncompressed[i]))
+        throw new RuntimeException("Values are different: originalDoubles[" + i + "]=" + originalDoubles[i] +
+            " uncompressed[" + i + "]=" + uncompressed[i]);
+    }
+
+    if (compressed.validity.cardinality() != numberOfValidValues || compressed.decodeValid().length != numberOfValidValues)
+      throw new RuntimeException("Wrong number of valid values: " + compressed.validity.cardinality() + " instead of " + numberOfValidValues);
+
+    System.out.println("Validity bitmap: " + compressed.validity.sizeInBytes() + " bytes for " + originalDoubles.length + " positions");
+
+    RangePredicate predicate = RangePredicate.lessThan(1.5d);
+    int[] positions = compressed.scan(predicate);
+    int expected = 0;
+    for (int i = 0; i < originalDoubles.length; i++) {
+      if (!predicate.test(originalDoubles[i]))
+        continue;
+      if (expected >= positions.length || positions[expected] != i)
+        throw new RuntimeException("Missing position " + i + " for predicate " + predicate);
+      expected++;
+    }
+    if (expected != positions.length)
+      throw new RuntimeException("Too many positions: " + positions.length + " instead of " + expected);
+  }
+}
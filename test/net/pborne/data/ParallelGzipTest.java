@@ -0,0 +1,110 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ParallelGzipTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random random = new Random(42L);
+    for (int size : new int[]{1, 1000, 65536, 1000000}) {
+      byte[] input = new byte[size];
+      for (int i = 0; i < size; i++)
+        input[i] = (byte) (i % 7 == 0 ? random.nextInt() : i / 1000); // Compressible with some noise
+
+      for (int chunkSize : new int[]{1000, 65536, ParallelGzip.DEFAULT_CHUNK_SIZE}) {
+        byte[] compressed = ParallelGzip.compress(input, chunkSize);
+        if (!Arrays.equals(input, ParallelGzip.uncompress(compressed)))
+          throw new RuntimeException("Values are different, size: " + size + " chunk size: " + chunkSize);
+
+        // The members are a regular GZIP stream
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        try (GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+          gzipInputStream.transferTo(uncompressed);
+        }
+        if (!Arrays.equals(input, uncompressed.toByteArray()))
+          throw new RuntimeException("GZIPInputStream does not read the members, size: " + size + " chunk size: " + chunkSize);
+      }
+    }
+
+    // Incompressible data
+    byte[] noise = new byte[300000];
+    random.nextBytes(noise);
+    if (!Arrays.equals(noise, ParallelGzip.uncompress(ParallelGzip.compress(noise, 100000))))
+      throw new RuntimeException("Incompressible values are different");
+  }
+
+  @Test
+  public void testPlainGzipAndCorruption() throws Exception {
+    byte[] input = new byte[200000];
+    for (int i = 0; i < input.length; i++)
+      input[i] = (byte) (i / 300);
+
+    // Without the member sizes, inflated serially
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(plain)) {
+      gzipOutputStream.write(input);
+    }
+    if (!Arrays.equals(input, ParallelGzip.uncompress(plain.toByteArray())))
+      throw new RuntimeException("A plain GZIP stream should be read");
+
+    byte[] compressed = ParallelGzip.compress(input, 50000);
+    byte[] corrupted = compressed.clone();
+    corrupted[corrupted.length - 6] ^= 1; // CRC of the last member
+    if (ParallelGzip.uncompress(corrupted) != null || ParallelGzip.uncompress(Arrays.copyOf(compressed, compressed.length - 1)) != null)
+      throw new RuntimeException("A corrupted stream must not decode");
+  }
+
+  @Test
+  public void testCorruptedTrailer() throws Exception {
+    byte[] input = new byte[200000];
+    for (int i = 0; i < input.length; i++)
+      input[i] = (byte) (i / 300);
+    byte[] compressed = ParallelGzip.compress(input, 50000);
+
+    // Every bit of the ISIZE of the last member: the sizes are checked before the output is allocated
+    for (int bit = 0; bit < 32; bit++) {
+      byte[] corrupted = compressed.clone();
+      corrupted[corrupted.length - 4 + bit / 8] ^= (byte) (1 << (bit % 8));
+      if (ParallelGzip.uncompress(corrupted) != null)
+        throw new RuntimeException("A corrupted ISIZE must not decode, bit: " + bit);
+    }
+
+    // Larger than the caller expects, with and without the member sizes
+    if (ParallelGzip.uncompress(compressed, input.length - 1) != null)
+      throw new RuntimeException("A stream larger than expected must not decode");
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(plain)) {
+      gzipOutputStream.write(input);
+    }
+    if (ParallelGzip.uncompress(plain.toByteArray(), input.length - 1) != null)
+      throw new RuntimeException("A plain stream larger than expected must not decode");
+    byte[] corrupted = plain.toByteArray();
+    corrupted[corrupted.length - 1] ^= 0x40;
+    if (ParallelGzip.uncompress(corrupted) != null)
+      throw new RuntimeException("A plain stream with a corrupted ISIZE must not decode");
+  }
+
+  @Test
+  public void testStreamAlgorithm() throws Exception {
+    double[] values = DatasetGenerators.randomWalk(200000, 42L, 0.0d, 0.1d);
+    CompressionAlgorithms[] previousAlgorithms = Compression.getStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS);
+    Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS, CompressionAlgorithms.PARALLEL_GZIP);
+    try {
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(values, false);
+      if (compressed.significandsAlgorithm != CompressionAlgorithms.PARALLEL_GZIP)
+        throw new RuntimeException("Wrong algorithm: " + compressed.significandsAlgorithm);
+      if (!Arrays.equals(values, Compression.deltaXorDecode64(compressed)))
+        throw new RuntimeException("Values are different");
+    } finally {
+      Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNIFICANDS, previousAlgorithms);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RegressionSuiteTest {
+
+  static int size = 4096;
+
+  @Test
+  public void testGeneratorsAreReproducible() {
+    for (DatasetGenerators.Dataset dataset : DatasetGenerators.Dataset.values()) {
+      double[] first = dataset.generateDoubles(size, 7L);
+      double[] second = dataset.generateDoubles(size, 7L);
+      double[] otherSeed = dataset.generateDoubles(size, 8L);
+
+      if (!Arrays.equals(first, second))
+        throw new RuntimeException(dataset + " is not reproducible");
+      if (!Arrays.equals(dataset.generateLongs(size, 7L), dataset.generateLongs(size, 7L)))
+        throw new RuntimeException(dataset + " is not reproducible as longs");
+      if (Arrays.equals(first, otherSeed))
+        throw new RuntimeException(dataset + " ignores the seed");
+    }
+  }
+
+  @Test
+  public void testRealisticDataCompressesBetterThanNoise() throws Exception {
+    RegressionSuite.Result noise = RegressionSuite.measure(DatasetGenerators.Dataset.UNIFORM_NOISE, RegressionSuite.Codec.DELTA_XOR_64, size, 1);
+    RegressionSuite.Result constant = RegressionSuite.measure(DatasetGenerators.Dataset.MOSTLY_CONSTANT, RegressionSuite.Codec.DELTA_XOR_64, size, 1);
+    RegressionSuite.Result timestamps = RegressionSuite.measure(DatasetGenerators.Dataset.TIMESTAMPS, RegressionSuite.Codec.DELTA_OF_DELTA, size, 1);
+
+    System.out.println(noise);
+    System.out.println(constant);
+    System.out.println(timestamps);
+
+    if (constant.ratio() >= noise.ratio())
+      throw new RuntimeException("Mostly constant data should compress better than noise: " + constant.ratio() + " >= " + noise.ratio());
+    if (timestamps.ratio() >= 0.1d)
+      throw new RuntimeException("Timestamps should compress at least 10 times: " + timestamps.ratio());
+  }
+
+  @Test
+  public void testReportAndComparison() throws Exception {
+    List<RegressionSuite.Result> baseline = Collections.singletonList(
+        new RegressionSuite.Result("RANDOM_WALK", "DELTA_XOR_64", 1000, 500, 100.0d, 200.0d));
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    RegressionSuite.writeReport(baseline, outputStream);
+    List<RegressionSuite.Result> readBack = RegressionSuite.readReport(new ByteArrayInputStream(outputStream.toByteArray()));
+
+    if (readBack.size() != 1 || readBack.get(0).compressedBytes != 500 || readBack.get(0).decodeMBps != 200.0d)
+      throw new RuntimeException("The report does not round trip: " + new String(outputStream.toByteArray(), "UTF-8"));
+
+    if (!RegressionSuite.compare(baseline, readBack, 0.02d, 0.25d).isEmpty())
+      throw new RuntimeException("Identical results cannot regress");
+
+    List<RegressionSuite.Result> worse = Collections.singletonList(
+        new RegressionSuite.Result("RANDOM_WALK", "DELTA_XOR_64", 1000, 600, 50.0d, 190.0d));
+    List<String> regressions = RegressionSuite.compare(baseline, worse, 0.02d, 0.25d);
+    if (regressions.size() != 2) // The ratio and the encode throughput, the decode throughput is within the tolerance
+      throw new RuntimeException("Wrong regressions: " + regressions);
+  }
+}
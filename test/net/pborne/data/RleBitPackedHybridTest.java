@@ -0,0 +1,91 @@
+package net.pborne.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class RleBitPackedHybridTest {
+
+  @Test
+  public void testRoundTrip() {
+    Random random = new Random(42L);
+    for (int bitWidth = 0; bitWidth <= 64; bitWidth++) {
+      for (int size : new int[]{0, 1, 7, 8, 9, 100, 4099}) {
+        long[] longs = new long[size];
+        long mask = bitWidth == 64 ? -1L : (1L << bitWidth) - 1;
+        // Alternate runs of random lengths (some shorter than a group) and random values
+        for (int i = 0; i < size; ) {
+          int runLength = 1 + random.nextInt(random.nextBoolean() ? 4 : 40);
+          long value = random.nextLong() & mask;
+          for (int j = 0; j < runLength && i < size; j++, i++)
+            longs[i] = random.nextInt(4) == 0 ? random.nextLong() & mask : value;
+        }
+
+        long[] decodedLongs = RleBitPackedHybrid.decodeLongs(RleBitPackedHybrid.encode(longs));
+        if (!Arrays.equals(longs, decodedLongs))
+          throw new RuntimeException("Longs do not round trip, bit width: " + bitWidth + " size: " + size);
+
+        if (bitWidth <= 32) {
+          int[] ints = new int[size];
+          for (int i = 0; i < size; i++)
+            ints[i] = (int) longs[i];
+          if (!Arrays.equals(ints, RleBitPackedHybrid.decodeInts(RleBitPackedHybrid.encode(ints))))
+            throw new RuntimeException("Ints do not round trip, bit width: " + bitWidth + " size: " + size);
+        }
+
+        if (bitWidth <= 8) {
+          byte[] bytes = new byte[size];
+          for (int i = 0; i < size; i++)
+            bytes[i] = (byte) longs[i];
+          if (!Arrays.equals(bytes, Compression.rleDecode(Compression.rleEncode(bytes))))
+            throw new RuntimeException("Bytes do not round trip, bit width: " + bitWidth + " size: " + size);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRunsAndMalformedInput() {
+    byte[] runs = new byte[1 << 20];
+    Arrays.fill(runs, 0, runs.length / 2, (byte) 0xFF);
+    byte[] encoded = RleBitPackedHybrid.encode(runs);
+    if (encoded.length > 16)
+      throw new RuntimeException("Two runs should take a few bytes: " + encoded.length);
+
+    if (RleBitPackedHybrid.decodeBytes(Arrays.copyOf(encoded, encoded.length - 1)) != null)
+      throw new RuntimeException("A truncated stream must not decode");
+    if (RleBitPackedHybrid.decodeBytes(RleBitPackedHybrid.encode(new long[]{1L << 40})) != null)
+      throw new RuntimeException("A 41-bit stream must not decode as bytes");
+  }
+
+  @Test
+  public void testStreamAlgorithmSelection() throws Exception {
+    double[] halfNegatives = new double[65536];
+    for (int i = 0; i < halfNegatives.length; i++)
+      halfNegatives[i] = (1.1d + Math.random()) * (i < halfNegatives.length / 2 ? 1.0d : -1.0d);
+
+    InMemoryCompressionMetrics metrics = new InMemoryCompressionMetrics();
+    CompressionMetrics previousMetrics = Compression.getMetrics();
+    Compression.setMetrics(metrics);
+    try {
+      CompressedDoubleArray compressed = Compression.deltaXorEncode64(halfNegatives, false);
+      if (compressed.signsAlgorithm != CompressionAlgorithms.RLE)
+        throw new RuntimeException("The signs are two runs, RLE should win: " + compressed.signsAlgorithm);
+      if (!Arrays.equals(halfNegatives, Compression.deltaXorDecode64(compressed)))
+        throw new RuntimeException("Values are different");
+
+      Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNS, CompressionAlgorithms.GZIP);
+      compressed = Compression.deltaXorEncode64(halfNegatives, false);
+      if (compressed.signsAlgorithm != CompressionAlgorithms.GZIP)
+        throw new RuntimeException("Only GZIP was selected for the signs: " + compressed.signsAlgorithm);
+    } finally {
+      Compression.setStreamAlgorithms(CompressionMetrics.Stream.SIGNS,
+          CompressionAlgorithms.GZIP, CompressionAlgorithms.ZIP, CompressionAlgorithms.RLE);
+      Compression.setMetrics(previousMetrics);
+    }
+
+    if (metrics.getChosenAlgorithmCount(CompressionMetrics.Stream.SIGNS, CompressionAlgorithms.RLE) != 1)
+      throw new RuntimeException("The metrics should record RLE once for the signs");
+  }
+}